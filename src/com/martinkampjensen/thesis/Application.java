@@ -18,6 +18,7 @@ package com.martinkampjensen.thesis;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 
 import com.martinkampjensen.thesis.analysis.LandscapeAnalyzer;
@@ -34,6 +35,7 @@ import com.martinkampjensen.thesis.connection.Connector;
 import com.martinkampjensen.thesis.connection.DirectConnector;
 import com.martinkampjensen.thesis.job.Action;
 import com.martinkampjensen.thesis.job.Analysis;
+import com.martinkampjensen.thesis.job.Barriers;
 import com.martinkampjensen.thesis.job.Job;
 import com.martinkampjensen.thesis.job.Minimization;
 import com.martinkampjensen.thesis.minimization.GromacsMinimizer;
@@ -49,11 +51,13 @@ import com.martinkampjensen.thesis.sampling.Sampler;
 import com.martinkampjensen.thesis.sampling.StepSampler;
 import com.martinkampjensen.thesis.util.Debug;
 import com.martinkampjensen.thesis.util.FileHandler;
+import com.martinkampjensen.thesis.util.Parallel;
 import com.martinkampjensen.thesis.util.Print;
 import com.martinkampjensen.thesis.util.Random;
 import com.martinkampjensen.thesis.util.Serialize;
 import com.martinkampjensen.thesis.util.Serialize.BarrierForestStructure;
 import com.martinkampjensen.thesis.util.Util;
+import com.martinkampjensen.thesis.util.gromacs.XtcFrames;
 import com.martinkampjensen.thesis.util.gromacs.XtcWriter;
 import com.martinkampjensen.thesis.util.openbabel.OBMol;
 import com.martinkampjensen.thesis.util.openbabel.OpenBabel;
@@ -75,6 +79,11 @@ public final class Application
 		Random.setSeed(seed);
 	}
 
+	public static void threads(int threads)
+	{
+		Parallel.setThreads(threads);
+	}
+
 	public static void analyze(Model model, File output)
 	{
 		final LandscapeAnalyzer analyzer = new LandscapeAnalyzer();
@@ -107,7 +116,7 @@ public final class Application
 		final BarrierForest forest =
 			constructor.construct(minima, new BeaconConnector());
 
-		barriers(moleculeFile, forest, new RmsdAngleDifferenceColorer(),
+		barriers(moleculeFile, null, forest, new RmsdAngleDifferenceColorer(),
 				postScriptFile, structureFile);
 	}
 
@@ -115,12 +124,60 @@ public final class Application
 			File energyFile, File postScriptFile, File structureFile,
 			double minDistance, double maxDistance)
 	{
-		final Constructor constructor = new TrajectoryConstructor();
+		barriers(moleculeFile, Collections.singletonList(trajectoryFile),
+				Collections.singletonList(energyFile), postScriptFile,
+				structureFile, minDistance, maxDistance);
+	}
+
+	/**
+	 * Constructs a barrier forest from several trajectories, each with its own
+	 * energy file, as if the trajectories were concatenated. The trajectories
+	 * and energy files are paired by their order.
+	 */
+	public static void barriers(File moleculeFile, List<File> trajectoryFiles,
+			List<File> energyFiles, File postScriptFile, File structureFile,
+			double minDistance, double maxDistance)
+	{
+		barriers(moleculeFile, trajectoryFiles, energyFiles, postScriptFile,
+				structureFile, minDistance, maxDistance, null, false, false);
+	}
+
+	/**
+	 * Constructs a barrier forest from several trajectories as
+	 * {@link #barriers(File, List, List, File, File, double, double)}, while
+	 * persisting the stages of the construction to a checkpoint directory, and
+	 * optionally resuming from an earlier checkpoint in the directory. The
+	 * frame indexes of the trajectories are saved next to the trajectories if
+	 * <code>saveFrameIndexes</code> is <code>true</code>.
+	 */
+	public static void barriers(File moleculeFile, List<File> trajectoryFiles,
+			List<File> energyFiles, File postScriptFile, File structureFile,
+			double minDistance, double maxDistance, File checkpointDirectory,
+			boolean resume, boolean saveFrameIndexes)
+	{
+		if(trajectoryFiles.isEmpty()) {
+			Main.errorExit("Specify at least one trajectory",
+					StatusCode.ARGUMENT);
+		}
+		else if(trajectoryFiles.size() != energyFiles.size()) {
+			Main.errorExit("Specify an energy file for each trajectory "
+					+ "(found " + trajectoryFiles.size() + " trajectories and "
+					+ energyFiles.size() + " energy files)",
+					StatusCode.ARGUMENT);
+		}
+		else if(resume && checkpointDirectory == null) {
+			Main.errorExit("Specify a checkpoint directory to resume from",
+					StatusCode.ARGUMENT);
+		}
+
+		final Constructor constructor =
+			new TrajectoryConstructor(checkpointDirectory, resume,
+					saveFrameIndexes);
 		final BarrierForest forest = constructor.construct(moleculeFile,
-				trajectoryFile, energyFile, minDistance, maxDistance);
+				trajectoryFiles, energyFiles, minDistance, maxDistance);
 
-		barriers(moleculeFile, forest, new TrajectoryPositionColorer(),
-				postScriptFile, structureFile);
+		barriers(moleculeFile, trajectoryFiles, forest,
+				new TrajectoryPositionColorer(), postScriptFile, structureFile);
 	}
 
 	public static void check(File file)
@@ -169,6 +226,7 @@ public final class Application
 
 		// Options.
 		Random.setSeed(job.options().seed());
+		Parallel.setThreads(job.options().threads());
 
 		// Input.
 		final Model model = Util.instantiateModel(job.input().location());
@@ -184,6 +242,23 @@ public final class Application
 					new File(analysis.output()), analysis.configs(),
 					analysis.deltas(), analysis.samples(), analysis.delta());
 			break;
+		case BARRIERS:
+			final Barriers barriers = job.options().barriers();
+			final File moleculeFile = new File(job.input().location());
+			final List<File> trajectoryFiles = barriers.trajectories();
+
+			if(trajectoryFiles.isEmpty()) {
+				barriers(moleculeFile, model, barriers.postscript(),
+						barriers.structure());
+			}
+			else {
+				barriers(moleculeFile, trajectoryFiles, barriers.energies(),
+						barriers.postscript(), barriers.structure(),
+						barriers.pruning(), barriers.neighbor(),
+						barriers.checkpoint(), barriers.resume(),
+						barriers.index());
+			}
+			break;
 		case EVALUATE:
 			evaluate(model);
 			break;
@@ -205,43 +280,60 @@ public final class Application
 
 	public static void extract(File file, int[] conformationIds)
 	{
-		Debug.line("Reconstructing original molecule and barrier forest");
-		final BarrierForestStructure bfs = Serialize.toBarrierForest(file);
+		Debug.line("Opening original molecule and barrier forest");
+		final BarrierForestStructure bfs = Serialize.mapBarrierForest(file);
 		final OBMol molecule = OpenBabel.fromPdb(bfs.getPdb());
 		final BarrierForest forest = bfs.getForest();
+		XtcFrames frames = null;
 
-		final int nConformationIds = conformationIds.length;
-		for(int i = 0; i < nConformationIds; i++) {
-			final int conformationId = conformationIds[i];
-
-			Debug.line("Searching for conformation %d", conformationId);
-			final Node node = forest.find(conformationId);
-			if(node == null) {
-				System.err.println("Error: Conformation " + conformationId
-						+ " was not found.\n");
-				continue;
-			}
-
-			Debug.line("Printing conformation in PDB format to stdout");
-			final Model model = node.getModel();
-
-			if(model instanceof ImmutableModel) {
-				final ImmutableModel im = (ImmutableModel)model;
-				Print.line(im.toPdb(molecule));
-			}
-			else if(model instanceof OpenBabelZMatrix) {
-				final OpenBabelZMatrix obzm = (OpenBabelZMatrix)model;
-				Print.line(obzm.toPdb(molecule));
+		try {
+			final int nConformationIds = conformationIds.length;
+			for(int i = 0; i < nConformationIds; i++) {
+				final int conformationId = conformationIds[i];
+
+				Debug.line("Searching for conformation %d", conformationId);
+				final Node node = forest.find(conformationId);
+				if(node == null) {
+					System.err.println("Error: Conformation " + conformationId
+							+ " was not found.\n");
+					continue;
+				}
+
+				Debug.line("Printing conformation in PDB format to stdout");
+				final Model model = node.getModel();
+
+				if(model instanceof ImmutableModel) {
+					final ImmutableModel im = (ImmutableModel)model;
+
+					if(im.getCoordinates() != null) {
+						Print.line(im.toPdb(molecule));
+					}
+					else {
+						if(frames == null) frames = openFrames(bfs);
+						Print.line(OpenBabel.toPdb(molecule,
+								frames.get(im.getId())));
+					}
+				}
+				else if(model instanceof OpenBabelZMatrix) {
+					final OpenBabelZMatrix obzm = (OpenBabelZMatrix)model;
+					Print.line(obzm.toPdb(molecule));
+				}
 			}
 		}
+		catch(IOException e) {
+			Main.errorExit(e, StatusCode.IO);
+		}
+		finally {
+			closeFrames(frames);
+		}
 	}
 
 	// TODO: Doesn't work for OpenBabelZMatrix, only for ImmutableModel.
 	public static void extract(File file, int fromId, int toId,
 			File trajectoryFile)
 	{
-		Debug.line("Reconstructing original molecule and barrier forest");
-		final BarrierForestStructure bfs = Serialize.toBarrierForest(file);
+		Debug.line("Opening original molecule and barrier forest");
+		final BarrierForestStructure bfs = Serialize.mapBarrierForest(file);
 
 		if(bfs.getType() != Serialize.BarrierForestType.IMMUTABLEMODEL) {
 			System.err.println("Not supported.");
@@ -261,14 +353,27 @@ public final class Application
 		try { xtcWriter = new XtcWriter(trajectoryFile, nAtoms); }
 		catch(IOException e) { Main.errorExit(e, StatusCode.IO); }
 
+		XtcFrames frames = null;
+
 		try {
 			for(int i = 0; i < nModels; i++) {
 				final ImmutableModel imModel = (ImmutableModel)models.get(i);
-				final double[][] coordinates = imModel.getCoordinates();
+				double[][] coordinates = imModel.getCoordinates();
+
+				if(coordinates == null) {
+					if(frames == null) frames = openFrames(bfs);
+					coordinates = frames.get(imModel.getId());
+				}
+
 				xtcWriter.write(coordinates);
 			}
 		}
+		catch(IOException e) {
+			Main.errorExit(e, StatusCode.IO);
+		}
 		finally {
+			closeFrames(frames);
+
 			try {
 				xtcWriter.close();
 			}
@@ -322,8 +427,9 @@ public final class Application
 		visualizer.start();
 	}
 
-	private static void barriers(File moleculeFile, BarrierForest forest,
-			Colorer colorer, File postScriptFile, File structureFile)
+	private static void barriers(File moleculeFile, List<File> trajectoryFiles,
+			BarrierForest forest, Colorer colorer, File postScriptFile,
+			File structureFile)
 	{
 		// To print out stats.
 		forest.getTotalConnectionValue();
@@ -338,7 +444,49 @@ public final class Application
 
 		if(structureFile != null) {
 			Debug.line("Writing structure to \"%s\"", structureFile.getName());
-			Serialize.fromBarrierForest(structureFile, moleculeFile, forest);
+			Serialize.fromBarrierForest(structureFile, moleculeFile,
+					trajectoryFiles, forest);
+		}
+	}
+
+	/**
+	 * Opens the trajectories that the coordinates of the models in a barrier
+	 * forest are read from.
+	 */
+	private static XtcFrames openFrames(BarrierForestStructure bfs)
+	throws IOException
+	{
+		final List<File> trajectoryFiles = bfs.getTrajectories();
+
+		if(trajectoryFiles.isEmpty()) {
+			Main.errorExit("The barrier forest does not refer to a trajectory.",
+					StatusCode.IO);
+		}
+
+		for(File trajectoryFile : trajectoryFiles) {
+			if(!trajectoryFile.isFile()) {
+				Main.errorExit("The trajectory \"" + trajectoryFile.getPath()
+						+ "\" referred to by the barrier forest does not "
+						+ "exist.", StatusCode.IO);
+			}
+		}
+
+		Debug.line("Reading coordinates from %s",
+				(trajectoryFiles.size() == 1 ?
+						"\"" + trajectoryFiles.get(0).getName() + "\"" :
+							trajectoryFiles.size() + " trajectories"));
+		return new XtcFrames(trajectoryFiles, XtcFrames.DEFAULT_CACHE_SIZE);
+	}
+
+	private static void closeFrames(XtcFrames frames)
+	{
+		if(frames == null) return;
+
+		try {
+			frames.close();
+		}
+		catch(IOException e) {
+			Main.errorExit(e, StatusCode.IO);
 		}
 	}
 }
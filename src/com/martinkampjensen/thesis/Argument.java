@@ -63,12 +63,13 @@ public enum Argument
 	 * Strings for the "trajectory" argument of the "barriers" option.
 	 */
 	BARRIERS_TRAJECTORY("Using trajectory", "trajectory",
-			"trajectory containing conformations", "file"),
+			"trajectories containing conformations (list or glob)", "files"),
 
 	/**
 	 * Strings for the "energy" argument of the "barriers" option.
 	 */
-	BARRIERS_ENERGY("energy", "energy file for trajectory", "file"),
+	BARRIERS_ENERGY("energy", "energy files for trajectories (list or glob)",
+			"files"),
 
 	/**
 	 * Strings for the "pruning" argument of the "barriers" option.
@@ -80,6 +81,22 @@ public enum Argument
 	 */
 	BARRIERS_NEIGHBOR("neighbor", "neighbor threshold (maxDistance)", "value"),
 
+	/**
+	 * Strings for the "checkpoint" argument of the "barriers" option.
+	 */
+	BARRIERS_CHECKPOINT("checkpoint", "save stages to checkpoint directory",
+			"directory"),
+
+	/**
+	 * Strings for the "resume" argument of the "barriers" option.
+	 */
+	BARRIERS_RESUME("resume", "resume from checkpoint directory"),
+
+	/**
+	 * Strings for the "index" argument of the "barriers" option.
+	 */
+	BARRIERS_INDEX("index", "save frame indexes next to trajectories"),
+
 	/**
 	 * Strings for the "check" option.
 	 */
@@ -164,7 +181,13 @@ public enum Argument
 	/**
 	 * Strings for the "seed" option.
 	 */
-	SEED("seed", "set the seed of the random generator", "value");
+	SEED("seed", "set the seed of the random generator", "value"),
+
+	/**
+	 * Strings for the "threads" option.
+	 */
+	THREADS("threads", "number of threads to use (0 for all processors)",
+			"value");
 
 	private final String _groupName;
 	private final String _longName;
@@ -20,10 +20,13 @@ import static com.martinkampjensen.thesis.Argument.ACTIONS;
 import static com.martinkampjensen.thesis.Argument.ANALYZE;
 import static com.martinkampjensen.thesis.Argument.ANALYZE_OUTPUT;
 import static com.martinkampjensen.thesis.Argument.BARRIERS;
+import static com.martinkampjensen.thesis.Argument.BARRIERS_CHECKPOINT;
 import static com.martinkampjensen.thesis.Argument.BARRIERS_ENERGY;
 import static com.martinkampjensen.thesis.Argument.BARRIERS_NEIGHBOR;
 import static com.martinkampjensen.thesis.Argument.BARRIERS_POSTSCRIPT;
 import static com.martinkampjensen.thesis.Argument.BARRIERS_PRUNING;
+import static com.martinkampjensen.thesis.Argument.BARRIERS_RESUME;
+import static com.martinkampjensen.thesis.Argument.BARRIERS_INDEX;
 import static com.martinkampjensen.thesis.Argument.BARRIERS_STRUCTURE;
 import static com.martinkampjensen.thesis.Argument.BARRIERS_TOPOLOGY;
 import static com.martinkampjensen.thesis.Argument.BARRIERS_TRAJECTORY;
@@ -42,6 +45,7 @@ import static com.martinkampjensen.thesis.Argument.SAMPLE;
 import static com.martinkampjensen.thesis.Argument.SAMPLE_ANGLEIDS;
 import static com.martinkampjensen.thesis.Argument.SAMPLE_RANDOM;
 import static com.martinkampjensen.thesis.Argument.SEED;
+import static com.martinkampjensen.thesis.Argument.THREADS;
 import static com.martinkampjensen.thesis.Argument.VISUALIZE;
 
 import java.io.File;
@@ -60,6 +64,7 @@ import org.apache.commons.cli2.util.HelpFormatter;
 
 import com.martinkampjensen.thesis.model.Model;
 import com.martinkampjensen.thesis.util.Debug;
+import com.martinkampjensen.thesis.util.FileHandler;
 import com.martinkampjensen.thesis.util.Util;
 
 /**
@@ -71,12 +76,14 @@ public final class Main
 	private static final GroupBuilder GB = new GroupBuilder();
 	private static final DefaultOptionBuilder OB = new DefaultOptionBuilder();
 	private static final ArgumentBuilder AB = new ArgumentBuilder();
-	private static Option _oSeed;
+	private static Option _oSeed, _oThreads;
 	private static Option _oAnalyze, _oAnalyzeOutput;
 	private static Option _oBarriers, _oBarriersTopology;
 	private static Option _oBarriersPostScript, _oBarriersStructure;
 	private static Option _oBarriersTrajectory, _oBarriersEnergy;
 	private static Option _oBarriersPruning, _oBarriersNeighbor;
+	private static Option _oBarriersCheckpoint, _oBarriersResume;
+	private static Option _oBarriersIndex;
 	private static Option _oCheck;
 	private static Option _oConnect;
 	private static Option _oEvaluate;
@@ -163,6 +170,7 @@ public final class Main
 			gb
 			.withName(OPTIONS.groupName())
 			.withOption(createSeed())
+			.withOption(createThreads())
 			.create();
 
 		final Group actions =
@@ -206,6 +214,20 @@ public final class Main
 					.create();
 	}
 
+	private static Option createThreads()
+	{
+		return _oThreads =
+			OB
+			.withLongName(THREADS.longName())
+			.withDescription(THREADS.description())
+			.withArgument(AB
+					.withName(THREADS.argumentName())
+					.withMinimum(1)
+					.withMaximum(1)
+					.create())
+					.create();
+	}
+
 	private static Option createAnalyze()
 	{
 		_oAnalyzeOutput =
@@ -288,6 +310,29 @@ public final class Main
 					.create())
 					.create();
 
+		_oBarriersCheckpoint =
+			OB
+			.withLongName(BARRIERS_CHECKPOINT.longName())
+			.withDescription(BARRIERS_CHECKPOINT.description())
+			.withArgument(AB
+					.withName(BARRIERS_CHECKPOINT.argumentName())
+					.withMinimum(1)
+					.withMaximum(1)
+					.create())
+					.create();
+
+		_oBarriersResume =
+			OB
+			.withLongName(BARRIERS_RESUME.longName())
+			.withDescription(BARRIERS_RESUME.description())
+			.create();
+
+		_oBarriersIndex =
+			OB
+			.withLongName(BARRIERS_INDEX.longName())
+			.withDescription(BARRIERS_INDEX.description())
+			.create();
+
 		final Group gBarriersTrajectory =
 			GB
 			.withName(BARRIERS_TRAJECTORY.groupName())
@@ -295,6 +340,9 @@ public final class Main
 			.withOption(_oBarriersEnergy)
 			.withOption(_oBarriersPruning)
 			.withOption(_oBarriersNeighbor)
+			.withOption(_oBarriersCheckpoint)
+			.withOption(_oBarriersResume)
+			.withOption(_oBarriersIndex)
 			.create();
 
 		_oBarriersTopology =
@@ -563,6 +611,9 @@ public final class Main
 		if(cmdLine.hasOption(_oSeed)) {
 			seed(cmdLine);
 		}
+		if(cmdLine.hasOption(_oThreads)) {
+			threads(cmdLine);
+		}
 
 		// Actions.
 		if(cmdLine.hasOption(_oAnalyze)) {
@@ -622,6 +673,18 @@ public final class Main
 		Application.seed(seed);
 	}
 
+	private static void threads(CommandLine cmdLine)
+	{
+		final int threads = parseInt(cmdLine.getValue(_oThreads));
+
+		if(threads < 0) {
+			errorExit("Specify a non-negative number of threads",
+					StatusCode.ARGUMENT);
+		}
+
+		Application.threads(threads);
+	}
+
 	private static void analyze(CommandLine cmdLine)
 	{
 		final String fileOrClassName = (String)cmdLine.getValue(_oAnalyze);
@@ -649,12 +712,19 @@ public final class Main
 			final String trajectory =
 				(String)cmdLine.getValue(_oBarriersTrajectory);
 			final String energy = (String)cmdLine.getValue(_oBarriersEnergy);
-			final File trajectoryFile = new File(trajectory);
-			final File energyFile = new File(energy);
+			final List<File> trajectoryFiles = FileHandler.expand(trajectory);
+			final List<File> energyFiles = FileHandler.expand(energy);
 			final double pruning = parseDouble(cmdLine, _oBarriersPruning);
 			final double neighbor = parseDouble(cmdLine, _oBarriersNeighbor);
-			Application.barriers(moleculeFile, trajectoryFile, energyFile,
-					postScriptFile, structureFile, pruning, neighbor);
+			final String checkpoint =
+				(String)cmdLine.getValue(_oBarriersCheckpoint);
+			final File checkpointDirectory =
+				(checkpoint == null ? null : new File(checkpoint));
+			final boolean resume = cmdLine.hasOption(_oBarriersResume);
+			final boolean index = cmdLine.hasOption(_oBarriersIndex);
+			Application.barriers(moleculeFile, trajectoryFiles, energyFiles,
+					postScriptFile, structureFile, pruning, neighbor,
+					checkpointDirectory, resume, index);
 		}
 		else {
 			final String topology =
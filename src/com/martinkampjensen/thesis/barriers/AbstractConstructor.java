@@ -23,6 +23,8 @@ import java.util.List;
 
 import com.martinkampjensen.thesis.Main;
 import com.martinkampjensen.thesis.StatusCode;
+import com.martinkampjensen.thesis.barriers.neighborhood.AbstractNeighborhood;
+import com.martinkampjensen.thesis.barriers.neighborhood.NeighborIndex;
 import com.martinkampjensen.thesis.barriers.neighborhood.Neighborhood;
 import com.martinkampjensen.thesis.barriers.neighborhood.RmsdAngleDifferenceNeighborhood;
 import com.martinkampjensen.thesis.connection.Connector;
@@ -34,6 +36,7 @@ import com.martinkampjensen.thesis.model.Model;
 import com.martinkampjensen.thesis.model.Node;
 import com.martinkampjensen.thesis.model.NodeFactory;
 import com.martinkampjensen.thesis.util.Debug;
+import com.martinkampjensen.thesis.util.DisjointSet;
 
 /**
  * This class provides a skeletal implementation of the {@link Constructor}
@@ -96,6 +99,29 @@ public abstract class AbstractConstructor implements Constructor
 		throw new UnsupportedOperationException("Not implemented");
 	}
 
+	@Override
+	public final BarrierForest construct(File moleculeFile,
+			List<File> trajectoryFiles, List<File> energyFiles,
+			double minDistance, double maxDistance)
+	{
+		return construct(moleculeFile, trajectoryFiles, energyFiles,
+				new RmsdAngleDifferenceNeighborhood(), minDistance,
+				maxDistance);
+	}
+
+	/**
+	 * This method is not implemented.
+	 * 
+	 * @throws UnsupportedOperationException always.
+	 */
+	@Override
+	public BarrierForest construct(File moleculeFile,
+			List<File> trajectoryFiles, List<File> energyFiles,
+			Neighborhood neighborhood, double minDistance, double maxDistance)
+	{
+		throw new UnsupportedOperationException("Not implemented");
+	}
+
 	protected static final void check(List<Model> minima, Connector connector,
 			double threshold)
 	{
@@ -146,6 +172,30 @@ public abstract class AbstractConstructor implements Constructor
 		}
 	}
 
+	protected static final void check(File moleculeFile,
+			List<File> trajectoryFiles, List<File> energyFiles,
+			Neighborhood neighborhood, double minDistance, double maxDistance)
+	{
+		if(trajectoryFiles == null) {
+			throw new NullPointerException("trajectoryFiles == null");
+		}
+		else if(energyFiles == null) {
+			throw new NullPointerException("energyFiles == null");
+		}
+		else if(trajectoryFiles.isEmpty()) {
+			throw new IllegalArgumentException("trajectoryFiles is empty");
+		}
+		else if(trajectoryFiles.size() != energyFiles.size()) {
+			throw new IllegalArgumentException("trajectoryFiles.size() != "
+					+ "energyFiles.size()");
+		}
+
+		for(int i = 0; i < trajectoryFiles.size(); i++) {
+			check(moleculeFile, trajectoryFiles.get(i), energyFiles.get(i),
+					neighborhood, minDistance, maxDistance);
+		}
+	}
+
 	/**
 	 * Creates leaf nodes from a list of minima.
 	 * 
@@ -182,6 +232,11 @@ public abstract class AbstractConstructor implements Constructor
 	 * Performs pruning by comparing every model against all other models and
 	 * only keeping the lowest fitness model when two models are within a
 	 * certain distance of each other.
+	 * <p>
+	 * If {@link AbstractNeighborhood#createIndex(List, Neighborhood, double)}
+	 * returns an index, only the models found by a range query are compared
+	 * against a model. The result is the same as when comparing against all
+	 * models.
 	 * 
 	 * @param models the models to prune.
 	 * @param neighborhood the neighborhood to use.
@@ -195,6 +250,8 @@ public abstract class AbstractConstructor implements Constructor
 	{
 		final int nModels = models.size();
 		final boolean[] isDiscarded = new boolean[nModels];
+		final NeighborIndex index =
+			AbstractNeighborhood.createIndex(models, neighborhood, minDistance);
 
 		// For status.
 		final long calculationsTotal = (long)nModels * (nModels - 1) / 2;
@@ -208,8 +265,16 @@ public abstract class AbstractConstructor implements Constructor
 		for(int i = 0; i < nModels; i++) {
 			if(!isDiscarded[i]) {
 				final Model first = models.get(i);
+				final int[] candidates = (index == null ? null :
+					AbstractNeighborhood.calculateFollowingNeighbors(models,
+							index, i, minDistance));
+				final int nCandidates = (candidates == null ?
+						nModels - 1 - i : candidates.length);
+
+				for(int k = 0; k < nCandidates; k++) {
+					final int j = (candidates == null ? i + 1 + k :
+						candidates[k]);
 
-				for(int j = i + 1; j < nModels; j++) {
 					if(isDiscarded[j]) {
 						continue;
 					}
@@ -260,6 +325,33 @@ public abstract class AbstractConstructor implements Constructor
 		return pruned;
 	}
 
+	/**
+	 * Returns the basin nodes of the sets in a disjoint-set forest, ordered by
+	 * the smallest element in each set.
+	 * 
+	 * @param sets the disjoint-set forest.
+	 * @param basins the basin nodes, where the basin node of a set is located
+	 *        at the representative of the set.
+	 * @return the basin nodes.
+	 */
+	protected static final List<Node> findRoots(DisjointSet sets, Node[] basins)
+	{
+		final int n = sets.size();
+		final boolean[] isFound = new boolean[n];
+		final List<Node> roots = new ArrayList<Node>(sets.getNumberOfSets());
+
+		for(int i = 0; i < n; i++) {
+			final int root = sets.find(i);
+
+			if(!isFound[root]) {
+				isFound[root] = true;
+				roots.add(basins[root]);
+			}
+		}
+
+		return roots;
+	}
+
 	protected static final BarrierForest createForest(Node[] roots,
 			int modelsUsed)
 	{
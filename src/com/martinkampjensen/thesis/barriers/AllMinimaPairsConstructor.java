@@ -27,7 +27,7 @@ import com.martinkampjensen.thesis.model.Model;
 import com.martinkampjensen.thesis.model.Node;
 import com.martinkampjensen.thesis.model.NodeFactory;
 import com.martinkampjensen.thesis.util.Debug;
-import com.martinkampjensen.thesis.util.Util;
+import com.martinkampjensen.thesis.util.DisjointSet;
 
 /**
  * An implementation of the {@link Constructor} interface that connects all
@@ -60,38 +60,39 @@ public final class AllMinimaPairsConstructor extends AbstractConstructor
 
 		final List<Barrier> barriers = connectAllMinimaPairs(minima, connector);
 		final Node[] nodes = createLeaves(minima);
+		final DisjointSet sets = new DisjointSet(nodes.length);
 		final int nBarriers = barriers.size();
 
 		Debug.line("Constructing barrier forest");
 
 		for(int i = 0; i < nBarriers; i++) {
 			final Barrier barrier = barriers.get(i);
-			final int fromId = barrier.getFromId();
-			final int toId = barrier.getToId();
-			final Node from = nodes[fromId];
-			final Node to = nodes[toId];
+			final int fromRoot = sets.find(barrier.getFromId());
+			final int toRoot = sets.find(barrier.getToId());
 			final double value = barrier.getValue();
 
 			if(value > threshold) {
 				// Barriers are sorted in ascending order.
 				break;
 			}
-			else if(from == to) {
+			else if(fromRoot == toRoot) {
 				// Already processed.
 				continue;
 			}
 
-			final Node node = NodeFactory.create(barrier.getModel(), from, to);
+			// The node of a set of minima is located at the representative.
+			final Node node = NodeFactory.create(barrier.getModel(),
+					nodes[fromRoot], nodes[toRoot]);
+			nodes[sets.union(fromRoot, toRoot)] = node;
 
-			// Change references to "from" or "to" nodes to their new parent.
-			if(Util.changeReferences(nodes, from, to, node)) {
-				// When all references point to the same node, the barrier tree
-				// has been constructed.
+			if(sets.getNumberOfSets() == 1) {
+				// When all minima are in the same set, the barrier tree has
+				// been constructed.
 				break;
 			}
 		}
 
-		final List<Node> roots = Util.removeDuplicates(nodes);
+		final List<Node> roots = findRoots(sets, nodes);
 		return createForest(roots, minima.size());
 	}
 
@@ -0,0 +1,596 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.martinkampjensen.thesis.barriers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.martinkampjensen.thesis.barriers.TrajectoryConstructor.Models;
+import com.martinkampjensen.thesis.barriers.neighborhood.Neighborhood;
+import com.martinkampjensen.thesis.model.Model;
+import com.martinkampjensen.thesis.model.impl.ConformationSorter;
+import com.martinkampjensen.thesis.model.impl.ConformationStore;
+import com.martinkampjensen.thesis.model.impl.ImmutableModel;
+import com.martinkampjensen.thesis.model.impl.MappedConformationStore;
+import com.martinkampjensen.thesis.util.Debug;
+
+/**
+ * A checkpoint directory where {@link TrajectoryConstructor} persists the
+ * outputs of the stages of a construction, so that a construction that is
+ * interrupted can be resumed from the last completed stage or block. The
+ * stages are:
+ * <ol>
+ * <li>The models after pruning, sorted by non-decreasing fitness value.</li>
+ * <li>The neighbor threshold, if it was calculated and not specified.</li>
+ * <li>The preceding neighbors consumed by the flooding algorithm, as a log of
+ * rows that is appended to while flooding. The flooding algorithm is
+ * deterministic given these rows, so its state (the basins and the nodes) is
+ * restored by replaying them.</li>
+ * </ol>
+ * Every file starts with a key that identifies the input of the construction
+ * (the files, their sizes and modification times, the neighborhood, and the
+ * pruning threshold), and a file with another key is ignored. The models and
+ * the neighbor threshold are written to a temporary file that is then
+ * renamed, and the number of complete rows in the log is recorded in a
+ * separate progress file every {@link #ROWS_PER_PROGRESS} rows, so an
+ * interrupted write never leaves a corrupt checkpoint.
+ */
+final class Checkpoint
+{
+	/**
+	 * The number of rows appended to the log of preceding neighbors between
+	 * updates of the progress file.
+	 */
+	static final int ROWS_PER_PROGRESS = 16384;
+
+	private static final int MAGIC = 0x42434b50;
+	private static final int VERSION = 1;
+	private static final String MODELS = "models.bin";
+	private static final String THRESHOLD = "threshold.bin";
+	private static final String ROWS = "rows.bin";
+	private static final String PROGRESS = "rows.progress";
+
+	private final File _directory;
+	private final String _key;
+	private final boolean _resume;
+
+	/**
+	 * Opens a checkpoint directory, which is created if it does not exist. If
+	 * the construction is not resumed, the files of an earlier checkpoint in
+	 * the directory are deleted.
+	 * 
+	 * @param directory the directory.
+	 * @param key the key identifying the input, as per
+	 *        {@link #key(File, List, List, Neighborhood, double)}.
+	 * @param resume whether or not to resume from the files of an earlier
+	 *        checkpoint in the directory.
+	 * @throws IOException if the directory could not be created or if an
+	 *         earlier checkpoint could not be deleted.
+	 */
+	Checkpoint(File directory, String key, boolean resume) throws IOException
+	{
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create checkpoint directory \""
+					+ directory + "\"");
+		}
+
+		_directory = directory;
+		_key = key;
+		_resume = resume;
+
+		if(!resume) {
+			for(String name : new String[] { MODELS, THRESHOLD, ROWS,
+					PROGRESS }) {
+				final File file = new File(directory, name);
+
+				if(file.exists() && !file.delete()) {
+					throw new IOException("Could not delete \"" + file + "\"");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns a key identifying the input of a construction.
+	 * 
+	 * @param moleculeFile the molecule.
+	 * @param trajectoryFiles the trajectories.
+	 * @param energyFiles the energy files of the trajectories.
+	 * @param neighborhood the neighborhood.
+	 * @param minDistance the pruning threshold.
+	 * @return the key.
+	 */
+	static String key(File moleculeFile, List<File> trajectoryFiles,
+			List<File> energyFiles, Neighborhood neighborhood,
+			double minDistance)
+	{
+		final List<File> files = new ArrayList<File>();
+		files.add(moleculeFile);
+		files.addAll(trajectoryFiles);
+		files.addAll(energyFiles);
+
+		final StringBuilder sb = new StringBuilder();
+		for(File file : files) {
+			sb.append(file.getAbsolutePath()).append('\t')
+			.append(file.length()).append('\t')
+			.append(file.lastModified()).append('\n');
+		}
+
+		sb.append(neighborhood.getClass().getName()).append('\n');
+		sb.append(minDistance);
+
+		return sb.toString();
+	}
+
+	/**
+	 * Loads the sorted models of an earlier checkpoint. The models are stored
+	 * in a {@link ConformationStore}, or out of core in a
+	 * {@link MappedConformationStore} if they would not fit in the heap, as
+	 * when they were created.
+	 * 
+	 * @return the models, or <code>null</code> if the construction is not
+	 *         resumed or if the models have not been saved.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	Models loadModels() throws IOException
+	{
+		final DataInputStream in = open(MODELS);
+		if(in == null) {
+			return null;
+		}
+
+		ConformationSorter sorter = null;
+
+		try {
+			final int totalConformations = in.readInt();
+			final int nModels = in.readInt();
+			final int nAngles = in.readInt();
+
+			if(nModels == 0) {
+				return new Models(Collections.<Model>emptyList(), null,
+						totalConformations);
+			}
+
+			final ConformationStore store;
+			if(TrajectoryConstructor.isOutOfCore(nModels, nAngles)) {
+				sorter = TrajectoryConstructor.createSorter(nModels,
+						nAngles);
+				store = null;
+			}
+			else {
+				store = new ConformationStore(nAngles, false);
+			}
+
+			final List<Model> models = new ArrayList<Model>(
+					(store == null ? 0 : nModels));
+
+			for(int i = 0; i < nModels; i++) {
+				final int id = in.readInt();
+				final double fitness = in.readDouble();
+				final double[] angles = new double[nAngles];
+
+				for(int a = 0; a < nAngles; a++) {
+					angles[a] = in.readDouble();
+				}
+
+				if(sorter != null) {
+					sorter.add(id, fitness, angles);
+				}
+				else {
+					models.add(store.add(
+							new ImmutableModel(id, fitness, angles)));
+				}
+			}
+
+			// The models are already sorted, and both sorts are stable.
+			return new Models((sorter == null ? models :
+				sorter.finish().models()), null, totalConformations);
+		}
+		catch(EOFException e) {
+			Debug.line("Models in checkpoint are incomplete");
+			return null;
+		}
+		finally {
+			if(sorter != null) {
+				sorter.close();
+			}
+
+			in.close();
+		}
+	}
+
+	/**
+	 * Saves the sorted models.
+	 * 
+	 * @param models the models.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	void saveModels(final Models models) throws IOException
+	{
+		save(MODELS, new Contents() {
+			@Override
+			void write(DataOutputStream out) throws IOException
+			{
+				final List<Model> list = models.list;
+				final int nModels = list.size();
+				final int nAngles = (nModels == 0 ? 0 : list.get(0).size());
+
+				out.writeInt(models.totalConformations);
+				out.writeInt(nModels);
+				out.writeInt(nAngles);
+
+				for(int i = 0; i < nModels; i++) {
+					final Model model = list.get(i);
+					out.writeInt(model.getId());
+					out.writeDouble(model.evaluate());
+
+					for(int a = 0; a < nAngles; a++) {
+						out.writeDouble(model.getAngle(a));
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Loads the neighbor threshold of an earlier checkpoint.
+	 * 
+	 * @return the neighbor threshold, or {@link Double#NaN} if the
+	 *         construction is not resumed or if the threshold has not been
+	 *         saved.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	double loadThreshold() throws IOException
+	{
+		final DataInputStream in = open(THRESHOLD);
+		if(in == null) {
+			return Double.NaN;
+		}
+
+		try {
+			return in.readDouble();
+		}
+		catch(EOFException e) {
+			return Double.NaN;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Saves the neighbor threshold.
+	 * 
+	 * @param maxDistance the neighbor threshold.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	void saveThreshold(final double maxDistance) throws IOException
+	{
+		save(THRESHOLD, new Contents() {
+			@Override
+			void write(DataOutputStream out) throws IOException
+			{
+				out.writeDouble(maxDistance);
+			}
+		});
+	}
+
+	/**
+	 * Opens the log of preceding neighbors for a neighbor threshold and a
+	 * number of models. If the construction is resumed and the log of an
+	 * earlier checkpoint was written for the same threshold and number of
+	 * models, its complete rows can be replayed before new rows are appended.
+	 * Otherwise, the log is empty.
+	 * 
+	 * @param maxDistance the neighbor threshold.
+	 * @param nModels the number of models.
+	 * @return the log.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	RowLog openRows(double maxDistance, int nModels) throws IOException
+	{
+		final File file = new File(_directory, ROWS);
+		int nRows = 0;
+		long length = 0;
+
+		final DataInputStream in = open(PROGRESS);
+		if(in != null) {
+			try {
+				if(in.readDouble() == maxDistance && in.readInt() == nModels) {
+					nRows = in.readInt();
+					length = in.readLong();
+				}
+			}
+			catch(EOFException e) {
+				// The progress file is always complete, as it is renamed.
+			}
+			finally {
+				in.close();
+			}
+
+			if(nRows < 0 || nRows > nModels || length < 0
+					|| file.length() < length) {
+				nRows = 0;
+				length = 0;
+			}
+		}
+
+		// Drop rows that were appended after the last progress update.
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+		}
+		finally {
+			raf.close();
+		}
+
+		return new RowLog(file, maxDistance, nModels, nRows, length);
+	}
+
+	/**
+	 * Opens a file of an earlier checkpoint and reads its header.
+	 * 
+	 * @return a stream positioned after the header, or <code>null</code> if
+	 *         the construction is not resumed or if the file does not exist
+	 *         or is for another key.
+	 */
+	private DataInputStream open(String name) throws IOException
+	{
+		final File file = new File(_directory, name);
+		if(!_resume || !file.isFile()) {
+			return null;
+		}
+
+		final DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		boolean isValid = false;
+
+		try {
+			isValid = (in.readInt() == MAGIC && in.readInt() == VERSION
+					&& _key.equals(readKey(in)));
+		}
+		catch(EOFException e) {
+			isValid = false;
+		}
+		finally {
+			if(!isValid) in.close();
+		}
+
+		if(!isValid) {
+			Debug.line("Ignoring \"%s\" in checkpoint, as it is for other "
+					+ "input", name);
+			return null;
+		}
+
+		return in;
+	}
+
+	/**
+	 * Writes a file to a temporary file with a header, and renames it.
+	 */
+	private void save(String name, Contents contents) throws IOException
+	{
+		final File file = new File(_directory, name);
+		final File temporary = File.createTempFile(name, ".tmp", _directory);
+		boolean isSaved = false;
+
+		try {
+			final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temporary)));
+
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(_key.length());
+				out.writeChars(_key);
+				contents.write(out);
+			}
+			finally {
+				out.close();
+			}
+
+			file.delete();
+			if(!temporary.renameTo(file)) {
+				throw new IOException("Could not rename \""
+						+ temporary.getName() + "\" to \"" + file.getName()
+						+ "\"");
+			}
+
+			isSaved = true;
+		}
+		finally {
+			if(!isSaved) temporary.delete();
+		}
+	}
+
+	private static String readKey(DataInputStream in) throws IOException
+	{
+		final int length = in.readInt();
+		if(length < 0) {
+			return null;
+		}
+
+		final StringBuilder sb = new StringBuilder(length);
+		for(int i = 0; i < length; i++) {
+			sb.append(in.readChar());
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * The contents of a file after the header.
+	 */
+	private abstract static class Contents
+	{
+		abstract void write(DataOutputStream out) throws IOException;
+	}
+
+	/**
+	 * A log of the preceding neighbors consumed by the flooding algorithm,
+	 * one row per model in the order of the models. The complete rows of an
+	 * earlier checkpoint are first read using {@link #read()}, after which
+	 * new rows are appended using {@link #write(int[])}.
+	 */
+	final class RowLog
+	{
+		private final File _file;
+		private final double _maxDistance;
+		private final int _nModels;
+		private final int _nReplayed;
+		private DataInputStream _in;
+		private DataOutputStream _out;
+		private int _nRead;
+		private int _nRows;
+		private long _length;
+
+		private RowLog(File file, double maxDistance, int nModels, int nRows,
+				long length) throws IOException
+		{
+			_file = file;
+			_maxDistance = maxDistance;
+			_nModels = nModels;
+			_nReplayed = nRows;
+			_in = (nRows == 0 ? null : new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file))));
+			_out = null;
+			_nRead = 0;
+			_nRows = nRows;
+			_length = length;
+		}
+
+		/**
+		 * Returns the number of rows of an earlier checkpoint that can be
+		 * read.
+		 * 
+		 * @return the number of rows.
+		 */
+		int getNumberOfReplayedRows()
+		{
+			return _nReplayed;
+		}
+
+		/**
+		 * Reads the next row of an earlier checkpoint.
+		 * 
+		 * @return the row.
+		 * @throws IOException if an I/O error occurs.
+		 * @throws IllegalStateException if all rows have been read.
+		 */
+		int[] read() throws IOException
+		{
+			if(_nRead == _nReplayed) {
+				throw new IllegalStateException("All rows have been read");
+			}
+
+			final int[] row = new int[_in.readInt()];
+			for(int k = 0; k < row.length; k++) {
+				row[k] = _in.readInt();
+			}
+
+			if(++_nRead == _nReplayed) {
+				_in.close();
+				_in = null;
+			}
+
+			return row;
+		}
+
+		/**
+		 * Appends a row, and updates the progress file every
+		 * {@link Checkpoint#ROWS_PER_PROGRESS} rows.
+		 * 
+		 * @param row the row.
+		 * @throws IOException if an I/O error occurs.
+		 * @throws IllegalStateException if not all rows of an earlier
+		 *         checkpoint have been read.
+		 */
+		void write(int[] row) throws IOException
+		{
+			if(_nRead != _nReplayed) {
+				throw new IllegalStateException("Not all rows have been read");
+			}
+
+			if(_out == null) {
+				_out = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(_file, true)));
+			}
+
+			_out.writeInt(row.length);
+			for(int k = 0; k < row.length; k++) {
+				_out.writeInt(row[k]);
+			}
+
+			_nRows++;
+			_length += 4L * (1 + row.length);
+
+			if(_nRows % ROWS_PER_PROGRESS == 0) {
+				saveProgress();
+			}
+		}
+
+		/**
+		 * Updates the progress file and closes the log.
+		 * 
+		 * @throws IOException if an I/O error occurs.
+		 */
+		void close() throws IOException
+		{
+			if(_in != null) {
+				_in.close();
+				_in = null;
+			}
+
+			if(_out != null) {
+				saveProgress();
+				_out.close();
+				_out = null;
+			}
+		}
+
+		private void saveProgress() throws IOException
+		{
+			_out.flush();
+
+			final int nRows = _nRows;
+			final long length = _length;
+
+			save(PROGRESS, new Contents() {
+				@Override
+				void write(DataOutputStream out) throws IOException
+				{
+					out.writeDouble(_maxDistance);
+					out.writeInt(_nModels);
+					out.writeInt(nRows);
+					out.writeLong(length);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.martinkampjensen.thesis.barriers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.martinkampjensen.thesis.barriers.TrajectoryConstructor.Models;
+import com.martinkampjensen.thesis.model.Model;
+import com.martinkampjensen.thesis.model.impl.ConformationStore;
+import com.martinkampjensen.thesis.model.impl.ImmutableModel;
+
+/**
+ * This class defines tests of the {@link Checkpoint} class.
+ */
+public final class CheckpointTest
+{
+	private static final String KEY = "checkpointtest";
+
+	@Test
+	public void testModels() throws IOException
+	{
+		final File directory = createDirectory();
+
+		try {
+			final ConformationStore store = new ConformationStore(2, false);
+			final List<Model> list = new ArrayList<Model>();
+			for(int i = 0; i < 10; i++) {
+				list.add(store.add(new ImmutableModel(10 - i, i / 2,
+						new double[] { i, -i })));
+			}
+
+			// Not resuming deletes an earlier checkpoint.
+			Checkpoint checkpoint = new Checkpoint(directory, KEY, false);
+			checkpoint.saveModels(new Models(list, null, 20));
+			checkpoint.saveThreshold(0.5d);
+			checkpoint = new Checkpoint(directory, KEY, false);
+			assertNull(checkpoint.loadModels());
+			assertTrue(Double.isNaN(checkpoint.loadThreshold()));
+			checkpoint = new Checkpoint(directory, KEY, true);
+			assertNull(checkpoint.loadModels());
+			assertTrue(Double.isNaN(checkpoint.loadThreshold()));
+
+			checkpoint.saveModels(new Models(list, null, 20));
+			checkpoint.saveThreshold(0.5d);
+
+			assertNull(new Checkpoint(directory, "other", true).loadModels());
+
+			checkpoint = new Checkpoint(directory, KEY, true);
+			final Models models = checkpoint.loadModels();
+			assertEquals(0.5d, checkpoint.loadThreshold(), 0d);
+			assertEquals(20, models.totalConformations);
+			assertEquals(list.size(), models.list.size());
+
+			for(int i = 0; i < list.size(); i++) {
+				final Model expected = list.get(i);
+				final Model actual = models.list.get(i);
+				assertEquals(expected.getId(), actual.getId());
+				assertEquals(expected.evaluate(), actual.evaluate(), 0d);
+				assertEquals(expected.getAngle(0), actual.getAngle(0), 0d);
+				assertEquals(expected.getAngle(1), actual.getAngle(1), 0d);
+			}
+		}
+		finally {
+			delete(directory);
+		}
+	}
+
+	@Test
+	public void testRows() throws IOException
+	{
+		final File directory = createDirectory();
+		final int nModels = Checkpoint.ROWS_PER_PROGRESS + 10;
+
+		try {
+			// Rows after the last progress update are lost when the log is
+			// not closed.
+			Checkpoint.RowLog rows =
+				new Checkpoint(directory, KEY, false).openRows(1d, nModels);
+			assertEquals(0, rows.getNumberOfReplayedRows());
+			for(int i = 0; i < nModels - 5; i++) {
+				rows.write(row(i));
+			}
+
+			rows = new Checkpoint(directory, KEY, true).openRows(1d, nModels);
+			assertEquals(Checkpoint.ROWS_PER_PROGRESS,
+					rows.getNumberOfReplayedRows());
+			for(int i = 0; i < Checkpoint.ROWS_PER_PROGRESS; i++) {
+				assertArrayEquals(row(i), rows.read());
+			}
+			for(int i = Checkpoint.ROWS_PER_PROGRESS; i < nModels; i++) {
+				rows.write(row(i));
+			}
+			rows.close();
+
+			rows = new Checkpoint(directory, KEY, true).openRows(1d, nModels);
+			assertEquals(nModels, rows.getNumberOfReplayedRows());
+			for(int i = 0; i < nModels; i++) {
+				assertArrayEquals(row(i), rows.read());
+			}
+			rows.close();
+
+			// Another number of models or threshold starts over.
+			rows = new Checkpoint(directory, KEY, true)
+			.openRows(1d, nModels + 1);
+			assertEquals(0, rows.getNumberOfReplayedRows());
+			rows.close();
+			rows = new Checkpoint(directory, KEY, true).openRows(2d, nModels);
+			assertEquals(0, rows.getNumberOfReplayedRows());
+			rows.close();
+			rows = new Checkpoint(directory, KEY, true).openRows(1d, nModels);
+			assertEquals(0, rows.getNumberOfReplayedRows());
+			rows.close();
+		}
+		finally {
+			delete(directory);
+		}
+	}
+
+	private static int[] row(int i)
+	{
+		final int[] row = new int[i % 4];
+		for(int k = 0; k < row.length; k++) {
+			row[k] = i - k - 1;
+		}
+
+		return row;
+	}
+
+	private static File createDirectory() throws IOException
+	{
+		final File directory = File.createTempFile("checkpointtest", null);
+		directory.delete();
+		assertTrue(directory.mkdir());
+		return directory;
+	}
+
+	private static void delete(File directory)
+	{
+		for(File file : directory.listFiles()) {
+			file.delete();
+		}
+
+		directory.delete();
+	}
+}
@@ -101,4 +101,42 @@ public interface Constructor
 	BarrierForest construct(File moleculeFile, File trajectoryFile,
 			File energyFile, Neighborhood neighborhood, double minDistance,
 			double maxDistance);
+
+	/**
+	 * As
+	 * {@link #construct(File, List, List, Neighborhood, double, double)},
+	 * but with the neighborhood set as {@link RmsdAngleDifferenceNeighborhood}.
+	 */
+	BarrierForest construct(File moleculeFile, List<File> trajectoryFiles,
+			List<File> energyFiles, double minDistance, double maxDistance);
+
+	/**
+	 * As {@link #construct(File, File, File, Neighborhood, double, double)},
+	 * but for several trajectories, e.g. of the replicas of a replica exchange
+	 * simulation, each with its own energy file. The conformations of the
+	 * trajectories are combined into one set of conformations, numbered
+	 * consecutively in the order of the trajectories, so a conformation
+	 * (model) id is unique across the trajectories.
+	 * 
+	 * @param moleculeFile the file containing the molecule (PDB format).
+	 * @param trajectoryFiles the files containing the trajectories (XTC
+	 *        format).
+	 * @param energyFiles the files containing energies for the exact frames
+	 *        in the trajectories, in the order of the trajectories.
+	 * @param neighborhood the neighborhood to use.
+	 * @param minDistance the pruning threshold.
+	 * @param maxDistance the neighborhood threshold.
+	 * @return the barrier forest.
+	 * @throws NullPointerException if <code>moleculeFile == null</code> or if
+	 *         <code>trajectoryFiles == null</code> or if
+	 *         <code>energyFiles == null</code> or if
+	 *         <code>neighborhood == null</code>.
+	 * @throws IllegalArgumentException if <code>trajectoryFiles</code> is
+	 *         empty, if the numbers of trajectories and energy files differ,
+	 *         if <code>minDistance &lt; 0</code> or if
+	 *         <code>maxDistance &lt; 0 && maxDistance != 1</code>.
+	 */
+	BarrierForest construct(File moleculeFile, List<File> trajectoryFiles,
+			List<File> energyFiles, Neighborhood neighborhood,
+			double minDistance, double maxDistance);
 }
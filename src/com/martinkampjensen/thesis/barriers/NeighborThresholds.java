@@ -0,0 +1,395 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.barriers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.martinkampjensen.thesis.barriers.neighborhood.Neighborhood;
+import com.martinkampjensen.thesis.model.Model;
+import com.martinkampjensen.thesis.util.Parallel;
+
+/**
+ * Calculates how the number of trees and leaves in the barrier forest created
+ * by the flooding algorithm depends on the neighbor threshold
+ * (<code>maxDistance</code>). After the calculations, which are done once, the
+ * numbers for any threshold are found without reconstructing the forest.
+ * <p>
+ * The models must be sorted by non-decreasing fitness value, as in the
+ * flooding algorithm. A model is then a leaf if and only if none of the models
+ * before it is a neighbor, so the number of leaves at threshold
+ * <code>t</code> is the number of models whose distance to the nearest
+ * preceding model is greater than <code>t</code>. The trees are the connected
+ * components of the graph where models within distance <code>t</code> of each
+ * other are connected, so the number of trees is the number of models minus
+ * the number of edges no longer than <code>t</code> in a minimum spanning tree.
+ * In particular, the smallest threshold that results in a single tree is the
+ * longest edge in the minimum spanning tree.
+ * <p>
+ * The minimum spanning tree is found using the dense version of Prim's
+ * algorithm, which calculates the distance between every pair of models
+ * exactly once. The nearest preceding models are found from the same
+ * distances, and no distances are stored.
+ * <p>
+ * Note that the numbers of leaves are the numbers of local minima found by
+ * the flooding algorithm. When a forest is created, leaves that have exactly
+ * the same fitness value as their parent are removed by
+ * {@link com.martinkampjensen.thesis.model.Node#clean()},
+ * so in that rare case the forest has fewer leaves.
+ */
+public final class NeighborThresholds
+{
+	/**
+	 * The minimum number of models outside the minimum spanning tree for a
+	 * step of Prim's algorithm to be divided between several threads.
+	 */
+	private static final int MIN_PARALLEL_SIZE = 4096;
+
+	private final int _nModels;
+	private final double[] _nearestPreceding;
+	private final double[] _treeDistances;
+
+	/**
+	 * Performs the calculations for a list of models using
+	 * {@link Parallel#getThreads()} threads.
+	 * 
+	 * @param models the models sorted by non-decreasing fitness value.
+	 * @param neighborhood the neighborhood to use.
+	 * @throws NullPointerException if <code>models == null</code> or if
+	 *         <code>neighborhood == null</code>.
+	 */
+	public NeighborThresholds(List<Model> models, Neighborhood neighborhood)
+	{
+		this(models, neighborhood, Parallel.getThreads());
+	}
+
+	/**
+	 * Performs the calculations for a list of models.
+	 * 
+	 * @param models the models sorted by non-decreasing fitness value.
+	 * @param neighborhood the neighborhood to use.
+	 * @param nThreads the number of threads to use.
+	 * @throws NullPointerException if <code>models == null</code> or if
+	 *         <code>neighborhood == null</code>.
+	 * @throws IllegalArgumentException if <code>nThreads &lt; 1</code>.
+	 */
+	public NeighborThresholds(List<Model> models, Neighborhood neighborhood,
+			int nThreads)
+	{
+		if(models == null) {
+			throw new NullPointerException("models == null");
+		}
+		else if(neighborhood == null) {
+			throw new NullPointerException("neighborhood == null");
+		}
+		else if(nThreads < 1) {
+			throw new IllegalArgumentException("nThreads < 1");
+		}
+
+		_nModels = models.size();
+		_nearestPreceding = new double[_nModels];
+		_treeDistances = new double[Math.max(0, _nModels - 1)];
+
+		new Prim(models, neighborhood, nThreads).run();
+
+		Arrays.sort(_nearestPreceding);
+		Arrays.sort(_treeDistances);
+	}
+
+	/**
+	 * Returns the number of models.
+	 * 
+	 * @return the number of models.
+	 */
+	public int getNumberOfModels()
+	{
+		return _nModels;
+	}
+
+	/**
+	 * Returns the number of leaves in the forest created with a neighbor
+	 * threshold.
+	 * 
+	 * @param maxDistance the neighbor threshold.
+	 * @return the number of leaves.
+	 */
+	public int getNumberOfLeaves(double maxDistance)
+	{
+		return _nModels - countLessEqual(_nearestPreceding, maxDistance);
+	}
+
+	/**
+	 * Returns the number of trees in the forest created with a neighbor
+	 * threshold.
+	 * 
+	 * @param maxDistance the neighbor threshold.
+	 * @return the number of trees.
+	 */
+	public int getNumberOfTrees(double maxDistance)
+	{
+		return _nModels - countLessEqual(_treeDistances, maxDistance);
+	}
+
+	/**
+	 * Returns the smallest neighbor threshold that results in a single leaf.
+	 * 
+	 * @return the threshold.
+	 */
+	public double getSingleLeafThreshold()
+	{
+		// The last value is the infinite distance of the first model.
+		return (_nModels < 2 ? 0d : _nearestPreceding[_nModels - 2]);
+	}
+
+	/**
+	 * Returns the smallest neighbor threshold that results in a single tree,
+	 * which is the longest edge in the minimum spanning tree.
+	 * 
+	 * @return the threshold.
+	 */
+	public double getSingleTreeThreshold()
+	{
+		return (_treeDistances.length == 0 ? 0d :
+			_treeDistances[_treeDistances.length - 1]);
+	}
+
+	/**
+	 * Returns the number of values in a sorted array that are less than or
+	 * equal to a value.
+	 */
+	private static int countLessEqual(double[] sorted, double value)
+	{
+		int lo = 0;
+		int hi = sorted.length;
+
+		while(lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+
+			if(sorted[mid] <= value) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+
+		return lo;
+	}
+
+	/**
+	 * The dense version of Prim's algorithm. In every step, the model most
+	 * recently added to the tree is compared against all models outside the
+	 * tree, which updates their distances to the tree and the distances to
+	 * their nearest preceding models. The models outside the tree are divided
+	 * between the threads, and ties between models that are equally close to
+	 * the tree are broken by id, so the result does not depend on the number
+	 * of threads.
+	 */
+	private final class Prim
+	{
+		private final List<Model> _models;
+		private final Neighborhood _neighborhood;
+		private final int _nThreads;
+		private final int[] _outside;
+		private final double[] _distances;
+		private int _nOutside;
+		private int _added;
+
+		private Prim(List<Model> models, Neighborhood neighborhood,
+				int nThreads)
+		{
+			_models = models;
+			_neighborhood = neighborhood;
+			_nThreads = nThreads;
+			_outside = new int[Math.max(0, _nModels - 1)];
+			_distances = new double[_nModels];
+			_nOutside = _outside.length;
+			_added = 0;
+
+			// The first model is the first model in the tree. As it has no
+			// preceding model, it is always a leaf.
+			for(int i = 0; i < _nModels; i++) {
+				if(i != 0) _outside[i - 1] = i;
+				_distances[i] = Double.POSITIVE_INFINITY;
+				_nearestPreceding[i] = Double.POSITIVE_INFINITY;
+			}
+		}
+
+		private void run()
+		{
+			final List<Relaxation> relaxations =
+				new ArrayList<Relaxation>(_nThreads);
+			for(int t = 0; t < _nThreads; t++) {
+				relaxations.add(new Relaxation());
+			}
+
+			final ExecutorService pool =
+				(_nThreads == 1 ? null : Parallel.createPool(_nThreads));
+
+			// For status.
+			final long calculationsTotal =
+				(long)_nModels * (_nModels - 1) / 2;
+			final boolean performStatus = (calculationsTotal >= 2500000);
+			final long calculationsTwentieth =
+				Math.max(1, (long)Math.floor(calculationsTotal / 20d));
+			long calculationsMilestone = calculationsTwentieth;
+			long calculationsDone = 0;
+			if(performStatus) {
+				System.err.print("Minimum spanning tree calculated: [0%");
+			}
+
+			try {
+				for(int step = 0; _nOutside > 0; step++) {
+					final int nOutside = _nOutside;
+					final int nParts = (pool == null
+							|| nOutside < MIN_PARALLEL_SIZE ? 1 : _nThreads);
+
+					for(int t = 0; t < nParts; t++) {
+						relaxations.get(t).set(t * nOutside / nParts,
+								(t + 1) * nOutside / nParts);
+					}
+
+					if(nParts == 1) {
+						relaxations.get(0).call();
+					}
+					else {
+						final List<Future<Void>> futures =
+							pool.invokeAll(relaxations);
+						for(int t = 0; t < nParts; t++) {
+							Parallel.get(futures.get(t));
+						}
+					}
+
+					// Combine the results of the parts.
+					int closest = -1;
+					for(int t = 0; t < nParts; t++) {
+						final Relaxation relaxation = relaxations.get(t);
+
+						if(relaxation._nearest < _nearestPreceding[_added]) {
+							_nearestPreceding[_added] = relaxation._nearest;
+						}
+
+						final int candidate = relaxation._closest;
+						if(candidate != -1 && (closest == -1 ||
+								isCloser(_outside[candidate],
+										_outside[closest]))) {
+							closest = candidate;
+						}
+					}
+
+					_added = _outside[closest];
+					_treeDistances[step] = _distances[_added];
+					_outside[closest] = _outside[--_nOutside];
+
+					// For status.
+					if(performStatus) {
+						calculationsDone += nOutside;
+						if(calculationsDone >= calculationsMilestone
+								&& _nOutside != 0) {
+							System.err.print("..." + (int)(100 *
+									calculationsDone /
+									(double)calculationsTotal) + "%");
+							while(calculationsDone >= calculationsMilestone)
+								calculationsMilestone += calculationsTwentieth;
+						}
+					}
+				}
+
+				if(performStatus) System.err.println("...100%]");
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			}
+			finally {
+				if(pool != null) pool.shutdownNow();
+			}
+		}
+
+		private boolean isCloser(int first, int second)
+		{
+			final double firstDistance = _distances[first];
+			final double secondDistance = _distances[second];
+
+			return firstDistance < secondDistance
+			|| (firstDistance == secondDistance && first < second);
+		}
+
+		/**
+		 * Compares the model most recently added to the tree against a part
+		 * <code>[start; end)</code> of the models outside the tree. Only the
+		 * distances of models in the part are written, and the distance to the
+		 * nearest preceding model of the added model is kept in the
+		 * relaxation until the parts are combined.
+		 */
+		private final class Relaxation implements Callable<Void>
+		{
+			private int _start;
+			private int _end;
+			private int _closest;
+			private double _nearest;
+
+			private void set(int start, int end)
+			{
+				_start = start;
+				_end = end;
+			}
+
+			@Override
+			public Void call()
+			{
+				final int added = _added;
+				final Model addedModel = _models.get(added);
+				int closest = -1;
+				double nearest = Double.POSITIVE_INFINITY;
+
+				for(int k = _start; k < _end; k++) {
+					final int id = _outside[k];
+					final Model model = _models.get(id);
+					final double distance;
+
+					if(id < added) {
+						distance = _neighborhood.distance(model, addedModel);
+						if(distance < nearest) nearest = distance;
+					}
+					else {
+						distance = _neighborhood.distance(addedModel, model);
+						if(distance < _nearestPreceding[id]) {
+							_nearestPreceding[id] = distance;
+						}
+					}
+
+					if(distance < _distances[id]) {
+						_distances[id] = distance;
+					}
+
+					if(closest == -1 || isCloser(id, _outside[closest])) {
+						closest = k;
+					}
+				}
+
+				_closest = closest;
+				_nearest = nearest;
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.barriers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.martinkampjensen.thesis.barriers.neighborhood.AbstractNeighborhoodTest;
+import com.martinkampjensen.thesis.barriers.neighborhood.NeighborGraph;
+import com.martinkampjensen.thesis.barriers.neighborhood.Neighborhood;
+import com.martinkampjensen.thesis.barriers.neighborhood.RmsdAngleDifferenceNeighborhood;
+import com.martinkampjensen.thesis.model.Model;
+import com.martinkampjensen.thesis.util.DisjointSet;
+
+/**
+ * This class defines tests of the {@link NeighborThresholds} class.
+ */
+public final class NeighborThresholdsTest
+{
+	@Test
+	public void testThresholds()
+	{
+		final List<Model> models = AbstractNeighborhoodTest.createModels(300, 3);
+		final Neighborhood neighborhood = new RmsdAngleDifferenceNeighborhood();
+		Collections.sort(models);
+
+		final NeighborThresholds thresholds =
+			new NeighborThresholds(models, neighborhood);
+		final double singleTree = thresholds.getSingleTreeThreshold();
+		final double singleLeaf = thresholds.getSingleLeafThreshold();
+
+		assertEquals(1, count(models, neighborhood, singleTree, true));
+		assertEquals(1, count(models, neighborhood, singleLeaf, false));
+
+		for(int i = 0; i <= 20; i++) {
+			final double maxDistance = i * singleLeaf / 20;
+
+			assertEquals(count(models, neighborhood, maxDistance, true),
+					thresholds.getNumberOfTrees(maxDistance));
+			assertEquals(count(models, neighborhood, maxDistance, false),
+					thresholds.getNumberOfLeaves(maxDistance));
+		}
+
+		final double belowSingleTree = Math.nextAfter(singleTree, 0d);
+		assertEquals(count(models, neighborhood, belowSingleTree, true),
+				thresholds.getNumberOfTrees(belowSingleTree));
+		assertEquals(2, thresholds.getNumberOfTrees(belowSingleTree));
+	}
+
+	@Test
+	public void testThresholdsInParallel()
+	{
+		final List<Model> models =
+			AbstractNeighborhoodTest.createModels(5000, 2);
+		final Neighborhood neighborhood = new RmsdAngleDifferenceNeighborhood();
+		Collections.sort(models);
+
+		final NeighborThresholds expected =
+			new NeighborThresholds(models, neighborhood, 1);
+		final NeighborThresholds actual =
+			new NeighborThresholds(models, neighborhood, 3);
+
+		assertEquals(expected.getSingleTreeThreshold(),
+				actual.getSingleTreeThreshold(), 0d);
+		assertEquals(expected.getSingleLeafThreshold(),
+				actual.getSingleLeafThreshold(), 0d);
+
+		for(int i = 0; i <= 20; i++) {
+			final double maxDistance = i * expected.getSingleLeafThreshold() / 20;
+
+			assertEquals(expected.getNumberOfTrees(maxDistance),
+					actual.getNumberOfTrees(maxDistance));
+			assertEquals(expected.getNumberOfLeaves(maxDistance),
+					actual.getNumberOfLeaves(maxDistance));
+		}
+	}
+
+	/**
+	 * Counts trees (connected components) or leaves (models without a
+	 * preceding neighbor) using the neighbor matrix.
+	 */
+	private static int count(List<Model> models, Neighborhood neighborhood,
+			double maxDistance, boolean countTrees)
+	{
+		final NeighborGraph neighbors =
+			neighborhood.calculateNeighbors(models, maxDistance, false);
+		final DisjointSet components = new DisjointSet(models.size());
+		int nLeaves = 0;
+
+		for(int i = 0; i < neighbors.size(); i++) {
+			boolean isLeaf = true;
+
+			for(int j = 0; j < neighbors.getNumberOfNeighbors(i); j++) {
+				final int neighbor = neighbors.getNeighbor(i, j);
+				components.union(i, neighbor);
+				if(neighbor < i) isLeaf = false;
+			}
+
+			if(isLeaf) nLeaves++;
+		}
+
+		return (countTrees ? components.getNumberOfSets() : nLeaves);
+	}
+}
@@ -20,26 +20,29 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.NoSuchElementException;
-import java.util.Set;
+import java.util.concurrent.Callable;
 
 import com.martinkampjensen.thesis.Main;
 import com.martinkampjensen.thesis.StatusCode;
+import com.martinkampjensen.thesis.barriers.neighborhood.NeighborPipeline;
 import com.martinkampjensen.thesis.barriers.neighborhood.Neighborhood;
 import com.martinkampjensen.thesis.model.BarrierForest;
 import com.martinkampjensen.thesis.model.Model;
 import com.martinkampjensen.thesis.model.Node;
 import com.martinkampjensen.thesis.model.NodeFactory;
+import com.martinkampjensen.thesis.model.impl.ConformationSorter;
+import com.martinkampjensen.thesis.model.impl.ConformationStore;
 import com.martinkampjensen.thesis.model.impl.ImmutableModel;
+import com.martinkampjensen.thesis.model.impl.MappedConformationStore;
+import com.martinkampjensen.thesis.model.impl.StoredModel;
 import com.martinkampjensen.thesis.util.Debug;
+import com.martinkampjensen.thesis.util.DisjointSet;
+import com.martinkampjensen.thesis.util.IntSet;
+import com.martinkampjensen.thesis.util.Parallel;
 import com.martinkampjensen.thesis.util.Print;
 import com.martinkampjensen.thesis.util.R;
-import com.martinkampjensen.thesis.util.Util;
 import com.martinkampjensen.thesis.util.gromacs.EnergyExtractor;
-import com.martinkampjensen.thesis.util.gromacs.XtcReader;
 import com.martinkampjensen.thesis.util.openbabel.OBMol;
 import com.martinkampjensen.thesis.util.openbabel.OpenBabel;
 import com.martinkampjensen.thesis.util.openbabel.OpenBabelData;
@@ -49,9 +52,73 @@ import com.martinkampjensen.thesis.util.openbabel.OpenBabelData;
  */
 public final class TrajectoryConstructor extends AbstractConstructor
 {
+	/**
+	 * The fraction of the maximum heap size that the conformations may use
+	 * before they are sorted and stored out of core.
+	 */
+	private static final double IN_CORE_FRACTION = 0.5d;
+
+	/**
+	 * The fraction of the maximum heap size used for sorting conformations in
+	 * memory when they are stored out of core.
+	 */
+	private static final double RUN_FRACTION = 0.125d;
+
+	/**
+	 * The approximate number of bytes of heap per conformation that are used
+	 * whether or not the conformations are stored out of core: an energy
+	 * value while the trajectories are read, and a set and a basin in
+	 * {@link Flooding}, a model, a leaf node and an inner node while the
+	 * forest is constructed.
+	 */
+	private static final long RESIDENT_BYTES = 8 + 5 + 8 + 24 + 2 * 48;
+
+	private final File _checkpointDirectory;
+	private final boolean _resume;
+	private final boolean _saveFrameIndexes;
+
 	public TrajectoryConstructor()
+	{
+		this(null, false);
+	}
+
+	/**
+	 * As {@link #TrajectoryConstructor(File, boolean, boolean)}, but without
+	 * saving the frame indexes of the trajectories.
+	 */
+	public TrajectoryConstructor(File checkpointDirectory, boolean resume)
+	{
+		this(checkpointDirectory, resume, false);
+	}
+
+	/**
+	 * Creates a constructor that persists the outputs of the stages of a
+	 * construction to a checkpoint directory, as described in
+	 * {@link Checkpoint}, and optionally resumes from an earlier checkpoint.
+	 * 
+	 * @param checkpointDirectory the checkpoint directory, or
+	 *        <code>null</code> to not persist anything.
+	 * @param resume whether or not to resume from the last completed stage or
+	 *        block of an earlier construction with the same input.
+	 * @param saveFrameIndexes whether or not to save the frame indexes of the
+	 *        trajectories as sidecar files next to the trajectories, as per
+	 *        {@link com.martinkampjensen.thesis.util.gromacs.XtcFrameIndex#open(File, boolean)}.
+	 * @throws IllegalArgumentException if <code>resume</code> is
+	 *         <code>true</code> and <code>checkpointDirectory == null</code>.
+	 */
+	public TrajectoryConstructor(File checkpointDirectory, boolean resume,
+			boolean saveFrameIndexes)
 	{
 		super();
+
+		if(resume && checkpointDirectory == null) {
+			throw new IllegalArgumentException(
+					"resume without a checkpoint directory");
+		}
+
+		_checkpointDirectory = checkpointDirectory;
+		_resume = resume;
+		_saveFrameIndexes = saveFrameIndexes;
 	}
 
 	// TODO: minDistance, maxDistance hints
@@ -73,78 +140,84 @@ public final class TrajectoryConstructor extends AbstractConstructor
 		check(moleculeFile, trajectoryFile, energyFile, neighborhood,
 				minDistance, maxDistance);
 
-		final boolean useSpecifiedMaxDistance = (maxDistance != -1d);
+		return construct(moleculeFile,
+				Collections.singletonList(trajectoryFile),
+				Collections.singletonList(energyFile), neighborhood,
+				minDistance, maxDistance);
+	}
 
-		final Models models = createModels(moleculeFile, trajectoryFile,
-				energyFile, neighborhood, minDistance);
-		final List<Model> modelsList = models.list;
+	/**
+	 * @throws NullPointerException {@inheritDoc}
+	 * @throws IllegalArgumentException {@inheritDoc}
+	 */
+	@Override
+	public BarrierForest construct(File moleculeFile,
+			List<File> trajectoryFiles, List<File> energyFiles,
+			Neighborhood neighborhood, double minDistance, double maxDistance)
+	{
+		check(moleculeFile, trajectoryFiles, energyFiles, neighborhood,
+				minDistance, maxDistance);
 
-		Debug.line("Sorting models by non-decreasing fitness value");
-		Collections.sort(modelsList);
+		boolean useSpecifiedMaxDistance = (maxDistance != -1d);
+		final Checkpoint checkpoint = openCheckpoint(moleculeFile,
+				trajectoryFiles, energyFiles, neighborhood, minDistance);
+		Models models = null;
 
-		if(!useSpecifiedMaxDistance) {
-			Debug.line("Approximating smallest neighborhood threshold "
-					+ "(maxDistance) that results in a single tree");
-			final double minBinarySearchSpan = 0.02;
-			final double maxMaxDistance =
-				neighborhood.maximumDistance(modelsList.get(0));
-			double lowerMaxDistance;
-
-			// Binary search like approach for finding the smallest value of
-			// maxDistance that results in a single tree. The smallest value is
-			// not found exactly, but one quite close will be.
-			for(double min = minDistance, max = maxMaxDistance;;) {
-				lowerMaxDistance = (min + max) / 2d;
-				final BarrierForest forest = construct(modelsList,
-						models.totalConformations, neighborhood, minDistance,
-						lowerMaxDistance, false);
-				final int nTrees = forest.getNumberOfTrees();
-
-				if(nTrees == 1) {
-					Debug.line("Neighbor threshold %f results in 1 tree",
-							lowerMaxDistance);
-					max = lowerMaxDistance;
-
-					if(max - min < minBinarySearchSpan) {
-						break;
-					}
-				}
-				else {
-					Debug.line("Neighbor threshold %f results in %d trees",
-							lowerMaxDistance, nTrees);
-					min = lowerMaxDistance;
-				}
+		try {
+			if(checkpoint != null) {
+				Debug.line("Loading models from checkpoint");
+				models = checkpoint.loadModels();
 			}
 
-			Debug.line("Approximating smallest neighborhood threshold "
-					+ "(maxDistance) that results in a single leaf");
-			double upperMaxDistance;
-
-			// Binary search like approach for finding the smallest value of
-			// maxDistance that results in a single leaf. The smallest value is
-			// not found exactly, but one quite close will be.
-			for(double min = maxDistance, max = maxMaxDistance;;) {
-				upperMaxDistance = (min + max) / 2d;
-				final BarrierForest forest = construct(modelsList,
-						models.totalConformations, neighborhood, minDistance,
-						upperMaxDistance, false);
-				final int nLeaves = forest.getNumberOfLeaves();
-
-				if(nLeaves == 1) {
-					Debug.line("Neighbor threshold %f results in 1 leaf",
-							upperMaxDistance);
-					max = upperMaxDistance;
-
-					if(max - min < minBinarySearchSpan) {
-						break;
-					}
+			if(models == null) {
+				final Models created = createModels(moleculeFile,
+						trajectoryFiles, energyFiles, neighborhood,
+						minDistance, _saveFrameIndexes);
+
+				// Sorting the conformations in a new store also drops the
+				// conformations that were discarded by pruning. Conformations
+				// stored out of core have already been sorted.
+				Debug.line("Sorting models by non-decreasing fitness value");
+				models = (created.store == null ? created : new Models(
+						created.store.sortedCopy(created.list), null,
+						created.totalConformations));
+
+				if(checkpoint != null) {
+					Debug.line("Saving models to checkpoint");
+					checkpoint.saveModels(models);
 				}
-				else {
-					Debug.line("Neighbor threshold %f results in %d leaves",
-							upperMaxDistance, nLeaves);
-					min = upperMaxDistance;
+			}
+
+			if(checkpoint != null && !useSpecifiedMaxDistance) {
+				final double threshold = checkpoint.loadThreshold();
+
+				if(!Double.isNaN(threshold)) {
+					Debug.line("Loaded neighbor threshold from checkpoint");
+					maxDistance = threshold;
+					useSpecifiedMaxDistance = true;
 				}
 			}
+		}
+		catch(IOException e) {
+			Main.errorExit(e, StatusCode.IO);
+		}
+
+		final List<Model> modelsList = models.list;
+
+		if(!useSpecifiedMaxDistance) {
+			Debug.line("Calculating smallest neighborhood thresholds "
+					+ "(maxDistance) that result in a single tree and in a "
+					+ "single leaf");
+			final NeighborThresholds thresholds =
+				new NeighborThresholds(modelsList, neighborhood);
+			final double lowerMaxDistance =
+				thresholds.getSingleTreeThreshold();
+			final double upperMaxDistance =
+				thresholds.getSingleLeafThreshold();
+			Debug.line("Neighbor threshold %f results in 1 tree",
+					lowerMaxDistance);
+			Debug.line("Neighbor threshold %f results in 1 leaf",
+					upperMaxDistance);
 
 			Debug.line("Calculating data points for R plots");
 			final int steps = 25;
@@ -155,18 +228,15 @@ public final class TrajectoryConstructor extends AbstractConstructor
 
 			for(int i = 0; i <= steps; i++) {
 				final double value = i * resolution;
-				final BarrierForest forest = construct(modelsList,
-						models.totalConformations, neighborhood, minDistance,
-						value, false);
 
 				x[i] = value;
-				yTrees[i] = forest.getNumberOfTrees();
-				yLeaves[i] = forest.getNumberOfLeaves();
+				yTrees[i] = thresholds.getNumberOfTrees(value);
+				yLeaves[i] = thresholds.getNumberOfLeaves(value);
 			}
 
 			Debug.line("Creating R plots");
 			final String title = String.format("%s-%s-%f",
-					moleculeFile.getName(), trajectoryFile.getName(),
+					moleculeFile.getName(), name(trajectoryFiles),
 					minDistance);
 			R.open();
 			R.dualPlot(x, yTrees, yLeaves, true, R.PlotType.BOTH, title,
@@ -179,10 +249,45 @@ public final class TrajectoryConstructor extends AbstractConstructor
 					upperMaxDistance);
 			Debug.line("Using %f as neighbor threshold", lowerMaxDistance);
 			maxDistance = lowerMaxDistance;
+
+			if(checkpoint != null) {
+				try {
+					checkpoint.saveThreshold(maxDistance);
+				}
+				catch(IOException e) {
+					Main.errorExit(e, StatusCode.IO);
+				}
+			}
 		}
 
 		return construct(modelsList, models.totalConformations,
-				neighborhood, minDistance, maxDistance, true);
+				neighborhood, minDistance, maxDistance, checkpoint, true);
+	}
+
+	/**
+	 * Opens the checkpoint directory of this constructor, if any.
+	 */
+	private Checkpoint openCheckpoint(File moleculeFile,
+			List<File> trajectoryFiles, List<File> energyFiles,
+			Neighborhood neighborhood, double minDistance)
+	{
+		if(_checkpointDirectory == null) {
+			return null;
+		}
+
+		Debug.line("%s checkpoint in %s", (_resume ? "Resuming from" :
+			"Creating"), _checkpointDirectory);
+
+		try {
+			return new Checkpoint(_checkpointDirectory,
+					Checkpoint.key(moleculeFile, trajectoryFiles, energyFiles,
+							neighborhood, minDistance), _resume);
+		}
+		catch(IOException e) {
+			Main.errorExit(e, StatusCode.IO);
+		}
+
+		return null;
 	}
 
 	/**
@@ -283,9 +388,25 @@ public final class TrajectoryConstructor extends AbstractConstructor
 	//	}
 
 	/**
-	 * Returns a list of models created using a trajectory (a sequence of
-	 * conformations), an energy file, and the original molecule (from which the
-	 * conformations originate). The returned list of models is pruned
+	 * Returns a name for a list of trajectories to use in file names. This is
+	 * the name of the first trajectory, followed by the number of additional
+	 * trajectories, if any.
+	 */
+	private static String name(List<File> trajectoryFiles)
+	{
+		final String name = trajectoryFiles.get(0).getName();
+		final int nOthers = trajectoryFiles.size() - 1;
+
+		return (nOthers == 0 ? name : name + "+" + nOthers);
+	}
+
+	/**
+	 * Returns a list of models created using trajectories (sequences of
+	 * conformations), their energy files, and the original molecule (from
+	 * which the conformations originate). The conformations of the
+	 * trajectories are numbered consecutively in the order of the
+	 * trajectories, which makes the ids of the models unique. The returned
+	 * list of models is pruned
 	 * on-the-fly so that models that are too similar are removed. The algorithm
 	 * is as follows:
 	 * <p>
@@ -297,19 +418,37 @@ public final class TrajectoryConstructor extends AbstractConstructor
 	 * too similar) to a previously accepted model <code>prev</code>,
 	 * <code>prev</code> will be exchanged in favor of <code>next</code> if and
 	 * only if <code>next.evaluate() &lt; prev.evaluate()</code>.
+	 * <p>
+	 * The conformations are decoded and their torsion angle values calculated
+	 * by a {@link TrajectoryPipeline}, which reads the trajectories
+	 * concurrently, while pairing them with energy values and pruning is done
+	 * in order in the calling thread. The energy files are read concurrently,
+	 * one per thread.
+	 * <p>
+	 * If pruning is not performed and the conformations would not fit in
+	 * about half of the heap, they are instead streamed into a
+	 * {@link ConformationSorter}, which sorts them by energy in runs on disk
+	 * and merges the runs into a memory-mapped file. The returned models then
+	 * refer to that file and are already sorted, and the heap only holds the
+	 * conformations of one run at a time. Both ways of storing the
+	 * conformations keep the angles in double precision and sort stably, so
+	 * the models do not depend on the size of the heap.
 	 * 
 	 * @param moleculeFile the molecule.
-	 * @param trajectoryFile the trajectory.
-	 * @param energyFile the energy file.
+	 * @param trajectoryFiles the trajectories.
+	 * @param energyFiles the energy files of the trajectories.
 	 * @param neighborhood the neighborhood to use for pruning.
 	 * @param minDistance the minimum distance to a previously included model to
 	 *        include a model, for pruning, as per
 	 *        {@link Neighborhood#distance(Model, Model)}.
+	 * @param saveFrameIndexes whether or not to save the frame indexes of the
+	 *        trajectories as sidecar files.
 	 * @return the list of models.
 	 */
 	private static Models createModels(File moleculeFile,
-			File trajectoryFile, File energyFile, Neighborhood neighborhood,
-			double minDistance)
+			List<File> trajectoryFiles, List<File> energyFiles,
+			Neighborhood neighborhood, double minDistance,
+			boolean saveFrameIndexes)
 	{
 		final boolean performPruning = (minDistance != 0d);
 
@@ -320,29 +459,48 @@ public final class TrajectoryConstructor extends AbstractConstructor
 		final OBMol molecule = obData.getMolecule();
 		final int[][] torsionMatrix = obData.getTorsions();
 
-		Debug.line("Loading conformations from %s", trajectoryFile.getName());
-		XtcReader xtcReader = null;
-		try { xtcReader = new XtcReader(trajectoryFile); }
-		catch(IOException e) { Main.errorExit(e, StatusCode.IO); }
-		final int nAtoms = xtcReader.atoms();
-		if(nAtoms != molecule.NumAtoms()) {
+		Debug.line("Loading conformations from %s",
+				(trajectoryFiles.size() == 1 ?
+						trajectoryFiles.get(0).getName() :
+							trajectoryFiles.size() + " trajectories"));
+		TrajectoryPipeline pipeline = null;
+		try {
+			pipeline = new TrajectoryPipeline(trajectoryFiles, torsionMatrix,
+					saveFrameIndexes);
+		}
+		catch(IOException e) {
+			Main.errorExit(e, StatusCode.IO);
+		}
+		final int nAtoms = pipeline.atoms();
+		if(pipeline.hasNext() && nAtoms != molecule.NumAtoms()) {
 			Main.errorExit("Number of atoms per frame in trajectory does not "
 					+ "match number of atoms in PDB. Check your input files.",
 					StatusCode.IO);
 		}
-		final double[][] coordinates = xtcReader.createCoordinatesArray();
 
-		Debug.line("Loading energy values from %s", energyFile.getName());
-		EnergyExtractor energyExtractor = null;
-		try { energyExtractor = new EnergyExtractor(energyFile); }
-		catch(IOException e) { Main.errorExit(e, StatusCode.IO); }
+		Debug.line("Loading energy values from %s",
+				(energyFiles.size() == 1 ? energyFiles.get(0).getName() :
+					energyFiles.size() + " energy files"));
+		final double[] energies =
+			readEnergies(trajectoryFiles, energyFiles, pipeline);
+		final int nEnergies = energies.length;
+		Debug.line("First three energy values: %f, %f, %f",
+				(nEnergies > 0 ? energies[0] : Double.NaN),
+				(nEnergies > 1 ? energies[1] : Double.NaN),
+				(nEnergies > 2 ? energies[2] : Double.NaN));
 
 		Debug.line("Creating models (pruning threshold %f)",
 				minDistance);
 		final List<Model> models = new ArrayList<Model>();
-		final double[] firstEnergies = new double[3];
+		ConformationStore store = null;
 		int nConformations = 0;
 
+		final int nAngles = pipeline.angles();
+		ConformationSorter sorter = null;
+		if(!performPruning && isOutOfCore(pipeline.size(), nAngles)) {
+			sorter = createSorter(pipeline.size(), nAngles);
+		}
+
 		// For distance measures as if pruning on-the-fly was not performed.
 		final boolean isDebug = Debug.isDebug();
 		Model previousModel = null;
@@ -350,41 +508,32 @@ public final class TrajectoryConstructor extends AbstractConstructor
 		double beforePruningDistMax = Double.NEGATIVE_INFINITY;
 		double beforePruningDistMin = Double.POSITIVE_INFINITY;
 
-		// For status.
-		final int conformationsMilestoneStep = 100000;
-		int conformationsMilestone = conformationsMilestoneStep;
-		System.err.print("Conformations processed: [0");
-
 		try {
-			if(xtcReader.hasNext()) {
-				xtcReader.next(coordinates);
-
-				final double fitness = energyExtractor.next();
-				firstEnergies[0] = fitness; 
-
-				final ImmutableModel firstModel = new ImmutableModel(
-						nConformations++, fitness, coordinates, torsionMatrix);
-
-				firstModel.attachCoordinates(coordinates);
-				models.add(firstModel);
+			if(pipeline.hasNext()) {
+				final double[] angles = pipeline.next();
+				final double fitness = energies[nConformations];
+				final ImmutableModel firstModel =
+					new ImmutableModel(nConformations++, fitness, angles);
+
+				if(sorter != null) {
+					sorter.add(firstModel.getId(), fitness, angles);
+				}
+				else {
+					store = new ConformationStore(firstModel.size(), false);
+					models.add(store.add(firstModel));
+				}
 				previousModel = firstModel;
 			}
 			else {
-				System.err.println("]");
 				Debug.line("No conformations read");
 				return new Models();
 			}
 
-			while(xtcReader.hasNext()) {
-				xtcReader.next(coordinates);
-
-				final double fitness = energyExtractor.next();
-				if(nConformations < firstEnergies.length) {
-					firstEnergies[nConformations] = fitness;
-				}
-
-				final ImmutableModel model = new ImmutableModel(nConformations,
-						fitness, coordinates, torsionMatrix);
+			while(pipeline.hasNext()) {
+				final double[] angles = pipeline.next();
+				final double fitness = energies[nConformations];
+				final ImmutableModel model =
+					new ImmutableModel(nConformations, fitness, angles);
 
 				// Distance measures as if on-the-fly pruning was not performed.
 				if(isDebug) {
@@ -400,34 +549,23 @@ public final class TrajectoryConstructor extends AbstractConstructor
 					}
 				}
 
-				if(performPruning) {
-					offer(model, coordinates, models, neighborhood,
-							minDistance);
+				if(sorter != null) {
+					sorter.add(nConformations, fitness, angles);
+				}
+				else if(performPruning) {
+					offer(model, models, store, neighborhood, minDistance);
 				}
 				else {
-					model.attachCoordinates(coordinates);
-					models.add(model);
+					models.add(store.add(model));
 				}
 
 				nConformations++;
-
-				// For status.
-				if(nConformations >= conformationsMilestone) {
-					System.err.print("..." + nConformations);
-					conformationsMilestone += conformationsMilestoneStep;
-				}
 			}
 
-			// For status.
-			System.err.println("..." + nConformations + "]");
-
-			Debug.line("First three energy values: %f, %f, %f",
-					firstEnergies[0], firstEnergies[1], firstEnergies[2]);
-
-			if(energyExtractor.hasNext()) {
-				Main.errorExit("Found less conformations than energy values. "
-						+ "Check your input files.", StatusCode.XTC);
-			}
+			Debug.line("Processed %d conformations at %.0f conformations/s "
+					+ "using %d threads (%.3f s waiting for conformations)",
+					pipeline.getFramesRead(), pipeline.getThroughput(),
+					pipeline.getThreads(), pipeline.getWaitTime());
 
 			Debug.line("Read %d conformations and %d energy values",
 					nConformations, nConformations);
@@ -436,8 +574,14 @@ public final class TrajectoryConstructor extends AbstractConstructor
 			calculateDistanceMeasures(nConformations, beforePruningDistSum,
 					beforePruningDistMin, beforePruningDistMax);
 
-			if(!performPruning) {
-				return new Models(models, nConformations);
+			if(sorter != null) {
+				Debug.line("Merging runs of conformations sorted by "
+						+ "non-decreasing fitness value");
+				final MappedConformationStore mapped = sorter.finish();
+				return new Models(mapped.models(), null, nConformations);
+			}
+			else if(!performPruning) {
+				return new Models(models, store, nConformations);
 			}
 
 			final int nRemain = models.size();
@@ -454,21 +598,18 @@ public final class TrajectoryConstructor extends AbstractConstructor
 			// Measures after pruning.
 			calculateDistanceMeasures(pruned, neighborhood);
 
-			return new Models(pruned, nConformations);
-		}
-		catch(NoSuchElementException e) {
-			Debug.line("First three energy values: %f, %f, %f",
-					firstEnergies[0], firstEnergies[1], firstEnergies[2]);
-			Main.errorExit("Found less energy values than conformations. "
-					+ "Check your input files.", StatusCode.ENERGY);
+			return new Models(pruned, store, nConformations);
 		}
 		catch(IOException e) {
 			Main.errorExit(e, StatusCode.IO);
 		}
 		finally {
+			if(sorter != null) {
+				sorter.close();
+			}
+
 			try {
-				energyExtractor.close();
-				xtcReader.close();
+				pipeline.close();
 			}
 			catch(IOException e) {
 				Main.errorExit(e, StatusCode.IO);
@@ -478,21 +619,146 @@ public final class TrajectoryConstructor extends AbstractConstructor
 		return null;
 	}
 
+	/**
+	 * Returns whether or not a number of conformations should be stored out
+	 * of core, which is the case if they would use more than
+	 * {@link #IN_CORE_FRACTION} of the maximum heap size when stored in a
+	 * {@link ConformationStore} and sorted. Storing them out of core does not
+	 * remove all heap use per conformation, so {@link #RESIDENT_BYTES} per
+	 * conformation are counted as well.
+	 * 
+	 * @param nConformations the number of conformations.
+	 * @param nAngles the number of torsion angles of a conformation.
+	 * @return <code>true</code> if and only if the conformations should be
+	 *         stored out of core.
+	 */
+	static boolean isOutOfCore(int nConformations, int nAngles)
+	{
+		// Both the store and its sorted copy hold an id, an energy value, the
+		// angles, a model and a reference to it per conformation.
+		final long perConformation =
+			2L * (4 + 8 + 8 * nAngles + 16 + 8) + RESIDENT_BYTES;
+		final long bytes = perConformation * nConformations;
+
+		return bytes > IN_CORE_FRACTION * Runtime.getRuntime().maxMemory();
+	}
+
+	/**
+	 * Creates a sorter for storing conformations out of core, which sorts
+	 * {@link #RUN_FRACTION} of the maximum heap size in memory at once.
+	 * 
+	 * @param nConformations the number of conformations.
+	 * @param nAngles the number of torsion angles of a conformation.
+	 * @return the sorter.
+	 */
+	static ConformationSorter createSorter(int nConformations, int nAngles)
+	{
+		final long runBytes =
+			(long)(RUN_FRACTION * Runtime.getRuntime().maxMemory());
+		final int runSize = ConformationSorter.runSize(nAngles, runBytes);
+		Debug.line("Storing conformations out of core (runs of %d "
+				+ "conformations, about %d MB of heap still needed)", runSize,
+				RESIDENT_BYTES * nConformations >> 20);
+
+		return new ConformationSorter(nAngles, null, runSize);
+	}
+
+	/**
+	 * Reads all energy values of the energy files of the trajectories of a
+	 * pipeline, and concatenates them in the order of the trajectories. The
+	 * energy files are read concurrently using {@link Parallel#getThreads()}
+	 * threads, each in bulk using {@link EnergyExtractor#readAll()}.
+	 * <p>
+	 * Exits if the number of energy values of an energy file does not match
+	 * the number of conformations of its trajectory.
+	 * 
+	 * @param trajectoryFiles the trajectories.
+	 * @param energyFiles the energy files of the trajectories.
+	 * @param pipeline the pipeline of the trajectories.
+	 * @return the energy values.
+	 */
+	private static double[] readEnergies(List<File> trajectoryFiles,
+			List<File> energyFiles, TrajectoryPipeline pipeline)
+	{
+		final int nFiles = energyFiles.size();
+		final List<Callable<double[]>> readers =
+			new ArrayList<Callable<double[]>>(nFiles);
+
+		for(int t = 0; t < nFiles; t++) {
+			final File energyFile = energyFiles.get(t);
+
+			readers.add(new Callable<double[]>() {
+				@Override
+				public double[] call() throws IOException
+				{
+					final EnergyExtractor energyExtractor =
+						new EnergyExtractor(energyFile);
+
+					try {
+						return energyExtractor.readAll();
+					}
+					finally {
+						energyExtractor.close();
+					}
+				}
+			});
+		}
+
+		List<double[]> values = null;
+		try {
+			values = Parallel.invokeAll(readers, Parallel.getThreads());
+		}
+		catch(IllegalStateException e) {
+			if(e.getCause() instanceof IOException) {
+				Main.errorExit((IOException)e.getCause(), StatusCode.IO);
+			}
+
+			throw e;
+		}
+
+		final double[] energies = new double[pipeline.size()];
+		int offset = 0;
+
+		for(int t = 0; t < nFiles; t++) {
+			final double[] fileEnergies = values.get(t);
+			final int nEnergies = fileEnergies.length;
+			final int nConformations = pipeline.size(t);
+			final String pair = (nFiles == 1 ? "" : String.format(
+					" (%s and %s)", trajectoryFiles.get(t).getName(),
+					energyFiles.get(t).getName()));
+
+			if(nEnergies < nConformations) {
+				Main.errorExit("Found less energy values than conformations"
+						+ pair + ". Check your input files.",
+						StatusCode.ENERGY);
+			}
+			else if(nEnergies > nConformations) {
+				Main.errorExit("Found less conformations than energy values"
+						+ pair + ". Check your input files.", StatusCode.XTC);
+			}
+
+			System.arraycopy(fileEnergies, 0, energies, offset, nEnergies);
+			offset += nEnergies;
+		}
+
+		return energies;
+	}
+
 	/**
 	 * Performs on-the-fly pruning.
 	 * 
 	 * @param model the model to accept (add to <code>acceptedModels</code>) or
 	 *              discard.
-	 * @param coordinates the coordinates of <code>model</code>.
 	 * @param acceptedModels the previously accepted models.
+	 * @param store the store of the previously accepted models.
 	 * @param neighborhood the neighborhood to use.
 	 * @param minDistance the minimum distance to previously accepted models to
 	 *        accept <code>model</code>, as per
 	 *        {@link Neighborhood#distance(Model, Model)}.
 	 */
-	private static void offer(ImmutableModel model, double[][] coordinates,
-			List<Model> acceptedModels, Neighborhood neighborhood,
-			double minDistance)
+	private static void offer(ImmutableModel model,
+			List<Model> acceptedModels, ConformationStore store,
+			Neighborhood neighborhood, double minDistance)
 	{
 		// TODO: nPreviousChecks could be set > 0, but maybe not necessary.
 		final int nPreviousChecks = 0;
@@ -502,7 +768,7 @@ public final class TrajectoryConstructor extends AbstractConstructor
 		boolean isAccepted = true;
 
 		for(; acceptedId > limit; acceptedId--) {
-			if(!isAccepted(model, coordinates, acceptedModels, acceptedId,
+			if(!isAccepted(model, acceptedModels, store, acceptedId,
 					neighborhood, minDistance)) {
 				isAccepted = false;
 				break;
@@ -513,7 +779,7 @@ public final class TrajectoryConstructor extends AbstractConstructor
 			// acceptedId = acceptedId, acceptedId - 1, acceptedId - 2,
 			//              acceptedId - 4, acceptedId - 8, ... 
 			for(int i = 1; acceptedId >= 0; acceptedId -= i, i *= 2) {  
-				if(!isAccepted(model, coordinates, acceptedModels, acceptedId,
+				if(!isAccepted(model, acceptedModels, store, acceptedId,
 						neighborhood, minDistance)) {
 					isAccepted = false;
 					break;
@@ -521,8 +787,7 @@ public final class TrajectoryConstructor extends AbstractConstructor
 			}
 
 			if(isAccepted) {
-				model.attachCoordinates(coordinates);
-				acceptedModels.add(model);
+				acceptedModels.add(store.add(model));
 			}
 		}
 	}
@@ -535,8 +800,8 @@ public final class TrajectoryConstructor extends AbstractConstructor
 	 * previously accepted model because of a lower energy value.
 	 * 
 	 * @param model the model to accept or discard.
-	 * @param coordinates the coordinates of <code>model</code>.
 	 * @param acceptedModels the previously accepted models.
+	 * @param store the store of the previously accepted models.
 	 * @param acceptedModelId id of the previously accepted model to compare to
 	 *        <code>model</code>.
 	 * @param neighborhood the neighborhood to use.
@@ -546,7 +811,7 @@ public final class TrajectoryConstructor extends AbstractConstructor
 	 * @return <code>true</code> if and only if <code>model</code> is accepted. 
 	 */
 	private static boolean isAccepted(ImmutableModel model,
-			double[][] coordinates, List<Model> acceptedModels,
+			List<Model> acceptedModels, ConformationStore store,
 			int acceptedModelId, Neighborhood neighborhood, double minDistance)
 	{
 		final Model acceptedModel = acceptedModels.get(acceptedModelId);
@@ -554,8 +819,8 @@ public final class TrajectoryConstructor extends AbstractConstructor
 
 		if(distance < minDistance) {
 			if(model.evaluate() < acceptedModel.evaluate()) {
-				model.attachCoordinates(coordinates);
-				acceptedModels.set(acceptedModelId, model);
+				// The accepted model now refers to the exchanged conformation.
+				store.replace((StoredModel)acceptedModel, model);
 			}
 
 			return false;
@@ -566,70 +831,185 @@ public final class TrajectoryConstructor extends AbstractConstructor
 
 	/**
 	 * An implementation of the flooding algorithm for creating barrier trees.
+	 * <p>
+	 * The basins are kept in a disjoint-set forest over the models, where the
+	 * representative of each set is associated with the current basin node of
+	 * the models in the set. Merging basins at a saddle point is then a union
+	 * of sets instead of a scan of all models.
+	 * <p>
+	 * Only the neighbors of a model that precede it have been flooded, so the
+	 * neighbors are consumed from a {@link NeighborPipeline} one model at a
+	 * time while they are being calculated. The pipeline is given the basins,
+	 * so it only returns about one neighbor per basin.
+	 * <p>
+	 * If a checkpoint is given, the consumed neighbors are appended to its
+	 * log. The neighbors logged by an earlier construction are replayed
+	 * first, which restores the basins and the nodes, and the pipeline then
+	 * continues from the first model that was not logged.
 	 * 
 	 * @param models the models sorted by increasing fitness value.
-	 * @param neighborMatrix neighbor information where the ids are based on the
-	 *        ids of models in <code>models</code>.
+	 * @param neighborhood the neighborhood to use.
+	 * @param maxDistance the maximum distance between two models for them to
+	 *        be neighbors.
+	 * @param checkpoint the checkpoint, or <code>null</code>.
+	 * @param allowDebugPrints whether or not debug prints are allowed.
 	 * @return a list containing the barrier tree roots.
 	 */
 	private static List<Node> flooding(List<Model> models,
-			int[][] neighborMatrix)
+			Neighborhood neighborhood, double maxDistance,
+			Checkpoint checkpoint, boolean allowDebugPrints)
 	{
 		final int nModels = models.size();
-		final Set<Node> knownBasins = new LinkedHashSet<Node>();
-		final Node[] nodes = new Node[nModels];
 
 		// This ensures that the ids of the created Node objects will start at
 		// 0. Hence, even if this method is called more than once, the node
 		// representing the global minimum will get id 0.
 		NodeFactory.reset();
 
-		for(int i = 0; i < nModels; i++) {
-			final int[] neighborRow = neighborMatrix[i];
-			final int nNeighbors = neighborRow.length;
-			knownBasins.clear();
+		final Flooding flooding = new Flooding(models);
+		NeighborPipeline neighbors = null;
+		Checkpoint.RowLog rows = null;
+		long nEntries = 0;
+
+		try {
+			int start = 0;
+
+			if(checkpoint != null) {
+				rows = checkpoint.openRows(maxDistance, nModels);
+
+				final int nReplayed = rows.getNumberOfReplayedRows();
+				if(nReplayed != 0 && allowDebugPrints) {
+					Debug.line("Replaying neighbors of %d models from "
+							+ "checkpoint", nReplayed);
+				}
+
+				for(; start < nReplayed; start++) {
+					final int[] preceding = rows.read();
+					nEntries += preceding.length;
+					flooding.flood(start, preceding);
+				}
+			}
+
+			neighbors = new NeighborPipeline(models, neighborhood,
+					maxDistance, flooding._sets, start, Parallel.getThreads());
+
+			for(int i = start; i < nModels; i++) {
+				final int[] preceding = neighbors.next();
+				if(rows != null) rows.write(preceding);
+				flooding.flood(i, preceding);
+			}
+
+			nEntries += neighbors.getNumberOfEntries();
+		}
+		catch(IOException e) {
+			Main.errorExit(e, StatusCode.IO);
+		}
+		finally {
+			if(neighbors != null) {
+				neighbors.close();
+			}
+
+			if(rows != null) {
+				try {
+					rows.close();
+				}
+				catch(IOException e) {
+					Main.errorExit(e, StatusCode.IO);
+				}
+			}
+		}
+
+		if(allowDebugPrints && nModels != 0) {
+			Debug.line("Preceding neighbors in distinct basins per model: "
+					+ "avg. %f", nEntries / (double)nModels);
+		}
+
+		return findRoots(flooding._sets, flooding._basins);
+	}
+
+	/**
+	 * The state of the flooding algorithm: the basins in a disjoint-set
+	 * forest over the models, and the basin node of the representative of
+	 * every set. The distinct basins of the neighbors of a model are found
+	 * using a set and an array that are sized to the neighbors.
+	 */
+	private static final class Flooding
+	{
+		private final List<Model> _models;
+		private final DisjointSet _sets;
+		private final Node[] _basins;
+		private final IntSet _seenBasins;
+		private int[] _knownBasins;
+
+		private Flooding(List<Model> models)
+		{
+			final int nModels = models.size();
+			_models = models;
+			_sets = new DisjointSet(nModels);
+			_basins = new Node[nModels];
+			_seenBasins = new IntSet();
+			_knownBasins = new int[0];
+		}
+
+		/**
+		 * Floods a model given its preceding neighbors, which must contain at
+		 * least one neighbor in every basin.
+		 */
+		private void flood(int i, int[] preceding)
+		{
+			final DisjointSet sets = _sets;
+			final Node[] basins = _basins;
+			final IntSet seenBasins = _seenBasins;
+			int nKnownBasins = 0;
+
+			if(_knownBasins.length < preceding.length) {
+				_knownBasins = new int[preceding.length];
+			}
+
+			final int[] knownBasins = _knownBasins;
+			seenBasins.clear(preceding.length);
 
-			for(int j = 0; j < nNeighbors; j++) {
-				final int neighborId = neighborRow[j];
-				final Node neighborBasin = nodes[neighborId];
+			// Find the distinct basins of the neighbors that have already been
+			// flooded, in the order they are first seen.
+			for(int j = 0; j < preceding.length; j++) {
+				final int root = sets.find(preceding[j]);
 
-				if(neighborBasin != null) {
-					knownBasins.add(neighborBasin);
+				if(seenBasins.add(root)) {
+					knownBasins[nKnownBasins++] = root;
 				}
 			}
 
-			final Model model = models.get(i);
+			final Model model = _models.get(i);
 
-			switch(knownBasins.size()) {
+			switch(nKnownBasins) {
 			case 0:
 				// Model is a local minimum (a new basin).
-				nodes[i] = NodeFactory.create(model);
+				basins[i] = NodeFactory.create(model);
 				break;
 			case 1:
 				// Model is in the same basin as its known neighbor(s).
-				final Node node = knownBasins.iterator().next();
+				final Node node = basins[knownBasins[0]];
 				node.addAdditionalModel(model);
-				nodes[i] = node;
+				basins[sets.union(knownBasins[0], i)] = node;
 				break;
 			default:
 				// Model is a saddle point between two or more basins.
-				final Iterator<Node> iterator = knownBasins.iterator();
-				Node firstBasin = iterator.next();
+				int firstRoot = knownBasins[0];
+				Node firstBasin = basins[firstRoot];
 
-				do {
-					final Node secondBasin = iterator.next();
+				for(int k = 1; k < nKnownBasins; k++) {
+					final Node secondBasin = basins[knownBasins[k]];
 					final Node barrierNode = NodeFactory.create(model,
 							firstBasin, secondBasin);
-					nodes[i] = barrierNode;
-					Util.changeReferences(nodes, firstBasin, secondBasin,
-							barrierNode);
+					firstRoot = sets.union(firstRoot, knownBasins[k]);
+					basins[firstRoot] = barrierNode;
 					firstBasin = barrierNode;
-				} while(iterator.hasNext());
+				}
+
+				basins[sets.union(firstRoot, i)] = firstBasin;
 				break;
 			}
 		}
-
-		return Util.removeDuplicates(nodes);
 	}
 
 	private static double calculateDistanceMeasures(List<Model> models,
@@ -682,35 +1062,41 @@ public final class TrajectoryConstructor extends AbstractConstructor
 
 	private static BarrierForest construct(List<Model> models,
 			int totalConformations, Neighborhood neighborhood,
-			double minDistance, double maxDistance, boolean allowDebugPrints)
+			double minDistance, double maxDistance, Checkpoint checkpoint,
+			boolean allowDebugPrints)
 	{
-		if(allowDebugPrints) Debug.line("Calculating neighbors (%d models, "
-				+ "%f threshold)", models.size(), maxDistance);
-		final int[][] neighborMatrix =
-			neighborhood.calculateNeighbors(models, maxDistance,
-					allowDebugPrints);
-
-		if(allowDebugPrints) Debug.line("Executing the flooding algorithm");
-		final List<Node> roots = flooding(models, neighborMatrix);
+		if(allowDebugPrints) Debug.line("Executing the flooding algorithm "
+				+ "while calculating preceding neighbors (%d models, %f "
+				+ "threshold)", models.size(), maxDistance);
+		final List<Node> roots = flooding(models, neighborhood, maxDistance,
+				checkpoint, allowDebugPrints);
 
 		return createForest(roots, totalConformations, minDistance,
 				maxDistance, neighborhood, allowDebugPrints);
 	}
 
-	private static final class Models
+	/**
+	 * A list of models, the store they refer to if they are not sorted yet,
+	 * and the total number of conformations before pruning.
+	 */
+	static final class Models
 	{
-		private final List<Model> list;
-		private final int totalConformations;
+		final List<Model> list;
+		final ConformationStore store;
+		final int totalConformations;
 
 		private Models()
 		{
 			list = Collections.emptyList();
+			store = null;
 			totalConformations = 0;
 		}
 
-		private Models(List<Model> list, int totalConformations)
+		Models(List<Model> list, ConformationStore store,
+				int totalConformations)
 		{
 			this.list = list;
+			this.store = store;
 			this.totalConformations = totalConformations;
 		}
 	}
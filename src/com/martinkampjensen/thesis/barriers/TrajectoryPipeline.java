@@ -0,0 +1,506 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.martinkampjensen.thesis.barriers;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.martinkampjensen.thesis.model.impl.ImmutableModel;
+import com.martinkampjensen.thesis.model.impl.TorsionKernel;
+import com.martinkampjensen.thesis.util.Parallel;
+import com.martinkampjensen.thesis.util.gromacs.XtcFrameIndex;
+import com.martinkampjensen.thesis.util.gromacs.XtcReader;
+
+/**
+ * Reads the conformations (frames) of a trajectory and calculates their
+ * torsion angle values, and returns the angles one frame at a time in order of
+ * the frames. This is the part of creating models from a trajectory that does
+ * not depend on the previous models.
+ * <p>
+ * Several trajectories, e.g. of the replicas of a replica exchange
+ * simulation, can be read as if they were concatenated, so that the frames
+ * are numbered consecutively across the trajectories. They must have the same
+ * number of atoms.
+ * <p>
+ * The frames are divided into blocks of consecutive frames of the same
+ * trajectory. Worker threads decode the blocks and calculate the angles, each
+ * worker using an {@link XtcReader} that seeks to its block using an
+ * {@link XtcFrameIndex}. Blocks of different trajectories are decoded
+ * concurrently when the consumer reaches the end of a trajectory.
+ * The consumer merges the blocks in order. At most a fixed number of blocks
+ * per thread are calculated but not yet consumed, which bounds the memory used
+ * and makes the workers wait for a slow consumer. With only one thread, every
+ * block is calculated in the calling thread when it is needed.
+ * <p>
+ * The angles are calculated by a {@link TorsionKernel} directly from the
+ * decoded coordinates, which gives exactly the same angles as
+ * {@link ImmutableModel#ImmutableModel(int, double, double[][], int[][])}. The
+ * result does not depend on the number of threads.
+ * <p>
+ * The pipeline must be closed.
+ */
+final class TrajectoryPipeline implements Closeable
+{
+	/**
+	 * The number of frames in a block.
+	 */
+	private static final int BLOCK_SIZE = 1024;
+
+	/**
+	 * The number of blocks per thread that may be calculated ahead of the
+	 * consumer.
+	 */
+	private static final int BLOCKS_AHEAD_PER_THREAD = 2;
+
+	private final XtcFrameIndex[] _indexes;
+	private final int[] _offsets;
+	private final int _size;
+	private final int _nAtoms;
+	private final TorsionKernel _kernel;
+	private final int _nThreads;
+	private final ExecutorService _pool;
+	private final Queue<Future<double[][]>> _futures;
+	private XtcReader _reader;
+	private int _readerTrajectory;
+	private int _nextBlockStart;
+	private double[][] _block;
+	private int _blockStart;
+	private int _next;
+
+	// Counters.
+	private final long _startTime;
+	private long _waitTime;
+
+	/**
+	 * Creates a pipeline for a list of trajectories using
+	 * {@link Parallel#getThreads()} threads. The trajectories are indexed
+	 * using {@link XtcFrameIndex#open(File, boolean)}.
+	 * 
+	 * @param trajectories the trajectories.
+	 * @param torsionMatrix a matrix containing the ids of the atoms defining
+	 *        the torsion angles.
+	 * @param saveFrameIndexes whether or not to save the indexes of the
+	 *        trajectories as sidecar files.
+	 * @throws FileNotFoundException if a trajectory does not exist or is not
+	 *         a file.
+	 * @throws IOException if an I/O error occurs, if a trajectory is not a
+	 *         valid XTC trajectory, or if the trajectories do not have the
+	 *         same number of atoms.
+	 * @throws NullPointerException if <code>trajectories == null</code> or if
+	 *         <code>torsionMatrix == null</code>.
+	 */
+	TrajectoryPipeline(List<File> trajectories, int[][] torsionMatrix,
+			boolean saveFrameIndexes) throws FileNotFoundException, IOException
+	{
+		this(open(trajectories, saveFrameIndexes), torsionMatrix,
+				Parallel.getThreads());
+	}
+
+	/**
+	 * As {@link #TrajectoryPipeline(List, int[][], int)}, but for a single
+	 * trajectory.
+	 */
+	TrajectoryPipeline(XtcFrameIndex index, int[][] torsionMatrix,
+			int nThreads)
+	{
+		this(Collections.singletonList(index), torsionMatrix, nThreads);
+	}
+
+	/**
+	 * Creates a pipeline for a list of indexed trajectories.
+	 * 
+	 * @param indexes the indexes of the trajectories.
+	 * @param torsionMatrix a matrix containing the ids of the atoms defining
+	 *        the torsion angles.
+	 * @param nThreads the number of threads to use.
+	 * @throws NullPointerException if <code>indexes == null</code>, if an
+	 *         index is <code>null</code>, or if
+	 *         <code>torsionMatrix == null</code>.
+	 * @throws IllegalArgumentException if <code>nThreads &lt; 1</code>, or if
+	 *         the non-empty trajectories do not have the same number of atoms.
+	 */
+	TrajectoryPipeline(List<XtcFrameIndex> indexes, int[][] torsionMatrix,
+			int nThreads)
+	{
+		if(indexes == null) {
+			throw new NullPointerException("indexes == null");
+		}
+		else if(torsionMatrix == null) {
+			throw new NullPointerException("torsionMatrix == null");
+		}
+		else if(nThreads < 1) {
+			throw new IllegalArgumentException("nThreads < 1");
+		}
+
+		final int nTrajectories = indexes.size();
+		_indexes = new XtcFrameIndex[nTrajectories];
+		_offsets = new int[nTrajectories + 1];
+		int nAtoms = -1;
+
+		for(int t = 0; t < nTrajectories; t++) {
+			final XtcFrameIndex index = indexes.get(t);
+
+			if(index == null) {
+				throw new NullPointerException("An index is null");
+			}
+			else if(index.size() != 0) {
+				if(nAtoms == -1) {
+					nAtoms = index.atoms();
+				}
+				else if(index.atoms() != nAtoms) {
+					throw new IllegalArgumentException("The trajectories do "
+							+ "not have the same number of atoms");
+				}
+			}
+
+			_indexes[t] = index;
+			_offsets[t + 1] = _offsets[t] + index.size();
+		}
+
+		_size = _offsets[nTrajectories];
+		_nAtoms = (nAtoms != -1 ? nAtoms :
+			(nTrajectories == 0 ? 0 : _indexes[0].atoms()));
+		_kernel = (_size == 0 ? null :
+			new TorsionKernel(torsionMatrix, _nAtoms));
+		_nThreads = nThreads;
+		_pool = (nThreads == 1 ? null : Parallel.createPool(nThreads));
+		_futures = new ArrayDeque<Future<double[][]>>(
+				BLOCKS_AHEAD_PER_THREAD * nThreads);
+		_reader = null;
+		_readerTrajectory = -1;
+		_nextBlockStart = 0;
+		_block = new double[0][];
+		_blockStart = 0;
+		_next = 0;
+		_startTime = System.nanoTime();
+		_waitTime = 0;
+
+		if(_pool != null) {
+			for(int b = 0; b < BLOCKS_AHEAD_PER_THREAD * nThreads; b++) {
+				if(!submitNextBlock()) break;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of atoms in each frame.
+	 * 
+	 * @return the number of atoms.
+	 */
+	int atoms()
+	{
+		return _nAtoms;
+	}
+
+	/**
+	 * Returns the number of torsion angles calculated per frame.
+	 * 
+	 * @return the number of angles, or <code>0</code> if there are no frames.
+	 */
+	int angles()
+	{
+		return (_kernel == null ? 0 : _kernel.size());
+	}
+
+	/**
+	 * Returns the number of frames of all the trajectories.
+	 * 
+	 * @return the number of frames.
+	 */
+	int size()
+	{
+		return _size;
+	}
+
+	/**
+	 * Returns the number of trajectories.
+	 * 
+	 * @return the number of trajectories.
+	 */
+	int trajectories()
+	{
+		return _indexes.length;
+	}
+
+	/**
+	 * Returns the number of frames of a trajectory.
+	 * 
+	 * @param trajectory the number of the trajectory, starting at
+	 *        <code>0</code>.
+	 * @return the number of frames.
+	 */
+	int size(int trajectory)
+	{
+		return _indexes[trajectory].size();
+	}
+
+	/**
+	 * Returns the number of frames returned so far.
+	 * 
+	 * @return the number of frames.
+	 */
+	int getFramesRead()
+	{
+		return _next;
+	}
+
+	/**
+	 * Returns the number of frames returned per second since the pipeline was
+	 * created.
+	 * 
+	 * @return the throughput in frames per second.
+	 */
+	double getThroughput()
+	{
+		final long elapsed = System.nanoTime() - _startTime;
+		return (elapsed == 0 ? 0d : _next / (elapsed * 1e-9));
+	}
+
+	/**
+	 * Returns the time the consumer has spent waiting for the workers. If this
+	 * is a small part of the time spent, the consumer is the bottleneck.
+	 * 
+	 * @return the time in seconds.
+	 */
+	double getWaitTime()
+	{
+		return _waitTime * 1e-9;
+	}
+
+	/**
+	 * Returns the number of threads used.
+	 * 
+	 * @return the number of threads.
+	 */
+	int getThreads()
+	{
+		return _nThreads;
+	}
+
+	boolean hasNext()
+	{
+		return _next < _size;
+	}
+
+	/**
+	 * Returns the torsion angle values of the next frame.
+	 * 
+	 * @return the angles.
+	 * @throws IOException if an I/O error occurs while reading the trajectory.
+	 * @throws NoSuchElementException if the angles of all frames have been
+	 *         returned.
+	 */
+	double[] next() throws IOException
+	{
+		if(!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		if(_next == _blockStart + _block.length) {
+			nextBlock();
+		}
+
+		final double[] angles = _block[_next - _blockStart];
+		_block[_next - _blockStart] = null; // For garbage collection.
+		_next++;
+
+		return angles;
+	}
+
+	/**
+	 * Stops the worker threads.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if(_pool != null) _pool.shutdownNow();
+
+		if(_reader != null) {
+			_reader.close();
+			_reader = null;
+		}
+	}
+
+	private void nextBlock() throws IOException
+	{
+		_blockStart = _next;
+
+		if(_pool == null) {
+			final int trajectory = trajectory(_blockStart);
+
+			if(_readerTrajectory != trajectory) {
+				if(_reader != null) _reader.close();
+				_reader = new XtcReader(_indexes[trajectory]);
+				_readerTrajectory = trajectory;
+			}
+
+			_block = calculateBlock(_reader, trajectory, _blockStart);
+			return;
+		}
+
+		final long waitStart = System.nanoTime();
+
+		try {
+			_block = Parallel.get(_futures.poll());
+		}
+		catch(IllegalStateException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+
+			throw e;
+		}
+		finally {
+			_waitTime += System.nanoTime() - waitStart;
+		}
+
+		// Keep the window full, and stop the threads after the last block.
+		if(!submitNextBlock() && _futures.isEmpty()) {
+			_pool.shutdown();
+		}
+	}
+
+	private boolean submitNextBlock()
+	{
+		if(_nextBlockStart >= _size) {
+			return false;
+		}
+
+		final int start = _nextBlockStart;
+		final int trajectory = trajectory(start);
+		_nextBlockStart = blockEnd(trajectory, start);
+
+		_futures.add(_pool.submit(new Callable<double[][]>() {
+			@Override
+			public double[][] call() throws IOException
+			{
+				final XtcReader reader = new XtcReader(_indexes[trajectory]);
+
+				try {
+					return calculateBlock(reader, trajectory, start);
+				}
+				finally {
+					reader.close();
+				}
+			}
+		}));
+
+		return true;
+	}
+
+	/**
+	 * Reads a block of frames of a trajectory and calculates their torsion
+	 * angle values. The block starts at a frame number across all the
+	 * trajectories.
+	 */
+	private double[][] calculateBlock(XtcReader reader, int trajectory,
+			int start) throws IOException
+	{
+		final int end = blockEnd(trajectory, start);
+		final double[][] block = new double[end - start][];
+		final float[] coordinates = new float[3 * reader.atoms()];
+		final int frame = start - _offsets[trajectory];
+
+		if(reader.conformations() != frame) {
+			reader.seek(frame);
+		}
+
+		for(int i = start; i < end; i++) {
+			reader.next(coordinates);
+			final double[] angles = new double[_kernel.size()];
+			_kernel.calculate(coordinates, angles);
+			block[i - start] = angles;
+		}
+
+		return block;
+	}
+
+	/**
+	 * Returns the end (exclusive) of the block starting at a frame number.
+	 * Blocks never span two trajectories.
+	 */
+	private int blockEnd(int trajectory, int start)
+	{
+		return Math.min(start + BLOCK_SIZE, _offsets[trajectory + 1]);
+	}
+
+	/**
+	 * Returns the number of the trajectory that contains a frame number.
+	 */
+	private int trajectory(int frame)
+	{
+		int lo = 0;
+		int hi = _indexes.length - 1;
+
+		// Find the last trajectory starting at or before the frame. Empty
+		// trajectories start where the next trajectory starts, so they are
+		// skipped.
+		while(lo < hi) {
+			final int mid = (lo + hi + 1) >>> 1;
+
+			if(_offsets[mid] <= frame) {
+				lo = mid;
+			}
+			else {
+				hi = mid - 1;
+			}
+		}
+
+		return lo;
+	}
+
+	private static List<XtcFrameIndex> open(List<File> trajectories,
+			boolean saveFrameIndexes) throws FileNotFoundException, IOException
+	{
+		final int nTrajectories = trajectories.size();
+		final List<XtcFrameIndex> indexes =
+			new ArrayList<XtcFrameIndex>(nTrajectories);
+		int nAtoms = -1;
+
+		for(int t = 0; t < nTrajectories; t++) {
+			final XtcFrameIndex index =
+				XtcFrameIndex.open(trajectories.get(t), saveFrameIndexes);
+
+			if(index.size() != 0) {
+				if(nAtoms != -1 && index.atoms() != nAtoms) {
+					throw new IOException("The number of atoms of "
+							+ trajectories.get(t).getName() + " does not "
+							+ "match the number of atoms of the previous "
+							+ "trajectories");
+				}
+
+				nAtoms = index.atoms();
+			}
+
+			indexes.add(index);
+		}
+
+		return indexes;
+	}
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.martinkampjensen.thesis.barriers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.martinkampjensen.thesis.model.impl.ImmutableModel;
+import com.martinkampjensen.thesis.util.gromacs.XtcFrameIndex;
+import com.martinkampjensen.thesis.util.gromacs.XtcReader;
+import com.martinkampjensen.thesis.util.openbabel.OpenBabelData;
+
+/**
+ * This class defines tests for the {@link TrajectoryPipeline} class.
+ */
+public class TrajectoryPipelineTest
+{
+	private static final File TRAJECTORY_FILE =
+		new File(".", "test/AcAANMe-10000-300_s.xtc");
+	private static final File DOUBLE_PRECISION_TRAJECTORY_FILE =
+		new File(".", "test/AcAANMe-10000-300_d.xtc");
+
+	@Test
+	public void test() throws IOException
+	{
+		final XtcFrameIndex index = new XtcFrameIndex(TRAJECTORY_FILE);
+		final int[][] torsionMatrix = createTorsionMatrix(index.atoms());
+		final List<double[]> expected = new ArrayList<double[]>();
+		readAngles(index, torsionMatrix, expected);
+
+		testHelper(Arrays.asList(index), torsionMatrix, expected);
+	}
+
+	@Test
+	public void testTrajectories() throws IOException
+	{
+		final XtcFrameIndex first = new XtcFrameIndex(TRAJECTORY_FILE);
+		final XtcFrameIndex second =
+			new XtcFrameIndex(DOUBLE_PRECISION_TRAJECTORY_FILE);
+		final int[][] torsionMatrix = createTorsionMatrix(first.atoms());
+		final List<double[]> expected = new ArrayList<double[]>();
+		readAngles(first, torsionMatrix, expected);
+		readAngles(second, torsionMatrix, expected);
+		readAngles(first, torsionMatrix, expected);
+
+		final List<XtcFrameIndex> indexes = Arrays.asList(first, second, first);
+		testHelper(indexes, torsionMatrix, expected);
+
+		final TrajectoryPipeline pipeline =
+			new TrajectoryPipeline(indexes, torsionMatrix, 1);
+		try {
+			assertEquals(3, pipeline.trajectories());
+			assertEquals(second.size(), pipeline.size(1));
+			assertEquals(expected.size(), pipeline.size());
+		}
+		finally {
+			pipeline.close();
+		}
+	}
+
+	private static void testHelper(List<XtcFrameIndex> indexes,
+			int[][] torsionMatrix, List<double[]> expected) throws IOException
+	{
+		for(int nThreads = 1; nThreads <= 4; nThreads++) {
+			final TrajectoryPipeline pipeline =
+				new TrajectoryPipeline(indexes, torsionMatrix, nThreads);
+
+			try {
+				for(int i = 0; i < expected.size(); i++) {
+					assertTrue(pipeline.hasNext());
+					assertTrue(Arrays.equals(expected.get(i),
+							pipeline.next()));
+				}
+
+				assertFalse(pipeline.hasNext());
+				assertEquals(expected.size(), pipeline.getFramesRead());
+			}
+			finally {
+				pipeline.close();
+			}
+		}
+	}
+
+	private static void readAngles(XtcFrameIndex index, int[][] torsionMatrix,
+			List<double[]> angles) throws IOException
+	{
+		final XtcReader reader = new XtcReader(index);
+
+		try {
+			while(reader.hasNext()) {
+				angles.add(ImmutableModel.calculateAngles(reader.next(),
+						torsionMatrix));
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Creates a torsion matrix where every torsion angle is defined by four
+	 * consecutive atoms.
+	 */
+	private static int[][] createTorsionMatrix(int nAtoms)
+	{
+		final int offset = OpenBabelData.TORSION_LENGTH;
+		final int[][] torsionMatrix = new int[nAtoms + 1][];
+
+		for(int i = offset; i <= nAtoms; i++) {
+			torsionMatrix[i] = new int[] { i - 3, i - 2, i - 1, i };
+		}
+
+		return torsionMatrix;
+	}
+}
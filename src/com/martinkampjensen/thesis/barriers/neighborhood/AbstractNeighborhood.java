@@ -16,13 +16,30 @@
 
 package com.martinkampjensen.thesis.barriers.neighborhood;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.commons.collections.primitives.ArrayIntList;
 import org.apache.commons.collections.primitives.IntList;
 
+import com.martinkampjensen.thesis.Constant;
+import com.martinkampjensen.thesis.Main;
+import com.martinkampjensen.thesis.StatusCode;
 import com.martinkampjensen.thesis.model.Model;
 import com.martinkampjensen.thesis.util.Debug;
+import com.martinkampjensen.thesis.util.Parallel;
 
 /**
  * This class provides a skeletal implementation of the {@link Neighborhood}
@@ -33,66 +50,199 @@ import com.martinkampjensen.thesis.util.Debug;
  */
 public abstract class AbstractNeighborhood implements Neighborhood
 {
+	/**
+	 * The number of rows and columns in the blocks of the distance matrix that
+	 * are computed concurrently.
+	 */
+	static final int BLOCK_SIZE = 512;
+
+	/**
+	 * The minimum number of models for which a {@link NeighborIndex} is used.
+	 */
+	private static final int INDEX_MIN_MODELS = 2 * BLOCK_SIZE;
+
+	/**
+	 * The maximum distance, relative to the maximum distance of the
+	 * neighborhood, for which a {@link NeighborIndex} is used. For larger
+	 * distances, most models are neighbors and an index cannot avoid many
+	 * distance calculations.
+	 */
+	private static final double INDEX_MAX_RELATIVE_DISTANCE = 0.5;
+
+	/**
+	 * The maximum fraction of the cells that a query on a {@link CellList} may
+	 * visit for the cell list to be used.
+	 */
+	private static final double CELL_LIST_MAX_VISITED_FRACTION = 0.25;
+
+	/**
+	 * The number of blocks per thread that may be calculated ahead of the
+	 * block being merged.
+	 */
+	private static final int BLOCKS_AHEAD_PER_THREAD = 2;
+
+	/**
+	 * The number of bytes of neighbor pairs that may be kept on the heap
+	 * while calculating neighbors. If exceeded, the pairs are spilled to a
+	 * temporary file and a {@link MappedNeighborGraph} is created.
+	 */
+	private static long _spillThreshold = Runtime.getRuntime().maxMemory() / 4;
+
 	protected AbstractNeighborhood()
 	{
 	}
 
-	public static final int[][] calculateNeighbors(List<Model> models,
+	/**
+	 * As {@link #calculateNeighbors(List, Neighborhood, double, int, boolean)},
+	 * but with the number of threads set as {@link Parallel#getThreads()}.
+	 */
+	public static final NeighborGraph calculateNeighbors(List<Model> models,
 			Neighborhood neighborhood, double maxDistance,
 			boolean allowDebugPrints)
 	{
-		final int nModels = models.size();
-		final IntList[] lists = new ArrayIntList[nModels];
-		final int[][] arrays = new int[nModels][];
+		return calculateNeighbors(models, neighborhood, maxDistance,
+				Parallel.getThreads(), allowDebugPrints);
+	}
 
-		for(int i = 0; i < nModels; i++) {
-			lists[i] = new ArrayIntList();
+	/**
+	 * Calculates and returns the neighbors for a list of models.
+	 * <p>
+	 * If {@link #createIndex(List, Neighborhood, double)} returns an index,
+	 * the neighbors of each model are found using range queries. Otherwise,
+	 * every model is compared against all other models. When more than one
+	 * thread is used, the rows (or, without an index, square blocks of the
+	 * upper triangle of the distance matrix) are computed concurrently and
+	 * merged afterwards. The result is identical to the result of a sequential
+	 * calculation. If the neighbors take up too much of the heap, a
+	 * {@link MappedNeighborGraph} is returned, which should be closed once it
+	 * has been used.
+	 * 
+	 * @param models the models.
+	 * @param neighborhood the neighborhood to use.
+	 * @param maxDistance the maximum distance between the two models for them
+	 *        to be neighbors.
+	 * @param nThreads the number of threads to use.
+	 * @param allowDebugPrints whether or not debug prints are allowed.
+	 * @return the neighbors.
+	 * @throws IllegalArgumentException if <code>nThreads &lt; 1</code>.
+	 */
+	public static final NeighborGraph calculateNeighbors(List<Model> models,
+			Neighborhood neighborhood, double maxDistance, int nThreads,
+			boolean allowDebugPrints)
+	{
+		if(nThreads < 1) {
+			throw new IllegalArgumentException("nThreads < 1");
 		}
 
-		// For status.
-		final long calculationsTotal = (long)nModels * (nModels - 1) / 2;
-		final boolean performStatus = (calculationsTotal >= 2500000);
-		final long calculationsTwentieth =
-			Math.max(1, (long)Math.floor(calculationsTotal / 20d));
-		long calculationsMilestone = calculationsTwentieth;
-		long calculationsDone = 0;
-		if(performStatus) System.err.print("Neighbors calculated: [0%");
+		final NeighborIndex index =
+			createIndex(models, neighborhood, maxDistance);
+		final NeighborGraph graph;
 
-		for(int i = 0; i < nModels; i++) {
-			final IntList list = lists[i];
-			final Model first = models.get(i);
+		if(index != null) {
+			graph = calculateNeighborsUsingIndex(models, index, maxDistance,
+					nThreads);
+		}
+		else {
+			graph = calculateNeighborsInBlocks(models, neighborhood,
+					maxDistance, nThreads);
+		}
 
-			for(int j = i + 1; j < nModels; j++) {
-				final Model second = models.get(j);
+		if(allowDebugPrints) calculateNeighborMeasures(graph);
+		return graph;
+	}
 
-				if(neighborhood.isNeighbors(first, second, maxDistance)) {
-					list.add(j);
-					lists[j].add(i);
-				}
-			}
+	/**
+	 * Creates an index for finding the neighbors of models in a list, or
+	 * returns <code>null</code> if comparing every model against all other
+	 * models is expected to be faster.
+	 * <p>
+	 * A {@link CellList} is used if a query only visits a small fraction of its
+	 * cells, which is typically the case for models with few angles. Otherwise,
+	 * a {@link VantagePointTree} is used unless there are few models, the
+	 * neighborhood is not a metric, or the distance is large.
+	 * 
+	 * @param models the models.
+	 * @param neighborhood the neighborhood to use.
+	 * @param maxDistance the maximum distance that the index will be queried
+	 *        with.
+	 * @return the index, or <code>null</code>.
+	 */
+	public static final NeighborIndex createIndex(List<Model> models,
+			Neighborhood neighborhood, double maxDistance)
+	{
+		if(models.size() < INDEX_MIN_MODELS) {
+			return null;
+		}
 
-			arrays[i] = list.toArray();
-			lists[i] = null; // For garbage collection.
+		final Model first = models.get(0);
+		final double maxAngleDifference =
+			neighborhood.maximumAngleDifference(first, maxDistance);
 
-			// For status.
-			if(performStatus) {
-				calculationsDone += nModels - 1 - i;
-				if(calculationsDone >= calculationsMilestone
-						&& i != nModels - 1) {
-					System.err.print("..." + (int)(100 * calculationsDone /
-							(double)calculationsTotal) + "%");
-					if(calculationsDone == calculationsTotal)
-						System.err.println("]");
-					while(calculationsDone >= calculationsMilestone)
-						calculationsMilestone += calculationsTwentieth;
-					calculationsMilestone =
-						Math.min(calculationsMilestone, calculationsTotal);
-				}
+		if(CellList.cellsPerAngle(maxAngleDifference) >= 3) {
+			final CellList cellList =
+				new CellList(models, neighborhood, maxDistance);
+
+			if(cellList.visitedFraction() <= CELL_LIST_MAX_VISITED_FRACTION) {
+				return cellList;
 			}
 		}
 
-		if(allowDebugPrints) calculateNeighborMeasures(arrays);
-		return arrays;
+		if(!neighborhood.isMetric() || maxDistance > INDEX_MAX_RELATIVE_DISTANCE
+				* neighborhood.maximumDistance(first)) {
+			return null;
+		}
+
+		return new VantagePointTree(models, neighborhood);
+	}
+
+	/**
+	 * Finds the neighbors of a model that come after the model in a list of
+	 * models, that is, the neighbors of model <code>i</code> with ids greater
+	 * than <code>i</code>.
+	 * 
+	 * @param models the models that the index was created from.
+	 * @param index the index.
+	 * @param i the id of the model.
+	 * @param maxDistance the maximum distance between the two models for them
+	 *        to be neighbors.
+	 * @return the ids of the neighbors in increasing order.
+	 */
+	public static final int[] calculateFollowingNeighbors(List<Model> models,
+			NeighborIndex index, int i, double maxDistance)
+	{
+		final IntList ids = new ArrayIntList();
+		index.query(models.get(i), maxDistance, ids);
+
+		final int[] sorted = ids.toArray();
+		Arrays.sort(sorted);
+
+		int first = 0;
+		while(first < sorted.length && sorted[first] <= i) first++;
+
+		return Arrays.copyOfRange(sorted, first, sorted.length);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation returns <code>PI</code>, which is always an upper
+	 * bound.
+	 */
+	@Override
+	public double maximumAngleDifference(Model model, double maxDistance)
+	{
+		return Constant.PI;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation returns <code>false</code>.
+	 */
+	@Override
+	public boolean isMetric()
+	{
+		return false;
 	}
 
 	@Override
@@ -109,21 +259,343 @@ public abstract class AbstractNeighborhood implements Neighborhood
 	}
 
 	@Override
-	public final int[][] calculateNeighbors(List<Model> models,
+	public final NeighborGraph calculateNeighbors(List<Model> models,
 			double maxDistance, boolean allowDebugPrints)
 	{
 		return calculateNeighbors(models, this, maxDistance, allowDebugPrints);
 	}
 
-	private static final double calculateNeighborMeasures(int[][] neighbors)
+	/**
+	 * Calculates the neighbors by comparing every model against all other
+	 * models. The upper triangle of the distance matrix is divided into blocks
+	 * of {@link #BLOCK_SIZE} rows and columns, and each block is a task that
+	 * records its neighbor pairs in row-major order.
+	 */
+	private static NeighborGraph calculateNeighborsInBlocks(
+			final List<Model> models, final Neighborhood neighborhood,
+			final double maxDistance, int nThreads)
+	{
+		final int nModels = models.size();
+		final int nBlocks = (nModels + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		final List<Callable<IntList>> blocks = new ArrayList<Callable<IntList>>(
+				nBlocks * (nBlocks + 1) / 2);
+
+		for(int rowBlock = 0; rowBlock < nBlocks; rowBlock++) {
+			for(int columnBlock = rowBlock; columnBlock < nBlocks;
+			columnBlock++) {
+				final int rowStart = rowBlock * BLOCK_SIZE;
+				final int columnStart = columnBlock * BLOCK_SIZE;
+
+				blocks.add(new Callable<IntList>() {
+					@Override
+					public IntList call()
+					{
+						return calculateBlock(models, neighborhood,
+								maxDistance, rowStart, columnStart);
+					}
+				});
+			}
+		}
+
+		return mergeBlocks(blocks, nModels, nThreads);
+	}
+
+	/**
+	 * Calculates the neighbors using range queries on an index. The rows are
+	 * divided into blocks of {@link #BLOCK_SIZE} rows, and each block is a task
+	 * that records the neighbor pairs <code>(i, j)</code>,
+	 * <code>i &lt; j</code>, in row-major order.
+	 */
+	private static NeighborGraph calculateNeighborsUsingIndex(
+			final List<Model> models, final NeighborIndex index,
+			final double maxDistance, int nThreads)
+	{
+		final int nModels = models.size();
+		final List<Callable<IntList>> blocks = new ArrayList<Callable<IntList>>(
+				(nModels + BLOCK_SIZE - 1) / BLOCK_SIZE);
+
+		for(int rowStart = 0; rowStart < nModels; rowStart += BLOCK_SIZE) {
+			final int start = rowStart;
+
+			blocks.add(new Callable<IntList>() {
+				@Override
+				public IntList call()
+				{
+					final int end = Math.min(start + BLOCK_SIZE, nModels);
+					final IntList pairs = new ArrayIntList();
+
+					for(int i = start; i < end; i++) {
+						final int[] following = calculateFollowingNeighbors(
+								models, index, i, maxDistance);
+
+						for(int k = 0; k < following.length; k++) {
+							pairs.add(i);
+							pairs.add(following[k]);
+						}
+					}
+
+					return pairs;
+				}
+			});
+		}
+
+		return mergeBlocks(blocks, nModels, nThreads);
+	}
+
+	/**
+	 * Performs tasks that each return neighbor pairs in row-major order as a
+	 * flat list <code>i0, j0, i1, j1, ...</code> with <code>i &lt; j</code>,
+	 * and merges the pairs into a {@link CompressedNeighborGraph}. Merging the
+	 * blocks in the order they are given, which must be row-major, fills the
+	 * neighbors of every model in increasing order. With only one thread, the
+	 * tasks are performed in the calling thread. Otherwise, at most
+	 * {@link #BLOCKS_AHEAD_PER_THREAD} tasks per thread are submitted ahead of
+	 * the block being merged.
+	 * <p>
+	 * If the pairs take up more than the spill threshold, the pairs are
+	 * written to a temporary file as they arrive, and a
+	 * {@link MappedNeighborGraph} is created from the file instead. The same
+	 * happens if the graph would be too large for an array.
+	 */
+	private static NeighborGraph mergeBlocks(List<Callable<IntList>> blocks,
+			int nModels, int nThreads)
+	{
+		final int blocksTotal = blocks.size();
+		final int blocksAhead = BLOCKS_AHEAD_PER_THREAD * nThreads;
+		final List<Future<IntList>> futures =
+			new ArrayList<Future<IntList>>(blocksTotal);
+		final ExecutorService pool =
+			(nThreads == 1 ? null : Parallel.createPool(nThreads));
+		File spillFile = null;
+		DataOutputStream spillOut = null;
+
+		try {
+			if(pool != null) {
+				for(int b = 0; b < Math.min(blocksAhead, blocksTotal); b++) {
+					futures.add(pool.submit(blocks.get(b)));
+				}
+			}
+
+			// For status.
+			final boolean performStatus =
+				((long)nModels * (nModels - 1) / 2 >= 2500000);
+			int percentDone = 0;
+			if(performStatus) System.err.print("Neighbors calculated: [0%");
+
+			final IntList[] pairs = new IntList[blocksTotal];
+			final int[] counts = new int[nModels];
+			long nPairs = 0;
+
+			for(int b = 0; b < blocksTotal; b++) {
+				final IntList blockPairs;
+				if(pool == null) {
+					blockPairs = Parallel.call(blocks.get(b));
+				}
+				else {
+					blockPairs = Parallel.get(futures.get(b));
+					futures.set(b, null); // For garbage collection.
+
+					// Keep the window full.
+					if(b + blocksAhead < blocksTotal) {
+						futures.add(pool.submit(blocks.get(b + blocksAhead)));
+					}
+				}
+
+				for(int k = 0, n = blockPairs.size(); k < n; k++) {
+					counts[blockPairs.get(k)]++;
+				}
+
+				nPairs += blockPairs.size();
+
+				if(spillOut != null) {
+					spill(blockPairs, spillOut);
+				}
+				else if(4 * nPairs > _spillThreshold) {
+					Debug.line("Spilling neighbor pairs to disk");
+					spillFile = File.createTempFile("pairs", ".bin");
+					spillFile.deleteOnExit();
+					spillOut = new DataOutputStream(new BufferedOutputStream(
+							new FileOutputStream(spillFile)));
+
+					for(int c = 0; c < b; c++) {
+						spill(pairs[c], spillOut);
+						pairs[c] = null; // For garbage collection.
+					}
+
+					spill(blockPairs, spillOut);
+				}
+				else {
+					pairs[b] = blockPairs;
+				}
+
+				// For status.
+				if(performStatus) {
+					final int percent = (int)(100L * (b + 1) / blocksTotal);
+					if(percent >= percentDone + 5) {
+						percentDone = percent - percent % 5;
+						System.err.print("..." + percentDone + "%");
+						if(b == blocksTotal - 1) System.err.println("]");
+					}
+				}
+			}
+
+			if(spillOut != null) {
+				spillOut.close();
+				spillOut = null;
+			}
+
+			if(spillFile != null || nPairs > Integer.MAX_VALUE - 8) {
+				return createMappedGraph(counts, pairs, spillFile, nPairs);
+			}
+
+			// Turn the counts into offsets, and use the counts as the next
+			// free location of every model while filling.
+			final int[] offsets = new int[nModels + 1];
+			for(int i = 0; i < nModels; i++) {
+				offsets[i + 1] = offsets[i] + counts[i];
+				counts[i] = offsets[i];
+			}
+
+			final int[] neighbors = new int[offsets[nModels]];
+
+			for(int b = 0; b < blocksTotal; b++) {
+				final IntList blockPairs = pairs[b];
+				pairs[b] = null; // For garbage collection.
+
+				for(int k = 0, n = blockPairs.size(); k < n; k += 2) {
+					final int i = blockPairs.get(k);
+					final int j = blockPairs.get(k + 1);
+					neighbors[counts[i]++] = j;
+					neighbors[counts[j]++] = i;
+				}
+			}
+
+			return new CompressedNeighborGraph(offsets, neighbors);
+		}
+		catch(IOException e) {
+			Main.errorExit(e, StatusCode.IO);
+			return null;
+		}
+		finally {
+			if(pool != null) pool.shutdownNow();
+
+			try {
+				if(spillOut != null) spillOut.close();
+			}
+			catch(IOException e) {
+				Main.errorExit(e, StatusCode.IO);
+			}
+
+			if(spillFile != null && !spillFile.delete()) {
+				spillFile.deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * Sets the number of bytes of neighbor pairs that may be kept on the heap
+	 * while calculating neighbors. This is mainly for testing.
+	 * 
+	 * @param spillThreshold the number of bytes.
+	 * @return the previous number of bytes.
+	 */
+	static long setSpillThreshold(long spillThreshold)
+	{
+		final long previous = _spillThreshold;
+		_spillThreshold = spillThreshold;
+		return previous;
+	}
+
+	/**
+	 * Writes neighbor pairs to a file.
+	 */
+	private static void spill(IntList pairs, DataOutputStream out)
+	throws IOException
+	{
+		for(int k = 0, n = pairs.size(); k < n; k++) {
+			out.writeInt(pairs.get(k));
+		}
+	}
+
+	/**
+	 * Creates a {@link MappedNeighborGraph} from neighbor pairs in row-major
+	 * order that are either kept in memory or have been spilled to a file.
+	 */
+	private static MappedNeighborGraph createMappedGraph(int[] counts,
+			IntList[] pairs, File spillFile, long nSpilled) throws IOException
+	{
+		final MappedNeighborGraph graph = new MappedNeighborGraph(counts);
+
+		if(spillFile == null) {
+			for(int b = 0; b < pairs.length; b++) {
+				final IntList blockPairs = pairs[b];
+				pairs[b] = null; // For garbage collection.
+
+				for(int k = 0, n = blockPairs.size(); k < n; k += 2) {
+					final int i = blockPairs.get(k);
+					final int j = blockPairs.get(k + 1);
+					graph.add(i, j);
+					graph.add(j, i);
+				}
+			}
+		}
+		else {
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(spillFile)));
+
+			try {
+				for(long k = 0; k < nSpilled; k += 2) {
+					final int i = in.readInt();
+					final int j = in.readInt();
+					graph.add(i, j);
+					graph.add(j, i);
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+
+		return graph;
+	}
+
+	/**
+	 * Calculates the neighbor pairs <code>(i, j)</code>, <code>i &lt; j</code>,
+	 * in a block of the distance matrix and returns them in row-major order as
+	 * a flat list <code>i0, j0, i1, j1, ...</code>.
+	 */
+	private static IntList calculateBlock(List<Model> models,
+			Neighborhood neighborhood, double maxDistance, int rowStart,
+			int columnStart)
+	{
+		final int nModels = models.size();
+		final int rowEnd = Math.min(rowStart + BLOCK_SIZE, nModels);
+		final int columnEnd = Math.min(columnStart + BLOCK_SIZE, nModels);
+		final IntList pairs = new ArrayIntList();
+
+		for(int i = rowStart; i < rowEnd; i++) {
+			final Model first = models.get(i);
+
+			for(int j = Math.max(i + 1, columnStart); j < columnEnd; j++) {
+				if(neighborhood.isNeighbors(first, models.get(j), maxDistance)) {
+					pairs.add(i);
+					pairs.add(j);
+				}
+			}
+		}
+
+		return pairs;
+	}
+
+	private static final double calculateNeighborMeasures(NeighborGraph graph)
 	{
-		final int nModels = neighbors.length;
-		int sum = 0;
+		final int nModels = graph.size();
+		long sum = 0;
 		int max = Integer.MIN_VALUE;
 		int min = Integer.MAX_VALUE;
 
 		for(int i = 0; i < nModels; i++) {
-			final int nNeighbors = neighbors[i].length;
+			final int nNeighbors = graph.getNumberOfNeighbors(i);
 
 			sum += nNeighbors;
 
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.barriers.neighborhood;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.martinkampjensen.thesis.Constant;
+import com.martinkampjensen.thesis.model.Model;
+import com.martinkampjensen.thesis.model.impl.AbstractModel;
+import com.martinkampjensen.thesis.util.Random;
+
+/**
+ * This class defines tests of the {@link AbstractNeighborhood} class.
+ */
+public final class AbstractNeighborhoodTest
+{
+	private static final int N_MODELS = 1500;
+	private static final int N_ANGLES = 4;
+	private static final int N_ANGLES_FEW = 2;
+	private static final double[] MAX_DISTANCES = { 0d, 0.4, 1.2, Constant.PI };
+
+	@Test
+	public void testCalculateNeighbors()
+	{
+		testCalculateNeighbors(createModels(N_MODELS, N_ANGLES));
+		testCalculateNeighbors(createModels(N_MODELS, N_ANGLES_FEW));
+	}
+
+	private static void testCalculateNeighbors(List<Model> models)
+	{
+		final Neighborhood[] neighborhoods = new Neighborhood[] {
+				new AngleDifferenceNeighborhood(),
+				new RmsdAngleDifferenceNeighborhood() };
+
+		for(Neighborhood neighborhood : neighborhoods) {
+			for(double maxDistance : MAX_DISTANCES) {
+				final int[][] expected =
+					calculateAllPairs(models, neighborhood, maxDistance);
+
+				assertArrayEquals(expected, toArrays(AbstractNeighborhood
+						.calculateNeighbors(models, neighborhood, maxDistance,
+								1, false)));
+				assertArrayEquals(expected, toArrays(AbstractNeighborhood
+						.calculateNeighbors(models, neighborhood, maxDistance,
+								3, false)));
+			}
+		}
+	}
+
+	@Test
+	public void testCalculateNeighborsSpilled()
+	{
+		final List<Model> models = createModels(N_MODELS, N_ANGLES);
+		final Neighborhood neighborhood = new AngleDifferenceNeighborhood();
+		final double maxDistance = MAX_DISTANCES[MAX_DISTANCES.length - 1];
+		final int[][] expected =
+			calculateAllPairs(models, neighborhood, maxDistance);
+
+		final long spillThreshold = AbstractNeighborhood.setSpillThreshold(0);
+
+		try {
+			final NeighborGraph graph = AbstractNeighborhood
+			.calculateNeighbors(models, neighborhood, maxDistance, 3, false);
+
+			assertTrue(graph instanceof MappedNeighborGraph);
+			assertArrayEquals(expected, toArrays(graph));
+			((MappedNeighborGraph)graph).close();
+		}
+		finally {
+			AbstractNeighborhood.setSpillThreshold(spillThreshold);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCalculateNeighborsIllegalArgument()
+	{
+		AbstractNeighborhood.calculateNeighbors(createModels(2, N_ANGLES),
+				new AngleDifferenceNeighborhood(), 1d, 0, false);
+	}
+
+	static int[][] toArrays(NeighborGraph graph)
+	{
+		final int nModels = graph.size();
+		final int[][] neighbors = new int[nModels][];
+		long nEntries = 0;
+
+		for(int i = 0; i < nModels; i++) {
+			neighbors[i] = graph.getNeighbors(i);
+			nEntries += neighbors[i].length;
+
+			for(int k = 0; k < neighbors[i].length; k++) {
+				assertEquals(neighbors[i][k], graph.getNeighbor(i, k));
+			}
+		}
+
+		assertEquals(nEntries, graph.getNumberOfEntries());
+		return neighbors;
+	}
+
+	static int[][] calculateAllPairs(List<Model> models,
+			Neighborhood neighborhood, double maxDistance)
+	{
+		final int nModels = models.size();
+		final int[][] neighbors = new int[nModels][];
+
+		for(int i = 0; i < nModels; i++) {
+			final List<Integer> row = new ArrayList<Integer>();
+
+			for(int j = 0; j < nModels; j++) {
+				if(j != i && neighborhood.isNeighbors(models.get(Math.min(i, j)),
+						models.get(Math.max(i, j)), maxDistance)) {
+					row.add(j);
+				}
+			}
+
+			neighbors[i] = new int[row.size()];
+			for(int k = 0; k < neighbors[i].length; k++) {
+				neighbors[i][k] = row.get(k);
+			}
+		}
+
+		return neighbors;
+	}
+
+	public static List<Model> createModels(int nModels, int nAngles)
+	{
+		final List<Model> models = new ArrayList<Model>(nModels);
+
+		for(int i = 0; i < nModels; i++) {
+			models.add(new NeighborhoodTestModel(nAngles));
+		}
+
+		return models;
+	}
+
+	private static final class NeighborhoodTestModel extends AbstractModel
+	{
+		private final double _fitness = Random.nextDouble();
+
+		public NeighborhoodTestModel(int size)
+		{
+			super(size);
+
+			for(int i = 0; i < size; i++) {
+				setAngle(i, Random.nextDouble(0d, Constant.TWO_PI));
+			}
+		}
+
+		@Override
+		protected double calculateFitness()
+		{
+			return _fitness;
+		}
+	}
+}
@@ -42,6 +42,31 @@ implements Serializable
 		return Constant.PI;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * As the distance is the average of the angle differences, a single angle
+	 * can differ by at most <code>model.size() * maxDistance</code>.
+	 */
+	@Override
+	public double maximumAngleDifference(Model model, double maxDistance)
+	{
+		return Math.min(model.size() * maxDistance, Constant.PI);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation returns <code>true</code> because the angle
+	 * difference is a metric on the circle, and the average angle difference
+	 * is therefore a metric on the torus.
+	 */
+	@Override
+	public boolean isMetric()
+	{
+		return true;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * <p>
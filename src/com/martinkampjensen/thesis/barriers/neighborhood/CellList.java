@@ -0,0 +1,288 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.barriers.neighborhood;
+
+import java.util.List;
+
+import org.apache.commons.collections.primitives.IntList;
+
+import com.martinkampjensen.thesis.Constant;
+import com.martinkampjensen.thesis.model.Model;
+import com.martinkampjensen.thesis.util.Util;
+
+/**
+ * An implementation of the {@link NeighborIndex} interface that divides
+ * torsion space into hyper-cubic cells. The cells wrap around periodically,
+ * as angle differences do in {@link Util#angleDifference(double, double)}.
+ * <p>
+ * The cells are at least as wide as the largest possible difference of a
+ * single angle between two neighbors, as per
+ * {@link Neighborhood#maximumAngleDifference(Model, double)}. Hence, the
+ * neighbors of a model are in the same cell as the model or in an adjacent
+ * cell. Only a subset of the angles is used for binning, which keeps the
+ * number of cells proportional to the number of models. The angles with the
+ * largest circular spread are chosen, as they separate the models best.
+ * <p>
+ * Unlike {@link VantagePointTree}, a cell list does not require the
+ * neighborhood to be a metric, but it can only be queried with distances up
+ * to the distance it was built for.
+ */
+public final class CellList implements NeighborIndex
+{
+	/**
+	 * The slack added to the width of cells, so that rounding errors never
+	 * place two neighbors in cells that are not adjacent.
+	 */
+	private static final double SLACK = Constant.DOUBLE_PRECISION;
+
+	/**
+	 * The maximum number of cells per model.
+	 */
+	private static final int MAX_CELLS_PER_MODEL = 2;
+
+	private final List<Model> _models;
+	private final Neighborhood _neighborhood;
+	private final double _maxDistance;
+	private final int _cellsPerAngle;
+	private final int[] _angles;
+	private final int[] _cellStarts;
+	private final int[] _ids;
+
+	/**
+	 * Builds a cell list over a list of models.
+	 * 
+	 * @param models the models.
+	 * @param neighborhood the neighborhood to use.
+	 * @param maxDistance the maximum distance that the cell list will be
+	 *        queried with.
+	 * @throws NullPointerException if <code>models == null</code> or if
+	 *         <code>neighborhood == null</code>.
+	 * @throws IllegalArgumentException if <code>models</code> is empty or if
+	 *         the cells would be so wide that there are less than
+	 *         <code>3</code> cells per angle.
+	 */
+	public CellList(List<Model> models, Neighborhood neighborhood,
+			double maxDistance)
+	{
+		if(models == null) {
+			throw new NullPointerException("models == null");
+		}
+		else if(neighborhood == null) {
+			throw new NullPointerException("neighborhood == null");
+		}
+		else if(models.isEmpty()) {
+			throw new IllegalArgumentException("models is empty");
+		}
+
+		final int nModels = models.size();
+		final Model first = models.get(0);
+		final int cellsPerAngle = cellsPerAngle(
+				neighborhood.maximumAngleDifference(first, maxDistance));
+
+		if(cellsPerAngle < 3) {
+			throw new IllegalArgumentException("Less than 3 cells per angle");
+		}
+
+		// Wider cells than necessary are fine, narrower cells are not.
+		_cellsPerAngle = (int)Math.min(cellsPerAngle,
+				Math.max(3, (long)MAX_CELLS_PER_MODEL * nModels));
+
+		_models = models;
+		_neighborhood = neighborhood;
+		_maxDistance = maxDistance;
+		_angles = chooseAngles(models, _cellsPerAngle);
+
+		int nCells = 1;
+		for(int k = 0; k < _angles.length; k++) nCells *= _cellsPerAngle;
+
+		// Sort the model ids by cell using counting sort.
+		final int[] cells = new int[nModels];
+		_cellStarts = new int[nCells + 1];
+		_ids = new int[nModels];
+
+		for(int i = 0; i < nModels; i++) {
+			cells[i] = cell(models.get(i));
+			_cellStarts[cells[i] + 1]++;
+		}
+
+		for(int c = 0; c < nCells; c++) {
+			_cellStarts[c + 1] += _cellStarts[c];
+		}
+
+		final int[] next = new int[nCells];
+		System.arraycopy(_cellStarts, 0, next, 0, nCells);
+
+		for(int i = 0; i < nModels; i++) {
+			_ids[next[cells[i]]++] = i;
+		}
+	}
+
+	/**
+	 * Calculates the number of cells per angle when the width of cells must be
+	 * at least a certain angle difference.
+	 * 
+	 * @param maxAngleDifference the largest possible difference of a single
+	 *        angle between two neighbors.
+	 * @return the number of cells per angle.
+	 */
+	public static int cellsPerAngle(double maxAngleDifference)
+	{
+		return (int)Math.floor(Constant.TWO_PI / (maxAngleDifference + SLACK));
+	}
+
+	/**
+	 * Returns the fraction of the cells that are visited by a query, that is,
+	 * the fraction of the models that a query is expected to compare the
+	 * target model against.
+	 * 
+	 * @return the fraction of cells visited by a query.
+	 */
+	public double visitedFraction()
+	{
+		return Math.pow(3d / _cellsPerAngle, _angles.length);
+	}
+
+	@Override
+	public int size()
+	{
+		return _ids.length;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if <code>maxDistance</code> is greater
+	 *         than the distance this cell list was built for.
+	 */
+	@Override
+	public void query(Model target, double maxDistance, IntList ids)
+	{
+		if(maxDistance > _maxDistance) {
+			throw new IllegalArgumentException(
+					"maxDistance is greater than the distance of the cell list");
+		}
+
+		final int nAngles = _angles.length;
+		final int[] centers = new int[nAngles];
+		final int[] offsets = new int[nAngles];
+
+		for(int k = 0; k < nAngles; k++) {
+			centers[k] = cell(target.getAngle(_angles[k]));
+			offsets[k] = -1;
+		}
+
+		// Visit the 3^nAngles adjacent cells by counting in base 3.
+		while(true) {
+			int cell = 0;
+			for(int k = 0; k < nAngles; k++) {
+				final int c = (centers[k] + offsets[k] + _cellsPerAngle)
+				% _cellsPerAngle;
+				cell = cell * _cellsPerAngle + c;
+			}
+
+			for(int p = _cellStarts[cell], end = _cellStarts[cell + 1];
+			p < end; p++) {
+				final int id = _ids[p];
+
+				if(_neighborhood.distance(target, _models.get(id))
+						<= maxDistance) {
+					ids.add(id);
+				}
+			}
+
+			int k = nAngles - 1;
+			while(k >= 0 && offsets[k] == 1) {
+				offsets[k] = -1;
+				k--;
+			}
+
+			if(k < 0) {
+				break;
+			}
+
+			offsets[k]++;
+		}
+	}
+
+	private int cell(Model model)
+	{
+		int cell = 0;
+
+		for(int k = 0; k < _angles.length; k++) {
+			cell = cell * _cellsPerAngle + cell(model.getAngle(_angles[k]));
+		}
+
+		return cell;
+	}
+
+	private int cell(double angle)
+	{
+		final double width = Constant.TWO_PI / _cellsPerAngle;
+		final int cell = (int)(Util.ensureAngleInterval(angle) / width);
+		return Math.min(cell, _cellsPerAngle - 1);
+	}
+
+	/**
+	 * Chooses the angles to use for binning. As many angles as possible are
+	 * used without exceeding {@link #MAX_CELLS_PER_MODEL} cells per model, and
+	 * the angles are chosen by increasing mean resultant length, that is, by
+	 * decreasing circular spread.
+	 */
+	private static int[] chooseAngles(List<Model> models, int cellsPerAngle)
+	{
+		final int nModels = models.size();
+		final int size = models.get(0).size();
+		final long maxCells = (long)MAX_CELLS_PER_MODEL * nModels;
+
+		int nAngles = 1;
+		long nCells = cellsPerAngle;
+		while(nAngles < size && nCells * cellsPerAngle <= maxCells) {
+			nCells *= cellsPerAngle;
+			nAngles++;
+		}
+
+		final double[] lengths = new double[size];
+		for(int a = 0; a < size; a++) {
+			double cos = 0d;
+			double sin = 0d;
+
+			for(int i = 0; i < nModels; i++) {
+				final double angle = models.get(i).getAngle(a);
+				cos += Math.cos(angle);
+				sin += Math.sin(angle);
+			}
+
+			lengths[a] = Math.sqrt(cos * cos + sin * sin) / nModels;
+		}
+
+		final int[] angles = new int[nAngles];
+		final boolean[] isChosen = new boolean[size];
+
+		for(int k = 0; k < nAngles; k++) {
+			int best = -1;
+
+			for(int a = 0; a < size; a++) {
+				if(!isChosen[a] && (best == -1 || lengths[a] < lengths[best])) {
+					best = a;
+				}
+			}
+
+			isChosen[best] = true;
+			angles[k] = best;
+		}
+
+		return angles;
+	}
+}
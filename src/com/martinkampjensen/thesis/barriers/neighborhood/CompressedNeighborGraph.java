@@ -0,0 +1,95 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.barriers.neighborhood;
+
+import java.util.Arrays;
+
+/**
+ * An implementation of the {@link NeighborGraph} interface using the
+ * compressed sparse row (CSR) format. The neighbors of all models are stored
+ * consecutively in a single array, and the neighbors of model
+ * <code>i</code> are located in
+ * <code>[offsets[i]; offsets[i + 1])</code>.
+ * 
+ * @see <a href="http://en.wikipedia.org/wiki/Sparse_matrix#Compressed_sparse_row_.28CSR.2C_CRS_or_Yale_format.29">Compressed sparse row</a>
+ */
+public final class CompressedNeighborGraph implements NeighborGraph
+{
+	private final int[] _offsets;
+	private final int[] _neighbors;
+
+	/**
+	 * Creates a graph from arrays in the compressed sparse row format. The
+	 * arrays are not copied.
+	 * 
+	 * @param offsets the offsets of the neighbors of every model, followed by
+	 *        the total number of neighbors.
+	 * @param neighbors the neighbors of all models.
+	 * @throws NullPointerException if <code>offsets == null</code> or if
+	 *         <code>neighbors == null</code>.
+	 * @throws IllegalArgumentException if <code>offsets</code> is empty or
+	 *         if its last element is not the length of
+	 *         <code>neighbors</code>.
+	 */
+	public CompressedNeighborGraph(int[] offsets, int[] neighbors)
+	{
+		if(offsets == null) {
+			throw new NullPointerException("offsets == null");
+		}
+		else if(neighbors == null) {
+			throw new NullPointerException("neighbors == null");
+		}
+		else if(offsets.length == 0
+				|| offsets[offsets.length - 1] != neighbors.length) {
+			throw new IllegalArgumentException(
+					"offsets does not match neighbors");
+		}
+
+		_offsets = offsets;
+		_neighbors = neighbors;
+	}
+
+	@Override
+	public int size()
+	{
+		return _offsets.length - 1;
+	}
+
+	@Override
+	public long getNumberOfEntries()
+	{
+		return _neighbors.length;
+	}
+
+	@Override
+	public int getNumberOfNeighbors(int id)
+	{
+		return _offsets[id + 1] - _offsets[id];
+	}
+
+	@Override
+	public int getNeighbor(int id, int index)
+	{
+		return _neighbors[_offsets[id] + index];
+	}
+
+	@Override
+	public int[] getNeighbors(int id)
+	{
+		return Arrays.copyOfRange(_neighbors, _offsets[id], _offsets[id + 1]);
+	}
+}
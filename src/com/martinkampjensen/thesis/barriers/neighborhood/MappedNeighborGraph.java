@@ -0,0 +1,173 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.barriers.neighborhood;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An implementation of the {@link NeighborGraph} interface that stores the
+ * neighbors in a temporary file, which is memory-mapped, so that the size of
+ * the graph is limited by disk space rather than by the heap. The layout is
+ * the same as in {@link CompressedNeighborGraph}: the neighbors of all models
+ * are stored consecutively as 32-bit integers in native byte order, and only
+ * the offsets, one <code>long</code> per model, are kept on the heap.
+ * <p>
+ * As a single mapping is limited to 2 GiB, the file is mapped in segments of
+ * {@link #SEGMENT_SIZE} neighbors. The file is deleted when the graph is
+ * closed, or when the virtual machine terminates if the file cannot be
+ * deleted while mapped, and the graph must not be used afterwards.
+ */
+public final class MappedNeighborGraph implements NeighborGraph, Closeable
+{
+	private static final int SEGMENT_SHIFT = 28;
+
+	/**
+	 * The number of neighbors in a segment of the file that is mapped at a
+	 * time.
+	 */
+	public static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+
+	private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	private final File _file;
+	private final long[] _offsets;
+	private final IntBuffer[] _segments;
+
+	/**
+	 * Creates an empty graph with room for a given number of neighbors of
+	 * every model. The graph is filled using {@link #add(int, int)}.
+	 * 
+	 * @param counts the number of neighbors of every model.
+	 * @throws IOException if the temporary file could not be created or
+	 *         mapped.
+	 */
+	MappedNeighborGraph(int[] counts) throws IOException
+	{
+		final int nModels = counts.length;
+		_offsets = new long[nModels + 1];
+
+		// While the graph is being filled, _offsets[i + 1] is the location of
+		// the next neighbor of model i. When the graph is full, it is the
+		// location of the first neighbor of model i + 1.
+		for(int i = 1; i < nModels; i++) {
+			_offsets[i + 1] = _offsets[i] + counts[i - 1];
+		}
+
+		final long nEntries = (nModels == 0 ? 0 :
+			_offsets[nModels] + counts[nModels - 1]);
+		final int nSegments =
+			(int)((nEntries + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+		_segments = new IntBuffer[nSegments];
+		_file = File.createTempFile("neighbors", ".bin");
+		_file.deleteOnExit();
+
+		final RandomAccessFile file = new RandomAccessFile(_file, "rw");
+
+		try {
+			file.setLength(4 * nEntries);
+			final FileChannel channel = file.getChannel();
+
+			for(int s = 0; s < nSegments; s++) {
+				final long first = (long)s * SEGMENT_SIZE;
+				final long size = Math.min(SEGMENT_SIZE, nEntries - first);
+				_segments[s] = channel.map(FileChannel.MapMode.READ_WRITE,
+						4 * first, 4 * size).order(ByteOrder.nativeOrder())
+						.asIntBuffer();
+			}
+		}
+		catch(IOException e) {
+			_file.delete();
+			throw e;
+		}
+		finally {
+			// The mappings remain valid after the file is closed.
+			file.close();
+		}
+	}
+
+	/**
+	 * Adds the next neighbor of a model. The neighbors of a model must be
+	 * added in increasing order.
+	 * 
+	 * @param id the id of the model.
+	 * @param neighbor the id of the neighbor.
+	 */
+	void add(int id, int neighbor)
+	{
+		final long location = _offsets[id + 1]++;
+		_segments[(int)(location >>> SEGMENT_SHIFT)]
+		          .put((int)(location & SEGMENT_MASK), neighbor);
+	}
+
+	@Override
+	public int size()
+	{
+		return _offsets.length - 1;
+	}
+
+	@Override
+	public long getNumberOfEntries()
+	{
+		return _offsets[_offsets.length - 1];
+	}
+
+	@Override
+	public int getNumberOfNeighbors(int id)
+	{
+		return (int)(_offsets[id + 1] - _offsets[id]);
+	}
+
+	@Override
+	public int getNeighbor(int id, int index)
+	{
+		final long location = _offsets[id] + index;
+		return _segments[(int)(location >>> SEGMENT_SHIFT)]
+		                 .get((int)(location & SEGMENT_MASK));
+	}
+
+	@Override
+	public int[] getNeighbors(int id)
+	{
+		final int nNeighbors = getNumberOfNeighbors(id);
+		final int[] neighbors = new int[nNeighbors];
+
+		for(int k = 0; k < nNeighbors; k++) {
+			neighbors[k] = getNeighbor(id, k);
+		}
+
+		return neighbors;
+	}
+
+	/**
+	 * Deletes the temporary file, or requests that it is deleted when the
+	 * virtual machine terminates if it cannot be deleted now. The mappings are
+	 * released when the graph is garbage collected.
+	 */
+	@Override
+	public void close()
+	{
+		if(!_file.delete()) {
+			_file.deleteOnExit();
+		}
+	}
+}
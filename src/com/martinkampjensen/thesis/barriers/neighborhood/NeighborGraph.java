@@ -0,0 +1,67 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.barriers.neighborhood;
+
+/**
+ * The neighbors of a list of models, as calculated by
+ * {@link Neighborhood#calculateNeighbors(java.util.List, double, boolean)}.
+ * A model is identified by its location in the list of models, and the
+ * neighbors of a model are stored in increasing order.
+ */
+public interface NeighborGraph
+{
+	/**
+	 * Returns the number of models.
+	 * 
+	 * @return the number of models.
+	 */
+	int size();
+
+	/**
+	 * Returns the total number of neighbors of all models. As neighbors are
+	 * symmetric, every pair of neighbors is counted twice.
+	 * 
+	 * @return the number of neighbors.
+	 */
+	long getNumberOfEntries();
+
+	/**
+	 * Returns the number of neighbors of a model.
+	 * 
+	 * @param id the id of the model.
+	 * @return the number of neighbors.
+	 */
+	int getNumberOfNeighbors(int id);
+
+	/**
+	 * Returns a neighbor of a model.
+	 * 
+	 * @param id the id of the model.
+	 * @param index the index of the neighbor, in the interval
+	 *        <code>[0; getNumberOfNeighbors(id) - 1]</code>.
+	 * @return the id of the neighbor.
+	 */
+	int getNeighbor(int id, int index);
+
+	/**
+	 * Returns the neighbors of a model in a new array.
+	 * 
+	 * @param id the id of the model.
+	 * @return the ids of the neighbors in increasing order.
+	 */
+	int[] getNeighbors(int id);
+}
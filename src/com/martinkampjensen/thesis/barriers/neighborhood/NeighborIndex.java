@@ -0,0 +1,53 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.barriers.neighborhood;
+
+import org.apache.commons.collections.primitives.IntList;
+
+import com.martinkampjensen.thesis.model.Model;
+
+/**
+ * An index over a list of models that supports range queries, that is, finding
+ * all models within a certain distance of a target model according to a
+ * {@link Neighborhood}.
+ * <p>
+ * A model in the index is identified by its location in the list of models
+ * that the index was built from.
+ */
+public interface NeighborIndex
+{
+	/**
+	 * Returns the number of models in this index.
+	 * 
+	 * @return the number of models.
+	 */
+	int size();
+
+	/**
+	 * Finds the models in this index that are neighbors of a target model and
+	 * adds their ids to a list in no particular order. A model
+	 * <code>m</code> is a neighbor if and only if
+	 * <code>neighborhood.distance(target, m) &le; maxDistance</code>, with
+	 * <code>target</code> as the first argument.
+	 * 
+	 * @param target the target model.
+	 * @param maxDistance the maximum distance between the target model and
+	 *        another model for them to be neighbors.
+	 * @param ids the list to add the ids of the neighbors to.
+	 */
+	void query(Model target, double maxDistance, IntList ids);
+}
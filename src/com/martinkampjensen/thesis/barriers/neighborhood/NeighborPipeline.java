@@ -0,0 +1,426 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.barriers.neighborhood;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.collections.primitives.ArrayIntList;
+import org.apache.commons.collections.primitives.IntList;
+
+import com.martinkampjensen.thesis.model.Model;
+import com.martinkampjensen.thesis.util.DisjointSet;
+import com.martinkampjensen.thesis.util.IntSet;
+import com.martinkampjensen.thesis.util.Parallel;
+
+/**
+ * Calculates the preceding neighbors of a list of models, that is, the
+ * neighbors of model <code>i</code> with ids less than <code>i</code>, and
+ * returns them one model at a time in order of increasing id. This is what
+ * the flooding algorithm needs when the models are sorted by fitness value.
+ * <p>
+ * The models are divided into blocks of consecutive models, and worker
+ * threads calculate the blocks ahead of the consumer. At most a fixed number
+ * of blocks per thread are calculated but not yet consumed, so only a window
+ * of the neighbors is kept in memory, and calculating the neighbors overlaps
+ * with consuming them. With only one thread, every block is calculated in the
+ * calling thread when it is needed.
+ * <p>
+ * The flooding algorithm only needs one neighbor in every basin. If the
+ * consumer keeps the basins in a {@link DisjointSet}, the pipeline can be
+ * given the set, and it then only returns the first neighbor of a model in
+ * every set, as the sets are when the neighbors are calculated. Sets are only
+ * ever merged, so the consumer still finds every basin it must merge, in the
+ * same order as without deduplication, but may have to deduplicate again.
+ * <p>
+ * The pipeline must be closed if it is not consumed completely.
+ */
+public final class NeighborPipeline implements Iterator<int[]>, Closeable
+{
+	/**
+	 * The number of blocks per thread that may be calculated ahead of the
+	 * consumer.
+	 */
+	private static final int BLOCKS_AHEAD_PER_THREAD = 2;
+
+	private final List<Model> _models;
+	private final Neighborhood _neighborhood;
+	private final double _maxDistance;
+	private final NeighborIndex _index;
+	private final DisjointSet _basins;
+	private final ThreadLocal<IntSet> _seenBasins;
+	private final ExecutorService _pool;
+	private final Queue<Future<int[][]>> _futures;
+	private int _nextBlockStart;
+	private int[][] _block;
+	private int _blockStart;
+	private int _next;
+	private long _nEntries;
+
+	// For status.
+	private final boolean _performStatus;
+	private int _percentDone;
+
+	/**
+	 * Creates a pipeline for a list of models using
+	 * {@link Parallel#getThreads()} threads.
+	 * 
+	 * @param models the models.
+	 * @param neighborhood the neighborhood to use.
+	 * @param maxDistance the maximum distance between two models for them to
+	 *        be neighbors.
+	 * @throws NullPointerException if <code>models == null</code> or if
+	 *         <code>neighborhood == null</code>.
+	 */
+	public NeighborPipeline(List<Model> models, Neighborhood neighborhood,
+			double maxDistance)
+	{
+		this(models, neighborhood, maxDistance, Parallel.getThreads());
+	}
+
+	/**
+	 * Creates a pipeline for a list of models. An index is used if
+	 * {@link AbstractNeighborhood#createIndex(List, Neighborhood, double)}
+	 * returns one.
+	 * 
+	 * @param models the models.
+	 * @param neighborhood the neighborhood to use.
+	 * @param maxDistance the maximum distance between two models for them to
+	 *        be neighbors.
+	 * @param nThreads the number of threads to use.
+	 * @throws NullPointerException if <code>models == null</code> or if
+	 *         <code>neighborhood == null</code>.
+	 * @throws IllegalArgumentException if <code>nThreads &lt; 1</code>.
+	 */
+	public NeighborPipeline(List<Model> models, Neighborhood neighborhood,
+			double maxDistance, int nThreads)
+	{
+		this(models, neighborhood, maxDistance, null, nThreads);
+	}
+
+	/**
+	 * Creates a pipeline for a list of models that deduplicates the neighbors
+	 * of every model by basin. An index is used if
+	 * {@link AbstractNeighborhood#createIndex(List, Neighborhood, double)}
+	 * returns one.
+	 * <p>
+	 * The basins may be merged by the consumer while the pipeline is in use,
+	 * but only from the thread that creates the pipeline and consumes it.
+	 * 
+	 * @param models the models.
+	 * @param neighborhood the neighborhood to use.
+	 * @param maxDistance the maximum distance between two models for them to
+	 *        be neighbors.
+	 * @param basins the basins of the models, or <code>null</code> to return
+	 *        all preceding neighbors.
+	 * @param nThreads the number of threads to use.
+	 * @throws NullPointerException if <code>models == null</code> or if
+	 *         <code>neighborhood == null</code>.
+	 * @throws IllegalArgumentException if <code>nThreads &lt; 1</code> or if
+	 *         the size of <code>basins</code> is not the number of models.
+	 */
+	public NeighborPipeline(List<Model> models, Neighborhood neighborhood,
+			double maxDistance, DisjointSet basins, int nThreads)
+	{
+		this(models, neighborhood, maxDistance, basins, 0, nThreads);
+	}
+
+	/**
+	 * Creates a pipeline for a list of models that deduplicates the neighbors
+	 * of every model by basin, and skips the models before a start model. This
+	 * continues the flooding algorithm when the neighbors of the skipped
+	 * models have already been consumed, e.g. in an earlier run. An index is
+	 * used if
+	 * {@link AbstractNeighborhood#createIndex(List, Neighborhood, double)}
+	 * returns one.
+	 * <p>
+	 * The basins may be merged by the consumer while the pipeline is in use,
+	 * but only from the thread that creates the pipeline and consumes it.
+	 * 
+	 * @param models the models.
+	 * @param neighborhood the neighborhood to use.
+	 * @param maxDistance the maximum distance between two models for them to
+	 *        be neighbors.
+	 * @param basins the basins of the models, or <code>null</code> to return
+	 *        all preceding neighbors.
+	 * @param start the id of the first model to return the neighbors of.
+	 * @param nThreads the number of threads to use.
+	 * @throws NullPointerException if <code>models == null</code> or if
+	 *         <code>neighborhood == null</code>.
+	 * @throws IllegalArgumentException if <code>nThreads &lt; 1</code>, if
+	 *         the size of <code>basins</code> is not the number of models, or
+	 *         if <code>start</code> is not in <code>[0; models.size()]</code>.
+	 */
+	public NeighborPipeline(List<Model> models, Neighborhood neighborhood,
+			double maxDistance, DisjointSet basins, int start,
+			int nThreads)
+	{
+		if(models == null) {
+			throw new NullPointerException("models == null");
+		}
+		else if(neighborhood == null) {
+			throw new NullPointerException("neighborhood == null");
+		}
+		else if(nThreads < 1) {
+			throw new IllegalArgumentException("nThreads < 1");
+		}
+		else if(basins != null && basins.size() != models.size()) {
+			throw new IllegalArgumentException(
+					"basins does not match the models");
+		}
+		else if(start < 0 || start > models.size()) {
+			throw new IllegalArgumentException("start is out of range");
+		}
+
+		final int nModels = models.size();
+		_models = models;
+		_neighborhood = neighborhood;
+		_maxDistance = maxDistance;
+		_index = AbstractNeighborhood.createIndex(models, neighborhood,
+				maxDistance);
+		_basins = basins;
+		_seenBasins = new ThreadLocal<IntSet>() {
+			@Override
+			protected IntSet initialValue()
+			{
+				return new IntSet();
+			}
+		};
+		_pool = (nThreads == 1 ? null : Parallel.createPool(nThreads));
+		_futures = new ArrayDeque<Future<int[][]>>(
+				BLOCKS_AHEAD_PER_THREAD * nThreads);
+		_nextBlockStart = start;
+		_block = new int[0][];
+		_blockStart = start;
+		_next = start;
+		_nEntries = 0;
+
+		_performStatus = ((long)nModels * (nModels - 1) / 2 >= 2500000
+				&& start < nModels);
+		final int percent = (nModels == 0 ? 0 : (int)(100L * start / nModels));
+		_percentDone = percent - percent % 5;
+		if(_performStatus) {
+			System.err.print("Neighbors calculated: [" + _percentDone + "%");
+		}
+
+		if(_pool != null) {
+			for(int b = 0; b < BLOCKS_AHEAD_PER_THREAD * nThreads; b++) {
+				if(!submitNextBlock()) break;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of models.
+	 * 
+	 * @return the number of models.
+	 */
+	public int size()
+	{
+		return _models.size();
+	}
+
+	/**
+	 * Returns the total number of preceding neighbors returned so far, not
+	 * counting skipped models.
+	 * 
+	 * @return the number of preceding neighbors.
+	 */
+	public long getNumberOfEntries()
+	{
+		return _nEntries;
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		return _next < _models.size();
+	}
+
+	/**
+	 * Returns the preceding neighbors of the next model.
+	 * 
+	 * @return the ids of the neighbors in increasing order.
+	 * @throws NoSuchElementException if the neighbors of all models have been
+	 *         returned.
+	 */
+	@Override
+	public int[] next()
+	{
+		if(!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		if(_next == _blockStart + _block.length) {
+			nextBlock();
+		}
+
+		final int[] neighbors = _block[_next - _blockStart];
+		_block[_next - _blockStart] = null; // For garbage collection.
+		_next++;
+		_nEntries += neighbors.length;
+
+		// For status.
+		if(_performStatus) {
+			final int nModels = _models.size();
+			final int percent = (int)(100L * _next / nModels);
+			if(percent >= _percentDone + 5) {
+				_percentDone = percent - percent % 5;
+				System.err.print("..." + _percentDone + "%");
+				if(_next == nModels) System.err.println("]");
+			}
+		}
+
+		return neighbors;
+	}
+
+	/**
+	 * Not supported.
+	 * 
+	 * @throws UnsupportedOperationException always.
+	 */
+	@Override
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Stops the worker threads.
+	 */
+	@Override
+	public void close()
+	{
+		if(_pool != null) _pool.shutdownNow();
+		_seenBasins.remove();
+	}
+
+	private void nextBlock()
+	{
+		_blockStart = _next;
+
+		if(_pool == null) {
+			_block = calculateBlock(_blockStart);
+			return;
+		}
+
+		_block = Parallel.get(_futures.poll());
+
+		// Keep the window full, and stop the threads after the last block.
+		if(!submitNextBlock() && _futures.isEmpty()) {
+			close();
+		}
+	}
+
+	private boolean submitNextBlock()
+	{
+		if(_nextBlockStart >= _models.size()) {
+			return false;
+		}
+
+		final int start = _nextBlockStart;
+		_nextBlockStart += AbstractNeighborhood.BLOCK_SIZE;
+
+		_futures.add(_pool.submit(new Callable<int[][]>() {
+			@Override
+			public int[][] call()
+			{
+				return calculateBlock(start);
+			}
+		}));
+
+		return true;
+	}
+
+	/**
+	 * Calculates the preceding neighbors of a block of models.
+	 */
+	private int[][] calculateBlock(int start)
+	{
+		final int end =
+			Math.min(start + AbstractNeighborhood.BLOCK_SIZE, _models.size());
+		final int[][] block = new int[end - start][];
+		final IntList ids = new ArrayIntList();
+
+		for(int i = start; i < end; i++) {
+			final Model model = _models.get(i);
+			ids.clear();
+
+			if(_index != null) {
+				_index.query(model, _maxDistance, ids);
+
+				final int[] sorted = ids.toArray();
+				Arrays.sort(sorted);
+
+				int last = 0;
+				while(last < sorted.length && sorted[last] < i) last++;
+
+				block[i - start] = deduplicate(i, sorted, last);
+			}
+			else {
+				for(int j = 0; j < i; j++) {
+					if(_neighborhood.isNeighbors(_models.get(j), model,
+							_maxDistance)) {
+						ids.add(j);
+					}
+				}
+
+				final int[] preceding = ids.toArray();
+				block[i - start] = deduplicate(i, preceding, preceding.length);
+			}
+		}
+
+		return block;
+	}
+
+	/**
+	 * Returns the first <code>length</code> neighbors of a model, keeping only
+	 * the first neighbor in every basin if the basins are known. The basins
+	 * are found without modifying the sets, which may be merged concurrently
+	 * by the consumer, and the basins seen are kept in a set of the thread
+	 * that is sized to the neighbors.
+	 */
+	private int[] deduplicate(int i, int[] neighbors, int length)
+	{
+		if(_basins == null) {
+			return (length == neighbors.length ?
+					neighbors : Arrays.copyOf(neighbors, length));
+		}
+
+		final IntSet seenBasins = _seenBasins.get();
+		seenBasins.clear(length);
+		int nKept = 0;
+
+		for(int k = 0; k < length; k++) {
+			final int root = _basins.findWithoutCompression(neighbors[k]);
+
+			if(seenBasins.add(root)) {
+				neighbors[nKept++] = neighbors[k];
+			}
+		}
+
+		return Arrays.copyOf(neighbors, nKept);
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.barriers.neighborhood;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.collections.primitives.ArrayIntList;
+import org.apache.commons.collections.primitives.IntList;
+import org.junit.Test;
+
+import com.martinkampjensen.thesis.model.Model;
+import com.martinkampjensen.thesis.util.DisjointSet;
+
+/**
+ * This class defines tests of the {@link NeighborPipeline} class.
+ */
+public final class NeighborPipelineTest
+{
+	private static final double[] MAX_DISTANCES = { 0d, 0.4, 1.2 };
+
+	@Test
+	public void testNext()
+	{
+		// With 2 angles, a cell list is used for the smaller distances.
+		testNext(AbstractNeighborhoodTest.createModels(1500, 2));
+		testNext(AbstractNeighborhoodTest.createModels(1500, 4));
+	}
+
+	@Test
+	public void testNextWithBasins()
+	{
+		testNextWithBasins(AbstractNeighborhoodTest.createModels(1500, 2));
+		testNextWithBasins(AbstractNeighborhoodTest.createModels(1500, 4));
+	}
+
+	/**
+	 * Merges the basins as the flooding algorithm does and checks that the
+	 * distinct basins of the deduplicated neighbors are the distinct basins of
+	 * all preceding neighbors, in the same order.
+	 */
+	private static void testNextWithBasins(List<Model> models)
+	{
+		final Neighborhood neighborhood = new AngleDifferenceNeighborhood();
+		final int nModels = models.size();
+
+		for(double maxDistance : MAX_DISTANCES) {
+			final int[][] expected = AbstractNeighborhoodTest
+			.calculateAllPairs(models, neighborhood, maxDistance);
+
+			for(int nThreads = 1; nThreads <= 3; nThreads += 2) {
+				final DisjointSet basins = new DisjointSet(nModels);
+				final NeighborPipeline pipeline = new NeighborPipeline(models,
+						neighborhood, maxDistance, basins, nThreads);
+
+				try {
+					for(int i = 0; i < nModels; i++) {
+						final IntList expectedRoots =
+							distinctRoots(basins, expected[i], i);
+						final IntList actualRoots =
+							distinctRoots(basins, pipeline.next(), i);
+
+						assertEquals(expectedRoots, actualRoots);
+
+						for(int k = 0; k < actualRoots.size(); k++) {
+							basins.union(actualRoots.get(k), i);
+						}
+					}
+				}
+				finally {
+					pipeline.close();
+				}
+			}
+		}
+	}
+
+	private static IntList distinctRoots(DisjointSet basins, int[] neighbors,
+			int i)
+	{
+		final IntList roots = new ArrayIntList();
+
+		for(int k = 0; k < neighbors.length && neighbors[k] < i; k++) {
+			final int root = basins.find(neighbors[k]);
+			if(!roots.contains(root)) roots.add(root);
+		}
+
+		return roots;
+	}
+
+	private static void testNext(List<Model> models)
+	{
+		final Neighborhood neighborhood = new AngleDifferenceNeighborhood();
+
+		for(double maxDistance : MAX_DISTANCES) {
+			final int[][] expected = AbstractNeighborhoodTest
+			.calculateAllPairs(models, neighborhood, maxDistance);
+
+			for(int nThreads = 1; nThreads <= 3; nThreads += 2) {
+				final NeighborPipeline pipeline = new NeighborPipeline(models,
+						neighborhood, maxDistance, nThreads);
+				long nEntries = 0;
+
+				try {
+					for(int i = 0; i < models.size(); i++) {
+						int last = 0;
+						while(last < expected[i].length
+								&& expected[i][last] < i) last++;
+
+						final int[] preceding = pipeline.next();
+						assertArrayEquals(Arrays.copyOf(expected[i], last),
+								preceding);
+						nEntries += preceding.length;
+					}
+
+					assertFalse(pipeline.hasNext());
+					assertEquals(nEntries, pipeline.getNumberOfEntries());
+				}
+				finally {
+					pipeline.close();
+				}
+			}
+		}
+	}
+}
@@ -72,7 +72,31 @@ public interface Neighborhood
 	boolean isNeighbors(Model first, Model second, double maxDistance);
 
 	/**
-	 * Calculates and returns the neighbors for a list of models.
+	 * Calculates and returns an upper bound on the difference of any single
+	 * angle between two neighbors, as per
+	 * {@link com.martinkampjensen.thesis.util.Util#angleDifference(double, double)}.
+	 * 
+	 * @param model a model that has the same size as the neighbors.
+	 * @param maxDistance the maximum distance between two models for them to
+	 *        be neighbors.
+	 * @return the upper bound, which is at most <code>PI</code>.
+	 */
+	double maximumAngleDifference(Model model, double maxDistance);
+
+	/**
+	 * Returns whether the distance defined by this neighborhood is a metric,
+	 * that is, whether it is symmetric and satisfies the triangle inequality.
+	 * Only metric neighborhoods can be used with a {@link NeighborIndex} that
+	 * relies on the triangle inequality.
+	 * 
+	 * @return <code>true</code> if and only if the distance is a metric.
+	 */
+	boolean isMetric();
+
+	/**
+	 * Calculates and returns the neighbors for a list of models. A graph that
+	 * is too large for the heap is backed by a file, and should be closed
+	 * once it has been used.
 	 * 
 	 * @param models the models.
 	 * @param maxDistance the maximum distance between the two models for them
@@ -80,6 +104,6 @@ public interface Neighborhood
 	 * @param allowDebugPrints whether or not debug prints are allowed.
 	 * @return the neighbors.
 	 */
-	int[][] calculateNeighbors(List<Model> models, double maxDistance,
+	NeighborGraph calculateNeighbors(List<Model> models, double maxDistance,
 			boolean allowDebugPrints);
 }
@@ -49,6 +49,32 @@ implements Serializable
 		return Constant.PI;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * As the distance is the root mean square of the angle differences, a
+	 * single angle can differ by at most
+	 * <code>sqrt(model.size()) * maxDistance</code>.
+	 */
+	@Override
+	public double maximumAngleDifference(Model model, double maxDistance)
+	{
+		return Math.min(Math.sqrt(model.size()) * maxDistance, Constant.PI);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation returns <code>true</code> because the angle
+	 * difference is a metric on the circle, and the root mean square of the
+	 * angle differences is therefore a metric on the torus.
+	 */
+	@Override
+	public boolean isMetric()
+	{
+		return true;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * <p>
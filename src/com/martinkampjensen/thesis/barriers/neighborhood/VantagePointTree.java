@@ -0,0 +1,238 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.barriers.neighborhood;
+
+import java.util.List;
+
+import org.apache.commons.collections.primitives.IntList;
+
+import com.martinkampjensen.thesis.Constant;
+import com.martinkampjensen.thesis.model.Model;
+
+/**
+ * An implementation of the {@link NeighborIndex} interface using a vantage
+ * point tree. The tree requires the neighborhood to be a metric, as it uses
+ * the triangle inequality to avoid comparing the target model of a query with
+ * most of the models in the tree.
+ * <p>
+ * The tree is stored implicitly in an array of model ids. A subtree occupying
+ * the range <code>[lo; hi)</code> has its vantage point at <code>lo</code>,
+ * the models no farther from the vantage point than the median distance in
+ * <code>[lo + 1; mid)</code>, and the models no closer than the median
+ * distance in <code>[mid; hi)</code>, where
+ * <code>mid = lo + 1 + (hi - lo - 1) / 2</code>. Small subtrees are leaves
+ * that are searched linearly.
+ * 
+ * @see <a href="http://en.wikipedia.org/wiki/Vantage-point_tree">Vantage-point tree</a>
+ */
+public final class VantagePointTree implements NeighborIndex
+{
+	private static final int LEAF_SIZE = 16;
+
+	/**
+	 * The size of the stacks used when traversing the tree. Every subtree is
+	 * at most half the size of its parent, so the tree has at most 32 levels,
+	 * and a depth-first traversal never keeps more than two ranges per level.
+	 */
+	private static final int STACK_SIZE = 2 * 2 * 32;
+
+	/**
+	 * The slack added to the bounds derived from the triangle inequality, so
+	 * that rounding errors in the distance calculations never exclude a
+	 * neighbor.
+	 */
+	private static final double SLACK = Constant.DOUBLE_PRECISION;
+
+	private final List<Model> _models;
+	private final Neighborhood _neighborhood;
+	private final int[] _ids;
+	private final double[] _medians;
+
+	/**
+	 * Builds a vantage point tree over a list of models.
+	 * 
+	 * @param models the models.
+	 * @param neighborhood the neighborhood to use.
+	 * @throws NullPointerException if <code>models == null</code> or if
+	 *         <code>neighborhood == null</code>.
+	 * @throws IllegalArgumentException if <code>neighborhood</code> is not a
+	 *         metric.
+	 */
+	public VantagePointTree(List<Model> models, Neighborhood neighborhood)
+	{
+		if(models == null) {
+			throw new NullPointerException("models == null");
+		}
+		else if(neighborhood == null) {
+			throw new NullPointerException("neighborhood == null");
+		}
+		else if(!neighborhood.isMetric()) {
+			throw new IllegalArgumentException("neighborhood is not a metric");
+		}
+
+		final int nModels = models.size();
+		_models = models;
+		_neighborhood = neighborhood;
+		_ids = new int[nModels];
+		_medians = new double[nModels];
+
+		for(int i = 0; i < nModels; i++) {
+			_ids[i] = i;
+		}
+
+		build();
+	}
+
+	@Override
+	public int size()
+	{
+		return _ids.length;
+	}
+
+	@Override
+	public void query(Model target, double maxDistance, IntList ids)
+	{
+		final int[] stack = new int[STACK_SIZE];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = _ids.length;
+
+		while(top > 0) {
+			final int hi = stack[--top];
+			final int lo = stack[--top];
+
+			if(hi - lo <= LEAF_SIZE) {
+				for(int k = lo; k < hi; k++) {
+					final int id = _ids[k];
+
+					if(_neighborhood.distance(target, _models.get(id))
+							<= maxDistance) {
+						ids.add(id);
+					}
+				}
+
+				continue;
+			}
+
+			final int vantagePoint = _ids[lo];
+			final double distance =
+				_neighborhood.distance(target, _models.get(vantagePoint));
+			final double median = _medians[lo];
+			final int mid = lo + 1 + (hi - lo - 1) / 2;
+
+			if(distance <= maxDistance) {
+				ids.add(vantagePoint);
+			}
+
+			if(distance - maxDistance <= median + SLACK) {
+				stack[top++] = lo + 1;
+				stack[top++] = mid;
+			}
+
+			if(distance + maxDistance >= median - SLACK) {
+				stack[top++] = mid;
+				stack[top++] = hi;
+			}
+		}
+	}
+
+	private void build()
+	{
+		final int nModels = _ids.length;
+		final double[] distances = new double[nModels];
+		final int[] stack = new int[STACK_SIZE];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = nModels;
+
+		while(top > 0) {
+			final int hi = stack[--top];
+			final int lo = stack[--top];
+
+			if(hi - lo <= LEAF_SIZE) {
+				continue;
+			}
+
+			// Using the middle model as vantage point avoids degenerate trees
+			// when the models are ordered, e.g. by time in a trajectory.
+			swap(_ids, distances, lo, lo + (hi - lo) / 2);
+			final Model vantagePoint = _models.get(_ids[lo]);
+
+			for(int k = lo + 1; k < hi; k++) {
+				distances[k] =
+					_neighborhood.distance(vantagePoint, _models.get(_ids[k]));
+			}
+
+			final int mid = lo + 1 + (hi - lo - 1) / 2;
+			select(_ids, distances, lo + 1, hi - 1, mid);
+			_medians[lo] = distances[mid];
+
+			stack[top++] = lo + 1;
+			stack[top++] = mid;
+			stack[top++] = mid;
+			stack[top++] = hi;
+		}
+	}
+
+	/**
+	 * Partially sorts <code>[lo; hi]</code> so that the element at
+	 * <code>k</code> is the one that would be there if the range was sorted by
+	 * distance, no element before it is farther, and no element after it is
+	 * closer.
+	 */
+	private static void select(int[] ids, double[] distances, int lo, int hi,
+			int k)
+	{
+		while(lo < hi) {
+			final double pivot = distances[lo + (hi - lo) / 2];
+			int i = lo;
+			int j = hi;
+
+			while(i <= j) {
+				while(distances[i] < pivot) i++;
+				while(distances[j] > pivot) j--;
+
+				if(i <= j) {
+					swap(ids, distances, i, j);
+					i++;
+					j--;
+				}
+			}
+
+			if(k <= j) {
+				hi = j;
+			}
+			else if(k >= i) {
+				lo = i;
+			}
+			else {
+				break;
+			}
+		}
+	}
+
+	private static void swap(int[] ids, double[] distances, int i, int j)
+	{
+		final int id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+
+		final double distance = distances[i];
+		distances[i] = distances[j];
+		distances[j] = distance;
+	}
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.barriers.neighborhood;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.collections.primitives.ArrayIntList;
+import org.apache.commons.collections.primitives.IntList;
+import org.junit.Test;
+
+import com.martinkampjensen.thesis.model.Model;
+
+/**
+ * This class defines tests of the {@link VantagePointTree} class.
+ */
+public final class VantagePointTreeTest
+{
+	@Test
+	public void testQuery()
+	{
+		final List<Model> models = AbstractNeighborhoodTest.createModels(700, 3);
+		final Neighborhood neighborhood = new RmsdAngleDifferenceNeighborhood();
+		final NeighborIndex index = new VantagePointTree(models, neighborhood);
+		final double[] maxDistances = { 0d, 0.1, 0.8, 2.5 };
+
+		assertEquals(models.size(), index.size());
+
+		for(double maxDistance : maxDistances) {
+			for(int i = 0; i < models.size(); i += 7) {
+				final Model target = models.get(i);
+				final IntList expected = new ArrayIntList();
+				final IntList actual = new ArrayIntList();
+
+				for(int j = 0; j < models.size(); j++) {
+					if(neighborhood.distance(target, models.get(j))
+							<= maxDistance) {
+						expected.add(j);
+					}
+				}
+
+				index.query(target, maxDistance, actual);
+				final int[] sorted = actual.toArray();
+				Arrays.sort(sorted);
+
+				assertArrayEquals(expected.toArray(), sorted);
+			}
+		}
+	}
+}
@@ -28,6 +28,9 @@ public enum Action
 	@XmlEnumValue("analyze")
 	ANALYZE("analyze"),
 
+	@XmlEnumValue("barriers")
+	BARRIERS("barriers"),
+
 	@XmlEnumValue("evaluate")
 	EVALUATE("evaluate"),
 
@@ -16,12 +16,18 @@
 
 package com.martinkampjensen.thesis.job;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlElementWrapper;
 import javax.xml.bind.annotation.XmlType;
 
 import com.martinkampjensen.thesis.barriers.Constructor;
 import com.martinkampjensen.thesis.barriers.coloring.Colorer;
 import com.martinkampjensen.thesis.barriers.structuring.Structurer;
+import com.martinkampjensen.thesis.util.FileHandler;
 import com.martinkampjensen.thesis.util.Util;
 
 /**
@@ -49,6 +55,39 @@ public final class Barriers extends Group
 	@XmlElement(defaultValue = DEFAULT_COLORER)
 	private String colorer = DEFAULT_COLORER;
 
+	@XmlElementWrapper(name = "trajectories")
+	@XmlElement(name = "file")
+	private List<String> trajectories = new ArrayList<String>();
+
+	@XmlElementWrapper(name = "energies")
+	@XmlElement(name = "file")
+	private List<String> energies = new ArrayList<String>();
+
+	private static final double DEFAULT_PRUNING = 0d;
+	@XmlElement(defaultValue = ""+DEFAULT_PRUNING)
+	private double pruning = DEFAULT_PRUNING;
+
+	private static final double DEFAULT_NEIGHBOR = -1d;
+	@XmlElement(defaultValue = ""+DEFAULT_NEIGHBOR)
+	private double neighbor = DEFAULT_NEIGHBOR;
+
+	@XmlElement
+	private String checkpoint = null;
+
+	private static final boolean DEFAULT_RESUME = false;
+	@XmlElement(defaultValue = ""+DEFAULT_RESUME)
+	private boolean resume = DEFAULT_RESUME;
+
+	private static final boolean DEFAULT_INDEX = false;
+	@XmlElement(defaultValue = ""+DEFAULT_INDEX)
+	private boolean index = DEFAULT_INDEX;
+
+	@XmlElement
+	private String postscript = null;
+
+	@XmlElement
+	private String structure = null;
+
 	Barriers()
 	{
 		super();
@@ -77,6 +116,84 @@ public final class Barriers extends Group
 		return Util.instantiate(colorer);
 	}
 
+	/**
+	 * Returns the trajectories to construct a barrier forest from. Every
+	 * element may be a list of files or glob patterns as per
+	 * {@link FileHandler#expand(String)}.
+	 * 
+	 * @return the trajectories in the order they are specified, which is
+	 *         empty if no trajectories are specified.
+	 */
+	public List<File> trajectories()
+	{
+		return expand(trajectories);
+	}
+
+	/**
+	 * Returns the energy files of the trajectories, as
+	 * {@link #trajectories()}.
+	 * 
+	 * @return the energy files in the order they are specified.
+	 */
+	public List<File> energies()
+	{
+		return expand(energies);
+	}
+
+	public double pruning()
+	{
+		return pruning;
+	}
+
+	public double neighbor()
+	{
+		return neighbor;
+	}
+
+	/**
+	 * Returns the directory to persist the stages of a construction from
+	 * trajectories to.
+	 * 
+	 * @return the checkpoint directory, or <code>null</code> if none is
+	 *         specified.
+	 */
+	public File checkpoint()
+	{
+		return (checkpoint == null ? null : new File(checkpoint));
+	}
+
+	/**
+	 * Returns whether or not to resume a construction from trajectories from
+	 * the checkpoint directory.
+	 * 
+	 * @return <code>true</code> if and only if the construction is resumed.
+	 */
+	public boolean resume()
+	{
+		return resume;
+	}
+
+	/**
+	 * Returns whether or not to save the frame indexes of the trajectories as
+	 * sidecar files next to the trajectories.
+	 * 
+	 * @return <code>true</code> if and only if the frame indexes are saved.
+	 */
+	public boolean index()
+	{
+		return index;
+	}
+
+	public File postscript()
+	{
+		return (postscript == null ? null : new File(postscript));
+	}
+
+	public File structure()
+	{
+		return (structure == null ? null : new File(structure));
+	}
+
 	@Override
 	protected void toString(StringBuilder sb)
 	{
@@ -84,5 +201,31 @@ public final class Barriers extends Group
 		add(sb, "threshold", threshold, DEFAULT_THRESHOLD);
 		add(sb, "structurer", structurer, DEFAULT_STRUCTURER);
 		add(sb, "colorer", colorer, DEFAULT_COLORER);
+		for(String trajectory : trajectories) {
+			add(sb, "trajectory", trajectory);
+		}
+		for(String energy : energies) {
+			add(sb, "energy", energy);
+		}
+		add(sb, "pruning", pruning, DEFAULT_PRUNING);
+		add(sb, "neighbor", neighbor, DEFAULT_NEIGHBOR);
+		if(checkpoint != null) add(sb, "checkpoint", checkpoint);
+		add(sb, "resume", Boolean.toString(resume),
+				Boolean.toString(DEFAULT_RESUME));
+		add(sb, "index", Boolean.toString(index),
+				Boolean.toString(DEFAULT_INDEX));
+		if(postscript != null) add(sb, "postscript", postscript);
+		if(structure != null) add(sb, "structure", structure);
+	}
+
+	private static List<File> expand(List<String> patterns)
+	{
+		final List<File> files = new ArrayList<File>();
+
+		for(String pattern : patterns) {
+			files.addAll(FileHandler.expand(pattern));
+		}
+
+		return files;
 	}
 }
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.martinkampjensen.thesis.job;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+
+import org.junit.Test;
+
+/**
+ * This class defines tests for the {@link Job} class.
+ */
+public final class JobTest
+{
+	private static final File JOBS = new File("jobs");
+
+	/**
+	 * Every job file shipped in the jobs directory is valid according to the
+	 * schema, and options that are left out get their default values.
+	 */
+	@Test
+	public void testParseShippedJobs() throws Exception
+	{
+		final File[] files = JOBS.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name)
+			{
+				return name.endsWith(".xml");
+			}
+		});
+
+		assertNotNull(files);
+		assertTrue(files.length > 0);
+
+		for(File file : files) {
+			final Job job = Job.parse(file);
+			assertNotNull(file.getName(), job.input());
+			assertNotNull(file.getName(), job.action());
+			assertEquals(file.getName(), 1, job.options().threads());
+		}
+	}
+}
@@ -29,6 +29,10 @@ public final class Options extends Group
 	@XmlElement(defaultValue = ""+DEFAULT_SEED)
 	private long seed = DEFAULT_SEED;
 
+	private static final int DEFAULT_THREADS = 1;
+	@XmlElement(defaultValue = ""+DEFAULT_THREADS)
+	private int threads = DEFAULT_THREADS;
+
 	@XmlElement
 	private Analysis analysis = new Analysis();
 
@@ -57,6 +61,11 @@ public final class Options extends Group
 		return seed;
 	}
 
+	public int threads()
+	{
+		return threads;
+	}
+
 	public Analysis analysis()
 	{
 		return analysis;
@@ -91,6 +100,7 @@ public final class Options extends Group
 	protected void toString(StringBuilder sb)
 	{
 		add(sb, "seed", seed, DEFAULT_SEED);
+		add(sb, "threads", threads, DEFAULT_THREADS);
 		analysis.toString(sb);
 		barriers.toString(sb);
 		connection.toString(sb);
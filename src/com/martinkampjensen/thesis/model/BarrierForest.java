@@ -111,4 +111,47 @@ public interface BarrierForest extends Serializable
 	 *         same tree in this forest.
 	 */
 	List<Model> findConnectingModels(int fromId, int toId);
+
+	/**
+	 * Returns the lowest common ancestor of two nodes, that is, the barrier
+	 * separating them. If one node is an ancestor of the other, the ancestor
+	 * is returned.
+	 * 
+	 * @param firstId id of the first node.
+	 * @param secondId id of the second node.
+	 * @return the lowest common ancestor, or <code>null</code> if the nodes
+	 *         are in different trees in this forest.
+	 * @throws IllegalArgumentException if <code>firstId</code> or
+	 *         <code>secondId</code> does not exist in this forest.
+	 */
+	Node lowestCommonAncestor(int firstId, int secondId);
+
+	/**
+	 * Returns the value of the barrier separating two nodes, that is, the
+	 * value of their lowest common ancestor.
+	 * 
+	 * @param firstId id of the first node.
+	 * @param secondId id of the second node.
+	 * @return the barrier value, or {@link Double#POSITIVE_INFINITY} if the
+	 *         nodes are in different trees in this forest.
+	 * @throws IllegalArgumentException if <code>firstId</code> or
+	 *         <code>secondId</code> does not exist in this forest.
+	 * @see #lowestCommonAncestor(int, int)
+	 */
+	double barrierBetween(int firstId, int secondId);
+
+	/**
+	 * Calculates the values of the barriers separating every pair of a number
+	 * of nodes, e.g. the minima of this forest, using
+	 * {@link com.martinkampjensen.thesis.util.Parallel#getThreads()} threads.
+	 * 
+	 * @param ids ids of the nodes.
+	 * @return a symmetric matrix where the element in row <code>i</code> and
+	 *         column <code>j</code> is
+	 *         <code>barrierBetween(ids[i], ids[j])</code>.
+	 * @throws IllegalArgumentException if an element of <code>ids</code>
+	 *         does not exist in this forest.
+	 * @see #barrierBetween(int, int)
+	 */
+	double[][] calculateBarrierMatrix(int[] ids);
 }
@@ -22,17 +22,24 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
 
+import org.apache.commons.collections.primitives.ArrayIntList;
+import org.apache.commons.collections.primitives.IntList;
+
+import com.martinkampjensen.thesis.barriers.neighborhood.MappedNeighborGraph;
+import com.martinkampjensen.thesis.barriers.neighborhood.NeighborGraph;
 import com.martinkampjensen.thesis.barriers.neighborhood.Neighborhood;
 import com.martinkampjensen.thesis.model.BarrierForest;
 import com.martinkampjensen.thesis.model.BarrierTree;
 import com.martinkampjensen.thesis.model.Model;
 import com.martinkampjensen.thesis.model.Node;
+import com.martinkampjensen.thesis.util.AncestorIndex;
 import com.martinkampjensen.thesis.util.Debug;
+import com.martinkampjensen.thesis.util.IdIndex;
+import com.martinkampjensen.thesis.util.Parallel;
 import com.martinkampjensen.thesis.util.Util;
 
 /**
@@ -54,6 +61,10 @@ public final class BarrierForestImpl implements BarrierForest
 	private Node _maxBarrier;
 	private double _totalBarrierValue;
 	private double _totalConnectionValue;
+	private IdIndex _index;
+	private Node[] _indexedNodes;
+	private int[] _indexedTrees;
+	private AncestorIndex _ancestors;
 
 	/**
 	 * Constructs a new {@link BarrierForest} with the given {@link BarrierTree}
@@ -138,6 +149,27 @@ public final class BarrierForestImpl implements BarrierForest
 		}
 
 		final int size = getNumberOfTrees();
+
+		// The measures of the trees are calculated together, so the parts of
+		// all trees are calculated in parallel.
+		final List<BarrierTreeImpl> pending = new ArrayList<BarrierTreeImpl>();
+		for(int i = 0; i < size; i++) {
+			if(_trees[i] instanceof BarrierTreeImpl
+					&& !((BarrierTreeImpl)_trees[i]).hasMeasures()) {
+				pending.add((BarrierTreeImpl)_trees[i]);
+			}
+		}
+
+		final Node[] roots = new Node[pending.size()];
+		for(int i = 0; i < roots.length; i++) {
+			roots[i] = pending.get(i).getRoot();
+		}
+
+		final TreeMeasures[] measures = TreeMeasures.calculate(roots);
+		for(int i = 0; i < roots.length; i++) {
+			pending.get(i).setMeasures(measures[i]);
+		}
+
 		final BarrierTree firstTree = _trees[0];
 
 		_leaves = firstTree.getNumberOfLeaves();
@@ -178,6 +210,22 @@ public final class BarrierForestImpl implements BarrierForest
 
 		_totalConnectionValue = 0d;
 
+		// The total connection values of the trees are calculated together,
+		// so the parts of all trees are traversed in parallel.
+		final List<TreeMeasures> connectionMeasures =
+			new ArrayList<TreeMeasures>();
+		for(int i = 0; i < size; i++) {
+			if(_trees[i] instanceof BarrierTreeImpl) {
+				connectionMeasures.add(
+						((BarrierTreeImpl)_trees[i]).getMeasures());
+			}
+		}
+
+		TreeMeasures.calculateConnectionValues(
+				connectionMeasures.toArray(
+						new TreeMeasures[connectionMeasures.size()]),
+				getMinimumValue());
+
 		for(int i = 0; i < size; i++) {
 			final BarrierTree tree = _trees[i];
 
@@ -295,30 +343,28 @@ public final class BarrierForestImpl implements BarrierForest
 		return _trees[id];
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The first call creates an index from ids to nodes in a single traversal
+	 * of every tree, so the following calls take constant time. The index is
+	 * serialized with the forest. As for the measures, the trees must not be
+	 * modified after the index has been created.
+	 */
 	@Override
 	public Node find(int id)
 	{
-		final int nTrees = getNumberOfTrees();
-
-		for(int i = 0; i < nTrees; i++) {
-			final Node node = _trees[i].find(id);
-
-			if(node != null) {
-				return node;
-			}
-		}
-
-		return null;
+		final int position = findPosition(id);
+		return (position == -1 ? null : _indexedNodes[position]);
 	}
 
 	/**
 	 * {@inheritDoc}
 	 * <p>
-	 * This implementation traverses all trees in the forest to find the tree
-	 * that contains the two nodes. Then the path from the root of the tree to
-	 * both nodes are found. This means that the barrier separating the two
-	 * nodes can then be found. Finally, the models (and additional models) on
-	 * the path is found and returned.
+	 * This implementation finds the two nodes and the trees that contain them
+	 * using the index of {@link #find(int)}. The barrier separating the two
+	 * nodes is then found as their lowest common ancestor. Finally, the models
+	 * (and additional models) on the path is found and returned.
 	 * 
 	 * @throws IllegalArgumentException {@inheritDoc}
 	 */
@@ -329,135 +375,266 @@ public final class BarrierForestImpl implements BarrierForest
 			throw new IllegalArgumentException("fromId == toId");
 		}
 
-		final int nTrees = getNumberOfTrees();
-		Node fromNode = null;
-		Node toNode = null;
-
-		for(int i = 0; i < nTrees; i++) {
-			final BarrierTree tree = _trees[i];
-			fromNode = tree.find(fromId);
-
-			if(fromNode != null) {
-				toNode = tree.find(toId);
-				break;
-			}
-		}
+		final int from = findPosition(fromId);
+		final int to = findPosition(toId);
 
-		if(fromNode == null || toNode == null) {
+		if(from == -1 || to == -1 || _indexedTrees[from] != _indexedTrees[to]) {
 			throw new IllegalArgumentException(
 			"fromId and toId not found in the same BarrierTree");
 		}
 
-		final List<Model> models = shortestPath(fromNode, toNode);
+		final Node splitNode =
+			_indexedNodes[_ancestors.lowestCommonAncestor(from, to)];
+		final List<Model> models = shortestPath(_indexedNodes[from],
+				_indexedNodes[to], splitNode, _neighborhood,
+				_neighborTreshold);
 		Debug.line("Conformations in trajectory: %d", models.size());
 
 		return models;
 	}
 
 	/**
-	 * Finds and returns the splitting node, that is, the lowest node that the
-	 * paths from the root to <code>from</code> and <code>to</code>,
-	 * respectively, share.
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation takes constant time using the index of
+	 * {@link #find(int)}.
 	 * 
-	 * @param from the first node.
-	 * @param to the second node.
-	 * @return the splitting node.
+	 * @throws IllegalArgumentException {@inheritDoc}
 	 */
-	private static Node findSplitNode(Node from, Node to)
+	@Override
+	public Node lowestCommonAncestor(int firstId, int secondId)
+	{
+		final int position = findAncestorPosition(
+				findExistingPosition(firstId), findExistingPosition(secondId));
+		return (position == -1 ? null : _indexedNodes[position]);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation takes constant time using the index of
+	 * {@link #find(int)}.
+	 * 
+	 * @throws IllegalArgumentException {@inheritDoc}
+	 */
+	@Override
+	public double barrierBetween(int firstId, int secondId)
+	{
+		final Node ancestor = lowestCommonAncestor(firstId, secondId);
+		return (ancestor == null ?
+				Double.POSITIVE_INFINITY : ancestor.getValue());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation divides the rows of the matrix between the threads.
+	 * Every barrier takes constant time to find using the index of
+	 * {@link #find(int)}.
+	 * 
+	 * @throws IllegalArgumentException {@inheritDoc}
+	 */
+	@Override
+	public double[][] calculateBarrierMatrix(int[] ids)
 	{
-		final List<Node> fromNodes = fromRootToNode(from);
-		final List<Node> toNodes = fromRootToNode(to);
-		List<Node> shortestList;
-		Node splitNode;
+		final int n = ids.length;
+		final int[] positions = new int[n];
+		final double[][] matrix = new double[n][n];
 
-		if(fromNodes.size() < toNodes.size()) {
-			shortestList = fromNodes;
+		for(int i = 0; i < n; i++) {
+			positions[i] = findExistingPosition(ids[i]);
 		}
-		else {
-			shortestList = toNodes;
+
+		// Row i has i + 1 elements to calculate, so every part takes every
+		// nParts-th row to get the same amount of work.
+		final int nParts = Math.max(1, Math.min(Parallel.getThreads(), n));
+		final List<Callable<Void>> parts =
+			new ArrayList<Callable<Void>>(nParts);
+
+		for(int t = 0; t < nParts; t++) {
+			final int first = t;
+
+			parts.add(new Callable<Void>() {
+				@Override
+				public Void call()
+				{
+					for(int i = first; i < n; i += nParts) {
+						for(int j = 0; j <= i; j++) {
+							final int position = findAncestorPosition(
+									positions[i], positions[j]);
+							final double barrier = (position == -1 ?
+									Double.POSITIVE_INFINITY :
+										_indexedNodes[position].getValue());
+							matrix[i][j] = barrier;
+							matrix[j][i] = barrier;
+						}
+					}
+
+					return null;
+				}
+			});
 		}
 
-		for(int depth = 0, smallestSize = shortestList.size();; depth++) {
-			if(depth == smallestSize) {
-				// from and to nodes are on the same path, i.e., one of them or
-				// both is a barrier.
-				splitNode = shortestList.get(smallestSize - 1);
-				break;
-			}
-			else if(fromNodes.get(depth) != toNodes.get(depth)) {
-				splitNode = fromNodes.get(depth - 1);
-				break;
-			}
+		Parallel.invokeAll(parts, nParts);
+
+		return matrix;
+	}
+
+	/**
+	 * Returns the position of the node with an id in the index, which is
+	 * created the first time it is needed, or <code>-1</code> if there is no
+	 * such node.
+	 */
+	private int findPosition(int id)
+	{
+		if(_index == null) {
+			createIndex();
 		}
 
-		return splitNode;
+		return _index.find(id);
 	}
 
 	/**
-	 * Returns a list of nodes from the root node to a specific node, inclusive.
-	 * 
-	 * @param node the specific node.
-	 * @return the list of nodes.
-	 * @throws NullPointerException if <code>node == null</code>. 
+	 * As {@link #findPosition(int)}, but throws an
+	 * {@link IllegalArgumentException} if there is no node with the id.
 	 */
-	private static List<Node> fromRootToNode(Node node)
+	private int findExistingPosition(int id)
 	{
-		if(node == null) {
-			throw new NullPointerException("node == null");
+		final int position = findPosition(id);
+
+		if(position == -1) {
+			throw new IllegalArgumentException(id + " not found");
 		}
 
-		final List<Node> nodes = new ArrayList<Node>();
+		return position;
+	}
+
+	/**
+	 * Returns the position of the lowest common ancestor of the nodes at two
+	 * positions, or <code>-1</code> if they are in different trees.
+	 */
+	private int findAncestorPosition(int first, int second)
+	{
+		if(_indexedTrees[first] != _indexedTrees[second]) {
+			return -1;
+		}
 
-		do {
-			nodes.add(node);
-			node = node.getParent();
-		} while(node != null);
+		return _ancestors.lowestCommonAncestor(first, second);
+	}
 
-		Collections.reverse(nodes);
+	/**
+	 * Creates the index of the nodes in a single pre-order traversal of every
+	 * tree, without recursion. Besides the ids, the tree, parent and depth of
+	 * every node are recorded, so lowest common ancestors can be found in
+	 * constant time using an {@link AncestorIndex}.
+	 */
+	private void createIndex()
+	{
+		final List<Node> nodes = new ArrayList<Node>();
+		final IntList trees = new ArrayIntList();
+		final IntList parents = new ArrayIntList();
+		final IntList depths = new ArrayIntList();
+		final Deque<Node> stack = new ArrayDeque<Node>();
+		final IntList stackParents = new ArrayIntList();
+		final int nTrees = getNumberOfTrees();
+
+		for(int t = 0; t < nTrees; t++) {
+			stack.addFirst(_trees[t].getRoot());
+			stackParents.add(-1);
+
+			while(!stack.isEmpty()) {
+				final Node node = stack.removeFirst();
+				final int parent =
+					stackParents.removeElementAt(stackParents.size() - 1);
+				final int position = nodes.size();
+
+				nodes.add(node);
+				trees.add(t);
+				parents.add(parent);
+				depths.add(parent == -1 ? 0 : depths.get(parent) + 1);
+
+				if(node.isInternal()) {
+					stack.addFirst(node.getRight());
+					stackParents.add(position);
+					stack.addFirst(node.getLeft());
+					stackParents.add(position);
+				}
+			}
+		}
 
-		return nodes;
+		_indexedNodes = nodes.toArray(new Node[nodes.size()]);
+		_indexedTrees = trees.toArray();
+		_ancestors = new AncestorIndex(parents.toArray(), depths.toArray());
+		_index = new IdIndex(BarrierTreeImpl.ids(_indexedNodes));
 	}
 
 	/**
-	 * Finds and returns a list of all nodes in a tree rooted at
-	 * <code>root</code>.
+	 * Finds and returns the splitting node, that is, the lowest node that the
+	 * paths from the root to <code>from</code> and <code>to</code>,
+	 * respectively, share. The paths are followed using the parents of the
+	 * nodes, so no index is needed.
 	 * 
-	 * @param root the root.
-	 * @return all nodes in the tree.
+	 * @param from the first node.
+	 * @param to the second node.
+	 * @return the splitting node, or <code>null</code> if the nodes are in
+	 *         different trees.
 	 */
-	private static List<Node> findNodesInTree(Node root)
+	private static Node findSplitNode(Node from, Node to)
 	{
-		final Deque<Node> stack = new ArrayDeque<Node>();
-		final List<Node> nodes = new ArrayList<Node>();
-		stack.addFirst(root);
+		int fromDepth = depth(from);
+		int toDepth = depth(to);
 
-		while(!stack.isEmpty()) {
-			Node node = stack.removeFirst();
-			nodes.add(node);
+		for(; fromDepth > toDepth; fromDepth--) from = from.getParent();
+		for(; toDepth > fromDepth; toDepth--) to = to.getParent();
 
-			if(node.isInternal()) {
-				stack.addFirst(node.getRight());
-				stack.addFirst(node.getLeft());
-			}
+		while(from != to) {
+			from = from.getParent();
+			to = to.getParent();
 		}
 
-		return nodes;
+		return from;
+	}
+
+	private static int depth(Node node)
+	{
+		int depth = 0;
+
+		for(Node parent = node.getParent(); parent != null;
+		parent = parent.getParent()) {
+			depth++;
+		}
+
+		return depth;
 	}
 
 	/**
 	 * Calculates and returns a list of models that is a shortest path between
 	 * <code>source</code> and <code>destination</code> by navigating between
-	 * models that are neighbors according to the neighborhood definition of
-	 * this forest.
+	 * models that are neighbors according to a neighborhood definition. Only
+	 * the subtree rooted at the splitting node of the two nodes is visited.
+	 * <p>
+	 * This is used by forests that find the nodes in their own way.
 	 * 
 	 * @param source the source node (model).
-	 * @param destination the destination node (model.
+	 * @param destination the destination node (model), which must be in the
+	 *        same tree as <code>source</code>.
+	 * @param neighborhood the neighborhood used to create the forest.
+	 * @param neighborThreshold the neighbor threshold used to create the
+	 *        forest.
 	 * @return the shortest path.
 	 */
-	private List<Model> shortestPath(Node source, Node destination)
+	public static List<Model> shortestPath(Node source, Node destination,
+			Neighborhood neighborhood, double neighborThreshold)
 	{
-		final Node splitNode = findSplitNode(source, destination);
-		final List<Node> nodes = findNodesInTree(splitNode);
+		return shortestPath(source, destination,
+				findSplitNode(source, destination), neighborhood,
+				neighborThreshold);
+	}
+
+	private static List<Model> shortestPath(Node source, Node destination,
+			Node splitNode, Neighborhood neighborhood, double neighborThreshold)
+	{
+		final List<Node> nodes = BarrierTreeImpl.findNodes(splitNode);
 		final List<Model> models = new ArrayList<Model>();
 		final Map<Model, Node> modelToNode = new HashMap<Model, Node>();
 
@@ -480,67 +657,72 @@ public final class BarrierForestImpl implements BarrierForest
 			}
 		}
 
-		// Create neighborhood structures.
+		// The models are identified by their locations in the list, which is
+		// how the neighbor graph identifies them. The rows of the graph are
+		// read as they are needed, so a graph backed by a file is not copied
+		// to the heap.
 		final int nModels = models.size();
-		final int hashMapCapacity = (int)Math.ceil(nModels / 0.75) + 1;
-		final int[][] neighborIds =
-			_neighborhood.calculateNeighbors(models, _neighborTreshold, true);
-		final Map<Model, Model[]> neighbors = new HashMap<Model, Model[]>(
-				hashMapCapacity);
+		final Model srcModel = source.getModel();
+		final Model dstModel = destination.getModel();
+		int src = -1;
+		int dst = -1;
 
 		for(int i = 0; i < nModels; i++) {
-			final int[] neighborIdsI = neighborIds[i];
-			final int nNeighbors = neighborIdsI.length;
-			final Model[] neighborsI = new Model[nNeighbors];
-
-			for(int j = 0; j < nNeighbors; j++) {
-				neighborsI[j] = models.get(neighborIdsI[j]);
-			}
-
-			neighbors.put(models.get(i), neighborsI);
+			final Model model = models.get(i);
+			if(model.equals(srcModel)) src = i;
+			if(model.equals(dstModel)) dst = i;
 		}
 
-		final ArrayDeque<Model> queue = new ArrayDeque<Model>();
-		final Set<Model> visited = new HashSet<Model>(hashMapCapacity);
-		final Map<Model, Model> previous = new HashMap<Model, Model>();
-		final Model srcModel = source.getModel();
-		final Model dstModel = destination.getModel();
+		final NeighborGraph neighbors =
+			neighborhood.calculateNeighbors(models, neighborThreshold, true);
+		final int[] previous = new int[nModels];
+		int current = -1;
 
-		queue.add(srcModel);
-		visited.add(srcModel);
-		Model current = null;
+		try {
+			final IntList queue = new ArrayIntList();
+			final boolean[] visited = new boolean[nModels];
+			Arrays.fill(previous, -1);
 
-		// Perform a variation of Dijkstra's algorithm. 
-		while(!queue.isEmpty()) {
-			current = queue.poll();
+			queue.add(src);
+			visited[src] = true;
 
-			if(current == dstModel) {
-				break;
-			}
+			// Perform a variation of Dijkstra's algorithm.
+			for(int head = 0; head < queue.size(); head++) {
+				current = queue.get(head);
 
-			final Model[] curNeighbors = neighbors.get(current);
+				if(current == dst) {
+					break;
+				}
 
-			for(int i = 0, n = curNeighbors.length; i < n; i++) {
-				final Model next = curNeighbors[i];
+				for(int k = 0, n = neighbors.getNumberOfNeighbors(current);
+				k < n; k++) {
+					final int next = neighbors.getNeighbor(current, k);
 
-				if(!visited.contains(next)) {
-					queue.add(next);
-					visited.add(next);
-					previous.put(next, current);
+					if(!visited[next]) {
+						queue.add(next);
+						visited[next] = true;
+						previous[next] = current;
+					}
 				}
 			}
 		}
+		finally {
+			// A graph that is too large for the heap is backed by a file.
+			if(neighbors instanceof MappedNeighborGraph) {
+				((MappedNeighborGraph)neighbors).close();
+			}
+		}
 
 		// Sanity check.
-		if(current != dstModel) {
+		if(current != dst) {
 			throw new IllegalStateException(
 					"Could not connect " + source.getId() + " and " + destination.getId());
 		}
 
 		// Create the shortest path using the previous pointers.
 		final List<Model> path = new ArrayList<Model>();
-		for(Model m = dstModel; m != null; m = previous.get(m)) {
-			path.add(m);
+		for(int i = dst; i != -1; i = previous[i]) {
+			path.add(models.get(i));
 		}
 		Collections.reverse(path);
 
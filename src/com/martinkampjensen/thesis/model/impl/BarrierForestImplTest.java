@@ -0,0 +1,251 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.model.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.martinkampjensen.thesis.model.BarrierForest;
+import com.martinkampjensen.thesis.model.BarrierTree;
+import com.martinkampjensen.thesis.model.Node;
+import com.martinkampjensen.thesis.util.Parallel;
+import com.martinkampjensen.thesis.util.Random;
+
+/**
+ * This class defines tests of the {@link BarrierForestImpl} class.
+ */
+public final class BarrierForestImplTest
+{
+	@Test
+	public void testLowestCommonAncestor()
+	{
+		final List<Node> nodes = new ArrayList<Node>();
+		final BarrierForest forest = createForest(3, 200, nodes);
+
+		for(int k = 0; k < 5000; k++) {
+			final Node first = nodes.get(Random.nextInt(nodes.size()));
+			final Node second = nodes.get(Random.nextInt(nodes.size()));
+			final Node expected = findAncestor(first, second);
+
+			assertTrue(expected == forest.lowestCommonAncestor(first.getId(),
+					second.getId()));
+			assertEquals(expected == null ? Double.POSITIVE_INFINITY :
+				expected.getValue(), forest.barrierBetween(first.getId(),
+						second.getId()), 0d);
+		}
+
+		assertTrue(nodes.get(0) == forest.find(nodes.get(0).getId()));
+		assertNull(forest.find(-1));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testLowestCommonAncestorNotFound()
+	{
+		final List<Node> nodes = new ArrayList<Node>();
+		createForest(1, 10, nodes).lowestCommonAncestor(0, -1);
+	}
+
+	@Test
+	public void testCalculateBarrierMatrix()
+	{
+		final List<Node> nodes = new ArrayList<Node>();
+		final BarrierForest forest = createForest(2, 100, nodes);
+		final int[] ids = new int[nodes.size()];
+
+		for(int i = 0; i < ids.length; i++) {
+			ids[i] = nodes.get(i).getId();
+		}
+
+		Parallel.setThreads(3);
+		final double[][] matrix;
+
+		try {
+			matrix = forest.calculateBarrierMatrix(ids);
+		}
+		finally {
+			Parallel.setThreads(1);
+		}
+
+		for(int i = 0; i < ids.length; i++) {
+			for(int j = 0; j < ids.length; j++) {
+				assertEquals(forest.barrierBetween(ids[i], ids[j]),
+						matrix[i][j], 0d);
+			}
+		}
+	}
+
+	@Test
+	public void testCalculateMeasures()
+	{
+		// The first tree is large enough to be divided into parts.
+		final List<Node> nodes = new ArrayList<Node>();
+		final int nLeaves = 2 * TreeMeasures.PART_LEAVES + 1;
+		final BarrierForest forest = createForest(2, nLeaves, nodes);
+
+		Parallel.setThreads(3);
+		try {
+			forest.calculateMeasures();
+		}
+		finally {
+			Parallel.setThreads(1);
+		}
+
+		// Node values are ids, which are unique.
+		double min = Double.POSITIVE_INFINITY;
+		double minBarrier = Double.POSITIVE_INFINITY;
+		double totalBarrierValue = 0d;
+		int leaves = 0;
+
+		for(Node node : nodes) {
+			if(node.isLeaf()) {
+				leaves++;
+				min = Math.min(min, node.getValue());
+			}
+			else {
+				minBarrier = Math.min(minBarrier, node.getValue());
+				totalBarrierValue += node.getValue();
+			}
+		}
+
+		// The total connection value is summed in the same order as by a
+		// recursive traversal of each tree.
+		double totalConnectionValue = 0d;
+		for(int t = 0; t < forest.getNumberOfTrees(); t++) {
+			totalConnectionValue +=
+				findTotalConnectionValue(forest.getTree(t).getRoot(), min);
+		}
+
+		assertEquals(leaves, forest.getNumberOfLeaves());
+		assertEquals(min, forest.getMinimumValue(), 0d);
+		assertEquals(minBarrier, forest.getMinimumBarrierValue(), 0d);
+		assertEquals(nodes.get(nodes.size() - 1).getValue(),
+				forest.getMaximumBarrierValue(), 0d);
+		assertEquals(totalBarrierValue, forest.getTotalBarrierValue(),
+				1e-12 * totalBarrierValue);
+		assertEquals(totalConnectionValue, forest.getTotalConnectionValue(),
+				0d);
+	}
+
+	@Test
+	public void testCalculateMeasuresDeepTree()
+	{
+		final int depth = 100000;
+		Node root = new NodeImpl(0, new ImmutableModel(0, 0d, new double[0]));
+
+		for(int i = 1; i < depth; i++) {
+			final Node leaf = new NodeImpl(2 * i - 1,
+					new ImmutableModel(2 * i - 1, i, new double[0]));
+			root = new NodeImpl(2 * i, new ImmutableModel(2 * i, depth + i,
+					new double[0]), root, leaf);
+		}
+
+		root.calculateWeight();
+		final BarrierTree tree = new BarrierTreeImpl(root, false);
+
+		assertEquals(depth, root.getWeight());
+		assertEquals(depth, tree.getNumberOfLeaves());
+		assertEquals(0d, tree.getMinimumValue(), 0d);
+		assertEquals(depth + 1d, tree.getMinimumBarrierValue(), 0d);
+	}
+
+	/**
+	 * Creates a forest of random trees by merging random subtrees, as the
+	 * flooding algorithm does, and adds all nodes to a list.
+	 */
+	private static BarrierForest createForest(int nTrees, int nLeaves,
+			List<Node> nodes)
+	{
+		final BarrierTree[] trees = new BarrierTree[nTrees];
+		int id = 0;
+
+		for(int t = 0; t < nTrees; t++) {
+			final List<Node> roots = new ArrayList<Node>();
+
+			for(int i = 0; i < nLeaves; i++) {
+				final Node leaf =
+					new NodeImpl(id, new ImmutableModel(id, id, new double[0]));
+				id++;
+				roots.add(leaf);
+				nodes.add(leaf);
+			}
+
+			while(roots.size() > 1) {
+				final Node left = roots.remove(Random.nextInt(roots.size()));
+				final Node right = roots.remove(Random.nextInt(roots.size()));
+				final Node node = new NodeImpl(id, new ImmutableModel(id, id,
+						new double[0]), left, right);
+				id++;
+				roots.add(node);
+				nodes.add(node);
+			}
+
+			trees[t] = new BarrierTreeImpl(roots.get(0), false);
+		}
+
+		return new BarrierForestImpl(trees, nodes.size(), -1d, -1d, null,
+				false);
+	}
+
+	private static double findTotalConnectionValue(Node root, double minValue)
+	{
+		if(root.isLeaf()) {
+			return 0d;
+		}
+
+		final Node left = root.getLeft();
+		final double leftConnectionValue =
+			findTotalConnectionValue(left, minValue);
+		final int leftWeight = left.getWeight();
+
+		final Node right = root.getRight();
+		final double rightConnectionValue =
+			findTotalConnectionValue(right, minValue);
+		final int rightWeight = right.getWeight();
+
+		final double rootConnectionValue =
+			(root.getValue() - minValue) * leftWeight * rightWeight;
+
+		return leftConnectionValue + rightConnectionValue
+		+ rootConnectionValue;
+	}
+
+	private static Node findAncestor(Node first, Node second)
+	{
+		final Map<Node, Boolean> ancestors =
+			new IdentityHashMap<Node, Boolean>();
+
+		for(Node node = first; node != null; node = node.getParent()) {
+			ancestors.put(node, Boolean.TRUE);
+		}
+
+		for(Node node = second; node != null; node = node.getParent()) {
+			if(ancestors.containsKey(node)) {
+				return node;
+			}
+		}
+
+		return null;
+	}
+}
@@ -17,13 +17,15 @@
 package com.martinkampjensen.thesis.model.impl;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.List;
 
 import com.martinkampjensen.thesis.model.BarrierForest;
 import com.martinkampjensen.thesis.model.BarrierTree;
 import com.martinkampjensen.thesis.model.Node;
 import com.martinkampjensen.thesis.util.Debug;
-import com.martinkampjensen.thesis.util.Util;
+import com.martinkampjensen.thesis.util.IdIndex;
 
 /**
  * TODO: Document {@link BarrierTreeImpl}.
@@ -33,13 +35,10 @@ public final class BarrierTreeImpl implements BarrierTree
 	private static final long serialVersionUID = 1195454365783421859L;
 	private final Node _root;
 	private final boolean _allowDebugPrints;
-	private boolean _measuresCalculated;
-	private int _leaves;
-	private Node _min;
-	private Node _minBarrier;
-	private Node _maxBarrier;
-	private double _totalBarrierValue;
-	private double _totalConnectionValue;
+	private TreeMeasures _measures;
+	private double _connectionMinValue;
+	private IdIndex _index;
+	private Node[] _indexedNodes;
 
 	/**
 	 * Constructs a new {@link BarrierTree} with the given {@link Node} as its
@@ -59,52 +58,36 @@ public final class BarrierTreeImpl implements BarrierTree
 		_allowDebugPrints = allowDebugPrints;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The measures are calculated in a single traversal of the tree without
+	 * recursion. The total connection value is calculated in another
+	 * traversal when it is first needed after the measures have been
+	 * calculated or recalculated.
+	 * 
+	 * @see TreeMeasures
+	 */
 	@Override
 	public void calculateMeasures()
 	{
-		if(_measuresCalculated) {
-			return;
-		}
-
-		// TODO: Measures are not calculated correctly if _root is a leaf.
-
-		_leaves = findNumberOfLeaves(_root);
-		_min = findMinimum(_root);
-		_minBarrier = findMinimumBarrier(_root);
-		_maxBarrier = _root;
-		_totalBarrierValue = findTotalBarrierValue(_root);
-		_totalConnectionValue =
-			findTotalConnectionValue(_root, _min.getValue());
-
-		_measuresCalculated = true;
-
-		if(_allowDebugPrints) {
-			Debug.line("[BarrierTree] leaves: %d, minValue: %f, "
-					+ "minBarrierValue: %f, maxBarrierValue: %f, "
-					+ "totalBarrierValue: %f, totalConnectionValue: %f",
-					_leaves, _min.getValue(), _minBarrier.getValue(),
-					_maxBarrier.getValue(), _totalBarrierValue,
-					_totalConnectionValue);
-		}
-
-		// TODO: Remove this check when confident that weights have been set correctly.
-		if(_root.getWeight() != _leaves) {
-			throw new IllegalStateException("_root() != _leaves");
+		if(_measures == null) {
+			setMeasures(TreeMeasures.calculate(new Node[] { _root })[0]);
 		}
 	}
 
 	@Override
 	public void recalculateMeasures(BarrierForest forest)
 	{
-		final double minValue = forest.getMinimumValue();
-		_totalConnectionValue = findTotalConnectionValue(_root, minValue);
+		calculateMeasures();
+		_connectionMinValue = forest.getMinimumValue();
 	}
 
 	@Override
 	public int getNumberOfLeaves()
 	{
 		calculateMeasures();
-		return _leaves;
+		return _measures.getNumberOfLeaves();
 	}
 
 	@Override
@@ -129,186 +112,147 @@ public final class BarrierTreeImpl implements BarrierTree
 	public double getTotalBarrierValue()
 	{
 		calculateMeasures();
-		return _totalBarrierValue;
+		return _measures.getTotalBarrierValue();
 	}
 
 	@Override
 	public double getTotalConnectionValue()
 	{
 		calculateMeasures();
-		return _totalConnectionValue;
+		return _measures.getTotalConnectionValue(_connectionMinValue);
 	}
 
 	@Override
 	public Node getMinimum()
 	{
 		calculateMeasures();
-		return _min;
+		return _measures.getMinimum();
 	}
 
 	@Override
 	public Node getMinimumBarrier()
 	{
 		calculateMeasures();
-		return _minBarrier;
+		return _measures.getMinimumBarrier();
 	}
 
 	@Override
 	public Node getMaximumBarrier()
 	{
 		calculateMeasures();
-		return _maxBarrier;
+		return _root;
 	}
 
-	@Override
-	public Node getRoot()
+	/**
+	 * Returns whether or not the measures of this tree have been calculated.
+	 */
+	boolean hasMeasures()
 	{
-		return _root;
+		return _measures != null;
 	}
 
-	@Override
-	public Node find(int id)
+	/**
+	 * Returns the measures of this tree, calculating them if needed.
+	 */
+	TreeMeasures getMeasures()
 	{
-		final Deque<Node> stack = new ArrayDeque<Node>();
-		stack.addFirst(_root);
-
-		while(!stack.isEmpty()) {
-			final Node node = stack.removeFirst();
+		calculateMeasures();
+		return _measures;
+	}
 
-			if(node.getId() == id) {
-				return node;
-			}
+	/**
+	 * Sets the measures of this tree, which allows the measures of several
+	 * trees to be calculated together.
+	 * 
+	 * @param measures the measures.
+	 * @see TreeMeasures#calculate(Node[])
+	 */
+	void setMeasures(TreeMeasures measures)
+	{
+		_measures = measures;
+		_connectionMinValue = measures.getMinimum().getValue();
 
-			if(node.isInternal()) {
-				stack.addFirst(node.getRight());
-				stack.addFirst(node.getLeft());
-			}
+		if(_allowDebugPrints && Debug.isDebug()) {
+			Debug.line("[BarrierTree] leaves: %d, minValue: %f, "
+					+ "minBarrierValue: %f, maxBarrierValue: %f, "
+					+ "totalBarrierValue: %f, totalConnectionValue: %f",
+					measures.getNumberOfLeaves(),
+					measures.getMinimum().getValue(),
+					measures.getMinimumBarrier().getValue(),
+					_root.getValue(), measures.getTotalBarrierValue(),
+					measures.getTotalConnectionValue(_connectionMinValue));
 		}
 
-		return null;
+		// TODO: Remove this check when confident that weights have been set correctly.
+		if(_root.getWeight() != measures.getNumberOfLeaves()) {
+			throw new IllegalStateException("_root() != _leaves");
+		}
 	}
 
-	private static int findNumberOfLeaves(Node root)
+	@Override
+	public Node getRoot()
 	{
-		final Deque<Node> stack = new ArrayDeque<Node>();
-		int count = 0;
-		stack.addFirst(root);
-
-		while(!stack.isEmpty()) {
-			Node node = stack.removeFirst();
-			Node left = node.getLeft();
-
-			while(left != null) {
-				stack.addFirst(node);
-				node = left;
-				left = node.getLeft();
-			}
-
-			count++;
+		return _root;
+	}
 
-			if(!stack.isEmpty()) {
-				node = stack.removeFirst();
-				stack.addFirst(node.getRight());
-			}
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The first call creates an index from ids to nodes in a single traversal
+	 * of the tree, so the following calls take constant time. The index is
+	 * serialized with the tree. As for the measures, the tree must not be
+	 * modified after the index has been created.
+	 */
+	@Override
+	public Node find(int id)
+	{
+		if(_index == null) {
+			final List<Node> nodes = findNodes(_root);
+			_indexedNodes = nodes.toArray(new Node[nodes.size()]);
+			_index = new IdIndex(ids(_indexedNodes));
 		}
 
-		return count;
+		final int position = _index.find(id);
+		return (position == -1 ? null : _indexedNodes[position]);
 	}
 
-	private static Node findMinimum(Node root)
+	/**
+	 * Finds and returns a list of all nodes in a tree rooted at
+	 * <code>root</code> in pre-order, without recursion.
+	 * 
+	 * @param root the root.
+	 * @return all nodes in the tree.
+	 */
+	static List<Node> findNodes(Node root)
 	{
 		final Deque<Node> stack = new ArrayDeque<Node>();
-		Node minNode = root;
+		final List<Node> nodes = new ArrayList<Node>();
 		stack.addFirst(root);
 
 		while(!stack.isEmpty()) {
-			Node node = stack.removeFirst();
-			Node left = node.getLeft();
-
-			// Go as far to the left as possible.
-			while(left != null) {
-				stack.addFirst(node);
-				node = left;
-				left = node.getLeft();
-			}
-
-			if(Util.isLess(node.getValue(), minNode.getValue())) {
-				minNode = node;
-			}
+			final Node node = stack.removeFirst();
+			nodes.add(node);
 
-			// We are as far left as possible and that node does not have a
-			// right child since it is a leaf. Go one step up and one step to
-			// the right to continue.
-			if(!stack.isEmpty()) {
-				node = stack.removeFirst();
+			if(node.isInternal()) {
 				stack.addFirst(node.getRight());
+				stack.addFirst(node.getLeft());
 			}
 		}
 
-		return minNode;
-	}
-
-	private static Node findMinimumBarrier(Node root)
-	{
-		final Node[] minNode = new Node[] { root };
-		findMinimumBarrier(root, minNode);
-		return minNode[0];
-	}
-
-	private static void findMinimumBarrier(Node root, Node[] minNode)
-	{
-		// TODO: Iterative implementation.
-		if(root.isLeaf()) {
-			return;
-		}
-
-		findMinimumBarrier(root.getLeft(), minNode);
-
-		if(Util.isLess(root.getValue(), minNode[0].getValue())) {
-			minNode[0] = root;
-		}
-
-		findMinimumBarrier(root.getRight(), minNode);
+		return nodes;
 	}
 
-	private static double findTotalBarrierValue(Node root)
+	/**
+	 * Returns the ids of an array of nodes.
+	 */
+	static int[] ids(Node[] nodes)
 	{
-		// TODO: Iterative implementation.
-		if(root.isLeaf()) {
-			return 0d;
-		}
-
-		final double leftValue = findTotalBarrierValue(root.getLeft());
-		final double rightValue = findTotalBarrierValue(root.getRight());
-		final double rootValue = root.getValue();
-
-		return leftValue + rightValue + rootValue;
-	}
+		final int[] ids = new int[nodes.length];
 
-	private static double findTotalConnectionValue(Node root, double minValue)
-	{
-		// TODO: Iterative implementation.
-		if(root.isLeaf()) {
-			return 0d;
+		for(int i = 0; i < nodes.length; i++) {
+			ids[i] = nodes[i].getId();
 		}
 
-		final Node left = root.getLeft();
-		final double leftConnectionValue =
-			findTotalConnectionValue(left, minValue);
-		final int leftWeight = left.getWeight();
-
-		final Node right = root.getRight();
-		final double rightConnectionValue =
-			findTotalConnectionValue(right, minValue);
-		final int rightWeight = right.getWeight();
-
-		final double rootValue = root.getValue();
-		final double rootConnectionValue =
-			(rootValue - minValue) * leftWeight * rightWeight;
-
-		final double totalConnectionValue =
-			leftConnectionValue + rightConnectionValue + rootConnectionValue;
-
-		return totalConnectionValue;
+		return ids;
 	}
 }
@@ -0,0 +1,429 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.martinkampjensen.thesis.model.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts conformations by energy using an external merge sort, and stores them
+ * in a {@link MappedConformationStore}, so that the number of conformations is
+ * not limited by the size of the heap.
+ * <p>
+ * Conformations are added to a buffer of a fixed number of conformations.
+ * Whenever the buffer is full, its conformations are sorted and written to a
+ * temporary file (a run). When all conformations have been added, the runs
+ * are merged into a single file of records ordered by non-decreasing energy.
+ * Conformations with equal energies keep the order in which they were added,
+ * as in {@link ConformationStore#sortedCopy(List)}. The angles are stored in
+ * double precision, so the sorted conformations are exactly those that a
+ * {@link ConformationStore} would hold.
+ * <p>
+ * The temporary files are deleted when the sorter is closed, and the merged
+ * file is deleted as soon as it has been mapped, or when the virtual machine
+ * terminates if the platform does not allow deleting a mapped file.
+ */
+public final class ConformationSorter implements Closeable
+{
+	private static final int STREAM_BUFFER_SIZE = 1 << 16;
+	private static final String PREFIX = "conformations";
+
+	private final int _nAngles;
+	private final File _directory;
+	private final int _runSize;
+	private final int[] _ids;
+	private final double[] _energies;
+	private final double[] _angles;
+	private final List<File> _runs;
+	private int _buffered;
+	private int _size;
+	private boolean _isFinished;
+
+	/**
+	 * Creates a sorter.
+	 * 
+	 * @param nAngles the number of torsion angles of a conformation.
+	 * @param directory the directory to create the temporary files in, or
+	 *        <code>null</code> to use the default temporary-file directory.
+	 * @param runSize the number of conformations to sort in memory at once.
+	 * @throws IllegalArgumentException if <code>nAngles &lt; 1</code> or if
+	 *         <code>runSize &lt; 1</code>.
+	 */
+	public ConformationSorter(int nAngles, File directory, int runSize)
+	{
+		if(nAngles < 1) {
+			throw new IllegalArgumentException("nAngles < 1");
+		}
+		else if(runSize < 1) {
+			throw new IllegalArgumentException("runSize < 1");
+		}
+		else if((long)runSize * nAngles > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("runSize is too large");
+		}
+
+		_nAngles = nAngles;
+		_directory = directory;
+		_runSize = runSize;
+		_ids = new int[runSize];
+		_energies = new double[runSize];
+		_angles = new double[runSize * nAngles];
+		_runs = new ArrayList<File>();
+		_buffered = 0;
+		_size = 0;
+		_isFinished = false;
+	}
+
+	/**
+	 * Calculates the number of conformations to sort in memory at once when
+	 * the buffer may use a number of bytes.
+	 * 
+	 * @param nAngles the number of torsion angles of a conformation.
+	 * @param bytes the number of bytes the buffer may use.
+	 * @return the number of conformations (at least <code>1</code>).
+	 */
+	public static int runSize(int nAngles, long bytes)
+	{
+		// The records and the order used while sorting them.
+		final long perConformation =
+			MappedConformationStore.recordSize(nAngles) + 2 * 4;
+		final long maxSize = (Integer.MAX_VALUE - 8) / Math.max(1, nAngles);
+
+		return (int)Math.max(1, Math.min(maxSize, bytes / perConformation));
+	}
+
+	/**
+	 * Returns the number of conformations added.
+	 * 
+	 * @return the number of conformations.
+	 */
+	public int size()
+	{
+		return _size;
+	}
+
+	/**
+	 * Returns the number of runs written to temporary files so far.
+	 * 
+	 * @return the number of runs.
+	 */
+	public int getNumberOfRuns()
+	{
+		return _runs.size();
+	}
+
+	/**
+	 * Adds a conformation.
+	 * 
+	 * @param id the id of the conformation.
+	 * @param energy the energy of the conformation.
+	 * @param angles the torsion angles of the conformation.
+	 * @throws IOException if an I/O error occurs while writing a run.
+	 * @throws IllegalStateException if {@link #finish()} has been called.
+	 * @throws IllegalArgumentException if <code>angles</code> does not have
+	 *         the number of angles of this sorter.
+	 */
+	public void add(int id, double energy, double[] angles) throws IOException
+	{
+		if(_isFinished) {
+			throw new IllegalStateException("The sorter is finished");
+		}
+		else if(angles.length != _nAngles) {
+			throw new IllegalArgumentException(
+			"angles does not have the number of angles of this sorter");
+		}
+
+		if(_buffered == _runSize) {
+			_runs.add(writeRun());
+		}
+
+		final int angleOffset = _buffered * _nAngles;
+		for(int k = 0; k < _nAngles; k++) {
+			_angles[angleOffset + k] = angles[k];
+		}
+
+		_ids[_buffered] = id;
+		_energies[_buffered] = energy;
+		_buffered++;
+		_size++;
+	}
+
+	/**
+	 * Merges the added conformations into a single file ordered by energy,
+	 * and maps it.
+	 * 
+	 * @return a store containing the conformations in sorted order.
+	 * @throws IOException if an I/O error occurs.
+	 * @throws IllegalStateException if this method has already been called.
+	 */
+	public MappedConformationStore finish() throws IOException
+	{
+		if(_isFinished) {
+			throw new IllegalStateException("The sorter is finished");
+		}
+
+		_isFinished = true;
+		final File sorted = createTempFile();
+
+		try {
+			if(_runs.isEmpty()) {
+				writeBuffer(sorted);
+			}
+			else {
+				if(_buffered != 0) {
+					_runs.add(writeRun());
+				}
+
+				merge(sorted);
+			}
+
+			return new MappedConformationStore(sorted, _nAngles);
+		}
+		finally {
+			if(!sorted.delete()) {
+				sorted.deleteOnExit();
+			}
+
+			deleteRuns();
+		}
+	}
+
+	/**
+	 * Deletes the temporary files of the runs.
+	 */
+	@Override
+	public void close()
+	{
+		deleteRuns();
+	}
+
+	private File writeRun() throws IOException
+	{
+		final File run = createTempFile();
+
+		try {
+			writeBuffer(run);
+		}
+		catch(IOException e) {
+			run.delete();
+			throw e;
+		}
+
+		_buffered = 0;
+		return run;
+	}
+
+	/**
+	 * Sorts the buffered conformations and writes them to a file.
+	 */
+	private void writeBuffer(File file) throws IOException
+	{
+		final int[] order = sortBuffer();
+		final DataOutputStream out = createOutput(file);
+
+		try {
+			for(int i = 0; i < _buffered; i++) {
+				final int index = order[i];
+				final int angleOffset = index * _nAngles;
+
+				out.writeInt(_ids[index]);
+				out.writeDouble(_energies[index]);
+
+				for(int k = 0; k < _nAngles; k++) {
+					out.writeDouble(_angles[angleOffset + k]);
+				}
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Merges the runs using a priority queue of their first unmerged
+	 * conformations. Ties are broken by the order of the runs, so the merge
+	 * is stable.
+	 */
+	private void merge(File file) throws IOException
+	{
+		final int nRuns = _runs.size();
+		final PriorityQueue<Run> queue = new PriorityQueue<Run>(nRuns);
+		final List<Run> runs = new ArrayList<Run>(nRuns);
+		final DataOutputStream out = createOutput(file);
+
+		try {
+			for(int r = 0; r < nRuns; r++) {
+				final Run run = new Run(_runs.get(r), r, _nAngles);
+				runs.add(run);
+
+				if(run.next()) {
+					queue.add(run);
+				}
+			}
+
+			while(!queue.isEmpty()) {
+				final Run run = queue.poll();
+				run.write(out);
+
+				if(run.next()) {
+					queue.add(run);
+				}
+			}
+		}
+		finally {
+			for(int r = 0; r < runs.size(); r++) {
+				runs.get(r).close();
+			}
+
+			out.close();
+		}
+	}
+
+	/**
+	 * Sorts the locations of the buffered conformations by energy using a
+	 * stable merge sort on primitive values.
+	 */
+	private int[] sortBuffer()
+	{
+		final int n = _buffered;
+		int[] source = new int[n];
+		int[] target = new int[n];
+
+		for(int i = 0; i < n; i++) {
+			source[i] = i;
+		}
+
+		for(int width = 1; width < n; width *= 2) {
+			for(int lo = 0; lo < n; lo += 2 * width) {
+				final int mid = Math.min(lo + width, n);
+				final int hi = Math.min(lo + 2 * width, n);
+				int i = lo;
+				int j = mid;
+
+				for(int k = lo; k < hi; k++) {
+					if(i < mid && (j == hi
+							|| _energies[source[i]] <= _energies[source[j]])) {
+						target[k] = source[i++];
+					}
+					else {
+						target[k] = source[j++];
+					}
+				}
+			}
+
+			final int[] swap = source;
+			source = target;
+			target = swap;
+		}
+
+		return source;
+	}
+
+	private File createTempFile() throws IOException
+	{
+		return File.createTempFile(PREFIX, ".tmp", _directory);
+	}
+
+	private void deleteRuns()
+	{
+		for(int r = 0; r < _runs.size(); r++) {
+			_runs.get(r).delete();
+		}
+
+		_runs.clear();
+	}
+
+	private static DataOutputStream createOutput(File file) throws IOException
+	{
+		return new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), STREAM_BUFFER_SIZE));
+	}
+
+	/**
+	 * A run being merged, positioned at its first unmerged conformation.
+	 */
+	private static final class Run implements Comparable<Run>
+	{
+		private final DataInputStream _in;
+		private final int _number;
+		private final double[] _angles;
+		private int _remaining;
+		private int _id;
+		private double _energy;
+
+		private Run(File file, int number, int nAngles) throws IOException
+		{
+			_in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), STREAM_BUFFER_SIZE));
+			_number = number;
+			_angles = new double[nAngles];
+			_remaining = (int)(file.length()
+					/ MappedConformationStore.recordSize(nAngles));
+		}
+
+		private boolean next() throws IOException
+		{
+			if(_remaining == 0) {
+				return false;
+			}
+
+			_id = _in.readInt();
+			_energy = _in.readDouble();
+
+			for(int k = 0; k < _angles.length; k++) {
+				_angles[k] = _in.readDouble();
+			}
+
+			_remaining--;
+			return true;
+		}
+
+		private void write(DataOutputStream out) throws IOException
+		{
+			out.writeInt(_id);
+			out.writeDouble(_energy);
+
+			for(int k = 0; k < _angles.length; k++) {
+				out.writeDouble(_angles[k]);
+			}
+		}
+
+		private void close() throws IOException
+		{
+			_in.close();
+		}
+
+		@Override
+		public int compareTo(Run other)
+		{
+			if(_energy < other._energy) return -1;
+			else if(_energy > other._energy) return 1;
+			else return (_number < other._number ? -1 :
+				(_number == other._number ? 0 : 1));
+		}
+	}
+}
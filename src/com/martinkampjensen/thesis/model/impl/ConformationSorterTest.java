@@ -0,0 +1,147 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.martinkampjensen.thesis.model.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.martinkampjensen.thesis.model.Model;
+
+/**
+ * This class defines tests of the {@link ConformationSorter} and
+ * {@link MappedConformationStore} classes.
+ */
+public final class ConformationSorterTest
+{
+	private static final int N_ANGLES = 3;
+
+	@Test
+	public void testFinish() throws IOException
+	{
+		// A single run, several runs, and a last run that is full.
+		for(int runSize : new int[] { 1000, 7, 100 }) {
+			final ConformationSorter sorter =
+				new ConformationSorter(N_ANGLES, null, runSize);
+			final MappedConformationStore store;
+
+			try {
+				for(int i = 0; i < 1000; i++) {
+					sorter.add(i, i % 10, angles(i));
+				}
+
+				assertEquals(1000, sorter.size());
+				store = sorter.finish();
+			}
+			finally {
+				sorter.close();
+			}
+
+			assertEquals(1000, store.size());
+			assertEquals(N_ANGLES, store.getNumberOfAngles());
+			final List<Model> models = store.models();
+			assertEquals(1000, models.size());
+
+			for(int i = 0; i < models.size(); i++) {
+				final Model model = models.get(i);
+				assertEquals(model, models.get(i));
+				assertEquals(model.hashCode(), models.get(i).hashCode());
+				assertModel(model, model.getId(), model.getId() % 10);
+
+				if(i > 0) {
+					final Model previous = models.get(i - 1);
+					assertFalse(model.equals(previous));
+					assertTrue(previous.evaluate() < model.evaluate()
+							|| (previous.evaluate() == model.evaluate()
+									&& previous.getId() < model.getId()));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testEmpty() throws IOException
+	{
+		final ConformationSorter sorter =
+			new ConformationSorter(N_ANGLES, null, 10);
+		final MappedConformationStore store = sorter.finish();
+
+		assertEquals(0, store.size());
+		assertTrue(store.models().isEmpty());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testAddAfterFinish() throws IOException
+	{
+		final ConformationSorter sorter =
+			new ConformationSorter(N_ANGLES, null, 10);
+		sorter.finish();
+		sorter.add(0, 0d, angles(0));
+	}
+
+	@Test
+	public void testSerialization() throws IOException, ClassNotFoundException
+	{
+		final ConformationSorter sorter =
+			new ConformationSorter(N_ANGLES, null, 10);
+		sorter.add(4, 2d, angles(4));
+		final Model mapped = sorter.finish().models().get(0);
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(mapped);
+		out.close();
+
+		final Object object = new ObjectInputStream(new ByteArrayInputStream(
+				bytes.toByteArray())).readObject();
+
+		assertTrue(object instanceof ImmutableModel);
+		assertModel((Model)object, 4, 2);
+	}
+
+	private static void assertModel(Model model, int id, double fitness)
+	{
+		assertEquals(id, model.getId());
+		assertEquals(fitness, model.evaluate(), 0d);
+		assertEquals(N_ANGLES, model.size());
+
+		final double[] angles = angles(id);
+		for(int k = 0; k < N_ANGLES; k++) {
+			assertEquals(angles[k], model.getAngle(k), 0d);
+		}
+	}
+
+	private static double[] angles(int id)
+	{
+		final double[] angles = new double[N_ANGLES];
+		for(int k = 0; k < N_ANGLES; k++) {
+			angles[k] = (id * 0.37 + k) % 6;
+		}
+
+		return angles;
+	}
+}
@@ -0,0 +1,327 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.model.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.martinkampjensen.thesis.model.Model;
+
+/**
+ * Stores the ids, energies and torsion angles of a number of conformations,
+ * e.g. from a trajectory, in flat arrays of primitive values. The
+ * conformations are accessed as models through {@link StoredModel} objects,
+ * which only refer to a location in this store.
+ * <p>
+ * Compared to an {@link ImmutableModel} per conformation, this avoids two
+ * objects per conformation, and the angles of consecutive conformations are
+ * adjacent in memory. The angles can be stored in single precision to halve
+ * their size. Coordinates are not stored, as they can be read from the
+ * trajectory on demand using the id of a conformation as the frame number,
+ * see {@link com.martinkampjensen.thesis.util.gromacs.XtcFrames}.
+ * <p>
+ * Conformations can be added and replaced, but not removed. Instead,
+ * {@link #sortedCopy(List)} creates a new store containing only the
+ * conformations that are still in use.
+ */
+public final class ConformationStore
+{
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final int _nAngles;
+	private final boolean _isSinglePrecision;
+	private int _size;
+	private int[] _ids;
+	private double[] _energies;
+	private double[] _angles;
+	private float[] _singleAngles;
+
+	/**
+	 * Creates an empty store.
+	 * 
+	 * @param nAngles the number of torsion angles of a conformation.
+	 * @param isSinglePrecision whether or not to store the angles in single
+	 *        precision.
+	 * @throws IllegalArgumentException if <code>nAngles &lt; 1</code>.
+	 */
+	public ConformationStore(int nAngles, boolean isSinglePrecision)
+	{
+		this(nAngles, isSinglePrecision, INITIAL_CAPACITY);
+	}
+
+	private ConformationStore(int nAngles, boolean isSinglePrecision,
+			int capacity)
+	{
+		if(nAngles < 1) {
+			throw new IllegalArgumentException("nAngles < 1");
+		}
+
+		_nAngles = nAngles;
+		_isSinglePrecision = isSinglePrecision;
+		_size = 0;
+		_ids = new int[capacity];
+		_energies = new double[capacity];
+		_angles = (isSinglePrecision ? null :
+			new double[length(capacity, nAngles)]);
+		_singleAngles = (isSinglePrecision ?
+				new float[length(capacity, nAngles)] : null);
+	}
+
+	/**
+	 * Returns the number of conformations in this store.
+	 * 
+	 * @return the number of conformations.
+	 */
+	public int size()
+	{
+		return _size;
+	}
+
+	/**
+	 * Returns the number of torsion angles of a conformation.
+	 * 
+	 * @return the number of angles.
+	 */
+	public int getNumberOfAngles()
+	{
+		return _nAngles;
+	}
+
+	/**
+	 * Returns whether or not the angles are stored in single precision.
+	 * 
+	 * @return <code>true</code> if and only if the angles are stored in single
+	 *         precision.
+	 */
+	public boolean isSinglePrecision()
+	{
+		return _isSinglePrecision;
+	}
+
+	/**
+	 * Adds a conformation to this store.
+	 * 
+	 * @param model the model whose id, fitness value and angles to store.
+	 * @return a model referring to the stored conformation.
+	 * @throws IllegalArgumentException if <code>model</code> does not have the
+	 *         number of angles of this store.
+	 */
+	public StoredModel add(Model model)
+	{
+		if(_size == _ids.length) {
+			grow();
+		}
+
+		set(_size, model);
+		return new StoredModel(this, _size++);
+	}
+
+	/**
+	 * Replaces a conformation in this store. Models referring to the
+	 * conformation will refer to the new conformation.
+	 * 
+	 * @param stored a model referring to the conformation to replace.
+	 * @param model the model whose id, fitness value and angles to store.
+	 * @throws IllegalArgumentException if <code>stored</code> does not refer
+	 *         to this store, or if <code>model</code> does not have the number
+	 *         of angles of this store.
+	 */
+	public void replace(StoredModel stored, Model model)
+	{
+		if(stored.getStore() != this) {
+			throw new IllegalArgumentException("stored is not in this store");
+		}
+
+		set(stored.getIndex(), model);
+	}
+
+	/**
+	 * Creates a new store containing the conformations of a list of models
+	 * from this store, ordered by non-decreasing energy. Models with equal
+	 * energies keep their order. As the conformations are sorted in the store
+	 * itself, models that are adjacent in the sorted order are also adjacent
+	 * in memory.
+	 * <p>
+	 * Conformations of this store that are not in the list are not copied, so
+	 * this store can be discarded afterwards.
+	 * 
+	 * @param models the models to copy.
+	 * @return models referring to the new store, in sorted order.
+	 * @throws IllegalArgumentException if a model in <code>models</code> does
+	 *         not refer to this store.
+	 */
+	public List<Model> sortedCopy(List<Model> models)
+	{
+		final int nModels = models.size();
+		final int[] order = new int[nModels];
+
+		for(int i = 0; i < nModels; i++) {
+			final Model model = models.get(i);
+
+			if(!(model instanceof StoredModel)
+					|| ((StoredModel)model).getStore() != this) {
+				throw new IllegalArgumentException(
+						"A model is not in this store");
+			}
+
+			order[i] = ((StoredModel)model).getIndex();
+		}
+
+		sortByEnergy(order);
+
+		final ConformationStore copy = new ConformationStore(_nAngles,
+				_isSinglePrecision, Math.max(1, nModels));
+		final int angleLength = _nAngles;
+		final List<Model> sorted = new ArrayList<Model>(nModels);
+
+		for(int i = 0; i < nModels; i++) {
+			final int index = order[i];
+
+			copy._ids[i] = _ids[index];
+			copy._energies[i] = _energies[index];
+
+			if(_isSinglePrecision) {
+				System.arraycopy(_singleAngles, index * angleLength,
+						copy._singleAngles, i * angleLength, angleLength);
+			}
+			else {
+				System.arraycopy(_angles, index * angleLength,
+						copy._angles, i * angleLength, angleLength);
+			}
+
+			sorted.add(new StoredModel(copy, i));
+		}
+
+		copy._size = nModels;
+		return sorted;
+	}
+
+	int getId(int index)
+	{
+		return _ids[index];
+	}
+
+	double getEnergy(int index)
+	{
+		return _energies[index];
+	}
+
+	double getAngle(int index, int id)
+	{
+		if(id < 0 || id >= _nAngles) {
+			throw new ArrayIndexOutOfBoundsException(id);
+		}
+
+		final int location = index * _nAngles + id;
+		return (_isSinglePrecision ? _singleAngles[location] : _angles[location]);
+	}
+
+	private void set(int index, Model model)
+	{
+		if(model.size() != _nAngles) {
+			throw new IllegalArgumentException(
+					"model does not have the number of angles of this store");
+		}
+
+		_ids[index] = model.getId();
+		_energies[index] = model.evaluate();
+
+		final int angleOffset = index * _nAngles;
+		for(int k = 0; k < _nAngles; k++) {
+			if(_isSinglePrecision) {
+				_singleAngles[angleOffset + k] = (float)model.getAngle(k);
+			}
+			else {
+				_angles[angleOffset + k] = model.getAngle(k);
+			}
+		}
+	}
+
+	private void grow()
+	{
+		final int capacity = (int)Math.min(Integer.MAX_VALUE - 8,
+				2L * _ids.length);
+
+		if(capacity == _ids.length) {
+			throw new IllegalStateException("Too many conformations");
+		}
+
+		_ids = Arrays.copyOf(_ids, capacity);
+		_energies = Arrays.copyOf(_energies, capacity);
+
+		if(_isSinglePrecision) {
+			_singleAngles = Arrays.copyOf(_singleAngles,
+					length(capacity, _nAngles));
+		}
+		else {
+			_angles = Arrays.copyOf(_angles, length(capacity, _nAngles));
+		}
+	}
+
+	/**
+	 * Returns the length of an array with a number of values per conformation.
+	 */
+	private static int length(int capacity, int valuesPerConformation)
+	{
+		final long length = (long)capacity * valuesPerConformation;
+
+		if(length > Integer.MAX_VALUE - 8) {
+			throw new IllegalStateException("Too many conformations");
+		}
+
+		return (int)length;
+	}
+
+	/**
+	 * Sorts the locations of conformations by energy using a stable merge
+	 * sort on primitive values.
+	 */
+	private void sortByEnergy(int[] order)
+	{
+		final int n = order.length;
+		int[] source = order;
+		int[] target = new int[n];
+
+		for(int width = 1; width < n; width *= 2) {
+			for(int lo = 0; lo < n; lo += 2 * width) {
+				final int mid = Math.min(lo + width, n);
+				final int hi = Math.min(lo + 2 * width, n);
+				int i = lo;
+				int j = mid;
+
+				for(int k = lo; k < hi; k++) {
+					if(i < mid && (j == hi
+							|| _energies[source[i]] <= _energies[source[j]])) {
+						target[k] = source[i++];
+					}
+					else {
+						target[k] = source[j++];
+					}
+				}
+			}
+
+			final int[] swap = source;
+			source = target;
+			target = swap;
+		}
+
+		if(source != order) {
+			System.arraycopy(source, 0, order, 0, n);
+		}
+	}
+}
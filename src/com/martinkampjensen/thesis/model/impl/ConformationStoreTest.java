@@ -0,0 +1,173 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.model.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.martinkampjensen.thesis.model.Model;
+
+/**
+ * This class defines tests of the {@link ConformationStore} class.
+ */
+public final class ConformationStoreTest
+{
+	private static final int N_ANGLES = 3;
+	private static final double PRECISION = 1e-6;
+
+	@Test
+	public void testAdd()
+	{
+		for(boolean isSinglePrecision : new boolean[] { false, true }) {
+			final ConformationStore store =
+				new ConformationStore(N_ANGLES, isSinglePrecision);
+
+			// More conformations than the initial capacity.
+			for(int i = 0; i < 3000; i++) {
+				final StoredModel stored = store.add(createModel(i, i % 7));
+
+				assertEquals(i + 1, store.size());
+				assertSame(store, stored.getStore());
+				assertEquals(i, stored.getIndex());
+			}
+
+			for(int i = 0; i < 3000; i++) {
+				assertModel(new StoredModel(store, i), i, i % 7);
+			}
+		}
+	}
+
+	@Test
+	public void testReplace()
+	{
+		final ConformationStore store =
+			new ConformationStore(N_ANGLES, false);
+		final StoredModel first = store.add(createModel(0, 5));
+		final StoredModel second = store.add(createModel(1, 3));
+
+		store.replace(first, createModel(2, 1));
+
+		assertEquals(2, store.size());
+		assertModel(first, 2, 1);
+		assertModel(second, 1, 3);
+	}
+
+	@Test
+	public void testSortedCopy()
+	{
+		final ConformationStore store =
+			new ConformationStore(N_ANGLES, false);
+		final List<Model> models = new ArrayList<Model>();
+
+		for(int i = 0; i < 1000; i++) {
+			final StoredModel stored = store.add(createModel(i, i % 10));
+
+			// Leave out some of the conformations.
+			if(i % 3 != 0) models.add(stored);
+		}
+
+		final List<Model> sorted = store.sortedCopy(models);
+		assertEquals(models.size(), sorted.size());
+
+		for(int i = 0; i < sorted.size(); i++) {
+			final StoredModel model = (StoredModel)sorted.get(i);
+			assertEquals(i, model.getIndex());
+			assertModel(model, model.getId(), model.getId() % 10);
+
+			if(i > 0) {
+				final Model previous = sorted.get(i - 1);
+				assertTrue(previous.evaluate() < model.evaluate()
+						|| (previous.evaluate() == model.evaluate()
+								&& previous.getId() < model.getId()));
+			}
+		}
+
+		assertEquals(sorted.size(),
+				((StoredModel)sorted.get(0)).getStore().size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSortedCopyIllegalArgument()
+	{
+		final ConformationStore store =
+			new ConformationStore(N_ANGLES, false);
+		final List<Model> models = new ArrayList<Model>();
+		models.add(new ConformationStore(N_ANGLES, false).add(
+				createModel(0, 0)));
+
+		store.sortedCopy(models);
+	}
+
+	@Test
+	public void testSerialization() throws IOException, ClassNotFoundException
+	{
+		final ConformationStore store =
+			new ConformationStore(N_ANGLES, false);
+		final StoredModel stored = store.add(createModel(4, 2));
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(stored);
+		out.close();
+
+		final Object object = new ObjectInputStream(new ByteArrayInputStream(
+				bytes.toByteArray())).readObject();
+
+		assertTrue(object instanceof ImmutableModel);
+		final ImmutableModel model = (ImmutableModel)object;
+		assertModel(model, 4, 2);
+		assertNull(model.getCoordinates());
+	}
+
+	private static void assertModel(Model model, int id, double fitness)
+	{
+		assertEquals(id, model.getId());
+		assertEquals(fitness, model.evaluate(), 0d);
+		assertEquals(N_ANGLES, model.size());
+
+		for(int k = 0; k < N_ANGLES; k++) {
+			assertEquals(angle(id, k), model.getAngle(k), PRECISION);
+		}
+	}
+
+	private static Model createModel(int id, double fitness)
+	{
+		final double[] angles = new double[N_ANGLES];
+		for(int k = 0; k < N_ANGLES; k++) {
+			angles[k] = angle(id, k);
+		}
+
+		return new ImmutableModel(id, fitness, angles, null);
+	}
+
+	private static double angle(int id, int k)
+	{
+		return (id * 0.37 + k) % 6;
+	}
+}
@@ -20,8 +20,6 @@ import java.io.Serializable;
 
 import jbcl.calc.structural.properties.TorsionalAngle;
 
-import org.openbabel.OBAtom;
-
 import com.martinkampjensen.thesis.barriers.TrajectoryConstructor;
 import com.martinkampjensen.thesis.model.Model;
 import com.martinkampjensen.thesis.util.Util;
@@ -85,11 +83,43 @@ implements Serializable
 	{
 		super();
 
-		final int size = coordinates.length - ATOMS_WITHOUT_TORSION_ANGLE;
+		_id = id;
+		_fitness = fitness;
+		_angles = calculateAngles(coordinates, torsionMatrix);
+	}
+
+	/**
+	 * Constructs a new immutable model from torsion angle values, e.g. as
+	 * calculated by {@link #calculateAngles(double[][], int[][])}. The array
+	 * is not copied and must not be modified afterwards.
+	 * 
+	 * @param id the id to assign.
+	 * @param fitness the fitness value to assign.
+	 * @param angles the torsion angle values.
+	 */
+	public ImmutableModel(int id, double fitness, double[] angles)
+	{
+		this(id, fitness, angles, null);
+	}
+
+	/**
+	 * Constructs a new immutable model from torsion angle values. The arrays
+	 * are not copied.
+	 * 
+	 * @param id the id to assign.
+	 * @param fitness the fitness value to assign.
+	 * @param angles the torsion angle values.
+	 * @param coordinates the coordinates to attach, or <code>null</code>.
+	 */
+	ImmutableModel(int id, double fitness, double[] angles,
+			double[][] coordinates)
+	{
+		super();
 
 		_id = id;
 		_fitness = fitness;
-		_angles = createAngles(size, coordinates, torsionMatrix);
+		_angles = angles;
+		_coordinates = coordinates;
 	}
 
 	@Override
@@ -189,10 +219,9 @@ implements Serializable
 	 * using {@link #toPdb(OBMol)}.
 	 * <p>
 	 * Note: This is a convenience method that is provided even though this
-	 * instance is immutable. Many instances (that will eventually be unused) of
-	 * this class can potentially exist at the same time because of
-	 * {@link TrajectoryConstructor} and, hence, it is not feasible to always
-	 * attach coordinates.
+	 * instance is immutable. Models created by {@link TrajectoryConstructor}
+	 * do not have coordinates attached. Instead, their coordinates are read
+	 * from the trajectory when needed, using the id as the frame number.
 	 * 
 	 * @param coordinates the coordinates to copy.
 	 */
@@ -202,23 +231,15 @@ implements Serializable
 	}
 
 	/**
-	 * Returns a PDB representation of this model.
+	 * Returns a PDB representation of this model using the attached
+	 * coordinates.
 	 * 
 	 * @param molecule the exact molecule of which this model is a conformation.
 	 * @return the PDB representation.
 	 */
 	public String toPdb(OBMol molecule)
 	{
-		final double[][] coordinates = _coordinates;
-		final int nAtoms = coordinates.length;
-
-		for(int i = 0; i < nAtoms; i++) {
-			final OBAtom atom = molecule.GetAtom(i + 1);
-			final double[] xyz = coordinates[i];
-			atom.SetVector(xyz[0], xyz[1], xyz[2]);
-		}
-
-		return OpenBabel.toPdb(molecule);
+		return OpenBabel.toPdb(molecule, _coordinates);
 	}
 
 	private static double[] createAngles(int size, OBMol molecule,
@@ -244,9 +265,20 @@ implements Serializable
 		return angles;
 	}
 
-	private static double[] createAngles(int size, double[][] coordinates,
+	/**
+	 * Calculates the torsion angle values (as in a Z-matrix) from coordinates
+	 * of the atoms using BioShell, as in
+	 * {@link #ImmutableModel(int, double, double[][], int[][])}.
+	 * 
+	 * @param coordinates a matrix containing the coordinates of the atoms.
+	 * @param torsionMatrix a matrix containing the ids of the atoms defining
+	 *        the torsion angles.
+	 * @return the torsion angle values.
+	 */
+	public static double[] calculateAngles(double[][] coordinates,
 			int[][] torsionMatrix)
 	{
+		final int size = coordinates.length - ATOMS_WITHOUT_TORSION_ANGLE;
 		final double[] angles = new double[size];
 		final int torsionOffset = OpenBabelData.TORSION_LENGTH;
 		final int atomOffset = -1;
@@ -0,0 +1,199 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.martinkampjensen.thesis.model.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import com.martinkampjensen.thesis.model.Model;
+
+/**
+ * Stores the ids, energies and torsion angles of a number of conformations in
+ * a memory-mapped file instead of on the heap, so that more conformations can
+ * be kept than fit in memory. The conformations are accessed as models through
+ * {@link MappedModel} objects, which only refer to a location in this store.
+ * <p>
+ * The file consists of fixed-size records, one per conformation, each holding
+ * the id as an <code>int</code>, the energy as a <code>double</code> and the
+ * angles as <code>double</code> values in the byte order of
+ * {@link java.io.DataOutput}. The file is created by a
+ * {@link ConformationSorter}, which orders the records by energy. The store is
+ * read-only, and as the file is only read at absolute positions, it may be
+ * accessed by several threads concurrently.
+ */
+public final class MappedConformationStore
+{
+	/**
+	 * The maximum number of bytes mapped at once. A record never spans two
+	 * mappings.
+	 */
+	private static final int MAX_MAPPED_BYTES = 1 << 28;
+
+	private final int _nAngles;
+	private final int _size;
+	private final int _recordSize;
+	private final int _recordsPerMap;
+	private final MappedByteBuffer[] _maps;
+	private final List<Model> _models;
+
+	/**
+	 * Maps a file of records.
+	 * 
+	 * @param file the file.
+	 * @param nAngles the number of torsion angles of a conformation.
+	 * @throws IOException if an I/O error occurs, or if the length of the
+	 *         file is not a multiple of the size of a record.
+	 * @throws IllegalArgumentException if <code>nAngles &lt; 1</code>.
+	 */
+	MappedConformationStore(File file, int nAngles) throws IOException
+	{
+		if(nAngles < 1) {
+			throw new IllegalArgumentException("nAngles < 1");
+		}
+
+		_nAngles = nAngles;
+		_recordSize = recordSize(nAngles);
+		_recordsPerMap = Math.max(1, MAX_MAPPED_BYTES / _recordSize);
+
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			final FileChannel channel = raf.getChannel();
+			final long length = channel.size();
+
+			if(length % _recordSize != 0
+					|| length / _recordSize > Integer.MAX_VALUE) {
+				throw new IOException("Invalid length of " + file);
+			}
+
+			_size = (int)(length / _recordSize);
+			final int nMaps = (_size + _recordsPerMap - 1) / _recordsPerMap;
+			_maps = new MappedByteBuffer[nMaps];
+
+			for(int m = 0; m < _maps.length; m++) {
+				final long first = (long)m * _recordsPerMap * _recordSize;
+				final long size = Math.min(length - first,
+						(long)_recordsPerMap * _recordSize);
+				_maps[m] = channel.map(FileChannel.MapMode.READ_ONLY, first,
+						size);
+			}
+		}
+		finally {
+			raf.close();
+		}
+
+		_models = new Models();
+	}
+
+	/**
+	 * Returns the number of conformations in this store.
+	 * 
+	 * @return the number of conformations.
+	 */
+	public int size()
+	{
+		return _size;
+	}
+
+	/**
+	 * Returns the number of torsion angles of a conformation.
+	 * 
+	 * @return the number of angles.
+	 */
+	public int getNumberOfAngles()
+	{
+		return _nAngles;
+	}
+
+	/**
+	 * Returns the conformations of this store as models, in the order of the
+	 * records. The list is unmodifiable, and holds no models itself: a new
+	 * {@link MappedModel} is created each time a record is retrieved, so
+	 * retrieved models must be compared using {@link MappedModel#equals}
+	 * rather than by identity.
+	 * 
+	 * @return a list of models.
+	 */
+	public List<Model> models()
+	{
+		return _models;
+	}
+
+	/**
+	 * Returns the size in bytes of a record with a number of angles.
+	 */
+	static int recordSize(int nAngles)
+	{
+		return 4 + 8 + 8 * nAngles;
+	}
+
+	int getId(int index)
+	{
+		return map(index).getInt(offset(index));
+	}
+
+	double getEnergy(int index)
+	{
+		return map(index).getDouble(offset(index) + 4);
+	}
+
+	double getAngle(int index, int id)
+	{
+		if(id < 0 || id >= _nAngles) {
+			throw new ArrayIndexOutOfBoundsException(id);
+		}
+
+		return map(index).getDouble(offset(index) + 12 + 8 * id);
+	}
+
+	private MappedByteBuffer map(int index)
+	{
+		return _maps[index / _recordsPerMap];
+	}
+
+	private int offset(int index)
+	{
+		return (index % _recordsPerMap) * _recordSize;
+	}
+
+	private final class Models extends AbstractList<Model>
+	implements RandomAccess
+	{
+		@Override
+		public Model get(int index)
+		{
+			if(index < 0 || index >= _size) {
+				throw new IndexOutOfBoundsException(Integer.toString(index));
+			}
+
+			return new MappedModel(MappedConformationStore.this, index);
+		}
+
+		@Override
+		public int size()
+		{
+			return _size;
+		}
+	}
+}
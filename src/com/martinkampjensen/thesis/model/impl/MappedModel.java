@@ -0,0 +1,179 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.model.impl;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+
+import com.martinkampjensen.thesis.model.Model;
+
+/**
+ * An implementation of the {@link Model} interface that refers to a
+ * conformation in a {@link MappedConformationStore}. Instances are
+ * immutable flyweights, and two instances are equal if and only if they
+ * refer to the same conformation of the same store.
+ * <p>
+ * When serialized, an instance is replaced by an equivalent
+ * {@link ImmutableModel}, so the store is never serialized. The id of the
+ * model is the frame number of the conformation in its trajectory.
+ */
+public final class MappedModel extends AbstractComparableModel
+implements Serializable
+{
+	private static final long serialVersionUID = -6614094311280257373L;
+	private final transient MappedConformationStore _store;
+	private final transient int _index;
+
+	MappedModel(MappedConformationStore store, int index)
+	{
+		super();
+
+		_store = store;
+		_index = index;
+	}
+
+	@Override
+	public int size()
+	{
+		return _store.getNumberOfAngles();
+	}
+
+	/**
+	 * This implementation always returns <code>false</code> because this object
+	 * is immutable.
+	 * 
+	 * @return <code>false</code>.
+	 */
+	@Override
+	public boolean hasChanged()
+	{
+		return false;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation never performs any calculations because this object
+	 * is immutable.
+	 */
+	@Override
+	public double evaluate()
+	{
+		return _store.getEnergy(_index);
+	}
+
+	/**
+	 * This implementation always returns this object because this object is
+	 * immutable.
+	 * 
+	 * @return this object.
+	 */
+	@Override
+	public MappedModel copy()
+	{
+		return this;
+	}
+
+	@Override
+	public double getAngle(int id)
+	{
+		return _store.getAngle(_index, id);
+	}
+
+	/**
+	 * This implementation always throws an
+	 * {@link UnsupportedOperationException} because this object is immutable.
+	 * 
+	 * @throws UnsupportedOperationException always.
+	 */
+	@Override
+	public void setAngle(int id, double value)
+	{
+		throw new UnsupportedOperationException("This object is immutable");
+	}
+
+	/**
+	 * Returns the id of the conformation.
+	 */
+	@Override
+	public int getId()
+	{
+		return _store.getId(_index);
+	}
+
+	/**
+	 * This implementation always throws an
+	 * {@link UnsupportedOperationException} because this object is immutable.
+	 * 
+	 * @throws UnsupportedOperationException always.
+	 */
+	@Override
+	public void setId(int id)
+	{
+		throw new UnsupportedOperationException("This object is immutable");
+	}
+
+	/**
+	 * Returns whether or not an object is a {@link MappedModel} referring to
+	 * the same conformation of the same store as this object.
+	 * 
+	 * @param obj the object.
+	 * @return <code>true</code> if and only if <code>obj</code> refers to the
+	 *         same conformation.
+	 */
+	@Override
+	public boolean equals(Object obj)
+	{
+		if(this == obj) {
+			return true;
+		}
+		if(!(obj instanceof MappedModel)) {
+			return false;
+		}
+
+		final MappedModel other = (MappedModel)obj;
+		return (_store == other._store && _index == other._index);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return 31 * System.identityHashCode(_store) + _index;
+	}
+
+	MappedConformationStore getStore()
+	{
+		return _store;
+	}
+
+	int getIndex()
+	{
+		return _index;
+	}
+
+	/**
+	 * Replaces this object by an {@link ImmutableModel} when serialized.
+	 */
+	private Object writeReplace() throws ObjectStreamException
+	{
+		final int size = size();
+		final double[] angles = new double[size];
+		getAngles(angles);
+
+		return new ImmutableModel(getId(), evaluate(), angles, null);
+	}
+}
@@ -16,7 +16,9 @@
 
 package com.martinkampjensen.thesis.model.impl;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 
 import com.martinkampjensen.thesis.model.Model;
@@ -212,14 +214,39 @@ public final class NodeImpl extends AbstractNode
 		_parent = parent;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation does not use recursion, so it works for deep trees.
+	 * The weights are updated in the reverse of pre-order, so the children of
+	 * a node are updated before the node. Descendants that are not instances
+	 * of this class calculate their own weights.
+	 */
 	@Override
 	public void calculateWeight()
 	{
-		// TODO: Iterative implementation.
-		if(isInternal()) {
-			_left.calculateWeight();
-			_right.calculateWeight();
-			updateWeight();
+		final List<NodeImpl> nodes = new ArrayList<NodeImpl>();
+		final Deque<Node> stack = new ArrayDeque<Node>();
+		stack.addFirst(this);
+
+		while(!stack.isEmpty()) {
+			final Node node = stack.removeFirst();
+
+			if(node.isLeaf()) {
+				continue;
+			}
+			else if(node instanceof NodeImpl) {
+				nodes.add((NodeImpl)node);
+				stack.addFirst(node.getRight());
+				stack.addFirst(node.getLeft());
+			}
+			else {
+				node.calculateWeight();
+			}
+		}
+
+		for(int i = nodes.size() - 1; i >= 0; i--) {
+			nodes.get(i).updateWeight();
 		}
 	}
 
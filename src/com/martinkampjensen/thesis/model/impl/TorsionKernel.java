@@ -0,0 +1,196 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.martinkampjensen.thesis.model.impl;
+
+import com.martinkampjensen.thesis.util.Util;
+import com.martinkampjensen.thesis.util.openbabel.OpenBabelData;
+
+/**
+ * Calculates the torsion angle values (as in a Z-matrix) of conformations
+ * from the coordinates of their atoms. The atoms defining the torsion angles
+ * are looked up once, when the kernel is created, and the coordinates are
+ * read from a flat array where the coordinates of atom <code>i</code> (counting
+ * from <code>0</code>) are at <code>3 * i</code>, <code>3 * i + 1</code>, and
+ * <code>3 * i + 2</code>, as returned by
+ * {@link com.martinkampjensen.thesis.util.gromacs.XtcReader#next(float[])}.
+ * Calculating the angles allocates nothing.
+ * <p>
+ * The torsion angles are calculated using the same operations in the same
+ * order as <code>TorsionalAngle.calculateValue</code> of BioShell, which was
+ * used earlier, so the results are exactly the same.
+ * <p>
+ * Instances are immutable and may be shared between threads.
+ * 
+ * @see <a href="http://bioshell.chem.uw.edu.pl/">BioShell</a>
+ */
+public final class TorsionKernel
+{
+	private static final int ATOMS_WITHOUT_TORSION_ANGLE = 3;
+	private static final int DIMENSIONS = 3;
+
+	/**
+	 * The locations in the flat coordinate array of the first coordinate of
+	 * the four atoms defining each torsion angle.
+	 */
+	private final int[] _locations;
+
+	/**
+	 * Creates a kernel for a molecule.
+	 * 
+	 * @param torsionMatrix a matrix containing the ids of the atoms defining
+	 *        the torsion angles, as in
+	 *        {@link ImmutableModel#ImmutableModel(int, double, double[][], int[][])}.
+	 * @param nAtoms the number of atoms in the molecule.
+	 * @throws NullPointerException if <code>torsionMatrix == null</code>.
+	 * @throws IllegalArgumentException if <code>nAtoms</code> is less than
+	 *         <code>3</code>.
+	 */
+	public TorsionKernel(int[][] torsionMatrix, int nAtoms)
+	{
+		if(torsionMatrix == null) {
+			throw new NullPointerException("torsionMatrix == null");
+		}
+		else if(nAtoms < ATOMS_WITHOUT_TORSION_ANGLE) {
+			throw new IllegalArgumentException("nAtoms < "
+					+ ATOMS_WITHOUT_TORSION_ANGLE);
+		}
+
+		final int size = nAtoms - ATOMS_WITHOUT_TORSION_ANGLE;
+		final int torsionOffset = OpenBabelData.TORSION_LENGTH;
+		final int atomOffset = -1;
+		_locations = new int[4 * size];
+
+		for(int i = 0; i < size; i++) {
+			final int[] torsionRow = torsionMatrix[i + torsionOffset];
+
+			_locations[4 * i] = DIMENSIONS *
+			(torsionRow[OpenBabelData.TORSION_A] + atomOffset);
+			_locations[4 * i + 1] = DIMENSIONS *
+			(torsionRow[OpenBabelData.TORSION_B] + atomOffset);
+			_locations[4 * i + 2] = DIMENSIONS *
+			(torsionRow[OpenBabelData.TORSION_C] + atomOffset);
+			_locations[4 * i + 3] = DIMENSIONS *
+			(torsionRow[OpenBabelData.TORSION_D] + atomOffset);
+		}
+	}
+
+	/**
+	 * Returns the number of torsion angles.
+	 * 
+	 * @return the number of torsion angles.
+	 */
+	public int size()
+	{
+		return _locations.length / 4;
+	}
+
+	/**
+	 * Calculates the torsion angle values of a conformation in the interval
+	 * <code>[0; 2 * PI]</code>.
+	 * 
+	 * @param coordinates the flat array of atom coordinates.
+	 * @param angles the array to store the {@link #size()} angles in.
+	 * @throws IndexOutOfBoundsException if an array is too short.
+	 */
+	public void calculate(float[] coordinates, double[] angles)
+	{
+		final int[] locations = _locations;
+		final int size = locations.length / 4;
+
+		for(int i = 0; i < size; i++) {
+			final int a = locations[4 * i];
+			final int b = locations[4 * i + 1];
+			final int c = locations[4 * i + 2];
+			final int d = locations[4 * i + 3];
+
+			angles[i] = Util.ensureAngleInterval(dihedral(
+					coordinates[a], coordinates[a + 1], coordinates[a + 2],
+					coordinates[b], coordinates[b + 1], coordinates[b + 2],
+					coordinates[c], coordinates[c + 1], coordinates[c + 2],
+					coordinates[d], coordinates[d + 1], coordinates[d + 2]));
+		}
+	}
+
+	/**
+	 * Calculates the torsion angle values of a conformation in the interval
+	 * <code>[0; 2 * PI]</code>.
+	 * 
+	 * @param coordinates the flat array of atom coordinates.
+	 * @param angles the array to store the {@link #size()} angles in.
+	 * @throws IndexOutOfBoundsException if an array is too short.
+	 */
+	public void calculate(double[] coordinates, double[] angles)
+	{
+		final int[] locations = _locations;
+		final int size = locations.length / 4;
+
+		for(int i = 0; i < size; i++) {
+			final int a = locations[4 * i];
+			final int b = locations[4 * i + 1];
+			final int c = locations[4 * i + 2];
+			final int d = locations[4 * i + 3];
+
+			angles[i] = Util.ensureAngleInterval(dihedral(
+					coordinates[a], coordinates[a + 1], coordinates[a + 2],
+					coordinates[b], coordinates[b + 1], coordinates[b + 2],
+					coordinates[c], coordinates[c + 1], coordinates[c + 2],
+					coordinates[d], coordinates[d + 1], coordinates[d + 2]));
+		}
+	}
+
+	/**
+	 * Calculates the torsion (dihedral) angle defined by four atoms, in the
+	 * interval <code>[-PI; PI]</code>. With
+	 * <code>b1 = atom2 - atom1</code>, <code>b2 = atom3 - atom2</code>, and
+	 * <code>b3 = atom4 - atom3</code>, the angle is
+	 * <code>atan2(|b2| b1 &middot; (b2 &times; b3),
+	 * (b1 &times; b2) &middot; (b2 &times; b3))</code>.
+	 */
+	static double dihedral(double x1, double y1, double z1, double x2,
+			double y2, double z2, double x3, double y3, double z3, double x4,
+			double y4, double z4)
+	{
+		double b1x = x2 - x1;
+		double b1y = y2 - y1;
+		double b1z = z2 - z1;
+		final double b2x = x3 - x2;
+		final double b2y = y3 - y2;
+		final double b2z = z3 - z2;
+		final double b3x = x4 - x3;
+		final double b3y = y4 - y3;
+		final double b3z = z4 - z3;
+
+		// n1 = b1 x b2, n2 = b2 x b3.
+		final double n1x = b1y * b2z - b1z * b2y;
+		final double n1y = b1z * b2x - b1x * b2z;
+		final double n1z = b1x * b2y - b1y * b2x;
+		final double n2x = b2y * b3z - b2z * b3y;
+		final double n2y = b2z * b3x - b2x * b3z;
+		final double n2z = b2x * b3y - b2y * b3x;
+
+		final double b2Length = Math.sqrt(b2x * b2x + b2y * b2y + b2z * b2z);
+		b1x *= b2Length;
+		b1y *= b2Length;
+		b1z *= b2Length;
+
+		final double y = b1x * n2x + b1y * n2y + b1z * n2z;
+		final double x = n1x * n2x + n1y * n2y + n1z * n2z;
+
+		return Math.atan2(y, x);
+	}
+}
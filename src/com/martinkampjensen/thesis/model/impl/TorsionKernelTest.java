@@ -0,0 +1,75 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.martinkampjensen.thesis.model.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import jbcl.calc.structural.properties.TorsionalAngle;
+
+import org.junit.Test;
+
+import com.martinkampjensen.thesis.util.Random;
+import com.martinkampjensen.thesis.util.Util;
+import com.martinkampjensen.thesis.util.openbabel.OpenBabelData;
+
+/**
+ * This class defines tests for the {@link TorsionKernel} class.
+ */
+public class TorsionKernelTest
+{
+	@Test
+	public void test()
+	{
+		final int nAtoms = 12;
+		final int[][] torsionMatrix = new int[nAtoms + 1][];
+		final int offset = OpenBabelData.TORSION_LENGTH;
+
+		// Every torsion angle is defined by four atoms in scrambled order.
+		for(int i = offset; i <= nAtoms; i++) {
+			torsionMatrix[i] = new int[] { i, i - 2, i - 3, i - 1 };
+		}
+
+		final TorsionKernel kernel = new TorsionKernel(torsionMatrix, nAtoms);
+		assertEquals(nAtoms - 3, kernel.size());
+
+		final float[] flat = new float[3 * nAtoms];
+		final double[][] coordinates = new double[nAtoms][3];
+		final double[] angles = new double[kernel.size()];
+
+		for(int n = 0; n < 1000; n++) {
+			for(int k = 0; k < flat.length; k++) {
+				flat[k] = (float)Random.nextDouble(-10d, 10d);
+				coordinates[k / 3][k % 3] = flat[k];
+			}
+
+			kernel.calculate(flat, angles);
+
+			for(int i = 0; i < kernel.size(); i++) {
+				final int[] row = torsionMatrix[i + offset];
+				final double expected = Util.ensureAngleInterval(
+						TorsionalAngle.calculateValue(coordinates[row[0] - 1],
+								coordinates[row[1] - 1],
+								coordinates[row[2] - 1],
+								coordinates[row[3] - 1]));
+
+				assertEquals(Double.doubleToLongBits(expected),
+						Double.doubleToLongBits(angles[i]));
+			}
+		}
+	}
+}
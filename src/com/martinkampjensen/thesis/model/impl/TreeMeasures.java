@@ -0,0 +1,448 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.model.impl;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.collections.primitives.ArrayDoubleList;
+import org.apache.commons.collections.primitives.ArrayIntList;
+import org.apache.commons.collections.primitives.DoubleList;
+import org.apache.commons.collections.primitives.IntList;
+
+import com.martinkampjensen.thesis.model.Node;
+import com.martinkampjensen.thesis.util.Parallel;
+import com.martinkampjensen.thesis.util.Util;
+
+/**
+ * The measures of a barrier tree, calculated in a single iterative traversal
+ * of the tree. The traversal visits the leaves and the internal nodes in
+ * order, which is when the minimum and the minimum barrier are updated, and
+ * the internal nodes in post-order, which is when the number of leaves and
+ * the total barrier value of their subtrees are combined. The number of
+ * leaves does not depend on {@link Node#calculateWeight()}.
+ * <p>
+ * The total connection value depends on the minimum value of the forest
+ * containing the tree, so it is calculated in another traversal when it is
+ * needed for a minimum value, and kept until it is needed for another. The
+ * traversal sums <code>(v - m) * wl * wr</code> over the internal nodes in
+ * post-order, where <code>v</code> is the value of a node, <code>m</code> is
+ * the minimum value, and <code>wl</code> and <code>wr</code> are the weights
+ * of its children. The sum is left + right + node for every node, which is
+ * the order of a recursive traversal, so the rounding does not depend on
+ * the parts described below.
+ * <p>
+ * A tree with more than {@link #PART_LEAVES} leaves is divided into parts,
+ * which are subtrees with at most that many leaves. The parts of several
+ * trees are calculated in parallel, and the measures of every tree are then
+ * combined from the measures of its parts in a traversal of the nodes above
+ * them. The parts depend only on the tree, so the measures do not depend on
+ * the number of threads.
+ */
+final class TreeMeasures implements Serializable
+{
+	private static final long serialVersionUID = -4620874436307612590L;
+
+	/**
+	 * The maximum number of leaves in a part of a tree.
+	 */
+	static final int PART_LEAVES = 1 << 14;
+
+	private final Node _root;
+	private int _leaves;
+	private Node _min;
+	private Node _minBarrier;
+	private double _totalBarrierValue;
+	private double _connectionMinValue = Double.NaN;
+	private double _connectionValue;
+
+	private TreeMeasures(Node root, Node initial)
+	{
+		_root = root;
+		_min = initial;
+		_minBarrier = initial;
+	}
+
+	/**
+	 * Calculates the measures of a number of trees using
+	 * {@link Parallel#getThreads()} threads.
+	 * 
+	 * @param roots the roots of the trees.
+	 * @return the measures of the trees.
+	 */
+	static TreeMeasures[] calculate(Node[] roots)
+	{
+		final List<Map<Node, TreeMeasures>> parts = calculateParts(roots,
+				new PartCalculation<TreeMeasures>() {
+			@Override
+			public TreeMeasures calculate(Node part, int tree)
+			{
+				return TreeMeasures.calculate(part, null,
+						Collections.<Node, TreeMeasures>emptyMap());
+			}
+		});
+		final TreeMeasures[] measures = new TreeMeasures[roots.length];
+
+		for(int t = 0; t < roots.length; t++) {
+			measures[t] = calculate(roots[t], roots[t], parts.get(t));
+		}
+
+		return measures;
+	}
+
+	/**
+	 * Calculates the total connection values of a number of trees relative
+	 * to a minimum value using {@link Parallel#getThreads()} threads, so that
+	 * {@link #getTotalConnectionValue(double)} returns them without another
+	 * traversal.
+	 * 
+	 * @param measures the measures of the trees.
+	 * @param minValue the minimum value, e.g. of the forest containing the
+	 *        trees.
+	 */
+	static void calculateConnectionValues(TreeMeasures[] measures,
+			final double minValue)
+	{
+		final Node[] roots = new Node[measures.length];
+		for(int t = 0; t < roots.length; t++) {
+			roots[t] = measures[t]._root;
+		}
+
+		final List<Map<Node, Double>> parts = calculateParts(roots,
+				new PartCalculation<Double>() {
+			@Override
+			public Double calculate(Node part, int tree)
+			{
+				return calculateConnectionValue(part, minValue,
+						Collections.<Node, Double>emptyMap());
+			}
+		});
+
+		for(int t = 0; t < roots.length; t++) {
+			measures[t]._connectionValue =
+				calculateConnectionValue(roots[t], minValue, parts.get(t));
+			measures[t]._connectionMinValue = minValue;
+		}
+	}
+
+	/**
+	 * A calculation for a part of a tree.
+	 * 
+	 * @param <T> the type of the result.
+	 */
+	private interface PartCalculation<T>
+	{
+		T calculate(Node part, int tree);
+	}
+
+	/**
+	 * Divides a number of trees into parts, and calculates the parts in
+	 * parallel.
+	 * 
+	 * @return the results for the parts of each tree, by the roots of the
+	 *         parts.
+	 */
+	private static <T> List<Map<Node, T>> calculateParts(Node[] roots,
+			final PartCalculation<T> calculation)
+	{
+		final int nTrees = roots.length;
+		final List<Node> parts = new ArrayList<Node>();
+		final int[] starts = new int[nTrees];
+		final List<Callable<T>> tasks = new ArrayList<Callable<T>>();
+
+		for(int t = 0; t < nTrees; t++) {
+			starts[t] = parts.size();
+			parts.addAll(findParts(roots[t]));
+		}
+
+		for(int t = 0, p = 0; t < nTrees; t++) {
+			final int tree = t;
+			final int end = (t + 1 < nTrees ? starts[t + 1] : parts.size());
+
+			for(; p < end; p++) {
+				final Node part = parts.get(p);
+
+				tasks.add(new Callable<T>() {
+					@Override
+					public T call()
+					{
+						return calculation.calculate(part, tree);
+					}
+				});
+			}
+		}
+
+		final List<T> results =
+			Parallel.invokeAll(tasks, Parallel.getThreads());
+		final List<Map<Node, T>> partResults =
+			new ArrayList<Map<Node, T>>(nTrees);
+
+		for(int t = 0, p = 0; t < nTrees; t++) {
+			final int end = (t + 1 < nTrees ? starts[t + 1] : parts.size());
+			final Map<Node, T> treeResults = new IdentityHashMap<Node, T>();
+
+			for(; p < end; p++) {
+				treeResults.put(parts.get(p), results.get(p));
+			}
+
+			partResults.add(treeResults);
+		}
+
+		return partResults;
+	}
+
+	/**
+	 * Returns the roots of the parts of a tree, which is empty if the tree is
+	 * not divided. The stored weights are only used to choose the parts, so
+	 * they need not be correct.
+	 */
+	private static List<Node> findParts(Node root)
+	{
+		final List<Node> parts = new ArrayList<Node>();
+
+		if(root.getWeight() <= PART_LEAVES) {
+			return parts;
+		}
+
+		final Deque<Node> stack = new ArrayDeque<Node>();
+		stack.addFirst(root);
+
+		while(!stack.isEmpty()) {
+			final Node node = stack.removeFirst();
+
+			if(node.isLeaf() || node.getWeight() <= PART_LEAVES) {
+				parts.add(node);
+			}
+			else {
+				stack.addFirst(node.getRight());
+				stack.addFirst(node.getLeft());
+			}
+		}
+
+		return parts;
+	}
+
+	/**
+	 * Calculates the measures of a tree in a single traversal without
+	 * recursion. Subtrees whose measures are already known are not
+	 * traversed.
+	 * 
+	 * @param root the root of the tree.
+	 * @param initial the initial minimum and minimum barrier, or
+	 *        <code>null</code>.
+	 * @param parts the measures of subtrees, by their roots.
+	 * @return the measures.
+	 */
+	private static TreeMeasures calculate(Node root, Node initial,
+			Map<Node, TreeMeasures> parts)
+	{
+		final TreeMeasures measures = new TreeMeasures(root, initial);
+
+		// The measures of the subtrees that have been traversed, but whose
+		// parents have not, are kept on stacks.
+		final IntList leaves = new ArrayIntList();
+		final DoubleList barrierValues = new ArrayDoubleList();
+
+		final Deque<Node> stack = new ArrayDeque<Node>();
+		Node node = root;
+		Node last = null;
+
+		while(node != null || !stack.isEmpty()) {
+			if(node != null) {
+				final TreeMeasures part = parts.get(node);
+
+				if(part != null) {
+					measures.updateMinimum(part._min);
+					measures.updateMinimumBarrier(part._minBarrier);
+					leaves.add(part._leaves);
+					barrierValues.add(part._totalBarrierValue);
+					last = node;
+					node = null;
+				}
+				else if(node.isLeaf()) {
+					measures.updateMinimum(node);
+					leaves.add(1);
+					barrierValues.add(0d);
+					last = node;
+					node = null;
+				}
+				else {
+					stack.addFirst(node);
+					node = node.getLeft();
+				}
+			}
+			else {
+				final Node parent = stack.peekFirst();
+
+				if(last == parent.getLeft()) {
+					// In-order.
+					measures.updateMinimumBarrier(parent);
+					node = parent.getRight();
+				}
+				else {
+					// Post-order.
+					stack.removeFirst();
+					final int top = leaves.size() - 1;
+					final int rightLeaves = leaves.removeElementAt(top);
+					final int leftLeaves = leaves.removeElementAt(top - 1);
+					final double rightBarrierValue =
+						barrierValues.removeElementAt(top);
+					final double leftBarrierValue =
+						barrierValues.removeElementAt(top - 1);
+
+					leaves.add(leftLeaves + rightLeaves);
+					barrierValues.add(leftBarrierValue + rightBarrierValue
+							+ parent.getValue());
+					last = parent;
+				}
+			}
+		}
+
+		measures._leaves = leaves.get(0);
+		measures._totalBarrierValue = barrierValues.get(0);
+
+		return measures;
+	}
+
+	/**
+	 * Calculates the total connection value of a tree relative to a minimum
+	 * value in a post-order traversal without recursion. Subtrees whose total
+	 * connection values are already known are not traversed.
+	 * 
+	 * @param root the root of the tree.
+	 * @param minValue the minimum value.
+	 * @param parts the total connection values of subtrees, by their roots.
+	 * @return the total connection value.
+	 */
+	private static double calculateConnectionValue(Node root, double minValue,
+			Map<Node, Double> parts)
+	{
+		// The total connection values of the subtrees that have been
+		// traversed, but whose parents have not, are kept on a stack.
+		final DoubleList connectionValues = new ArrayDoubleList();
+
+		final Deque<Node> stack = new ArrayDeque<Node>();
+		Node node = root;
+		Node last = null;
+
+		while(node != null || !stack.isEmpty()) {
+			if(node != null) {
+				final Double part = parts.get(node);
+
+				if(part != null || node.isLeaf()) {
+					connectionValues.add(part != null ? part : 0d);
+					last = node;
+					node = null;
+				}
+				else {
+					stack.addFirst(node);
+					node = node.getLeft();
+				}
+			}
+			else {
+				final Node parent = stack.peekFirst();
+
+				if(last == parent.getLeft()) {
+					node = parent.getRight();
+				}
+				else {
+					stack.removeFirst();
+					final int top = connectionValues.size() - 1;
+					final double rightConnectionValue =
+						connectionValues.removeElementAt(top);
+					final double leftConnectionValue =
+						connectionValues.removeElementAt(top - 1);
+					final double nodeConnectionValue =
+						(parent.getValue() - minValue)
+						* parent.getLeft().getWeight()
+						* parent.getRight().getWeight();
+
+					connectionValues.add(leftConnectionValue
+							+ rightConnectionValue + nodeConnectionValue);
+					last = parent;
+				}
+			}
+		}
+
+		return connectionValues.get(0);
+	}
+
+	private void updateMinimum(Node candidate)
+	{
+		if(_min == null || Util.isLess(candidate.getValue(), _min.getValue())) {
+			_min = candidate;
+		}
+	}
+
+	private void updateMinimumBarrier(Node candidate)
+	{
+		if(candidate != null && (_minBarrier == null
+				|| Util.isLess(candidate.getValue(), _minBarrier.getValue()))) {
+			_minBarrier = candidate;
+		}
+	}
+
+	int getNumberOfLeaves()
+	{
+		return _leaves;
+	}
+
+	Node getMinimum()
+	{
+		return _min;
+	}
+
+	/**
+	 * Returns the internal node with the minimum value, or the root if the
+	 * tree has no internal nodes.
+	 */
+	Node getMinimumBarrier()
+	{
+		return _minBarrier;
+	}
+
+	double getTotalBarrierValue()
+	{
+		return _totalBarrierValue;
+	}
+
+	/**
+	 * Returns the total connection value when the connection values are
+	 * relative to a minimum value. The tree is traversed unless the total
+	 * connection value was last calculated for the same minimum value.
+	 * 
+	 * @param minValue the minimum value, e.g. of the forest containing the
+	 *        tree.
+	 * @return the total connection value.
+	 * @see #calculateConnectionValues(TreeMeasures[], double)
+	 */
+	double getTotalConnectionValue(double minValue)
+	{
+		if(Double.compare(minValue, _connectionMinValue) != 0) {
+			calculateConnectionValues(new TreeMeasures[] { this }, minValue);
+		}
+
+		return _connectionValue;
+	}
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.util;
+
+import java.io.Serializable;
+
+/**
+ * Finds lowest common ancestors in constant time. The nodes of one or more
+ * trees are identified by their positions in pre-order, where the nodes of
+ * every tree are consecutive, and are described by the positions of their
+ * parents and by their depths.
+ * <p>
+ * For two nodes <code>u</code> and <code>v</code> with positions
+ * <code>u &lt; v</code>, the nodes in the range <code>(u; v]</code> are in
+ * subtrees of the children of their lowest common ancestor, and the range
+ * includes the child on the path to <code>v</code>. Hence, the lowest common
+ * ancestor is the parent of any node of minimum depth in the range. The
+ * range minimum is found using a sparse table over blocks of
+ * {@link #BLOCK_SIZE} depths, and by scanning the blocks at the ends of the
+ * range. This takes constant time but much less memory than a sparse table
+ * over all depths, or one over an Euler tour of the trees.
+ * 
+ * @see <a href="http://en.wikipedia.org/wiki/Range_minimum_query">Range minimum query</a>
+ */
+public final class AncestorIndex implements Serializable
+{
+	private static final long serialVersionUID = 6023314760520386071L;
+	private static final int BLOCK_BITS = 5;
+	private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+
+	private final int[] _parents;
+	private final int[] _depths;
+
+	/**
+	 * The position of a node of minimum depth in the blocks
+	 * <code>[b; b + 2^k)</code> is <code>_table[k][b]</code>.
+	 */
+	private final int[][] _table;
+
+	/**
+	 * Creates an index over the nodes of one or more trees in pre-order.
+	 * 
+	 * @param parents the positions of the parents of the nodes, or
+	 *        <code>-1</code> for roots.
+	 * @param depths the depths of the nodes.
+	 * @throws IllegalArgumentException if the arrays do not have the same
+	 *         length.
+	 */
+	public AncestorIndex(int[] parents, int[] depths)
+	{
+		if(parents.length != depths.length) {
+			throw new IllegalArgumentException(
+					"parents.length != depths.length");
+		}
+
+		_parents = parents;
+		_depths = depths;
+
+		final int nBlocks = (depths.length + BLOCK_SIZE - 1) >>> BLOCK_BITS;
+		final int nLevels = 32 - Integer.numberOfLeadingZeros(nBlocks);
+		_table = new int[nLevels][];
+
+		if(nLevels == 0) {
+			return;
+		}
+
+		_table[0] = new int[nBlocks];
+		for(int b = 0; b < nBlocks; b++) {
+			final int start = b << BLOCK_BITS;
+			_table[0][b] = scan(start,
+					Math.min(start + BLOCK_SIZE, depths.length) - 1);
+		}
+
+		for(int k = 1; k < nLevels; k++) {
+			final int[] previous = _table[k - 1];
+			final int half = 1 << (k - 1);
+			final int[] level = new int[nBlocks - (1 << k) + 1];
+
+			for(int b = 0; b < level.length; b++) {
+				level[b] = shallower(previous[b], previous[b + half]);
+			}
+
+			_table[k] = level;
+		}
+	}
+
+	/**
+	 * Returns the number of nodes in this index.
+	 * 
+	 * @return the number of nodes.
+	 */
+	public int size()
+	{
+		return _depths.length;
+	}
+
+	/**
+	 * Returns the lowest common ancestor of two nodes in the same tree.
+	 * 
+	 * @param first the position of the first node.
+	 * @param second the position of the second node.
+	 * @return the position of the lowest common ancestor.
+	 */
+	public int lowestCommonAncestor(int first, int second)
+	{
+		if(first == second) {
+			return first;
+		}
+
+		final int lo = Math.min(first, second) + 1;
+		final int hi = Math.max(first, second);
+
+		return _parents[minimum(lo, hi)];
+	}
+
+	/**
+	 * Returns the position of a node of minimum depth in the range
+	 * <code>[lo; hi]</code>.
+	 */
+	private int minimum(int lo, int hi)
+	{
+		final int loBlock = lo >>> BLOCK_BITS;
+		final int hiBlock = hi >>> BLOCK_BITS;
+
+		if(loBlock == hiBlock) {
+			return scan(lo, hi);
+		}
+
+		int minimum = shallower(scan(lo, ((loBlock + 1) << BLOCK_BITS) - 1),
+				scan(hiBlock << BLOCK_BITS, hi));
+
+		if(hiBlock - loBlock > 1) {
+			final int from = loBlock + 1;
+			final int length = hiBlock - from;
+			final int k = 31 - Integer.numberOfLeadingZeros(length);
+
+			minimum = shallower(minimum, shallower(_table[k][from],
+					_table[k][hiBlock - (1 << k)]));
+		}
+
+		return minimum;
+	}
+
+	private int scan(int lo, int hi)
+	{
+		int minimum = lo;
+
+		for(int i = lo + 1; i <= hi; i++) {
+			if(_depths[i] < _depths[minimum]) {
+				minimum = i;
+			}
+		}
+
+		return minimum;
+	}
+
+	private int shallower(int first, int second)
+	{
+		return (_depths[second] < _depths[first] ? second : first);
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.util;
+
+/**
+ * A disjoint-set forest (union-find) over the elements
+ * <code>0, 1, ..., size - 1</code> using union by rank and path compression.
+ * Initially, every element is in a set of its own.
+ * 
+ * @see <a href="http://en.wikipedia.org/wiki/Disjoint-set_data_structure">Disjoint-set data structure</a>
+ */
+public final class DisjointSet
+{
+	private final int[] _parents;
+	private final byte[] _ranks;
+	private int _sets;
+
+	/**
+	 * Creates a disjoint-set forest where every element is in a set of its
+	 * own.
+	 * 
+	 * @param size the number of elements.
+	 * @throws IllegalArgumentException if <code>size &lt; 0</code>.
+	 */
+	public DisjointSet(int size)
+	{
+		if(size < 0) {
+			throw new IllegalArgumentException("size < 0");
+		}
+
+		_parents = new int[size];
+		_ranks = new byte[size];
+		_sets = size;
+
+		for(int i = 0; i < size; i++) {
+			_parents[i] = i;
+		}
+	}
+
+	/**
+	 * Returns the number of elements.
+	 * 
+	 * @return the number of elements.
+	 */
+	public int size()
+	{
+		return _parents.length;
+	}
+
+	/**
+	 * Returns the number of disjoint sets.
+	 * 
+	 * @return the number of sets.
+	 */
+	public int getNumberOfSets()
+	{
+		return _sets;
+	}
+
+	/**
+	 * Finds the representative (root) of the set containing an element, and
+	 * compresses the path from the element to the root.
+	 * 
+	 * @param element the element.
+	 * @return the representative of the set containing <code>element</code>.
+	 */
+	public int find(int element)
+	{
+		int root = element;
+		while(_parents[root] != root) {
+			root = _parents[root];
+		}
+
+		while(_parents[element] != root) {
+			final int parent = _parents[element];
+			_parents[element] = root;
+			element = parent;
+		}
+
+		return root;
+	}
+
+	/**
+	 * Finds the representative (root) of the set containing an element without
+	 * modifying the forest.
+	 * <p>
+	 * Unlike {@link #find(int)}, this method may be called by other threads
+	 * while one thread modifies the forest, provided that the other threads
+	 * have seen the forest as it was created, e.g. because they were started
+	 * afterwards. Such a thread may then see an older state of the forest, so
+	 * the returned element is not necessarily the current representative, but
+	 * it is always in the same set as <code>element</code>. This is because
+	 * sets are only ever merged, and every parent that has ever been recorded
+	 * is in the same set as its child. The traversal always ends, as the rank
+	 * of a parent is greater than the final rank of its child.
+	 * 
+	 * @param element the element.
+	 * @return an element in the same set as <code>element</code>.
+	 */
+	public int findWithoutCompression(int element)
+	{
+		int root = element;
+		int parent;
+
+		while((parent = _parents[root]) != root) {
+			root = parent;
+		}
+
+		return root;
+	}
+
+	/**
+	 * Merges the sets containing two elements.
+	 * 
+	 * @param first the first element.
+	 * @param second the second element.
+	 * @return the representative of the merged set, or <code>-1</code> if the
+	 *         elements were already in the same set.
+	 */
+	public int union(int first, int second)
+	{
+		int firstRoot = find(first);
+		int secondRoot = find(second);
+
+		if(firstRoot == secondRoot) {
+			return -1;
+		}
+
+		if(_ranks[firstRoot] < _ranks[secondRoot]) {
+			final int root = firstRoot;
+			firstRoot = secondRoot;
+			secondRoot = root;
+		}
+		else if(_ranks[firstRoot] == _ranks[secondRoot]) {
+			_ranks[firstRoot]++;
+		}
+
+		_parents[secondRoot] = firstRoot;
+		_sets--;
+
+		return firstRoot;
+	}
+}
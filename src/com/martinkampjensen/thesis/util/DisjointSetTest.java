@@ -0,0 +1,57 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * This class defines tests of the {@link DisjointSet} class.
+ */
+public final class DisjointSetTest
+{
+	@Test
+	public void testUnion()
+	{
+		final int size = 100;
+		final DisjointSet sets = new DisjointSet(size);
+		assertEquals(size, sets.getNumberOfSets());
+
+		// Merge elements with the same remainder modulo 7.
+		for(int i = 7; i < size; i++) {
+			final int root = sets.union(i, i - 7);
+			assertTrue(root == sets.find(i) && root == sets.find(i - 7));
+		}
+
+		assertEquals(7, sets.getNumberOfSets());
+		assertEquals(-1, sets.union(3, 94));
+
+		for(int i = 0; i < size; i++) {
+			for(int j = 0; j < size; j++) {
+				assertEquals(i % 7 == j % 7, sets.find(i) == sets.find(j));
+				assertEquals(i % 7 == j % 7, sets.findWithoutCompression(i)
+						== sets.findWithoutCompression(j));
+			}
+		}
+
+		assertFalse(sets.union(0, 1) == -1);
+		assertEquals(6, sets.getNumberOfSets());
+	}
+}
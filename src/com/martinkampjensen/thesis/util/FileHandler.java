@@ -22,6 +22,10 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
 
 import com.martinkampjensen.thesis.Main;
 import com.martinkampjensen.thesis.StatusCode;
@@ -68,6 +72,65 @@ public final class FileHandler
 		return null;
 	}
 
+	/**
+	 * Expands a list of file names and glob patterns into a list of files. The
+	 * elements of the list are separated by {@link File#pathSeparator}. In an
+	 * element, the last name (the part after the last separator) may contain
+	 * the wildcards <code>*</code>, which matches any number of characters,
+	 * and <code>?</code>, which matches a single character. An element with
+	 * wildcards is replaced by the matching files in the directory, sorted by
+	 * name, while an element without wildcards is used as is, whether or not
+	 * the file exists.
+	 * <p>
+	 * For example, on Unix, <code>replica_0/traj_*.xtc:replica_1/traj.xtc</code>
+	 * is the files in <code>replica_0</code> whose names start with
+	 * <code>traj_</code> and end with <code>.xtc</code>, followed by
+	 * <code>replica_1/traj.xtc</code>. Wildcards in directory names are not
+	 * expanded.
+	 * 
+	 * @param patterns the file names and glob patterns.
+	 * @return a list of files, which is empty if no files match.
+	 */
+	public static List<File> expand(String patterns)
+	{
+		final List<File> files = new ArrayList<File>();
+
+		for(String pattern : patterns.split(Pattern.quote(File.pathSeparator))) {
+			if(pattern.length() == 0) {
+				continue;
+			}
+
+			final File file = new File(pattern);
+			final String name = file.getName();
+
+			if(name.indexOf('*') == -1 && name.indexOf('?') == -1) {
+				files.add(file);
+				continue;
+			}
+
+			final File directory = (file.getParentFile() == null ?
+					new File(".") : file.getParentFile());
+			final String[] names = directory.list();
+
+			if(names == null) {
+				continue;
+			}
+
+			final Pattern glob = glob(name);
+			Arrays.sort(names);
+
+			for(int i = 0; i < names.length; i++) {
+				if(glob.matcher(names[i]).matches()) {
+					files.add(file.getParentFile() == null ?
+							new File(names[i]) :
+								new File(file.getParentFile(), names[i]));
+				}
+			}
+		}
+
+		return files;
+	}
+
 	public static void write(String string, String fileName)
 	{
 		write(string, new File(fileName));
@@ -87,4 +150,33 @@ public final class FileHandler
 			Main.errorExit(e, StatusCode.IO);
 		}
 	}
+
+	/**
+	 * Converts a glob pattern with the wildcards <code>*</code> and
+	 * <code>?</code> into a regular expression.
+	 */
+	private static Pattern glob(String glob)
+	{
+		final StringBuilder regex = new StringBuilder(2 * glob.length());
+		int literalStart = 0;
+
+		for(int i = 0; i < glob.length(); i++) {
+			final char c = glob.charAt(i);
+
+			if(c == '*' || c == '?') {
+				if(literalStart < i) {
+					regex.append(Pattern.quote(glob.substring(literalStart, i)));
+				}
+
+				regex.append(c == '*' ? ".*" : ".");
+				literalStart = i + 1;
+			}
+		}
+
+		if(literalStart < glob.length()) {
+			regex.append(Pattern.quote(glob.substring(literalStart)));
+		}
+
+		return Pattern.compile(regex.toString());
+	}
 }
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.martinkampjensen.thesis.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * This class defines tests for the {@link FileHandler} class.
+ */
+public class FileHandlerTest
+{
+	@Test
+	public void testExpand() throws IOException
+	{
+		final File directory = File.createTempFile("filehandlertest", null);
+		directory.delete();
+		directory.mkdir();
+
+		final String[] names = { "replica_10.xtc", "replica_2.xtc",
+				"replica_1.edr", "replica_1.xtc", "replica.xtc" };
+		for(int i = 0; i < names.length; i++) {
+			new File(directory, names[i]).createNewFile();
+		}
+
+		try {
+			final String separator = File.pathSeparator;
+
+			// Matches are sorted by name.
+			assertEquals(Arrays.asList(new File(directory, "replica_1.xtc"),
+					new File(directory, "replica_10.xtc"),
+					new File(directory, "replica_2.xtc")),
+					FileHandler.expand(new File(directory, "replica_*.xtc")
+					.getPath()));
+
+			assertEquals(Arrays.asList(new File(directory, "replica_1.xtc"),
+					new File(directory, "replica_2.xtc")),
+					FileHandler.expand(new File(directory, "replica_?.xtc")
+					.getPath()));
+
+			// Elements without wildcards are kept, even if they do not exist.
+			final File missing = new File(directory, "missing.xtc");
+			final List<File> files = FileHandler.expand(missing.getPath()
+					+ separator + new File(directory, "*.edr").getPath()
+					+ separator);
+			assertEquals(Arrays.asList(missing,
+					new File(directory, "replica_1.edr")), files);
+
+			assertTrue(FileHandler.expand(new File(directory, "*.trr")
+			.getPath()).isEmpty());
+		}
+		finally {
+			for(int i = 0; i < names.length; i++) {
+				new File(directory, names[i]).delete();
+			}
+
+			directory.delete();
+		}
+	}
+}
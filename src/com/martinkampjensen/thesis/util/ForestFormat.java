@@ -0,0 +1,748 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.martinkampjensen.thesis.barriers.neighborhood.Neighborhood;
+import com.martinkampjensen.thesis.model.BarrierForest;
+import com.martinkampjensen.thesis.model.BarrierTree;
+import com.martinkampjensen.thesis.model.Model;
+import com.martinkampjensen.thesis.model.Node;
+import com.martinkampjensen.thesis.model.impl.BarrierForestImpl;
+import com.martinkampjensen.thesis.model.impl.BarrierTreeImpl;
+import com.martinkampjensen.thesis.model.impl.ImmutableModel;
+import com.martinkampjensen.thesis.model.impl.NodeImpl;
+
+/**
+ * A compact binary format for barrier forests whose models are defined by
+ * their ids, energy values and torsion angle values, as created by
+ * {@link com.martinkampjensen.thesis.barriers.TrajectoryConstructor}. Unlike
+ * Java serialization, the forest is written and read iteratively, so deep
+ * trees do not overflow the stack, and the values are transferred in bulk
+ * using NIO buffers.
+ * <p>
+ * All values are big-endian. A file consists of:
+ * <ol>
+ * <li>A header: {@link #MAGIC}, the version, the type of the forest, the
+ * number of models used, the pruning and neighbor thresholds, the class name
+ * of the neighborhood, the PDB of the molecule, the paths of the
+ * trajectories, and the numbers of trees, nodes, models, angles per model
+ * and atoms per model (<code>0</code> if there is no coordinate block).
+ * Strings are stored as their length in bytes (<code>-1</code> for
+ * <code>null</code>) followed by their UTF-8 encoding.</li>
+ * <li>The tree table: the index of the root node of every tree.</li>
+ * <li>The node table: a record of {@link #NODE_BYTES} bytes per node with
+ * the id, the indexes of the left and right children (<code>-1</code> for a
+ * leaf), the weight, the index of the model, the number of additional models,
+ * and the index of the parent (<code>-1</code> for a root). The nodes of every
+ * tree are in post-order, so children precede their parents, and the
+ * additional models of a node follow its model.</li>
+ * <li>The id index: the {@link IdIndex#capacity(int)} slots of an
+ * {@link IdIndex} over the ids of the nodes, each holding the index of a node
+ * or <code>-1</code>.</li>
+ * <li>The model block, in columns: the ids, the energy values, and the
+ * angles of the models.</li>
+ * <li>The optional coordinate block: a byte per model that is
+ * <code>1</code> if coordinates are attached, followed by the coordinates
+ * of every model (zeros if none are attached).</li>
+ * </ol>
+ * Everything after the header has a fixed size given by the counts in the
+ * header, so every record can be located without reading the ones before it.
+ * This is used by {@link MappedForest} to access a forest without reading
+ * it.
+ */
+final class ForestFormat
+{
+	/**
+	 * The first four bytes of a file in this format. As they differ from the
+	 * first four bytes of a ZIP file, files in this format and files written
+	 * using Java serialization can be told apart.
+	 */
+	static final int MAGIC = 0x42465354;
+
+	/**
+	 * The number of bytes in a record of the node table.
+	 */
+	static final int NODE_BYTES = 7 * 4;
+
+	private static final int BUFFER_SIZE = 1 << 20;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private ForestFormat()
+	{
+	}
+
+	/**
+	 * Returns whether or not a file is in this format.
+	 * 
+	 * @param file the file.
+	 * @return <code>true</code> if and only if the file starts with
+	 *         {@link #MAGIC}.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	static boolean isForestFormat(File file) throws IOException
+	{
+		final FileInputStream in = new FileInputStream(file);
+
+		try {
+			final ByteBuffer buffer = ByteBuffer.allocate(4);
+			final FileChannel channel = in.getChannel();
+
+			while(buffer.hasRemaining()) {
+				if(channel.read(buffer) == -1) {
+					return false;
+				}
+			}
+
+			return buffer.getInt(0) == MAGIC;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes a barrier forest to a file in version
+	 * {@link Serialize#BARRIER_FOREST_VERSION}.
+	 * 
+	 * @param file the file to write to.
+	 * @param typeId the id of the type of the forest.
+	 * @param pdb the PDB of the molecule used to create the forest.
+	 * @param trajectoryPaths the paths of the trajectories used to create the
+	 *        forest, or <code>null</code>.
+	 * @param forest the forest.
+	 * @throws IOException if an I/O error occurs.
+	 * @throws IllegalArgumentException if the models of the forest do not
+	 *         have the same number of angles.
+	 */
+	static void write(File file, int typeId, String pdb,
+			String[] trajectoryPaths, BarrierForest forest) throws IOException
+	{
+		final int nTrees = forest.getNumberOfTrees();
+		final List<Node> nodes = new ArrayList<Node>();
+		final int[] roots = new int[nTrees];
+
+		for(int t = 0; t < nTrees; t++) {
+			addPostOrder(forest.getTree(t).getRoot(), nodes);
+			roots[t] = nodes.size() - 1;
+		}
+
+		// Number the nodes and models in the order they are written.
+		final int nNodes = nodes.size();
+		final Map<Node, Integer> indexes =
+			new IdentityHashMap<Node, Integer>(nNodes);
+		final int[] parents = new int[nNodes];
+		final List<Model> models = new ArrayList<Model>(nNodes);
+		int nAtoms = 0;
+
+		for(int i = 0; i < nNodes; i++) {
+			final Node node = nodes.get(i);
+			indexes.put(node, i);
+			parents[i] = -1;
+			models.add(node.getModel());
+
+			if(node.hasAdditionalModels()) {
+				models.addAll(node.getAdditionalModels());
+			}
+
+			if(node.isInternal()) {
+				parents[indexes.get(node.getLeft())] = i;
+				parents[indexes.get(node.getRight())] = i;
+			}
+		}
+
+		final int nModels = models.size();
+		final int nAngles = (nModels == 0 ? 0 : models.get(0).size());
+
+		for(int i = 0; i < nModels; i++) {
+			final Model model = models.get(i);
+
+			if(model.size() != nAngles) {
+				throw new IllegalArgumentException(
+						"The models do not have the same number of angles");
+			}
+
+			final double[][] coordinates = coordinates(model);
+			if(coordinates != null) nAtoms = coordinates.length;
+		}
+
+		final Neighborhood neighborhood = forest.getNeighborhood();
+		final FileOutputStream stream = new FileOutputStream(file);
+		final Writer out = new Writer(stream.getChannel());
+
+		try {
+			out.putInt(MAGIC);
+			out.putInt(Serialize.BARRIER_FOREST_VERSION);
+			out.putInt(typeId);
+			out.putInt(forest.modelsUsed());
+			out.putDouble(forest.getPruningThreshold());
+			out.putDouble(forest.getNeighborThreshold());
+			out.putString(neighborhood == null ?
+					null : neighborhood.getClass().getName());
+			out.putString(pdb);
+			out.putInt(trajectoryPaths == null ? -1 : trajectoryPaths.length);
+			if(trajectoryPaths != null) {
+				for(int i = 0; i < trajectoryPaths.length; i++) {
+					out.putString(trajectoryPaths[i]);
+				}
+			}
+			out.putInt(nTrees);
+			out.putInt(nNodes);
+			out.putInt(nModels);
+			out.putInt(nAngles);
+			out.putInt(nAtoms);
+
+			for(int t = 0; t < nTrees; t++) {
+				out.putInt(roots[t]);
+			}
+
+			for(int i = 0, model = 0; i < nNodes; i++) {
+				final Node node = nodes.get(i);
+				final int nAdditional = node.getAdditionalModelsCount();
+
+				out.putInt(node.getId());
+				out.putInt(node.isLeaf() ? -1 : indexes.get(node.getLeft()));
+				out.putInt(node.isLeaf() ? -1 : indexes.get(node.getRight()));
+				out.putInt(node.getWeight());
+				out.putInt(model);
+				out.putInt(nAdditional);
+				out.putInt(parents[i]);
+				model += 1 + nAdditional;
+			}
+
+			final int[] nodeIds = new int[nNodes];
+			for(int i = 0; i < nNodes; i++) {
+				nodeIds[i] = nodes.get(i).getId();
+			}
+
+			final IdIndex index = new IdIndex(nodeIds);
+			for(int s = 0, n = index.getCapacity(); s < n; s++) {
+				out.putInt(index.getPosition(s));
+			}
+
+			for(int i = 0; i < nModels; i++) {
+				out.putInt(models.get(i).getId());
+			}
+
+			for(int i = 0; i < nModels; i++) {
+				out.putDouble(models.get(i).evaluate());
+			}
+
+			for(int i = 0; i < nModels; i++) {
+				final Model model = models.get(i);
+
+				for(int a = 0; a < nAngles; a++) {
+					out.putDouble(model.getAngle(a));
+				}
+			}
+
+			if(nAtoms != 0) {
+				for(int i = 0; i < nModels; i++) {
+					out.putByte(coordinates(models.get(i)) == null ? 0 : 1);
+				}
+
+				for(int i = 0; i < nModels; i++) {
+					final double[][] coordinates = coordinates(models.get(i));
+
+					for(int k = 0; k < nAtoms; k++) {
+						for(int d = 0; d < 3; d++) {
+							out.putDouble(coordinates == null ?
+									0d : coordinates[k][d]);
+						}
+					}
+				}
+			}
+
+			out.flush();
+		}
+		finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Reads a barrier forest from a file.
+	 * 
+	 * @param file the file to read from.
+	 * @return the forest and the additional data.
+	 * @throws IOException if an I/O error occurs, or if the file is not in
+	 *         this format or is truncated.
+	 */
+	static Serialize.BarrierForestStructure read(File file) throws IOException
+	{
+		final FileInputStream stream = new FileInputStream(file);
+		final Reader in = new Reader(stream.getChannel());
+
+		try {
+			final Header header = new Header(in, file);
+			final int nTrees = header.nTrees;
+			final int nNodes = header.nNodes;
+			final int nModels = header.nModels;
+			final int nAngles = header.nAngles;
+			final int nAtoms = header.nAtoms;
+			final int nodeInts = NODE_BYTES / 4;
+
+			final int[] roots = new int[nTrees];
+			in.getInts(roots, 0, nTrees);
+
+			final int[] table = new int[nodeInts * nNodes];
+			in.getInts(table, 0, table.length);
+			in.skip(header.ids() - header.idIndex());
+
+			final int[] ids = new int[nModels];
+			in.getInts(ids, 0, nModels);
+
+			final double[] energies = new double[nModels];
+			in.getDoubles(energies, 0, nModels);
+
+			final ImmutableModel[] models = new ImmutableModel[nModels];
+			for(int i = 0; i < nModels; i++) {
+				final double[] angles = new double[nAngles];
+				in.getDoubles(angles, 0, nAngles);
+				models[i] = new ImmutableModel(ids[i], energies[i], angles);
+			}
+
+			if(nAtoms != 0) {
+				final byte[] hasCoordinates = new byte[nModels];
+				in.getBytes(hasCoordinates);
+
+				final double[] values = new double[3 * nAtoms];
+				final double[][] coordinates = new double[nAtoms][3];
+
+				for(int i = 0; i < nModels; i++) {
+					in.getDoubles(values, 0, values.length);
+					if(hasCoordinates[i] == 0) continue;
+
+					for(int k = 0; k < nAtoms; k++) {
+						System.arraycopy(values, 3 * k, coordinates[k], 0, 3);
+					}
+
+					models[i].attachCoordinates(coordinates);
+				}
+			}
+
+			// Children precede their parents, so every node can be created
+			// with its children.
+			final Node[] nodes = new Node[nNodes];
+			for(int i = 0, r = 0; i < nNodes; i++, r += nodeInts) {
+				final int left = table[r + 1];
+				final int right = table[r + 2];
+				final int model = table[r + 4];
+				final int nAdditional = table[r + 5];
+				final Node node = (left == -1 ?
+						new NodeImpl(table[r], models[model]) :
+							new NodeImpl(table[r], models[model], nodes[left],
+									nodes[right]));
+
+				for(int k = 1; k <= nAdditional; k++) {
+					node.addAdditionalModel(models[model + k]);
+				}
+
+				nodes[i] = node;
+			}
+
+			final BarrierTree[] trees = new BarrierTree[nTrees];
+			for(int t = 0; t < nTrees; t++) {
+				trees[t] = new BarrierTreeImpl(nodes[roots[t]], true);
+			}
+
+			final BarrierForest forest = new BarrierForestImpl(trees,
+					header.modelsUsed, header.pruningThreshold,
+					header.neighborThreshold, header.neighborhood(), true);
+
+			return new Serialize.BarrierForestStructure(header.typeId,
+					header.pdb, header.trajectoryPaths, forest);
+		}
+		finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Opens a file as a {@link MappedForest}, which reads nothing but the
+	 * header until the forest is used.
+	 * 
+	 * @param file the file to open.
+	 * @return the forest and the additional data.
+	 * @throws IOException if an I/O error occurs, or if the file is not in
+	 *         this format or is truncated.
+	 */
+	static Serialize.BarrierForestStructure map(File file) throws IOException
+	{
+		final FileInputStream stream = new FileInputStream(file);
+
+		try {
+			final FileChannel channel = stream.getChannel();
+			final Header header = new Header(new Reader(channel), file);
+
+			final BarrierForest forest =
+				new MappedForest(file, channel, header);
+
+			return new Serialize.BarrierForestStructure(header.typeId,
+					header.pdb, header.trajectoryPaths, forest);
+		}
+		finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * The header of a file, and the positions of the blocks that follow it.
+	 */
+	static final class Header
+	{
+		final int version;
+		final int typeId;
+		final int modelsUsed;
+		final double pruningThreshold;
+		final double neighborThreshold;
+		final String neighborhoodName;
+		final String pdb;
+		final String[] trajectoryPaths;
+		final int nTrees;
+		final int nNodes;
+		final int nModels;
+		final int nAngles;
+		final int nAtoms;
+		final long length;
+
+		/**
+		 * Reads the header from the start of a file.
+		 */
+		private Header(Reader in, File file) throws IOException
+		{
+			if(in.getInt() != MAGIC) {
+				throw new IOException("\"" + file.getName()
+						+ "\" is not a barrier forest");
+			}
+
+			version = in.getInt();
+			if(version != Serialize.BARRIER_FOREST_VERSION) {
+				throw new IOException("Unsupported barrier forest version "
+						+ version);
+			}
+
+			typeId = in.getInt();
+			modelsUsed = in.getInt();
+			pruningThreshold = in.getDouble();
+			neighborThreshold = in.getDouble();
+			neighborhoodName = in.getString();
+			pdb = in.getString();
+			final int nTrajectories = in.getInt();
+			if(nTrajectories >= 0) {
+				trajectoryPaths = new String[nTrajectories];
+				for(int i = 0; i < nTrajectories; i++) {
+					trajectoryPaths[i] = in.getString();
+				}
+			}
+			else {
+				trajectoryPaths = null;
+			}
+			nTrees = in.getInt();
+			nNodes = in.getInt();
+			nModels = in.getInt();
+			nAngles = in.getInt();
+			nAtoms = in.getInt();
+			length = in.position();
+		}
+
+		Neighborhood neighborhood()
+		{
+			return (neighborhoodName == null ?
+					null : Util.<Neighborhood>instantiate(neighborhoodName));
+		}
+
+		long treeTable()
+		{
+			return length;
+		}
+
+		long nodeTable()
+		{
+			return treeTable() + 4L * nTrees;
+		}
+
+		/**
+		 * Returns the number of slots in the id index.
+		 */
+		int idIndexCapacity()
+		{
+			return IdIndex.capacity(nNodes);
+		}
+
+		long idIndex()
+		{
+			return nodeTable() + (long)NODE_BYTES * nNodes;
+		}
+
+		long ids()
+		{
+			return idIndex() + 4L * idIndexCapacity();
+		}
+
+		long energies()
+		{
+			return ids() + 4L * nModels;
+		}
+
+		long angles()
+		{
+			return energies() + 8L * nModels;
+		}
+
+		long coordinateFlags()
+		{
+			return angles() + 8L * nAngles * nModels;
+		}
+
+		long coordinates()
+		{
+			return coordinateFlags() + nModels;
+		}
+
+		long end()
+		{
+			return (nAtoms == 0 ? coordinateFlags() :
+				coordinates() + 3L * 8 * nAtoms * nModels);
+		}
+	}
+
+	/**
+	 * Adds the nodes of a tree to a list in post-order without recursion.
+	 */
+	private static void addPostOrder(Node root, List<Node> nodes)
+	{
+		// The reverse of the pre-order where right children are visited
+		// before left children is the post-order.
+		final int start = nodes.size();
+		final List<Node> stack = new ArrayList<Node>();
+		stack.add(root);
+
+		while(!stack.isEmpty()) {
+			final Node node = stack.remove(stack.size() - 1);
+			nodes.add(node);
+
+			if(node.isInternal()) {
+				stack.add(node.getLeft());
+				stack.add(node.getRight());
+			}
+		}
+
+		Collections.reverse(nodes.subList(start, nodes.size()));
+	}
+
+	private static double[][] coordinates(Model model)
+	{
+		return (model instanceof ImmutableModel ?
+				((ImmutableModel)model).getCoordinates() : null);
+	}
+
+	/**
+	 * Writes values to a channel through a buffer.
+	 */
+	private static final class Writer
+	{
+		private final FileChannel _channel;
+		private final ByteBuffer _buffer;
+
+		private Writer(FileChannel channel)
+		{
+			_channel = channel;
+			_buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+
+		private void putByte(int value) throws IOException
+		{
+			ensure(1);
+			_buffer.put((byte)value);
+		}
+
+		private void putInt(int value) throws IOException
+		{
+			ensure(4);
+			_buffer.putInt(value);
+		}
+
+		private void putDouble(double value) throws IOException
+		{
+			ensure(8);
+			_buffer.putDouble(value);
+		}
+
+		private void putString(String value) throws IOException
+		{
+			if(value == null) {
+				putInt(-1);
+				return;
+			}
+
+			final byte[] bytes = value.getBytes(UTF_8);
+			putInt(bytes.length);
+
+			for(int offset = 0; offset < bytes.length;) {
+				ensure(1);
+				final int length =
+					Math.min(_buffer.remaining(), bytes.length - offset);
+				_buffer.put(bytes, offset, length);
+				offset += length;
+			}
+		}
+
+		private void ensure(int bytes) throws IOException
+		{
+			if(_buffer.remaining() < bytes) {
+				flush();
+			}
+		}
+
+		private void flush() throws IOException
+		{
+			_buffer.flip();
+			while(_buffer.hasRemaining()) {
+				_channel.write(_buffer);
+			}
+			_buffer.clear();
+		}
+	}
+
+	/**
+	 * Reads values from a channel through a buffer, in bulk where possible.
+	 */
+	private static final class Reader
+	{
+		private final FileChannel _channel;
+		private final ByteBuffer _buffer;
+
+		private Reader(FileChannel channel)
+		{
+			_channel = channel;
+			_buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			_buffer.limit(0);
+		}
+
+		/**
+		 * Returns the position in the file of the next value.
+		 */
+		private long position() throws IOException
+		{
+			return _channel.position() - _buffer.remaining();
+		}
+
+		private void skip(long bytes) throws IOException
+		{
+			final int n = (int)Math.min(bytes, _buffer.remaining());
+			_buffer.position(_buffer.position() + n);
+
+			if(bytes > n) {
+				_channel.position(_channel.position() + bytes - n);
+			}
+		}
+
+		private int getInt() throws IOException
+		{
+			ensure(4);
+			return _buffer.getInt();
+		}
+
+		private double getDouble() throws IOException
+		{
+			ensure(8);
+			return _buffer.getDouble();
+		}
+
+		private String getString() throws IOException
+		{
+			final int length = getInt();
+			if(length < 0) {
+				return null;
+			}
+
+			final byte[] bytes = new byte[length];
+			getBytes(bytes);
+			return new String(bytes, UTF_8);
+		}
+
+		private void getBytes(byte[] bytes) throws IOException
+		{
+			for(int offset = 0; offset < bytes.length;) {
+				ensure(1);
+				final int length =
+					Math.min(_buffer.remaining(), bytes.length - offset);
+				_buffer.get(bytes, offset, length);
+				offset += length;
+			}
+		}
+
+		private void getInts(int[] values, int offset, int length)
+		throws IOException
+		{
+			while(length > 0) {
+				ensure(4);
+				final IntBuffer view = _buffer.asIntBuffer();
+				final int n = Math.min(view.remaining(), length);
+				view.get(values, offset, n);
+				_buffer.position(_buffer.position() + 4 * n);
+				offset += n;
+				length -= n;
+			}
+		}
+
+		private void getDoubles(double[] values, int offset, int length)
+		throws IOException
+		{
+			while(length > 0) {
+				ensure(8);
+				final DoubleBuffer view = _buffer.asDoubleBuffer();
+				final int n = Math.min(view.remaining(), length);
+				view.get(values, offset, n);
+				_buffer.position(_buffer.position() + 8 * n);
+				offset += n;
+				length -= n;
+			}
+		}
+
+		private void ensure(int bytes) throws IOException
+		{
+			if(_buffer.remaining() >= bytes) {
+				return;
+			}
+
+			_buffer.compact();
+			while(_buffer.position() < bytes) {
+				if(_channel.read(_buffer) == -1) {
+					throw new EOFException("The barrier forest is truncated");
+				}
+			}
+			_buffer.flip();
+		}
+	}
+}
@@ -0,0 +1,280 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.martinkampjensen.thesis.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.martinkampjensen.thesis.barriers.neighborhood.AngleDifferenceNeighborhood;
+import com.martinkampjensen.thesis.model.BarrierForest;
+import com.martinkampjensen.thesis.model.BarrierTree;
+import com.martinkampjensen.thesis.model.Model;
+import com.martinkampjensen.thesis.model.Node;
+import com.martinkampjensen.thesis.model.impl.BarrierForestImpl;
+import com.martinkampjensen.thesis.model.impl.BarrierTreeImpl;
+import com.martinkampjensen.thesis.model.impl.ImmutableModel;
+import com.martinkampjensen.thesis.model.impl.NodeImpl;
+import com.martinkampjensen.thesis.util.Serialize.BarrierForestStructure;
+
+/**
+ * This class defines tests of the {@link ForestFormat} class.
+ */
+public final class ForestFormatTest
+{
+	@Test
+	public void testSerialize() throws IOException
+	{
+		final Node a = new NodeImpl(0, model(10, 1d));
+		final Node b = new NodeImpl(1, model(11, 2d));
+		a.addAdditionalModel(model(12, 1.5d));
+		final Node c = new NodeImpl(2, model(13, 3d), a, b);
+		c.addAdditionalModel(model(14, 2.5d));
+		c.addAdditionalModel(model(15, 2.75d));
+
+		final ImmutableModel withCoordinates = model(16, 0.5d);
+		withCoordinates.attachCoordinates(new double[][] {
+				{ 1d, 2d, 3d }, { 4d, 5d, 6d } });
+		final Node d = new NodeImpl(3, withCoordinates);
+
+		final BarrierForest forest = new BarrierForestImpl(
+				new BarrierTree[] { new BarrierTreeImpl(c, false),
+						new BarrierTreeImpl(d, false) }, 7, 0.1d, 0.2d,
+						new AngleDifferenceNeighborhood(), false);
+
+		final File file = File.createTempFile("forestformattest", null);
+		final File moleculeFile = File.createTempFile("forestformattest", null);
+
+		try {
+			FileHandler.write("PDB", moleculeFile);
+			Serialize.fromBarrierForest(file, moleculeFile,
+					Arrays.asList(new File("a.xtc"), new File("b.xtc")),
+					forest);
+			assertTrue(ForestFormat.isForestFormat(file));
+
+			final BarrierForestStructure bfs = Serialize.toBarrierForest(file);
+			assertEquals(Serialize.BarrierForestType.IMMUTABLEMODEL,
+					bfs.getType());
+			assertEquals("PDB", bfs.getPdb().trim());
+			assertEquals(2, bfs.getTrajectories().size());
+			assertEquals(new File("b.xtc").getAbsolutePath(),
+					bfs.getTrajectories().get(1).getPath());
+
+			final BarrierForest read = bfs.getForest();
+			assertEquals(7, read.modelsUsed());
+			assertEquals(0.1d, read.getPruningThreshold(), 0d);
+			assertEquals(0.2d, read.getNeighborThreshold(), 0d);
+			assertTrue(read.getNeighborhood()
+					instanceof AngleDifferenceNeighborhood);
+			assertEquals(2, read.getNumberOfTrees());
+			assertTree(c, read.getTree(0).getRoot());
+			assertTree(d, read.getTree(1).getRoot());
+			assertEquals(0.5d, read.getMinimumValue(), 0d);
+
+			final ImmutableModel readModel =
+				(ImmutableModel)read.getTree(1).getRoot().getModel();
+			assertArrayEquals(new double[] { 4d, 5d, 6d },
+					readModel.getCoordinates()[1], 0d);
+			assertNull(((ImmutableModel)read.getTree(0).getRoot().getModel())
+					.getCoordinates());
+		}
+		finally {
+			file.delete();
+			moleculeFile.delete();
+		}
+	}
+
+	@Test
+	public void testDeepTree() throws IOException
+	{
+		final int depth = 100000;
+		Node root = new NodeImpl(0, model(0, depth));
+
+		for(int i = 1; i < depth; i++) {
+			final Node leaf = new NodeImpl(2 * i - 1, model(2 * i - 1, i));
+			root = new NodeImpl(2 * i, model(2 * i, depth + i), root, leaf);
+		}
+
+		final BarrierForest forest = new BarrierForestImpl(
+				new BarrierTreeImpl(root, false), 2 * depth - 1);
+		final File file = File.createTempFile("forestformattest", null);
+
+		try {
+			ForestFormat.write(file,
+					Serialize.BarrierForestType.IMMUTABLEMODEL.getId(), "",
+					null, forest);
+
+			final BarrierForestStructure bfs = ForestFormat.read(file);
+			assertTrue(bfs.getTrajectories().isEmpty());
+			assertNull(bfs.getForest().getNeighborhood());
+			assertTree(root, bfs.getForest().getTree(0).getRoot());
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testMap() throws IOException
+	{
+		final Node a = new NodeImpl(0, model(10, 1d));
+		final Node b = new NodeImpl(1, model(11, 2d));
+		a.addAdditionalModel(model(12, 1.5d));
+		final Node c = new NodeImpl(2, model(13, 3d), a, b);
+		final Node d = new NodeImpl(3, model(14, 0.5d));
+		final Node e = new NodeImpl(4, model(15, 4d), c, d);
+		final Node f = new NodeImpl(5, model(16, 0.25d));
+
+		final BarrierForest forest = new BarrierForestImpl(
+				new BarrierTree[] { new BarrierTreeImpl(e, false),
+						new BarrierTreeImpl(f, false) }, 7, 0d, 10d,
+						new AngleDifferenceNeighborhood(), false);
+		final File file = File.createTempFile("forestformattest", null);
+
+		try {
+			ForestFormat.write(file,
+					Serialize.BarrierForestType.IMMUTABLEMODEL.getId(), "",
+					null, forest);
+
+			final BarrierForest mapped = ForestFormat.map(file).getForest();
+			assertTrue(mapped instanceof MappedForest);
+			assertEquals(7, mapped.modelsUsed());
+			assertEquals(2, mapped.getNumberOfTrees());
+
+			// Nodes and models are the same objects every time.
+			final Node node = mapped.find(0);
+			assertTrue(node == mapped.find(0));
+			assertTrue(node.getModel() == node.getModel());
+			assertTrue(node.getParent().getParent()
+					== mapped.getTree(0).getRoot());
+			assertNull(mapped.find(6));
+			assertEquals(4, mapped.lowestCommonAncestor(0, 3).getId());
+			assertEquals(2, mapped.lowestCommonAncestor(1, 2).getId());
+			assertEquals(4, mapped.lowestCommonAncestor(3, 4).getId());
+			assertEquals(5, mapped.lowestCommonAncestor(5, 5).getId());
+			assertNull(mapped.lowestCommonAncestor(0, 5));
+			assertEquals(4d, mapped.barrierBetween(1, 3), 0d);
+			assertEquals(Double.POSITIVE_INFINITY, mapped.barrierBetween(3, 5),
+					0d);
+			assertEquals(3d, mapped.calculateBarrierMatrix(
+					new int[] { 0, 1 })[1][0], 0d);
+
+			assertTree(e, mapped.getTree(0).getRoot());
+			assertTree(f, mapped.getTree(1).getRoot());
+			assertEquals(0.25d, mapped.getMinimumValue(), 0d);
+			assertEquals(forest.getNumberOfLeaves(),
+					mapped.getNumberOfLeaves());
+
+			final List<Model> expected = forest.findConnectingModels(0, 3);
+			final List<Model> actual = mapped.findConnectingModels(0, 3);
+			assertEquals(expected.size(), actual.size());
+			for(int i = 0; i < expected.size(); i++) {
+				assertModel(expected.get(i), actual.get(i));
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMapConnectingModelsInDifferentTrees() throws IOException
+	{
+		final Node a = new NodeImpl(0, model(0, 1d));
+		final Node b = new NodeImpl(1, model(1, 2d));
+		final BarrierForest forest = new BarrierForestImpl(
+				new BarrierTree[] { new BarrierTreeImpl(a, false),
+						new BarrierTreeImpl(b, false) }, 2);
+		final File file = File.createTempFile("forestformattest", null);
+
+		try {
+			ForestFormat.write(file,
+					Serialize.BarrierForestType.IMMUTABLEMODEL.getId(), "",
+					null, forest);
+			ForestFormat.map(file).getForest().findConnectingModels(0, 1);
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	private static ImmutableModel model(int id, double fitness)
+	{
+		return new ImmutableModel(id, fitness,
+				new double[] { id / 10d, fitness });
+	}
+
+	private static void assertTree(Node expectedRoot, Node actualRoot)
+	{
+		final Deque<Node> stack = new ArrayDeque<Node>();
+		stack.addFirst(expectedRoot);
+		stack.addFirst(actualRoot);
+
+		while(!stack.isEmpty()) {
+			final Node actual = stack.removeFirst();
+			final Node expected = stack.removeFirst();
+
+			assertEquals(expected.getId(), actual.getId());
+			assertEquals(expected.getWeight(), actual.getWeight());
+			assertEquals(expected.isLeaf(), actual.isLeaf());
+			assertModel(expected.getModel(), actual.getModel());
+			assertEquals(expected.getAdditionalModelsCount(),
+					actual.getAdditionalModelsCount());
+
+			if(expected.hasAdditionalModels()) {
+				final List<Model> expectedModels =
+					expected.getAdditionalModels();
+				final List<Model> actualModels = actual.getAdditionalModels();
+
+				for(int i = 0; i < expectedModels.size(); i++) {
+					assertModel(expectedModels.get(i), actualModels.get(i));
+				}
+			}
+
+			if(expected.isInternal()) {
+				assertTrue(actual.getLeft().getParent() == actual);
+				assertTrue(actual.getRight().getParent() == actual);
+				stack.addFirst(expected.getLeft());
+				stack.addFirst(actual.getLeft());
+				stack.addFirst(expected.getRight());
+				stack.addFirst(actual.getRight());
+			}
+		}
+	}
+
+	private static void assertModel(Model expected, Model actual)
+	{
+		assertEquals(expected.getId(), actual.getId());
+		assertEquals(expected.evaluate(), actual.evaluate(), 0d);
+		assertEquals(expected.size(), actual.size());
+
+		for(int a = 0; a < expected.size(); a++) {
+			assertEquals(expected.getAngle(a), actual.getAngle(a), 0d);
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.util;
+
+import java.io.Serializable;
+
+/**
+ * An index from ids to positions, that is, a map from the elements of an
+ * array of ids to their locations in the array. It is an open-addressing hash
+ * table with linear probing, so finding an id takes constant expected time
+ * and no objects are created. If an id occurs more than once, the index maps
+ * it to its first position.
+ * <p>
+ * The table has {@link #capacity(int)} slots, and the slot that the probing
+ * for an id starts at is given by {@link #slot(int, int)}, so a table written
+ * using {@link #getPosition(int)} can be probed without creating an index.
+ * 
+ * @see <a href="http://en.wikipedia.org/wiki/Linear_probing">Linear probing</a>
+ */
+public final class IdIndex implements Serializable
+{
+	private static final long serialVersionUID = -1620184961493587345L;
+
+	/**
+	 * The maximum number of slots.
+	 */
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	/**
+	 * The maximum number of ids. At most half of the slots are used, so
+	 * probing for an id that is not in the index always reaches an empty
+	 * slot.
+	 */
+	private static final int MAX_SIZE = MAX_CAPACITY / 2;
+
+	private final int[] _ids;
+	private final int[] _positions;
+	private final int _size;
+
+	/**
+	 * Creates an index over an array of ids.
+	 * 
+	 * @param ids the ids.
+	 * @throws NullPointerException if <code>ids == null</code>.
+	 * @throws IllegalArgumentException if there are more than
+	 *         <code>2^29</code> ids.
+	 */
+	public IdIndex(int[] ids)
+	{
+		if(ids == null) {
+			throw new NullPointerException("ids == null");
+		}
+
+		final int capacity = capacity(ids.length);
+		final int mask = capacity - 1;
+		_ids = new int[capacity];
+		_positions = new int[capacity];
+		_size = ids.length;
+
+		for(int s = 0; s < capacity; s++) {
+			_positions[s] = -1;
+		}
+
+		for(int i = 0; i < _size; i++) {
+			final int id = ids[i];
+			int s = slot(id, capacity);
+
+			while(_positions[s] != -1 && _ids[s] != id) {
+				s = (s + 1) & mask;
+			}
+
+			if(_positions[s] == -1) {
+				_ids[s] = id;
+				_positions[s] = i;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of slots in an index over a number of ids, which is
+	 * a power of two that is at least twice the number of ids and at least
+	 * <code>2</code>.
+	 * 
+	 * @param size the number of ids.
+	 * @return the number of slots.
+	 * @throws IllegalArgumentException if <code>size</code> is negative or
+	 *         greater than <code>2^29</code>.
+	 */
+	public static int capacity(int size)
+	{
+		if(size < 0 || size > MAX_SIZE) {
+			throw new IllegalArgumentException("Illegal size: " + size);
+		}
+
+		int capacity = 2;
+		while(capacity < 2 * size) {
+			capacity <<= 1;
+		}
+
+		return capacity;
+	}
+
+	/**
+	 * Returns the slot that the probing for an id starts at. The following
+	 * slots are probed in order, wrapping around to slot <code>0</code>.
+	 * 
+	 * @param id the id.
+	 * @param capacity the number of slots.
+	 * @return the first slot to probe.
+	 */
+	public static int slot(int id, int capacity)
+	{
+		return (id * 0x9e3779b9) >>> (32 - Integer.numberOfTrailingZeros(
+				capacity));
+	}
+
+	/**
+	 * Returns the number of ids that this index was created over.
+	 * 
+	 * @return the number of ids.
+	 */
+	public int size()
+	{
+		return _size;
+	}
+
+	/**
+	 * Returns the number of slots in this index.
+	 * 
+	 * @return the number of slots.
+	 */
+	public int getCapacity()
+	{
+		return _positions.length;
+	}
+
+	/**
+	 * Returns the position stored in a slot.
+	 * 
+	 * @param slot the slot.
+	 * @return the position of the id in the slot, or <code>-1</code> if the
+	 *         slot is empty.
+	 */
+	public int getPosition(int slot)
+	{
+		return _positions[slot];
+	}
+
+	/**
+	 * Finds the first position of an id.
+	 * 
+	 * @param id the id.
+	 * @return the position, or <code>-1</code> if the id is not in this index.
+	 */
+	public int find(int id)
+	{
+		final int mask = _positions.length - 1;
+		int s = slot(id, _positions.length);
+		int position;
+
+		while((position = _positions[s]) != -1) {
+			if(_ids[s] == id) {
+				return position;
+			}
+
+			s = (s + 1) & mask;
+		}
+
+		return -1;
+	}
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * This class defines tests of the {@link IdIndex} class.
+ */
+public final class IdIndexTest
+{
+	@Test
+	public void testFind()
+	{
+		// Half of the ids start probing in the last slot, so they collide
+		// and wrap around.
+		final int size = 1000;
+		final int capacity = IdIndex.capacity(size);
+		final int[] ids = new int[size];
+		for(int i = 0, id = 0; i < size; i++) {
+			if(i % 2 == 0) {
+				while(IdIndex.slot(++id, capacity) != capacity - 1);
+				ids[i] = id;
+			}
+			else {
+				ids[i] = -i;
+			}
+		}
+		ids[size - 1] = ids[0];
+
+		final IdIndex index = new IdIndex(ids);
+		assertEquals(size, index.size());
+		assertTrue(index.getCapacity() >= 2 * size);
+
+		for(int i = 0; i < size - 1; i++) {
+			assertEquals(i, index.find(ids[i]));
+		}
+
+		assertEquals(-1, index.find(1));
+		assertEquals(-1, new IdIndex(new int[0]).find(0));
+	}
+
+	@Test
+	public void testCapacity()
+	{
+		assertEquals(2, IdIndex.capacity(0));
+		assertEquals(2, IdIndex.capacity(1));
+		assertEquals(8, IdIndex.capacity(3));
+		assertEquals(8, IdIndex.capacity(4));
+		assertEquals(1 << 30, IdIndex.capacity(1 << 29));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCapacityTooLarge()
+	{
+		IdIndex.capacity((1 << 29) + 1);
+	}
+}
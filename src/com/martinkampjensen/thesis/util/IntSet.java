@@ -0,0 +1,109 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of <code>int</code> values that is meant to be cleared and reused
+ * many times, e.g. once per row of neighbors. It is an open-addressing hash
+ * table with linear probing, laid out as in {@link IdIndex}, where every slot
+ * is stamped with the generation it was filled in. Clearing the set starts a
+ * new generation, so it takes constant time, and the table only grows when
+ * more values are expected than it has room for.
+ */
+public final class IntSet
+{
+	private int[] _values;
+	private int[] _generations;
+	private int _generation;
+	private int _size;
+
+	/**
+	 * Creates an empty set.
+	 */
+	public IntSet()
+	{
+		_values = new int[IdIndex.capacity(0)];
+		_generations = new int[_values.length];
+		_generation = 1;
+		_size = 0;
+	}
+
+	/**
+	 * Removes all values from this set and makes room for a number of values.
+	 * 
+	 * @param expectedSize the maximum number of values that will be added
+	 *        before the set is cleared again.
+	 * @throws IllegalArgumentException if <code>expectedSize</code> is
+	 *         negative or too large for a table.
+	 */
+	public void clear(int expectedSize)
+	{
+		final int capacity = IdIndex.capacity(expectedSize);
+
+		if(capacity > _values.length) {
+			_values = new int[capacity];
+			_generations = new int[capacity];
+			_generation = 0;
+		}
+		else if(_generation == Integer.MAX_VALUE) {
+			Arrays.fill(_generations, 0);
+			_generation = 0;
+		}
+
+		_generation++;
+		_size = 0;
+	}
+
+	/**
+	 * Returns the number of values in this set.
+	 * 
+	 * @return the number of values.
+	 */
+	public int size()
+	{
+		return _size;
+	}
+
+	/**
+	 * Adds a value to this set. At most the number of values given to the last
+	 * call of {@link #clear(int)} may be added.
+	 * 
+	 * @param value the value.
+	 * @return <code>true</code> if and only if the value was not already in
+	 *         this set.
+	 */
+	public boolean add(int value)
+	{
+		final int mask = _values.length - 1;
+		int s = IdIndex.slot(value, _values.length);
+
+		while(_generations[s] == _generation) {
+			if(_values[s] == value) {
+				return false;
+			}
+
+			s = (s + 1) & mask;
+		}
+
+		_generations[s] = _generation;
+		_values[s] = value;
+		_size++;
+		return true;
+	}
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.martinkampjensen.thesis.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * This class defines tests of the {@link IntSet} class.
+ */
+public final class IntSetTest
+{
+	@Test
+	public void testAdd()
+	{
+		final IntSet set = new IntSet();
+
+		// The set grows, is reused when smaller, and forgets earlier values.
+		for(int size : new int[] { 0, 1, 1000, 10, 1000 }) {
+			set.clear(size);
+			assertEquals(0, set.size());
+
+			for(int i = 0; i < size; i++) {
+				assertTrue(set.add(i * 7 - size));
+			}
+
+			for(int i = 0; i < size; i++) {
+				assertFalse(set.add(i * 7 - size));
+			}
+
+			assertEquals(size, set.size());
+		}
+	}
+}
@@ -0,0 +1,693 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectStreamException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.martinkampjensen.thesis.barriers.neighborhood.Neighborhood;
+import com.martinkampjensen.thesis.model.BarrierForest;
+import com.martinkampjensen.thesis.model.BarrierTree;
+import com.martinkampjensen.thesis.model.Model;
+import com.martinkampjensen.thesis.model.Node;
+import com.martinkampjensen.thesis.model.impl.AbstractNode;
+import com.martinkampjensen.thesis.model.impl.BarrierForestImpl;
+import com.martinkampjensen.thesis.model.impl.BarrierTreeImpl;
+import com.martinkampjensen.thesis.model.impl.ImmutableModel;
+
+/**
+ * A read-only view of a barrier forest in a file in {@link ForestFormat},
+ * which is memory-mapped instead of read. Nodes, models and coordinates are
+ * only created when they are used, and are then kept, so a node or model is
+ * always represented by the same object. Finding a node therefore touches a
+ * small part of the file, while the measures of the forest require every
+ * node to be created. Lowest common ancestors are found using an
+ * {@link AncestorIndex}, which is created from the node table the first time
+ * it is needed, without creating any nodes.
+ * <p>
+ * The file is mapped in windows of at most {@link #WINDOW_SIZE} bytes, so
+ * files larger than 2 GB can be mapped. Nodes and models may be requested by
+ * several threads, and methods that would modify the forest throw an
+ * {@link UnsupportedOperationException}.
+ */
+public final class MappedForest implements BarrierForest
+{
+	private static final long serialVersionUID = 2516409113327046012L;
+
+	/**
+	 * The number of bytes in a window, excluding the bytes that overlap the
+	 * next window.
+	 */
+	private static final long WINDOW_SIZE = 1L << 30;
+
+	/**
+	 * The number of bytes that every window overlaps the next window, so that
+	 * every value starting in a window can be read from that window.
+	 */
+	private static final int WINDOW_OVERLAP = 8;
+
+	private final File _file;
+	private final ForestFormat.Header _header;
+	private final MappedByteBuffer[] _windows;
+	private final long _nodeTable;
+	private final Neighborhood _neighborhood;
+	private final Map<Integer, MappedNode> _nodes;
+	private final BarrierTree[] _trees;
+	private int[] _positions;
+	private int[] _positionIndexes;
+	private int[] _positionTrees;
+	private volatile AncestorIndex _ancestors;
+	private BarrierForestImpl _forest;
+
+	/**
+	 * Maps a file whose header has been read.
+	 * 
+	 * @param file the file.
+	 * @param channel a channel of the file, which may be closed afterwards.
+	 * @param header the header of the file.
+	 * @throws IOException if an I/O error occurs, or if the file is
+	 *         truncated.
+	 */
+	MappedForest(File file, FileChannel channel, ForestFormat.Header header)
+	throws IOException
+	{
+		final long size = channel.size();
+		if(size < header.end()) {
+			throw new IOException("The barrier forest is truncated");
+		}
+
+		final int nWindows = (int)((size + WINDOW_SIZE - 1) / WINDOW_SIZE);
+		_windows = new MappedByteBuffer[nWindows];
+		for(int w = 0; w < nWindows; w++) {
+			final long position = w * WINDOW_SIZE;
+			final long length =
+				Math.min(WINDOW_SIZE + WINDOW_OVERLAP, size - position);
+			_windows[w] = channel.map(FileChannel.MapMode.READ_ONLY,
+					position, length);
+		}
+
+		_file = file;
+		_header = header;
+		_nodeTable = header.nodeTable();
+		_neighborhood = header.neighborhood();
+		_nodes = new HashMap<Integer, MappedNode>();
+		_trees = new BarrierTree[header.nTrees];
+	}
+
+	@Override
+	public void calculateMeasures()
+	{
+		forest().calculateMeasures();
+	}
+
+	@Override
+	public int getNumberOfLeaves()
+	{
+		return forest().getNumberOfLeaves();
+	}
+
+	@Override
+	public double getMinimumValue()
+	{
+		return forest().getMinimumValue();
+	}
+
+	@Override
+	public double getMinimumBarrierValue()
+	{
+		return forest().getMinimumBarrierValue();
+	}
+
+	@Override
+	public double getMaximumBarrierValue()
+	{
+		return forest().getMaximumBarrierValue();
+	}
+
+	@Override
+	public double getTotalBarrierValue()
+	{
+		return forest().getTotalBarrierValue();
+	}
+
+	@Override
+	public double getTotalConnectionValue()
+	{
+		return forest().getTotalConnectionValue();
+	}
+
+	@Override
+	public Node getMinimum()
+	{
+		return forest().getMinimum();
+	}
+
+	@Override
+	public Node getMinimumBarrier()
+	{
+		return forest().getMinimumBarrier();
+	}
+
+	@Override
+	public Node getMaximumBarrier()
+	{
+		return forest().getMaximumBarrier();
+	}
+
+	@Override
+	public int modelsUsed()
+	{
+		return _header.modelsUsed;
+	}
+
+	@Override
+	public double getPruningThreshold()
+	{
+		return _header.pruningThreshold;
+	}
+
+	@Override
+	public double getNeighborThreshold()
+	{
+		return _header.neighborThreshold;
+	}
+
+	@Override
+	public Neighborhood getNeighborhood()
+	{
+		return _neighborhood;
+	}
+
+	@Override
+	public int getNumberOfTrees()
+	{
+		return _header.nTrees;
+	}
+
+	@Override
+	public BarrierTree getTree(int id)
+	{
+		if(_trees[id] == null) {
+			final int root = getInt(_header.treeTable() + 4L * id);
+			_trees[id] = new BarrierTreeImpl(node(root), true);
+		}
+
+		return _trees[id];
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation probes the id index of the file, and only the node
+	 * found is created. For a file without an id index, the index is created
+	 * from the node table the first time it is needed.
+	 */
+	@Override
+	public Node find(int id)
+	{
+		final int index = findIndex(id);
+		return (index == -1 ? null : node(index));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation finds the two nodes as {@link #find(int)} does, and
+	 * checks that they are in the same tree using the ancestor index. Then
+	 * only the subtree rooted at the splitting node is created to find the
+	 * connecting models.
+	 * 
+	 * @throws IllegalArgumentException {@inheritDoc}
+	 */
+	@Override
+	public List<Model> findConnectingModels(int fromId, int toId)
+	{
+		if(fromId == toId) {
+			throw new IllegalArgumentException("fromId == toId");
+		}
+
+		final int from = findIndex(fromId);
+		final int to = findIndex(toId);
+
+		if(from == -1 || to == -1 || findAncestorIndex(from, to) == -1) {
+			throw new IllegalArgumentException(
+			"fromId and toId not found in the same BarrierTree");
+		}
+
+		final List<Model> models = BarrierForestImpl.shortestPath(node(from),
+				node(to), _neighborhood, _header.neighborThreshold);
+		Debug.line("Conformations in trajectory: %d", models.size());
+
+		return models;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation uses the ancestor index, so it takes constant time
+	 * once the index has been created, and only the node found is created.
+	 * 
+	 * @throws IllegalArgumentException {@inheritDoc}
+	 */
+	@Override
+	public Node lowestCommonAncestor(int firstId, int secondId)
+	{
+		final int first = findIndex(firstId);
+		final int second = findIndex(secondId);
+
+		if(first == -1 || second == -1) {
+			throw new IllegalArgumentException((first == -1 ?
+					firstId : secondId) + " not found");
+		}
+
+		final int ancestor = findAncestorIndex(first, second);
+		return (ancestor == -1 ? null : node(ancestor));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation uses {@link #lowestCommonAncestor(int, int)}.
+	 * 
+	 * @throws IllegalArgumentException {@inheritDoc}
+	 */
+	@Override
+	public double barrierBetween(int firstId, int secondId)
+	{
+		final Node ancestor = lowestCommonAncestor(firstId, secondId);
+		return (ancestor == null ?
+				Double.POSITIVE_INFINITY : ancestor.getValue());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation creates every node.
+	 * 
+	 * @throws IllegalArgumentException {@inheritDoc}
+	 */
+	@Override
+	public double[][] calculateBarrierMatrix(int[] ids)
+	{
+		return forest().calculateBarrierMatrix(ids);
+	}
+
+	/**
+	 * Returns the index of the node with an id, or <code>-1</code> if there
+	 * is no such node.
+	 */
+	private int findIndex(int id)
+	{
+		final int capacity = _header.idIndexCapacity();
+		final long slots = _header.idIndex();
+		final int mask = capacity - 1;
+		int s = IdIndex.slot(id, capacity);
+		int index;
+
+		while((index = getInt(slots + 4L * s)) != -1) {
+			if(getNodeInt(index, 0) == id) {
+				return index;
+			}
+
+			s = (s + 1) & mask;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Returns the index of the lowest common ancestor of the nodes with two
+	 * indexes, or <code>-1</code> if they are in different trees.
+	 */
+	private int findAncestorIndex(int first, int second)
+	{
+		if(_ancestors == null) {
+			createAncestorIndex();
+		}
+
+		final int firstPosition = _positions[first];
+		final int secondPosition = _positions[second];
+
+		if(_positionTrees[firstPosition] != _positionTrees[secondPosition]) {
+			return -1;
+		}
+
+		final int ancestor =
+			_ancestors.lowestCommonAncestor(firstPosition, secondPosition);
+		return _positionIndexes[ancestor];
+	}
+
+	/**
+	 * Creates the ancestor index in a single pre-order traversal of every
+	 * tree, without recursion, by following the child indexes in the file.
+	 * Besides the parent and depth of every node, the index and tree of the
+	 * node at every position are recorded. The nodes are not created.
+	 */
+	private synchronized void createAncestorIndex()
+	{
+		if(_ancestors != null) {
+			return;
+		}
+
+		final int nNodes = _header.nNodes;
+		final int[] positions = new int[nNodes];
+		final int[] indexes = new int[nNodes];
+		final int[] trees = new int[nNodes];
+		final int[] parents = new int[nNodes];
+		final int[] depths = new int[nNodes];
+		final int[] stack = new int[nNodes];
+		int position = 0;
+
+		for(int t = 0; t < _header.nTrees; t++) {
+			int top = 0;
+			stack[top++] = getInt(_header.treeTable() + 4L * t);
+
+			while(top > 0) {
+				final int index = stack[--top];
+				final int parent = getNodeInt(index, 6);
+
+				positions[index] = position;
+				indexes[position] = index;
+				trees[position] = t;
+				parents[position] = (parent == -1 ? -1 : positions[parent]);
+				depths[position] =
+					(parent == -1 ? 0 : depths[positions[parent]] + 1);
+				position++;
+
+				final int left = getNodeInt(index, 1);
+				if(left != -1) {
+					stack[top++] = getNodeInt(index, 2);
+					stack[top++] = left;
+				}
+			}
+		}
+
+		_positions = positions;
+		_positionIndexes = indexes;
+		_positionTrees = trees;
+		_ancestors = new AncestorIndex(parents, depths);
+	}
+
+	/**
+	 * Returns the node with an index, which is created the first time it is
+	 * requested. Nodes may be requested by several threads, e.g. when the
+	 * measures are calculated in parallel.
+	 */
+	private synchronized MappedNode node(int index)
+	{
+		MappedNode node = _nodes.get(index);
+
+		if(node == null) {
+			node = new MappedNode(index);
+			_nodes.put(index, node);
+		}
+
+		return node;
+	}
+
+	private ImmutableModel model(int index)
+	{
+		final int nAngles = _header.nAngles;
+		final int nAtoms = _header.nAtoms;
+		final double[] angles = new double[nAngles];
+		final long anglesPosition = _header.angles() + 8L * nAngles * index;
+
+		for(int a = 0; a < nAngles; a++) {
+			angles[a] = getDouble(anglesPosition + 8L * a);
+		}
+
+		final ImmutableModel model = new ImmutableModel(
+				getInt(_header.ids() + 4L * index),
+				getDouble(_header.energies() + 8L * index), angles);
+
+		if(nAtoms != 0 && getByte(_header.coordinateFlags() + index) != 0) {
+			final double[][] coordinates = new double[nAtoms][3];
+			final long position =
+				_header.coordinates() + 3L * 8 * nAtoms * index;
+
+			for(int k = 0; k < nAtoms; k++) {
+				for(int d = 0; d < 3; d++) {
+					coordinates[k][d] =
+						getDouble(position + 8L * (3 * k + d));
+				}
+			}
+
+			model.attachCoordinates(coordinates);
+		}
+
+		return model;
+	}
+
+	/**
+	 * Returns the forest that the measures are delegated to. It is created
+	 * the first time it is requested, which creates every tree but no nodes.
+	 */
+	private BarrierForestImpl forest()
+	{
+		if(_forest == null) {
+			final BarrierTree[] trees = new BarrierTree[_header.nTrees];
+			for(int t = 0; t < trees.length; t++) {
+				trees[t] = getTree(t);
+			}
+
+			_forest = new BarrierForestImpl(trees, _header.modelsUsed,
+					_header.pruningThreshold, _header.neighborThreshold,
+					_neighborhood, true);
+		}
+
+		return _forest;
+	}
+
+	private int getNodeInt(int index, int field)
+	{
+		return getInt(_nodeTable + (long)ForestFormat.NODE_BYTES * index
+				+ 4 * field);
+	}
+
+	private byte getByte(long position)
+	{
+		return window(position).get(offset(position));
+	}
+
+	private int getInt(long position)
+	{
+		return window(position).getInt(offset(position));
+	}
+
+	private double getDouble(long position)
+	{
+		return window(position).getDouble(offset(position));
+	}
+
+	private MappedByteBuffer window(long position)
+	{
+		return _windows[(int)(position / WINDOW_SIZE)];
+	}
+
+	private static int offset(long position)
+	{
+		return (int)(position % WINDOW_SIZE);
+	}
+
+	/**
+	 * Replaces this forest by a forest that is read completely from the file
+	 * when it is serialized.
+	 */
+	private Object writeReplace() throws ObjectStreamException
+	{
+		try {
+			return ForestFormat.read(_file).getForest();
+		}
+		catch(IOException e) {
+			throw new NotSerializableException(e.getMessage());
+		}
+	}
+
+	/**
+	 * A node whose record is read from the node table when it is created, and
+	 * whose models are created the first time they are requested.
+	 */
+	private final class MappedNode extends AbstractNode
+	{
+		private static final long serialVersionUID = -3961213063958425711L;
+		private final int _id;
+		private final int _left;
+		private final int _right;
+		private final int _weight;
+		private final int _modelIndex;
+		private final int _nAdditional;
+		private final int _parent;
+		private Model _model;
+		private List<Model> _additionalModels;
+
+		private MappedNode(int index)
+		{
+			_id = getNodeInt(index, 0);
+			_left = getNodeInt(index, 1);
+			_right = getNodeInt(index, 2);
+			_weight = getNodeInt(index, 3);
+			_modelIndex = getNodeInt(index, 4);
+			_nAdditional = getNodeInt(index, 5);
+			_parent = getNodeInt(index, 6);
+		}
+
+		@Override
+		public boolean hasParent()
+		{
+			return _parent != -1;
+		}
+
+		@Override
+		public boolean isInternal()
+		{
+			return _left != -1;
+		}
+
+		@Override
+		public boolean isLeaf()
+		{
+			return _left == -1;
+		}
+
+		@Override
+		public int getId()
+		{
+			return _id;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * <p>
+		 * The model may be requested by several threads, e.g. when the
+		 * barrier matrix is calculated in parallel.
+		 */
+		@Override
+		public synchronized Model getModel()
+		{
+			if(_model == null) {
+				_model = model(_modelIndex);
+			}
+
+			return _model;
+		}
+
+		@Override
+		public int getWeight()
+		{
+			return _weight;
+		}
+
+		@Override
+		public Node getLeft()
+		{
+			return (_left == -1 ? null : node(_left));
+		}
+
+		/**
+		 * @throws UnsupportedOperationException always.
+		 */
+		@Override
+		public void setLeft(Node left)
+		{
+			throw new UnsupportedOperationException("Read-only node");
+		}
+
+		@Override
+		public Node getRight()
+		{
+			return (_right == -1 ? null : node(_right));
+		}
+
+		/**
+		 * @throws UnsupportedOperationException always.
+		 */
+		@Override
+		public void setRight(Node right)
+		{
+			throw new UnsupportedOperationException("Read-only node");
+		}
+
+		@Override
+		public Node getParent()
+		{
+			return (_parent == -1 ? null : node(_parent));
+		}
+
+		/**
+		 * @throws UnsupportedOperationException always.
+		 */
+		@Override
+		public void setParent(Node parent)
+		{
+			throw new UnsupportedOperationException("Read-only node");
+		}
+
+		/**
+		 * Does nothing, as the weights in the file are correct.
+		 */
+		@Override
+		public void calculateWeight()
+		{
+		}
+
+		@Override
+		public boolean hasAdditionalModels()
+		{
+			return _nAdditional > 0;
+		}
+
+		@Override
+		public int getAdditionalModelsCount()
+		{
+			return _nAdditional;
+		}
+
+		@Override
+		public synchronized List<Model> getAdditionalModels()
+		{
+			if(_nAdditional == 0) {
+				return null;
+			}
+
+			if(_additionalModels == null) {
+				_additionalModels = new ArrayList<Model>(_nAdditional);
+				for(int k = 1; k <= _nAdditional; k++) {
+					_additionalModels.add(model(_modelIndex + k));
+				}
+			}
+
+			return new ArrayList<Model>(_additionalModels);
+		}
+
+		/**
+		 * @throws UnsupportedOperationException always.
+		 */
+		@Override
+		public void addAdditionalModel(Model model)
+		{
+			throw new UnsupportedOperationException("Read-only node");
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The {@link Parallel} class keeps the number of threads that computations
+ * supporting parallel execution are allowed to use, and contains helper
+ * methods for running such computations.
+ * <p>
+ * The number of threads defaults to <code>1</code>, which means that
+ * computations are performed sequentially in the calling thread.
+ */
+public final class Parallel
+{
+	private static int _threads = 1;
+
+	private Parallel()
+	{
+	}
+
+	/**
+	 * Sets the number of threads to use.
+	 * 
+	 * @param threads the number of threads, or <code>0</code> to use one
+	 *        thread per available processor.
+	 * @throws IllegalArgumentException if <code>threads &lt; 0</code>.
+	 */
+	public static void setThreads(int threads)
+	{
+		if(threads < 0) {
+			throw new IllegalArgumentException("threads < 0");
+		}
+
+		_threads = (threads == 0 ?
+				Runtime.getRuntime().availableProcessors() : threads);
+	}
+
+	/**
+	 * Returns the number of threads to use.
+	 * 
+	 * @return the number of threads (at least <code>1</code>).
+	 */
+	public static int getThreads()
+	{
+		return _threads;
+	}
+
+	/**
+	 * Creates a thread pool with a fixed number of daemon threads. The caller
+	 * is responsible for shutting down the pool.
+	 * 
+	 * @param nThreads the number of threads.
+	 * @return the thread pool.
+	 * @throws IllegalArgumentException if <code>nThreads &lt; 1</code>.
+	 */
+	public static ExecutorService createPool(int nThreads)
+	{
+		if(nThreads < 1) {
+			throw new IllegalArgumentException("nThreads < 1");
+		}
+
+		return Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				final Thread thread = new Thread(runnable);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Performs tasks using a number of threads and returns their results in
+	 * the order of the tasks. If only one thread is to be used, the tasks are
+	 * performed in the calling thread.
+	 * 
+	 * @param <T> the type of the results.
+	 * @param tasks the tasks.
+	 * @param nThreads the number of threads.
+	 * @return the results of the tasks.
+	 * @throws IllegalArgumentException if <code>nThreads &lt; 1</code>.
+	 */
+	public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks,
+			int nThreads)
+	{
+		if(nThreads < 1) {
+			throw new IllegalArgumentException("nThreads < 1");
+		}
+
+		final int nTasks = tasks.size();
+		final List<T> results = new ArrayList<T>(nTasks);
+
+		if(nThreads == 1 || nTasks < 2) {
+			for(int i = 0; i < nTasks; i++) {
+				results.add(call(tasks.get(i)));
+			}
+
+			return results;
+		}
+
+		final ExecutorService pool = createPool(Math.min(nThreads, nTasks));
+
+		try {
+			final List<Future<T>> futures = new ArrayList<Future<T>>(nTasks);
+
+			for(int i = 0; i < nTasks; i++) {
+				futures.add(pool.submit(tasks.get(i)));
+			}
+
+			for(int i = 0; i < nTasks; i++) {
+				results.add(get(futures.get(i)));
+			}
+
+			return results;
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Performs a task in the calling thread and returns its result. Checked
+	 * exceptions thrown by the task are rethrown unchecked.
+	 * 
+	 * @param <T> the type of the result.
+	 * @param task the task.
+	 * @return the result of the task.
+	 */
+	public static <T> T call(Callable<T> task)
+	{
+		try {
+			return task.call();
+		}
+		catch(RuntimeException e) {
+			throw e;
+		}
+		catch(Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Waits for a task to complete and returns its result. Exceptions thrown
+	 * by the task are rethrown unchecked, and interruption is treated as an
+	 * error since none of the computations in this project can be cancelled.
+	 * 
+	 * @param <T> the type of the result.
+	 * @param future the task.
+	 * @return the result of the task.
+	 * @throws IllegalStateException if the waiting thread is interrupted.
+	 */
+	public static <T> T get(Future<T> future)
+	{
+		try {
+			return future.get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+		catch(ExecutionException e) {
+			final Throwable cause = e.getCause();
+
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			else if(cause instanceof Error) {
+				throw (Error)cause;
+			}
+
+			throw new IllegalStateException(cause);
+		}
+	}
+}
@@ -24,6 +24,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -33,7 +36,9 @@ import com.martinkampjensen.thesis.StatusCode;
 import com.martinkampjensen.thesis.model.BarrierForest;
 import com.martinkampjensen.thesis.model.Model;
 import com.martinkampjensen.thesis.model.impl.ImmutableModel;
+import com.martinkampjensen.thesis.model.impl.MappedModel;
 import com.martinkampjensen.thesis.model.impl.OpenBabelZMatrix;
+import com.martinkampjensen.thesis.model.impl.StoredModel;
 import com.martinkampjensen.thesis.util.openbabel.OpenBabel;
 
 /**
@@ -41,23 +46,93 @@ import com.martinkampjensen.thesis.util.openbabel.OpenBabel;
  */
 public final class Serialize
 {
-	private static final int BARRIER_FOREST_VERSION = 1;
+	/**
+	 * The version of barrier forests written in {@link ForestFormat}.
+	 */
+	static final int BARRIER_FOREST_VERSION = 2;
+
+	/**
+	 * The version of barrier forests written using Java serialization in a
+	 * ZIP file, where the coordinates are stored in the models. It is the
+	 * only version written before {@link ForestFormat}, and it is still
+	 * written for forests whose models cannot be written in
+	 * {@link ForestFormat}.
+	 */
+	private static final int BARRIER_FOREST_VERSION_SERIALIZED = 1;
 
 	private Serialize()
 	{
 	}
 
 	/**
-	 * Serializes a barrier forest to a file. ZIP compression is used.
+	 * As {@link #fromBarrierForest(File, File, List, BarrierForest)}, but for
+	 * a forest that was not created from trajectories.
+	 */
+	public static void fromBarrierForest(File file, File moleculeFile,
+			BarrierForest forest)
+	{
+		fromBarrierForest(file, moleculeFile, null, forest);
+	}
+
+	/**
+	 * Serializes a barrier forest to a file. Forests whose models are defined
+	 * by their ids, energy values and torsion angle values are written in
+	 * {@link ForestFormat}. Other forests are written using Java
+	 * serialization, and ZIP compression is used.
+	 * <p>
+	 * In {@link ForestFormat}, the coordinates of the models are not stored.
+	 * Instead, the locations of the trajectories are stored, and the
+	 * coordinates of a model can be read from the trajectories using the id
+	 * of the model as the frame number across the trajectories, see
+	 * {@link com.martinkampjensen.thesis.util.gromacs.XtcFrames}. Forests
+	 * written using Java serialization store their models with coordinates,
+	 * so the trajectories are not stored.
 	 * 
 	 * @param file the file to serialize to.
 	 * @param moleculeFile the file containing the molecule used to create the
 	 *        forest.
+	 * @param trajectoryFiles the trajectories used to create the forest, or
+	 *        <code>null</code>.
 	 * @param forest the object.
 	 */
 	public static void fromBarrierForest(File file, File moleculeFile,
-			BarrierForest forest)
+			List<File> trajectoryFiles, BarrierForest forest)
 	{
+		final BarrierForestType type;
+		final Model model = forest.getMinimum().getModel();
+		if(model instanceof ImmutableModel
+				|| model instanceof StoredModel
+				|| model instanceof MappedModel) {
+			type = BarrierForestType.IMMUTABLEMODEL;
+		}
+		else if(model instanceof OpenBabelZMatrix) {
+			type = BarrierForestType.OPENBABELZMATRIX;
+		}
+		else {
+			type = BarrierForestType.UNKNOWN;
+		}
+
+		final String pdb = FileHandler.read(moleculeFile);
+		String[] trajectoryPaths = null;
+		if(trajectoryFiles != null) {
+			trajectoryPaths = new String[trajectoryFiles.size()];
+			for(int i = 0; i < trajectoryPaths.length; i++) {
+				trajectoryPaths[i] = trajectoryFiles.get(i).getAbsolutePath();
+			}
+		}
+
+		if(type == BarrierForestType.IMMUTABLEMODEL) {
+			try {
+				ForestFormat.write(file, type.getId(), pdb, trajectoryPaths,
+						forest);
+			}
+			catch(IOException e) {
+				Main.errorExit(e, StatusCode.IO);
+			}
+
+			return;
+		}
+
 		ZipOutputStream zos = null;
 
 		try {
@@ -66,20 +141,9 @@ public final class Serialize
 			zos.putNextEntry(new ZipEntry(""));
 
 			final ObjectOutputStream oos = new ObjectOutputStream(zos);
-			oos.writeInt(BARRIER_FOREST_VERSION);
-
-			final Model model = forest.getMinimum().getModel();
-			if(model instanceof ImmutableModel) {
-				oos.writeInt(BarrierForestType.IMMUTABLEMODEL.getId());
-			}
-			else if(model instanceof OpenBabelZMatrix) {
-				oos.writeInt(BarrierForestType.OPENBABELZMATRIX.getId());
-			}
-			else {
-				oos.writeInt(BarrierForestType.UNKNOWN.getId());
-			}
-
-			oos.writeObject(FileHandler.read(moleculeFile));
+			oos.writeInt(BARRIER_FOREST_VERSION_SERIALIZED);
+			oos.writeInt(type.getId());
+			oos.writeObject(pdb);
 			oos.writeObject(forest);
 		}
 		catch(IOException e) {
@@ -96,8 +160,9 @@ public final class Serialize
 	}
 
 	/**
-	 * Deserializes a barrier forest from a file that is compressed in ZIP
-	 * format.
+	 * Deserializes a barrier forest from a file in {@link ForestFormat}, or
+	 * from a file that was written using Java serialization and is compressed
+	 * in ZIP format.
 	 * 
 	 * @param file the file to deserialize from.
 	 * @return the barrier forest and addition data.
@@ -107,6 +172,10 @@ public final class Serialize
 		ZipInputStream zis = null;
 
 		try {
+			if(ForestFormat.isForestFormat(file)) {
+				return ForestFormat.read(file);
+			}
+
 			zis = new ZipInputStream(new BufferedInputStream(
 					new FileInputStream(file)));
 			zis.getNextEntry();
@@ -114,7 +183,7 @@ public final class Serialize
 			final ObjectInputStream ois = new ObjectInputStream(zis);
 
 			final int version = ois.readInt();
-			if(version != BARRIER_FOREST_VERSION) {
+			if(version != BARRIER_FOREST_VERSION_SERIALIZED) {
 				throw new IllegalStateException("Wrong version");
 			}
 
@@ -124,7 +193,7 @@ public final class Serialize
 			OpenBabel.loadLibrary();
 			final BarrierForest forest = (BarrierForest)ois.readObject();
 
-			return new BarrierForestStructure(typeId, pdb, forest);
+			return new BarrierForestStructure(typeId, pdb, null, forest);
 		}
 		catch(IOException e) {
 			Main.errorExit(e, StatusCode.IO);
@@ -134,7 +203,7 @@ public final class Serialize
 		}
 		finally {
 			try {
-				zis.close();
+				if(zis != null) zis.close();
 			}
 			catch(IOException e) {
 				// Ignore.
@@ -144,18 +213,55 @@ public final class Serialize
 		return null;
 	}
 
+	/**
+	 * As {@link #toBarrierForest(File)}, but a file in {@link ForestFormat}
+	 * is opened as a read-only {@link MappedForest}, so only the parts of the
+	 * forest that are used are read. Files written using Java serialization
+	 * are deserialized.
+	 * 
+	 * @param file the file to open.
+	 * @return the barrier forest and addition data.
+	 */
+	public static BarrierForestStructure mapBarrierForest(File file)
+	{
+		try {
+			if(ForestFormat.isForestFormat(file)) {
+				return ForestFormat.map(file);
+			}
+		}
+		catch(IOException e) {
+			Main.errorExit(e, StatusCode.IO);
+		}
+
+		return toBarrierForest(file);
+	}
+
 	public static final class BarrierForestStructure
 	{
 		private final BarrierForestType _type;
 		private final String _pdb;
+		private final List<File> _trajectories;
 		private final BarrierForest _forest;
 
-		private BarrierForestStructure(int typeId, String pdb,
-				BarrierForest forest)
+		BarrierForestStructure(int typeId, String pdb,
+				String[] trajectoryPaths, BarrierForest forest)
 		{
 			_type = BarrierForestType.getType(typeId);
 			_pdb = pdb;
 			_forest = forest;
+
+			if(trajectoryPaths == null) {
+				_trajectories = Collections.emptyList();
+			}
+			else {
+				final List<File> trajectories =
+					new ArrayList<File>(trajectoryPaths.length);
+				for(int i = 0; i < trajectoryPaths.length; i++) {
+					trajectories.add(new File(trajectoryPaths[i]));
+				}
+
+				_trajectories = Collections.unmodifiableList(trajectories);
+			}
 		}
 
 		public BarrierForestType getType()
@@ -168,6 +274,19 @@ public final class Serialize
 			return _pdb;
 		}
 
+		/**
+		 * Returns the trajectories that the coordinates of the models can be
+		 * read from, in the order they were used to create the forest.
+		 * 
+		 * @return an unmodifiable list of the trajectories, which is empty if
+		 *         the forest was not created from trajectories or if the
+		 *         coordinates are stored in the models.
+		 */
+		public List<File> getTrajectories()
+		{
+			return _trajectories;
+		}
+
 		public BarrierForest getForest()
 		{
 			return _forest;
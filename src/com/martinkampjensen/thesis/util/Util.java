@@ -17,8 +17,6 @@
 package com.martinkampjensen.thesis.util;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
 
 import com.martinkampjensen.thesis.Constant;
 import com.martinkampjensen.thesis.Main;
@@ -280,71 +278,6 @@ public final class Util
 		return value;
 	}
 
-	/**
-	 * Changes any reference to one of two elements in an array to a third.
-	 * 
-	 * @param elements the references to change.
-	 * @param first the first reference to change.
-	 * @param second the second reference to change.
-	 * @param successor the new reference that should succeed references to
-	 *        <code>first</code> and <code>second</code>.
-	 * @return <code>true</code> if all references in <code>elements</code> were
-	 *         changed, <code>false</code> otherwise.
-	 */
-	public static <T> boolean changeReferences(T[] elements, T first, T second,
-			T successor)
-	{
-		final int n = elements.length;
-		boolean allChanged = true;
-
-		for(int i = 0; i < n; i++) {
-			final T element = elements[i];
-
-			if(element == first || element == second) {
-				elements[i] = successor;
-			}
-			else {
-				allChanged = false;
-			}
-		}
-
-		return allChanged;
-	}
-
-	/**
-	 * Returns a duplicate-free list of an array. <code>null</code> elements
-	 * will not be included in the list.
-	 * 
-	 * @param <T> the type of elements in the array.
-	 * @param elements the array to remove duplicates from.
-	 * @return the duplicate-free list.
-	 */
-	public static <T> List<T> removeDuplicates(T[] elements)
-	{
-		final int n = elements.length;
-		final List<T> list = new ArrayList<T>();
-
-		for(int i = 0; i < n; i++) {
-			final T element = elements[i];
-
-			if(element == null) {
-				continue;
-			}
-			else {
-				list.add(element);
-
-				// Discard duplicates.
-				for(int j = i + 1; j < n; j++) {
-					if(elements[j] == element) {
-						elements[j] = null;
-					}
-				}
-			}
-		}
-
-		return list;
-	}
-
 	/**
 	 * Returns a deep copy of a <code>double[][]</code>.
 	 * 
@@ -27,6 +27,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -39,6 +42,11 @@ import com.martinkampjensen.thesis.util.Debug;
  * Extracts energy values from GROMACS energy files (.edr files). The
  * correctness of this implementation has been tested using GROMACS 4.5.4.
  * <p>
+ * The values can be read one at a time using {@link #next()}, or in bulk using
+ * {@link #readAll()} and {@link #readRange(int, double[], int, int)}, which
+ * memory-map the energy file and read the values directly at their locations
+ * as found from the layout of the first two frames.
+ * <p>
  * Note that this implementation is not synchronized.
  * 
  * @see <a href="http://www.gromacs.org">GROMACS</a>
@@ -89,6 +97,13 @@ implements Closeable, DoubleIterator, Iterable<Double>
 	 */
 	private static final String POTENTIAL_ENERGY_TYPE = "Potential";
 
+	/**
+	 * The maximum number of bytes to map at a time in
+	 * {@link #readRange(int, double[], int, int)}.
+	 */
+	private static final int MAX_MAPPED_BYTES = 1 << 28;
+
+	private final File _energyFile;
 	private final XDRInputStream _input;
 	private final boolean _useDoublePrecision;
 	private final int _bytesBeforeFirstValue;
@@ -129,6 +144,7 @@ implements Closeable, DoubleIterator, Iterable<Double>
 
 		final EdrFile edrFile = open(energyFile, energyType);
 
+		_energyFile = energyFile;
 		_input = edrFile.input;
 		_useDoublePrecision = edrFile.useDoublePrecision;
 		_bytesBeforeFirstValue = edrFile.bytesBeforeFirstValue;
@@ -251,6 +267,112 @@ implements Closeable, DoubleIterator, Iterable<Double>
 		return _nValues;
 	}
 
+	/**
+	 * Returns the total number of energy values (frames) in the energy file,
+	 * as found from the length of the file and the layout of the frames. This
+	 * is the number of values that {@link #next()} would return if called
+	 * immediately after this object was created.
+	 * 
+	 * @return the number of values.
+	 */
+	public int totalValues()
+	{
+		final long length = _energyFile.length();
+		final int bytesPerValue = bytesPerValue();
+
+		if(length < _bytesBeforeFirstValue + bytesPerValue) {
+			return 0;
+		}
+
+		final long secondValueEnd = position(1) + bytesPerValue;
+		if(length < secondValueEnd) {
+			return 1;
+		}
+
+		return (int)Math.min(Integer.MAX_VALUE,
+				2 + (length - secondValueEnd) / stride());
+	}
+
+	/**
+	 * Reads all energy values of the energy file.
+	 * 
+	 * @return an array containing the values.
+	 * @throws IOException if an I/O error occurs.
+	 * @see #readRange(int, double[], int, int)
+	 */
+	public double[] readAll() throws IOException
+	{
+		final int nValues = totalValues();
+		final double[] values = new double[nValues];
+		readRange(0, values, 0, nValues);
+		return values;
+	}
+
+	/**
+	 * Reads a range of energy values of the energy file into an array. This
+	 * does not affect {@link #next()}.
+	 * <p>
+	 * The energy file is memory-mapped, and the values are read directly at
+	 * their locations, so the bytes between the values are never copied. This
+	 * method opens the energy file on its own and may be called concurrently,
+	 * e.g. to read different ranges in parallel.
+	 * 
+	 * @param from the number of the first value to read, starting at
+	 *        <code>0</code>.
+	 * @param values the array to store the values in.
+	 * @param offset the location in <code>values</code> of the first value.
+	 * @param length the number of values to read.
+	 * @throws IOException if an I/O error occurs.
+	 * @throws IndexOutOfBoundsException if <code>from &lt; 0</code>, if
+	 *         <code>length &lt; 0</code>, if <code>from + length</code> is
+	 *         greater than {@link #totalValues()}, or if <code>values</code>
+	 *         is too short.
+	 */
+	public void readRange(int from, double[] values, int offset, int length)
+	throws IOException
+	{
+		if(from < 0 || length < 0 || (long)from + length > totalValues()
+				|| offset < 0 || (long)offset + length > values.length) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		final int bytesPerValue = bytesPerValue();
+		final int valuesPerMap =
+			(int)Math.max(1, (MAX_MAPPED_BYTES - bytesPerValue) / stride());
+		final RandomAccessFile file = new RandomAccessFile(_energyFile, "r");
+
+		try {
+			final FileChannel channel = file.getChannel();
+
+			for(int start = from, end = from + length; start < end;
+			start += valuesPerMap) {
+				final int n = Math.min(valuesPerMap, end - start);
+				final long first = position(start);
+				final long size = position(start + n - 1) - first
+				+ bytesPerValue;
+				final MappedByteBuffer buffer =
+					channel.map(FileChannel.MapMode.READ_ONLY, first, size);
+				int p = offset + start - from;
+
+				if(_useDoublePrecision) {
+					for(int k = start; k < start + n; k++) {
+						values[p++] =
+							buffer.getDouble((int)(position(k) - first));
+					}
+				}
+				else {
+					for(int k = start; k < start + n; k++) {
+						values[p++] =
+							buffer.getFloat((int)(position(k) - first));
+					}
+				}
+			}
+		}
+		finally {
+			file.close();
+		}
+	}
+
 	/**
 	 * Extracts and returns a specific energy value from the first frame of an
 	 * energy file generated by GROMACS (.edr). Additional frames are ignored.
@@ -552,6 +674,36 @@ implements Closeable, DoubleIterator, Iterable<Double>
 		}
 	}
 
+	private int bytesPerValue()
+	{
+		return (_useDoublePrecision ? BYTES_PER_DOUBLE_PRECISION_ENERGY_VALUE :
+			BYTES_PER_SINGLE_PRECISION_ENERGY_VALUE);
+	}
+
+	/**
+	 * Returns the number of bytes from an energy value to the same energy
+	 * value in the next frame, except for the first value.
+	 */
+	private long stride()
+	{
+		return bytesPerValue() + _bytesBetweenValues;
+	}
+
+	/**
+	 * Returns the location of an energy value in the energy file. The first
+	 * frame may differ in layout from the remaining frames.
+	 */
+	private long position(int value)
+	{
+		if(value == 0) {
+			return _bytesBeforeFirstValue;
+		}
+
+		final long second = _bytesBeforeFirstValue + bytesPerValue()
+		+ _bytesBetweenFirstAndSecondValues;
+		return second + (value - 1) * stride();
+	}
+
 	/**
 	 * Checks if the state of this object is legal, that is, if {@link #close()}
 	 * has not been called. If the state is illegal, an
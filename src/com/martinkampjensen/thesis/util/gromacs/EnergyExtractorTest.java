@@ -17,12 +17,15 @@
 package com.martinkampjensen.thesis.util.gromacs;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 import org.junit.Test;
@@ -50,6 +53,58 @@ public class EnergyExtractorTest
 				SINGLE_PRECISION_ENERGY_FILE);
 	}
 
+	@Test
+	public void testReadAll() throws IOException
+	{
+		testReadAllHelper(DOUBLE_PRECISION_ENERGY_RESULTS_FILE,
+				DOUBLE_PRECISION_ENERGY_FILE);
+		testReadAllHelper(SINGLE_PRECISION_ENERGY_RESULTS_FILE,
+				SINGLE_PRECISION_ENERGY_FILE);
+	}
+
+	private static void testReadAllHelper(File resultsFile, File energyFile)
+	throws FileNotFoundException, IOException
+	{
+		final List<Double> expected = new ArrayList<Double>();
+		final BufferedReader reader =
+			new BufferedReader(new FileReader(resultsFile));
+
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(!line.equals("")) expected.add(Double.valueOf(line));
+			}
+		}
+		finally {
+			reader.close();
+		}
+
+		final EnergyExtractor extractor = new EnergyExtractor(energyFile);
+
+		try {
+			final int nValues = expected.size();
+			assertEquals(nValues, extractor.totalValues());
+
+			final double[] all = extractor.readAll();
+			assertEquals(nValues, all.length);
+			for(int i = 0; i < nValues; i++) {
+				assertTrue(expected.get(i).doubleValue() == all[i]);
+			}
+
+			final double[] range = new double[nValues];
+			extractor.readRange(1, range, 3, nValues - 4);
+			for(int i = 1; i < nValues - 3; i++) {
+				assertTrue(expected.get(i).doubleValue() == range[i + 2]);
+			}
+
+			// Bulk reads do not affect next().
+			assertTrue(expected.get(0).doubleValue() == extractor.next());
+		}
+		finally {
+			extractor.close();
+		}
+	}
+
 	private static void testNextHelper(File resultsFile, File energyFile)
 	throws FileNotFoundException, IOException
 	{
@@ -0,0 +1,439 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.martinkampjensen.thesis.util.gromacs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the atom coordinates of conformations (frames) of an XTC trajectory.
+ * This is a Java implementation of the decompression done by
+ * <code>xdrfile_decompress_coord_float</code> in the GROMACS XTC Library
+ * (xdrfile), so it gives exactly the same coordinates as the library. See
+ * {@link XtcFrameIndex} for the layout of a frame.
+ * <p>
+ * In a compressed frame, the coordinates are rounded to integers using the
+ * precision of the frame, and every atom is encoded either with enough bits to
+ * hold any coordinate between the smallest and largest coordinates of the
+ * frame, or as a small difference to the previous atom. The number of bits
+ * used for small differences adapts as the frame is decoded.
+ * <p>
+ * Note that this implementation is not synchronized.
+ * 
+ * @see <a href="http://www.gromacs.org">GROMACS</a>
+ */
+final class XtcDecoder
+{
+	/**
+	 * Number of coordinates per point/atom.
+	 */
+	static final int DIMENSIONS = 3;
+
+	/**
+	 * <code>magicints</code> from xdrfile.c. The sizes that small differences
+	 * are encoded with, where every third size is a power of two.
+	 */
+	private static final int[] MAGIC_INTS = {
+		0, 0, 0, 0, 0, 0, 0, 0, 0, 8, 10, 12, 16, 20, 25, 32, 40, 50, 64,
+		80, 101, 128, 161, 203, 256, 322, 406, 512, 645, 812, 1024, 1290,
+		1625, 2048, 2580, 3250, 4096, 5060, 6501, 8192, 10321, 13003,
+		16384, 20642, 26007, 32768, 41285, 52015, 65536, 82570, 104031,
+		131072, 165140, 208063, 262144, 330280, 416127, 524287, 660561,
+		832255, 1048576, 1321122, 1664510, 2097152, 2642245, 3329021,
+		4194304, 5284491, 6658042, 8388607, 10568983, 13316085, 16777216
+	};
+
+	/**
+	 * <code>FIRSTIDX</code> from xdrfile.c. The index of the first non-zero
+	 * size in {@link #MAGIC_INTS}.
+	 */
+	private static final int FIRST_INDEX = 9;
+
+	/**
+	 * The largest size for which the three sizes of a frame are encoded
+	 * together.
+	 */
+	private static final int MAX_COMBINED_SIZE = 0xffffff;
+
+	private final int[] _sizes;
+	private final int[] _bitSizes;
+	private final int[] _smallSizes;
+	private final int[] _bytes;
+	private final int[] _coordinate;
+	private final int[] _previous;
+	private byte[] _data;
+	private int _dataIndex;
+	private int _lastBits;
+	private int _lastByte;
+
+	XtcDecoder()
+	{
+		_sizes = new int[DIMENSIONS];
+		_bitSizes = new int[DIMENSIONS];
+		_smallSizes = new int[DIMENSIONS];
+		_bytes = new int[32];
+		_coordinate = new int[DIMENSIONS];
+		_previous = new int[DIMENSIONS];
+		_data = new byte[0];
+	}
+
+	/**
+	 * Decodes the coordinates of the atoms of a frame. The coordinates are
+	 * converted from nm to angstrom in single precision, as in earlier
+	 * versions of {@link XtcReader}.
+	 * 
+	 * @param frame a buffer positioned at the start of a frame. On return, it
+	 *        is positioned after the frame.
+	 * @param x the array to fill with the coordinates, three per atom.
+	 * @return the number of atoms.
+	 * @throws IOException if the frame is not valid.
+	 * @throws IndexOutOfBoundsException if <code>x</code> is too short.
+	 */
+	int decode(ByteBuffer frame, float[] x) throws IOException
+	{
+		final int start = frame.position();
+
+		if(frame.remaining() < XtcFrameIndex.HEADER_BYTES
+				|| frame.getInt(start) != XtcFrameIndex.FRAME_MAGIC) {
+			throw new IOException("No XTC frame");
+		}
+
+		final int nAtoms = frame.getInt(start + 4);
+		frame.position(start + XtcFrameIndex.HEADER_BYTES - 4);
+		if(frame.getInt() != nAtoms || nAtoms < 0) {
+			throw new IOException("Invalid number of atoms");
+		}
+		else if(x.length < DIMENSIONS * nAtoms) {
+			throw new IndexOutOfBoundsException("x is too short");
+		}
+
+		if(nAtoms <= XtcFrameIndex.MAX_UNCOMPRESSED_ATOMS) {
+			for(int i = 0, n = DIMENSIONS * nAtoms; i < n; i++) {
+				final float nm = frame.getFloat();
+				x[i] = nm * 10;
+			}
+
+			return nAtoms;
+		}
+
+		final float precision = frame.getFloat();
+		final int[] minimum = new int[DIMENSIONS];
+		final int[] maximum = new int[DIMENSIONS];
+		for(int k = 0; k < DIMENSIONS; k++) minimum[k] = frame.getInt();
+		for(int k = 0; k < DIMENSIONS; k++) maximum[k] = frame.getInt();
+
+		final int[] sizes = _sizes;
+		final int[] bitSizes = _bitSizes;
+		final int bitSize;
+
+		for(int k = 0; k < DIMENSIONS; k++) {
+			sizes[k] = maximum[k] - minimum[k] + 1;
+		}
+
+		if((sizes[0] | sizes[1] | sizes[2]) > MAX_COMBINED_SIZE) {
+			for(int k = 0; k < DIMENSIONS; k++) {
+				bitSizes[k] = sizeOfInt(sizes[k]);
+			}
+
+			bitSize = 0;
+		}
+		else {
+			bitSize = sizeOfInts(sizes);
+		}
+
+		int smallIndex = frame.getInt();
+		if(smallIndex < FIRST_INDEX || smallIndex >= MAGIC_INTS.length) {
+			throw new IOException("Invalid compression of coordinates");
+		}
+
+		int smaller = MAGIC_INTS[Math.max(FIRST_INDEX, smallIndex - 1)] / 2;
+		int smallNumber = MAGIC_INTS[smallIndex] / 2;
+		int smallSize = MAGIC_INTS[smallIndex];
+
+		final int nBytes = frame.getInt();
+		if(nBytes < 0 || nBytes > frame.remaining()) {
+			throw new IOException("Frame is truncated");
+		}
+
+		if(_data.length < nBytes) _data = new byte[nBytes];
+		frame.get(_data, 0, nBytes);
+		frame.position(frame.position() + (-nBytes & 3));
+		_dataIndex = 0;
+		_lastBits = 0;
+		_lastByte = 0;
+
+		final float inversePrecision = (float)(1d / precision);
+		final int[] coordinate = _coordinate;
+		final int[] previous = _previous;
+		int run = 0;
+		int i = 0;
+		int p = 0;
+
+		try {
+			while(i < nAtoms) {
+				if(bitSize == 0) {
+					for(int k = 0; k < DIMENSIONS; k++) {
+						coordinate[k] = decodeBits(bitSizes[k]);
+					}
+				}
+				else {
+					decodeInts(bitSize, sizes, coordinate);
+				}
+
+				i++;
+
+				for(int k = 0; k < DIMENSIONS; k++) {
+					coordinate[k] += minimum[k];
+					previous[k] = coordinate[k];
+				}
+
+				// The length of a run of small differences is only encoded
+				// when it changes.
+				int isSmaller = 0;
+				if(decodeBits(1) == 1) {
+					run = decodeBits(5);
+					isSmaller = run % 3;
+					run -= isSmaller;
+					isSmaller--;
+				}
+
+				if(run > 0) {
+					if(i + run / 3 > nAtoms) {
+						throw new IOException("Too many atoms in frame");
+					}
+
+					for(int r = 0; r < run; r += 3) {
+						decodeInts(smallIndex, smallSize, coordinate);
+						i++;
+
+						for(int k = 0; k < DIMENSIONS; k++) {
+							coordinate[k] += previous[k] - smallNumber;
+						}
+
+						if(r == 0) {
+							// The first two atoms of a run are swapped, which
+							// compresses water molecules better.
+							for(int k = 0; k < DIMENSIONS; k++) {
+								final int swap = coordinate[k];
+								coordinate[k] = previous[k];
+								previous[k] = swap;
+							}
+
+							p = store(previous, inversePrecision, x, p);
+						}
+						else {
+							for(int k = 0; k < DIMENSIONS; k++) {
+								previous[k] = coordinate[k];
+							}
+						}
+
+						p = store(coordinate, inversePrecision, x, p);
+					}
+				}
+				else {
+					p = store(coordinate, inversePrecision, x, p);
+				}
+
+				smallIndex += isSmaller;
+				if(smallIndex < FIRST_INDEX || smallIndex >= MAGIC_INTS.length) {
+					throw new IOException("Invalid compression of coordinates");
+				}
+
+				if(isSmaller < 0) {
+					smallNumber = smaller;
+					smaller = (smallIndex > FIRST_INDEX ?
+							MAGIC_INTS[smallIndex - 1] / 2 : 0);
+				}
+				else if(isSmaller > 0) {
+					smaller = smallNumber;
+					smallNumber = MAGIC_INTS[smallIndex] / 2;
+				}
+
+				smallSize = MAGIC_INTS[smallIndex];
+			}
+		}
+		catch(ArrayIndexOutOfBoundsException e) {
+			final IOException ioe =
+				new IOException("Compressed coordinates are truncated");
+			ioe.initCause(e);
+			throw ioe;
+		}
+
+		return nAtoms;
+	}
+
+	/**
+	 * Stores the coordinates of an atom in angstrom and returns the index
+	 * after them.
+	 */
+	private static int store(int[] coordinate, float inversePrecision,
+			float[] x, int p)
+	{
+		for(int k = 0; k < DIMENSIONS; k++) {
+			final float nm = coordinate[k] * inversePrecision;
+			x[p++] = nm * 10;
+		}
+
+		return p;
+	}
+
+	/**
+	 * <code>decodebits</code> from xdrfile.c. Decodes an unsigned integer of
+	 * <code>nBits</code> bits from the compressed coordinates.
+	 */
+	private int decodeBits(int nBits)
+	{
+		final byte[] data = _data;
+		final int mask = (nBits == 32 ? -1 : (1 << nBits) - 1);
+		int index = _dataIndex;
+		int lastBits = _lastBits;
+		int lastByte = _lastByte;
+		int number = 0;
+
+		while(nBits >= 8) {
+			lastByte = (lastByte << 8) | (data[index++] & 0xff);
+			number |= (lastByte >>> lastBits) << (nBits - 8);
+			nBits -= 8;
+		}
+
+		if(nBits > 0) {
+			if(lastBits < nBits) {
+				lastBits += 8;
+				lastByte = (lastByte << 8) | (data[index++] & 0xff);
+			}
+
+			lastBits -= nBits;
+			number |= (lastByte >>> lastBits) & ((1 << nBits) - 1);
+		}
+
+		_dataIndex = index;
+		_lastBits = lastBits;
+		_lastByte = lastByte;
+
+		return number & mask;
+	}
+
+	/**
+	 * <code>decodeints</code> from xdrfile.c for three integers of the same
+	 * size.
+	 */
+	private void decodeInts(int nBits, int size, int[] numbers)
+	{
+		final int[] sizes = _smallSizes;
+		sizes[0] = sizes[1] = sizes[2] = size;
+		decodeInts(nBits, sizes, numbers);
+	}
+
+	/**
+	 * <code>decodeints</code> from xdrfile.c. Decodes three integers that were
+	 * encoded together as a single number with <code>nBits</code> bits, where
+	 * <code>sizes</code> are the sizes of the integers.
+	 */
+	private void decodeInts(int nBits, int[] sizes, int[] numbers)
+	{
+		final int[] bytes = _bytes;
+		int nBytes = 0;
+		bytes[1] = bytes[2] = bytes[3] = 0;
+
+		while(nBits > 8) {
+			bytes[nBytes++] = decodeBits(8);
+			nBits -= 8;
+		}
+
+		if(nBits > 0) {
+			bytes[nBytes++] = decodeBits(nBits);
+		}
+
+		for(int i = DIMENSIONS - 1; i > 0; i--) {
+			final long size = sizes[i] & 0xffffffffL;
+			long number = 0;
+
+			for(int j = nBytes - 1; j >= 0; j--) {
+				number = (number << 8) | bytes[j];
+				final long quotient = number / size;
+				bytes[j] = (int)quotient;
+				number -= quotient * size;
+			}
+
+			numbers[i] = (int)number;
+		}
+
+		numbers[0] = bytes[0] | (bytes[1] << 8) | (bytes[2] << 16)
+		| (bytes[3] << 24);
+	}
+
+	/**
+	 * <code>sizeofint</code> from xdrfile.c. Returns the number of bits needed
+	 * for the integers <code>0, 1, ..., size - 1</code>.
+	 */
+	private static int sizeOfInt(int size)
+	{
+		final long unsignedSize = size & 0xffffffffL;
+		long number = 1;
+		int nBits = 0;
+
+		while(unsignedSize >= number && nBits < 32) {
+			nBits++;
+			number <<= 1;
+		}
+
+		return nBits;
+	}
+
+	/**
+	 * <code>sizeofints</code> from xdrfile.c. Returns the number of bits
+	 * needed for three integers encoded together as a single number, where
+	 * <code>sizes</code> are the sizes of the integers.
+	 */
+	private int sizeOfInts(int[] sizes)
+	{
+		final int[] bytes = _bytes;
+		int nBytes = 1;
+		bytes[0] = 1;
+
+		for(int i = 0; i < DIMENSIONS; i++) {
+			final long size = sizes[i] & 0xffffffffL;
+			long tmp = 0;
+			int k;
+
+			for(k = 0; k < nBytes; k++) {
+				tmp = bytes[k] * size + tmp;
+				bytes[k] = (int)(tmp & 0xff);
+				tmp >>>= 8;
+			}
+
+			while(tmp != 0) {
+				bytes[k++] = (int)(tmp & 0xff);
+				tmp >>>= 8;
+			}
+
+			nBytes = k;
+		}
+
+		int nBits = 0;
+		int number = 1;
+		nBytes--;
+
+		while(bytes[nBytes] >= number) {
+			nBits++;
+			number *= 2;
+		}
+
+		return nBits + nBytes * 8;
+	}
+}
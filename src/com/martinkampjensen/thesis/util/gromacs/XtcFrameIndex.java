@@ -0,0 +1,464 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.util.gromacs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import com.martinkampjensen.thesis.util.Debug;
+
+/**
+ * An index of the locations of the conformations (frames) in an XTC
+ * trajectory, which allows a frame to be read without reading the frames
+ * before it. The index is built by reading the header of every frame, which is
+ * enough to find the length of the frame, so the compressed coordinates are
+ * never decoded.
+ * <p>
+ * A frame consists of the XDR encoded values below. Frames with at most
+ * {@link #MAX_UNCOMPRESSED_ATOMS} atoms are not compressed.
+ * <ul>
+ * <li><code>int magic, natoms, step; float time;</code>
+ * <li><code>float box[3][3]; int natoms;</code>
+ * <li>Uncompressed: <code>float x[natoms][3];</code>
+ * <li>Compressed: <code>float precision; int minint[3], maxint[3],
+ * smallidx, nbytes; opaque bytes[nbytes];</code> padded to a multiple of
+ * <code>4</code> bytes.
+ * </ul>
+ * <p>
+ * An index can optionally be saved next to the trajectory as a sidecar file,
+ * see {@link #open(File, boolean)}, so that it is only built once for a
+ * trajectory.
+ * 
+ * @see <a href="http://www.gromacs.org">GROMACS</a>
+ */
+public final class XtcFrameIndex
+{
+	/**
+	 * The "magic value" in the header of every frame.
+	 */
+	static final int FRAME_MAGIC = 1995;
+
+	/**
+	 * The maximum number of atoms for which frames are not compressed.
+	 */
+	static final int MAX_UNCOMPRESSED_ATOMS = 9;
+
+	/**
+	 * The number of bytes before the coordinates in a frame.
+	 */
+	static final int HEADER_BYTES = 4 * (4 + 9 + 1);
+
+	/**
+	 * The number of bytes before the compressed coordinates in a compressed
+	 * frame.
+	 */
+	static final int COMPRESSED_HEADER_BYTES = HEADER_BYTES + 4 * (1 + 3 + 3
+			+ 1 + 1);
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * The extension added to the name of a trajectory to get the name of its
+	 * sidecar file.
+	 */
+	private static final String SIDECAR_EXTENSION = ".idx";
+
+	/**
+	 * The first value of a sidecar file ("XTCI").
+	 */
+	private static final int SIDECAR_MAGIC = 0x58544349;
+
+	private static final int SIDECAR_VERSION = 1;
+
+	private final File _trajectory;
+	private final int _nAtoms;
+	private final int _nFrames;
+	private final long[] _offsets;
+
+	/**
+	 * Builds an index of the frames in an XTC trajectory.
+	 * 
+	 * @param trajectory the trajectory.
+	 * @throws FileNotFoundException if <code>trajectory</code> does not exist
+	 *         or is not a file.
+	 * @throws IOException if an I/O error occurs, or if the trajectory is not
+	 *         a valid XTC trajectory.
+	 */
+	public XtcFrameIndex(File trajectory)
+	throws FileNotFoundException, IOException
+	{
+		if(!trajectory.exists() || !trajectory.isFile()) {
+			throw new FileNotFoundException("trajectory does not exist or is "
+					+ "not a file");
+		}
+
+		final FileInputStream stream = new FileInputStream(trajectory);
+
+		try {
+			final FileChannel channel = stream.getChannel();
+			final long length = channel.size();
+			final ByteBuffer header =
+				ByteBuffer.allocate(COMPRESSED_HEADER_BYTES);
+			long[] offsets = new long[INITIAL_CAPACITY];
+			long offset = 0;
+			int nAtoms = -1;
+			int nFrames = 0;
+
+			while(offset < length) {
+				header.clear();
+				header.limit((int)Math.min(COMPRESSED_HEADER_BYTES,
+						length - offset));
+				read(channel, header, offset);
+
+				final int frameAtoms = readHeader(header, offset);
+				if(nAtoms == -1) {
+					nAtoms = frameAtoms;
+				}
+				else if(frameAtoms != nAtoms) {
+					throw new IOException("Frame " + nFrames + " has "
+							+ frameAtoms + " atoms, expected " + nAtoms);
+				}
+
+				if(nFrames == offsets.length) {
+					offsets = Arrays.copyOf(offsets, 2 * nFrames);
+				}
+
+				offsets[nFrames++] = offset;
+				offset += frameLength(header, nAtoms);
+
+				if(offset > length) {
+					throw new IOException("Frame " + (nFrames - 1)
+							+ " is truncated");
+				}
+			}
+
+			_trajectory = trajectory;
+			_nAtoms = Math.max(0, nAtoms);
+			_nFrames = nFrames;
+			_offsets = Arrays.copyOf(offsets, nFrames + 1);
+			_offsets[nFrames] = offset;
+		}
+		finally {
+			stream.close();
+		}
+	}
+
+	private XtcFrameIndex(File trajectory, int nAtoms, long[] offsets)
+	{
+		_trajectory = trajectory;
+		_nAtoms = nAtoms;
+		_nFrames = offsets.length - 1;
+		_offsets = offsets;
+	}
+
+	/**
+	 * As {@link #open(File, boolean)}, but never saves the sidecar file.
+	 */
+	public static XtcFrameIndex open(File trajectory)
+	throws FileNotFoundException, IOException
+	{
+		return open(trajectory, false);
+	}
+
+	/**
+	 * Returns an index of the frames in an XTC trajectory, using the sidecar
+	 * file of the trajectory if it exists and was saved for the current
+	 * version of the trajectory. Otherwise, the index is built in memory and,
+	 * if requested, an attempt is made to save it as the sidecar file, which
+	 * is the trajectory file name followed by <code>.idx</code>. Failing to
+	 * save the sidecar file is not an error.
+	 * 
+	 * @param trajectory the trajectory.
+	 * @param saveSidecar whether or not to save a built index as the sidecar
+	 *        file.
+	 * @return the index.
+	 * @throws FileNotFoundException if <code>trajectory</code> does not exist
+	 *         or is not a file.
+	 * @throws IOException if an I/O error occurs, or if the trajectory is not
+	 *         a valid XTC trajectory.
+	 */
+	public static XtcFrameIndex open(File trajectory, boolean saveSidecar)
+	throws FileNotFoundException, IOException
+	{
+		final File sidecar = getSidecar(trajectory);
+		XtcFrameIndex index = load(trajectory, sidecar);
+
+		if(index == null) {
+			index = new XtcFrameIndex(trajectory);
+
+			if(saveSidecar) {
+				try {
+					index.save(sidecar);
+				}
+				catch(IOException e) {
+					Debug.line("Could not save frame index to \"%s\": %s",
+							sidecar.getName(), e.getMessage());
+				}
+			}
+		}
+
+		return index;
+	}
+
+	/**
+	 * Returns the sidecar file of a trajectory, as used by
+	 * {@link #open(File, boolean)}.
+	 * 
+	 * @param trajectory the trajectory.
+	 * @return the sidecar file.
+	 */
+	public static File getSidecar(File trajectory)
+	{
+		return new File(trajectory.getPath() + SIDECAR_EXTENSION);
+	}
+
+	/**
+	 * Loads an index saved using {@link #save(File)}. The index is only
+	 * returned if the length and modification time of the trajectory are the
+	 * same as when the index was saved.
+	 * 
+	 * @param trajectory the trajectory.
+	 * @param file the file containing the index.
+	 * @return the index, or <code>null</code> if <code>file</code> does not
+	 *         exist or does not contain an index of the current version of the
+	 *         trajectory.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public static XtcFrameIndex load(File trajectory, File file)
+	throws IOException
+	{
+		if(!file.isFile()) {
+			return null;
+		}
+
+		final DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+
+		try {
+			if(in.readInt() != SIDECAR_MAGIC || in.readInt() != SIDECAR_VERSION
+					|| in.readLong() != trajectory.length()
+					|| in.readLong() != trajectory.lastModified()) {
+				return null;
+			}
+
+			final int nAtoms = in.readInt();
+			final int nFrames = in.readInt();
+			if(nAtoms < 0 || nFrames < 0) {
+				return null;
+			}
+
+			final long[] offsets = new long[nFrames + 1];
+			for(int i = 0; i <= nFrames; i++) {
+				offsets[i] = in.readLong();
+			}
+
+			return new XtcFrameIndex(trajectory, nAtoms, offsets);
+		}
+		catch(EOFException e) {
+			return null;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Saves this index to a file. The file is written under a temporary name
+	 * and then renamed, so a partially written index is never loaded.
+	 * 
+	 * @param file the file.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public void save(File file) throws IOException
+	{
+		final File parent = file.getAbsoluteFile().getParentFile();
+		final File temporary =
+			File.createTempFile(file.getName(), ".tmp", parent);
+		boolean isSaved = false;
+
+		try {
+			final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temporary)));
+
+			try {
+				out.writeInt(SIDECAR_MAGIC);
+				out.writeInt(SIDECAR_VERSION);
+				out.writeLong(_trajectory.length());
+				out.writeLong(_trajectory.lastModified());
+				out.writeInt(_nAtoms);
+				out.writeInt(_nFrames);
+
+				for(int i = 0; i <= _nFrames; i++) {
+					out.writeLong(_offsets[i]);
+				}
+			}
+			finally {
+				out.close();
+			}
+
+			file.delete();
+			if(!temporary.renameTo(file)) {
+				throw new IOException("Could not rename \""
+						+ temporary.getName() + "\" to \"" + file.getName()
+						+ "\"");
+			}
+
+			isSaved = true;
+		}
+		finally {
+			if(!isSaved) temporary.delete();
+		}
+	}
+
+	/**
+	 * Returns the trajectory.
+	 * 
+	 * @return the trajectory.
+	 */
+	public File getTrajectory()
+	{
+		return _trajectory;
+	}
+
+	/**
+	 * Returns the number of atoms in each frame.
+	 * 
+	 * @return the number of atoms, or <code>0</code> if there are no frames.
+	 */
+	public int atoms()
+	{
+		return _nAtoms;
+	}
+
+	/**
+	 * Returns the number of frames.
+	 * 
+	 * @return the number of frames.
+	 */
+	public int size()
+	{
+		return _nFrames;
+	}
+
+	/**
+	 * Returns the location of a frame in the trajectory.
+	 * 
+	 * @param frame the frame number, starting at <code>0</code>.
+	 * @return the location in bytes.
+	 * @throws IndexOutOfBoundsException if <code>frame</code> is not a frame
+	 *         number.
+	 */
+	public long getOffset(int frame)
+	{
+		checkFrame(frame);
+		return _offsets[frame];
+	}
+
+	/**
+	 * Returns the length of a frame in the trajectory.
+	 * 
+	 * @param frame the frame number, starting at <code>0</code>.
+	 * @return the length in bytes.
+	 * @throws IndexOutOfBoundsException if <code>frame</code> is not a frame
+	 *         number.
+	 */
+	public int getLength(int frame)
+	{
+		checkFrame(frame);
+		return (int)(_offsets[frame + 1] - _offsets[frame]);
+	}
+
+	private void checkFrame(int frame)
+	{
+		if(frame < 0 || frame >= _nFrames) {
+			throw new IndexOutOfBoundsException("frame: " + frame + ", size: "
+					+ _nFrames);
+		}
+	}
+
+	/**
+	 * Checks the header of a frame and returns its number of atoms.
+	 */
+	static int readHeader(ByteBuffer header, long offset)
+	throws IOException
+	{
+		if(header.limit() < HEADER_BYTES || header.getInt(0) != FRAME_MAGIC) {
+			throw new IOException("No XTC frame at byte " + offset);
+		}
+
+		final int nAtoms = header.getInt(4);
+		if(nAtoms < 0 || header.getInt(HEADER_BYTES - 4) != nAtoms) {
+			throw new IOException("Invalid number of atoms in frame at byte "
+					+ offset);
+		}
+
+		if(nAtoms > MAX_UNCOMPRESSED_ATOMS
+				&& header.limit() < COMPRESSED_HEADER_BYTES) {
+			throw new IOException("Frame at byte " + offset + " is truncated");
+		}
+
+		return nAtoms;
+	}
+
+	/**
+	 * Returns the length of a frame in bytes.
+	 */
+	static long frameLength(ByteBuffer header, int nAtoms)
+	throws IOException
+	{
+		if(nAtoms <= MAX_UNCOMPRESSED_ATOMS) {
+			return HEADER_BYTES + 4L * 3 * nAtoms;
+		}
+
+		final int nBytes = header.getInt(COMPRESSED_HEADER_BYTES - 4);
+		if(nBytes < 0) {
+			throw new IOException("Invalid number of compressed bytes");
+		}
+
+		return COMPRESSED_HEADER_BYTES + 4L * ((nBytes + 3L) / 4);
+	}
+
+	/**
+	 * Fills a buffer from a location in a channel.
+	 */
+	static void read(FileChannel channel, ByteBuffer buffer, long offset)
+	throws IOException
+	{
+		while(buffer.hasRemaining()) {
+			final int n = channel.read(buffer, offset);
+
+			if(n < 0) {
+				throw new EOFException();
+			}
+
+			offset += n;
+		}
+
+		buffer.flip();
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.martinkampjensen.thesis.util.gromacs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * This class defines tests for the {@link XtcFrameIndex} class.
+ */
+public class XtcFrameIndexTest
+{
+	private static final File DOUBLE_PRECISION_TRAJECTORY_FILE =
+		new File(".", "test/AcAANMe-10000-300_d.xtc");
+	private static final File SINGLE_PRECISION_TRAJECTORY_FILE =
+		new File(".", "test/AcAANMe-10000-300_s.xtc");
+
+	@Test
+	public void test() throws IOException
+	{
+		testHelper(DOUBLE_PRECISION_TRAJECTORY_FILE);
+		testHelper(SINGLE_PRECISION_TRAJECTORY_FILE);
+	}
+
+	@Test
+	public void testSaveLoad() throws IOException
+	{
+		final XtcFrameIndex index =
+			new XtcFrameIndex(SINGLE_PRECISION_TRAJECTORY_FILE);
+		final File file = File.createTempFile("xtcframeindextest", null);
+
+		try {
+			index.save(file);
+			final XtcFrameIndex loaded =
+				XtcFrameIndex.load(SINGLE_PRECISION_TRAJECTORY_FILE, file);
+
+			assertNotNull(loaded);
+			assertEquals(index.atoms(), loaded.atoms());
+			assertEquals(index.size(), loaded.size());
+
+			for(int i = 0; i < index.size(); i++) {
+				assertEquals(index.getOffset(i), loaded.getOffset(i));
+				assertEquals(index.getLength(i), loaded.getLength(i));
+			}
+
+			// An index of another trajectory is not loaded.
+			assertNull(XtcFrameIndex.load(DOUBLE_PRECISION_TRAJECTORY_FILE,
+					file));
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	private static void testHelper(File trajectoryFile) throws IOException
+	{
+		final XtcFrameIndex index = new XtcFrameIndex(trajectoryFile);
+		final int nFrames = index.size();
+
+		assertEquals(32, index.atoms());
+		assertTrue(nFrames > 0);
+		assertEquals(0, index.getOffset(0));
+
+		for(int i = 1; i < nFrames; i++) {
+			assertEquals(index.getOffset(i - 1) + index.getLength(i - 1),
+					index.getOffset(i));
+		}
+
+		assertEquals(trajectoryFile.length(), index.getOffset(nFrames - 1)
+				+ index.getLength(nFrames - 1));
+	}
+}
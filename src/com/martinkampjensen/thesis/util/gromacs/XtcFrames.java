@@ -0,0 +1,270 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.martinkampjensen.thesis.util.gromacs;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.martinkampjensen.thesis.util.Util;
+
+/**
+ * Reads the atom coordinates of individual conformations (frames) of an XTC
+ * trajectory on demand, using an {@link XtcFrameIndex} to find the frames.
+ * The index is kept in the sidecar file of the trajectory, see
+ * {@link XtcFrameIndex#open(File)}. The most recently read frames are kept in
+ * a cache.
+ * <p>
+ * This allows models to refer to their frame in the trajectory instead of
+ * keeping a copy of their coordinates.
+ * <p>
+ * Several trajectories with the same number of atoms can be read as if they
+ * were concatenated, so that the frames are numbered consecutively across the
+ * trajectories.
+ * <p>
+ * Note that this implementation is not synchronized.
+ */
+public final class XtcFrames implements Closeable
+{
+	/**
+	 * The default number of frames to keep in the cache.
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 64;
+
+	private static final int DIMENSIONS = XtcDecoder.DIMENSIONS;
+
+	private final XtcFrameIndex[] _indexes;
+	private final RandomAccessFile[] _files;
+	private final int[] _offsets;
+	private final int _nAtoms;
+	private final Map<Integer, double[][]> _cache;
+	private final XtcDecoder _decoder;
+	private final float[] _x;
+
+	/**
+	 * Opens a trajectory with a cache of {@link #DEFAULT_CACHE_SIZE} frames.
+	 * 
+	 * @param trajectory the trajectory.
+	 * @throws FileNotFoundException if <code>trajectory</code> does not exist
+	 *         or is not a file.
+	 * @throws IOException if an I/O error occurs, or if the trajectory is not
+	 *         a valid XTC trajectory.
+	 */
+	public XtcFrames(File trajectory) throws FileNotFoundException, IOException
+	{
+		this(trajectory, DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * Opens a trajectory.
+	 * 
+	 * @param trajectory the trajectory.
+	 * @param cacheSize the number of frames to keep in the cache.
+	 * @throws FileNotFoundException if <code>trajectory</code> does not exist
+	 *         or is not a file.
+	 * @throws IOException if an I/O error occurs, or if the trajectory is not
+	 *         a valid XTC trajectory.
+	 * @throws IllegalArgumentException if <code>cacheSize &lt; 0</code>.
+	 */
+	public XtcFrames(File trajectory, int cacheSize)
+	throws FileNotFoundException, IOException
+	{
+		this(Collections.singletonList(trajectory), cacheSize);
+	}
+
+	/**
+	 * Opens a list of trajectories.
+	 * 
+	 * @param trajectories the trajectories.
+	 * @param cacheSize the number of frames to keep in the cache.
+	 * @throws FileNotFoundException if a trajectory does not exist or is not
+	 *         a file.
+	 * @throws IOException if an I/O error occurs, if a trajectory is not a
+	 *         valid XTC trajectory, or if the non-empty trajectories do not
+	 *         have the same number of atoms.
+	 * @throws IllegalArgumentException if <code>trajectories</code> is empty
+	 *         or if <code>cacheSize &lt; 0</code>.
+	 */
+	public XtcFrames(List<File> trajectories, final int cacheSize)
+	throws FileNotFoundException, IOException
+	{
+		if(trajectories.isEmpty()) {
+			throw new IllegalArgumentException("trajectories is empty");
+		}
+		else if(cacheSize < 0) {
+			throw new IllegalArgumentException("cacheSize < 0");
+		}
+
+		final int nTrajectories = trajectories.size();
+		_indexes = new XtcFrameIndex[nTrajectories];
+		_files = new RandomAccessFile[nTrajectories];
+		_offsets = new int[nTrajectories + 1];
+		int nAtoms = -1;
+
+		try {
+			for(int t = 0; t < nTrajectories; t++) {
+				final File trajectory = trajectories.get(t);
+				final XtcFrameIndex index = XtcFrameIndex.open(trajectory);
+
+				if(index.size() != 0) {
+					if(nAtoms != -1 && index.atoms() != nAtoms) {
+						throw new IOException("The number of atoms of "
+								+ trajectory.getName() + " does not match the "
+								+ "number of atoms of the previous "
+								+ "trajectories");
+					}
+
+					nAtoms = index.atoms();
+				}
+
+				_indexes[t] = index;
+				_files[t] = new RandomAccessFile(trajectory, "r");
+				_offsets[t + 1] = _offsets[t] + index.size();
+			}
+		}
+		catch(IOException e) {
+			try {
+				closeFiles();
+			}
+			catch(IOException closeException) {
+				// Ignore.
+			}
+
+			throw e;
+		}
+
+		_nAtoms = (nAtoms == -1 ? _indexes[0].atoms() : nAtoms);
+		_decoder = new XtcDecoder();
+		_x = new float[DIMENSIONS * _nAtoms];
+		_cache = new LinkedHashMap<Integer, double[][]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Integer, double[][]> eldest)
+			{
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns the number of atoms in each frame.
+	 * 
+	 * @return the number of atoms.
+	 */
+	public int atoms()
+	{
+		return _nAtoms;
+	}
+
+	/**
+	 * Returns the number of frames of all the trajectories.
+	 * 
+	 * @return the number of frames.
+	 */
+	public int size()
+	{
+		return _offsets[_offsets.length - 1];
+	}
+
+	/**
+	 * Returns the coordinates of the atoms of a frame. The coordinates are in
+	 * angstrom, as in {@link XtcReader}.
+	 * 
+	 * @param frame the frame number across all the trajectories, starting at
+	 *        <code>0</code>.
+	 * @return a new array containing the atom coordinates.
+	 * @throws IOException if an I/O error occurs while reading the frame.
+	 * @throws IndexOutOfBoundsException if <code>frame</code> is not a frame
+	 *         number.
+	 */
+	public double[][] get(int frame) throws IOException
+	{
+		final Integer key = Integer.valueOf(frame);
+		double[][] coordinates = _cache.get(key);
+
+		if(coordinates == null) {
+			coordinates = read(frame);
+			_cache.put(key, coordinates);
+		}
+
+		return Util.copy(coordinates);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		_cache.clear();
+		closeFiles();
+	}
+
+	private void closeFiles() throws IOException
+	{
+		IOException exception = null;
+
+		for(int t = 0; t < _files.length; t++) {
+			if(_files[t] != null) {
+				try {
+					_files[t].close();
+				}
+				catch(IOException e) {
+					exception = e;
+				}
+			}
+		}
+
+		if(exception != null) {
+			throw exception;
+		}
+	}
+
+	/**
+	 * Reads and decodes a frame.
+	 */
+	private double[][] read(int frame) throws IOException
+	{
+		if(frame < 0 || frame >= size()) {
+			throw new IndexOutOfBoundsException(Integer.toString(frame));
+		}
+
+		// Find the trajectory containing the frame. There are few
+		// trajectories, so they are searched linearly.
+		int t = 0;
+		while(_offsets[t + 1] <= frame) t++;
+
+		final XtcFrameIndex index = _indexes[t];
+		final int local = frame - _offsets[t];
+		final ByteBuffer bytes = ByteBuffer.allocate(index.getLength(local));
+		XtcFrameIndex.read(_files[t].getChannel(), bytes,
+				index.getOffset(local));
+
+		final int nAtoms = _nAtoms;
+		_decoder.decode(bytes, _x);
+
+		final double[][] coordinates = new double[nAtoms][DIMENSIONS];
+		XtcReader.fillMatrix(coordinates, _x, nAtoms, DIMENSIONS);
+		return coordinates;
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2010-2011 Martin Kamp Jensen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.martinkampjensen.thesis.util.gromacs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * This class defines tests for the {@link XtcFrames} class.
+ */
+public class XtcFramesTest
+{
+	private static final File DOUBLE_PRECISION_TRAJECTORY_FILE =
+		new File(".", "test/AcAANMe-10000-300_d.xtc");
+	private static final File SINGLE_PRECISION_TRAJECTORY_FILE =
+		new File(".", "test/AcAANMe-10000-300_s.xtc");
+	private static final int CACHE_SIZE = 8;
+
+	@Test
+	public void test() throws IOException
+	{
+		final List<File> trajectories = Arrays.asList(
+				DOUBLE_PRECISION_TRAJECTORY_FILE,
+				SINGLE_PRECISION_TRAJECTORY_FILE);
+		final List<double[][]> expected = new ArrayList<double[][]>();
+		for(File trajectory : trajectories) {
+			readAll(trajectory, expected);
+		}
+
+		final int nFrames = expected.size();
+		final XtcFrames frames = new XtcFrames(trajectories, CACHE_SIZE);
+
+		try {
+			assertEquals(32, frames.atoms());
+			assertEquals(nFrames, frames.size());
+
+			// Forwards across both trajectories, and backwards so that the
+			// last frames are in the cache and the others have been evicted.
+			for(int i = 0; i < nFrames; i++) {
+				assertFrame(expected.get(i), frames.get(i));
+			}
+			for(int i = nFrames - 1; i >= 0; i--) {
+				assertFrame(expected.get(i), frames.get(i));
+			}
+
+			// Alternate between the trajectories, so that every frame is
+			// evicted before it is read again.
+			final int half = nFrames / 2;
+			for(int k = 0; k < 2; k++) {
+				for(int i = 0; i < 4 * CACHE_SIZE; i++) {
+					assertFrame(expected.get(i), frames.get(i));
+					assertFrame(expected.get(half + i), frames.get(half + i));
+				}
+			}
+
+			// The returned coordinates are copies of the cached ones.
+			final double[][] frame = frames.get(0);
+			frame[0][0] = Double.NaN;
+			assertFrame(expected.get(0), frames.get(0));
+		}
+		finally {
+			frames.close();
+		}
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testGetOutOfBounds() throws IOException
+	{
+		final XtcFrames frames =
+			new XtcFrames(SINGLE_PRECISION_TRAJECTORY_FILE);
+
+		try {
+			frames.get(frames.size());
+		}
+		finally {
+			frames.close();
+		}
+	}
+
+	private static void readAll(File trajectory, List<double[][]> frames)
+	throws IOException
+	{
+		final XtcReader reader = new XtcReader(trajectory);
+
+		try {
+			while(reader.hasNext()) {
+				final double[][] frame = reader.createCoordinatesArray();
+				reader.next(frame);
+				frames.add(frame);
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	private static void assertFrame(double[][] expected, double[][] actual)
+	{
+		assertEquals(expected.length, actual.length);
+
+		for(int i = 0; i < expected.length; i++) {
+			assertArrayEquals(expected[i], actual[i], 0d);
+		}
+	}
+}
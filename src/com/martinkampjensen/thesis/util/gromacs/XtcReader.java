@@ -18,111 +18,111 @@ package com.martinkampjensen.thesis.util.gromacs;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
-import com.sun.jna.Native;
-import com.sun.jna.Pointer;
-import com.sun.jna.ptr.FloatByReference;
-import com.sun.jna.ptr.IntByReference;
-
 /**
- * Reads atom coordinates of conformations (frames) in an XTC trajectory. Uses
- * the GROMACS XTC Library (xdrfile) via Java Native Access (JNA).
+ * Reads atom coordinates of conformations (frames) in an XTC trajectory. The
+ * frames are read through a {@link FileChannel} and decoded in Java by
+ * {@link XtcDecoder}, so no native library is needed.
+ * <p>
+ * The frames are read in order, starting with the first frame. An
+ * {@link XtcFrameIndex} allows a reader to {@link #seek(int)} to any frame,
+ * e.g. so that several readers can read different ranges of frames of the
+ * same trajectory concurrently, as when
+ * {@link com.martinkampjensen.thesis.barriers.TrajectoryConstructor} loads
+ * a trajectory.
  * <p>
- * Note that this implementation is not synchronized and that this class has not
- * been prepared to handle the existence of more than one instance at a time.
+ * Note that this implementation is not synchronized.
  * <p>
- * libxdrfile.[so,dylib] or xdrfile.dll must be in
- * <code>jna.library.path</code>. Tested using XTC files generated by GROMACS
- * 4.5.4.
+ * Tested using XTC files generated by GROMACS 4.5.4.
  * 
  * @see <a href="http://www.gromacs.org">GROMACS</a>
- * @see <a href="https://github.com/twall/jna">Java Native Access</a>
  */
 public final class XtcReader
 implements Closeable, Iterator<double[][]>, Iterable<double[][]>
 {
-	/**
-	 * Name of the native library. Will be libLIBRARY_NAME.so on Linux,
-	 * libLIBRARY_NAME.dylib on Mac OS X, and LIBRARY_NAME.dll on Windows.
-	 */
-	private static final String LIBRARY_NAME = "xdrfile";
-
-	/**
-	 * <code>exdrOK</code> from xdrfile.h.
-	 */
-	private static final int STATUS_SUCCESS = 0;
-
-	/**
-	 * <code>exdrENDOFFILE</code> from xdrfile.h.
-	 */
-	private static final int STATUS_END = 11;
-
-	/**
-	 * From xdrfile.h, <code>"r"</code> for reading.
-	 */
-	private static final String MODE_READ = "r";
-
 	/**
 	 * Number of coordinates per point/atom.
 	 */
-	private static final int DIMENSIONS = 3;
+	private static final int DIMENSIONS = XtcDecoder.DIMENSIONS;
 
-	private final String _xdrPath;
-	private final Pointer _xdrPointer;
+	private final File _trajectory;
+	private final FileInputStream _stream;
+	private final FileChannel _channel;
+	private final long _length;
 	private final int _nAtoms;
-	private final IntByReference _frameStep;
-	private final FloatByReference _frameTime;
-	private final float[] _frameBox;
+	private final ByteBuffer _header;
+	private final XtcDecoder _decoder;
 	private final float[] _frameX;
-	private final FloatByReference _framePrec;
+	private XtcFrameIndex _index;
+	private ByteBuffer _frame;
+	private long _offset;
 	private boolean _isClosed;
-	private boolean _hasNext;
 	private int _nConformations;
 
 	public XtcReader(File trajectory)
 	throws FileNotFoundException, IOException
+	{
+		this(trajectory, null);
+	}
+
+	/**
+	 * Opens the trajectory of an index. The index is used by
+	 * {@link #seek(int)}, so the trajectory is not scanned again.
+	 * 
+	 * @param index the index.
+	 * @throws FileNotFoundException if the trajectory does not exist or is not
+	 *         a file.
+	 * @throws IOException if an I/O error occurs.
+	 * @throws NullPointerException if <code>index == null</code>.
+	 */
+	public XtcReader(XtcFrameIndex index)
+	throws FileNotFoundException, IOException
+	{
+		this(index.getTrajectory(), index);
+	}
+
+	private XtcReader(File trajectory, XtcFrameIndex index)
+	throws FileNotFoundException, IOException
 	{
 		if(!trajectory.exists() || !trajectory.isFile()) {
 			throw new FileNotFoundException("trajectory does not exist or is "
 					+ "not a file");
 		}
 
-		Native.register(LIBRARY_NAME);
-
-		_xdrPath = trajectory.getAbsolutePath();
-		_xdrPointer = xdrfile_open(_xdrPath, MODE_READ);
+		_trajectory = trajectory;
+		_index = index;
+		_stream = new FileInputStream(trajectory);
+		_channel = _stream.getChannel();
+		_header = ByteBuffer.allocate(XtcFrameIndex.COMPRESSED_HEADER_BYTES);
+		_decoder = new XtcDecoder();
+		_frame = ByteBuffer.allocate(0);
+		_offset = 0;
+		_isClosed = false;
+		_nConformations = 0;
 
-		if(_xdrPointer == null) {
-			throw new IOException("Unknown error when trying to open "
-					+ "trajectory");
-		}
+		try {
+			_length = _channel.size();
 
-		final IntByReference nAtomsRef = new IntByReference();
-		final int statusCode = read_xtc_natoms(_xdrPath, nAtomsRef);
+			if(_length == 0) {
+				throw new IOException("Error when trying to read number of "
+						+ "atoms: trajectory is empty");
+			}
 
-		if(statusCode != STATUS_SUCCESS) {
+			_nAtoms = readHeader();
+		}
+		catch(IOException e) {
 			close();
-			throw new IOException("Error " + statusCode + " when trying to "
-					+ "read number of atoms");
+			throw e;
 		}
 
-		_nAtoms = nAtomsRef.getValue();
-		_frameStep = new IntByReference();
-		_frameTime = new FloatByReference();
-		_frameBox = new float[DIMENSIONS * DIMENSIONS];
 		_frameX = new float[_nAtoms * DIMENSIONS];
-		_framePrec = new FloatByReference();
-
-		// Prefetch first conformation.
-		readConformation();
-
-		_isClosed = false;
-		_hasNext = true;
-		_nConformations = 0;
 	}
 
 	@Override
@@ -135,20 +135,13 @@ implements Closeable, Iterator<double[][]>, Iterable<double[][]>
 			_isClosed = true;
 		}
 
-		final int statusCode = xdrfile_close(_xdrPointer);
-
-		Native.unregister();
-
-		if(statusCode != STATUS_SUCCESS) {
-			throw new IOException("Error " + statusCode + " when trying to "
-					+ "close trajectory");
-		}
+		_stream.close();
 	}
 
 	@Override
 	public boolean hasNext()
 	{
-		return _hasNext;
+		return _offset < _length;
 	}
 
 	/**
@@ -211,13 +204,65 @@ implements Closeable, Iterator<double[][]>, Iterable<double[][]>
 	 */
 	public void next(double[][] coordinates) throws IOException
 	{
-		if(!_hasNext) {
-			throw new NoSuchElementException();
+		readConformation(_frameX);
+		fillMatrix(coordinates, _frameX, _nAtoms, DIMENSIONS);
+	}
+
+	/**
+	 * Reads the coordinates of the atoms of the next conformation (frame) of
+	 * the trajectory into a flat array, that is, the coordinates of atom
+	 * <code>i</code> are stored at <code>3 * i</code>, <code>3 * i + 1</code>,
+	 * and <code>3 * i + 2</code>. The coordinates are in angstrom.
+	 * <p>
+	 * Unlike {@link #next(double[][])}, the coordinates are decoded directly
+	 * into <code>coordinates</code> without being copied.
+	 * 
+	 * @param coordinates an array to fill with the atom coordinates.
+	 * @throws IllegalStateException if {@link #close()} has been called.
+	 * @throws IOException if an I/O error occurs while reading from the
+	 *         trajectory.
+	 * @throws NoSuchElementException if there are no more conformations. This
+	 *         means that {@link #hasNext()} would have returned
+	 *         <code>false</code> immediately before this method was called.
+	 * @throws NullPointerException if <code>coordinates == null</code>.
+	 * @throws IndexOutOfBoundsException if <code>coordinates.length &lt; 3 *
+	 *         {@link #atoms()}</code>.
+	 */
+	public void next(float[] coordinates) throws IOException
+	{
+		readConformation(coordinates);
+	}
+
+	/**
+	 * Positions this reader so that the next conformation (frame) read is a
+	 * certain frame. If this reader was not created with an
+	 * {@link XtcFrameIndex}, the trajectory is indexed the first time this
+	 * method is called.
+	 * 
+	 * @param frame the frame number, starting at <code>0</code>. If it is the
+	 *        number of frames, there are no more conformations to read.
+	 * @throws IllegalStateException if {@link #close()} has been called.
+	 * @throws IOException if an I/O error occurs while indexing the
+	 *         trajectory.
+	 * @throws IndexOutOfBoundsException if <code>frame &lt; 0</code> or if
+	 *         <code>frame</code> is greater than the number of frames.
+	 */
+	public void seek(int frame) throws IOException
+	{
+		checkState();
+
+		if(_index == null) {
+			_index = new XtcFrameIndex(_trajectory);
 		}
 
-		_nConformations++;
-		fillMatrix(coordinates, _frameX, _nAtoms, DIMENSIONS);
-		readConformation();
+		final int nFrames = _index.size();
+		if(frame < 0 || frame > nFrames) {
+			throw new IndexOutOfBoundsException("frame: " + frame + ", size: "
+					+ nFrames);
+		}
+
+		_offset = (frame == nFrames ? _length : _index.getOffset(frame));
+		_nConformations = frame;
 	}
 
 	/**
@@ -232,7 +277,9 @@ implements Closeable, Iterator<double[][]>, Iterable<double[][]>
 	}
 
 	/**
-	 * Returns the number of conformations (frames) read.
+	 * Returns the number of conformations (frames) read, that is, the frame
+	 * number of the next conformation. After {@link #seek(int)}, the frames
+	 * before the frame sought to are counted as read.
 	 * <p>
 	 * When {@link #hasNext()} has returned <code>false</code>, this is the
 	 * total number of conformations in the trajectory.
@@ -246,7 +293,7 @@ implements Closeable, Iterator<double[][]>, Iterable<double[][]>
 
 	/**
 	 * Creates and returns an array that can be used with the
-	 * {@link #next(float[][])} method.
+	 * {@link #next(double[][])} method.
 	 * 
 	 * @return the array.
 	 */
@@ -266,22 +313,6 @@ implements Closeable, Iterator<double[][]>, Iterable<double[][]>
 		close();
 	}
 
-	/**
-	 * Converts an array of values in nm to values in angstrom.
-	 * <p>
-	 * <code>1 nm == 1 * 10^-9</code>, <code>1 angstrom == 1 * 10^-10</code>.
-	 * 
-	 * @param array the array.
-	 * @see <a href="http://en.wikipedia.org/wiki/Angstrom">Angstrom</a>
-	 */
-	private static void fromNmToAngstrom(float[] array)
-	{
-		final int length = array.length;
-		for(int i = 0; i < length; i++) {
-			array[i] *= 10;
-		}
-	}
-
 	/**
 	 * Fills a matrix using an array.
 	 * 
@@ -296,7 +327,7 @@ implements Closeable, Iterator<double[][]>, Iterable<double[][]>
 	 *         <code>matrix</code>, <code>array</code>, <code>rows</code>, and
 	 *         <code>columns</code>.
 	 */
-	private static void fillMatrix(double[][] matrix, float[] array, int rows,
+	static void fillMatrix(double[][] matrix, float[] array, int rows,
 			int columns)
 	{
 		for(int i = 0; i < rows; i++) {
@@ -320,38 +351,60 @@ implements Closeable, Iterator<double[][]>, Iterable<double[][]>
 		}
 	}
 
+	/**
+	 * Reads the header of the next conformation (frame) into
+	 * <code>_header</code> and returns its number of atoms.
+	 * 
+	 * @throws IOException if an I/O error occurs while reading from the
+	 *         trajectory.
+	 */
+	private int readHeader() throws IOException
+	{
+		_header.clear();
+		_header.limit((int)Math.min(XtcFrameIndex.COMPRESSED_HEADER_BYTES,
+				_length - _offset));
+		XtcFrameIndex.read(_channel, _header, _offset);
+
+		return XtcFrameIndex.readHeader(_header, _offset);
+	}
+
 	/**
 	 * Reads a conformation (frame) from the trajectory.
 	 * 
+	 * @param x the array to fill with the atom coordinates.
 	 * @throws IOException if an I/O error occurs while reading from the
 	 *         trajectory.
 	 */
-	private void readConformation() throws IOException
+	private void readConformation(float[] x) throws IOException
 	{
 		checkState();
 
-		final float[] x = _frameX;
-		final int statusCode = read_xtc(_xdrPointer, _nAtoms, _frameStep,
-				_frameTime, _frameBox, x, _framePrec);
+		if(!hasNext()) {
+			throw new NoSuchElementException();
+		}
 
-		if(statusCode == STATUS_SUCCESS) {
-			fromNmToAngstrom(x);
+		final int nAtoms = readHeader();
+		if(nAtoms != _nAtoms) {
+			throw new IOException("Frame " + _nConformations + " has "
+					+ nAtoms + " atoms, expected " + _nAtoms);
 		}
-		else if(statusCode == STATUS_END) {
-			_hasNext = false;
+
+		final long length = XtcFrameIndex.frameLength(_header, nAtoms);
+		if(_offset + length > _length) {
+			throw new IOException("Frame " + _nConformations
+					+ " is truncated");
 		}
-		else {
-			throw new IOException("Error " + statusCode + " when trying to "
-					+ "read frame");
+
+		if(_frame.capacity() < length) {
+			_frame = ByteBuffer.allocate((int)length);
 		}
-	}
 
-	// Direct Mapping using Java Native Access. Selected methods from xdrfile.h
-	// and xdrfile_xtc.h of the GROMACS XTC Library (xdrfile).
-	private native Pointer xdrfile_open(String path, String mode);
-	private native int xdrfile_close(Pointer xfp);
-	private native int read_xtc_natoms(String fn, IntByReference natoms);
-	private native int read_xtc(Pointer xd, int natoms, IntByReference step,
-			FloatByReference time, float[] box, float[] x,
-			FloatByReference prec);
+		_frame.clear();
+		_frame.limit((int)length);
+		XtcFrameIndex.read(_channel, _frame, _offset);
+		_decoder.decode(_frame, x);
+
+		_offset += length;
+		_nConformations++;
+	}
 }
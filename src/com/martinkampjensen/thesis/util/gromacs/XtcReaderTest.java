@@ -17,12 +17,15 @@
 package com.martinkampjensen.thesis.util.gromacs;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.junit.Test;
 
@@ -49,6 +52,74 @@ public class XtcReaderTest
 				SINGLE_PRECISION_TRAJECTORY_FILE);
 	}
 
+	@Test
+	public void testFlat() throws IOException
+	{
+		final XtcReader flatReader =
+			new XtcReader(SINGLE_PRECISION_TRAJECTORY_FILE);
+		final XtcReader reader =
+			new XtcReader(SINGLE_PRECISION_TRAJECTORY_FILE);
+
+		try {
+			final int nAtoms = reader.atoms();
+			final float[] flat = new float[3 * nAtoms];
+			final double[][] frame = reader.createCoordinatesArray();
+
+			while(reader.hasNext()) {
+				assertTrue(flatReader.hasNext());
+				flatReader.next(flat);
+				reader.next(frame);
+
+				for(int i = 0; i < nAtoms; i++) {
+					for(int j = 0; j < 3; j++) {
+						assertTrue(flat[3 * i + j] == frame[i][j]);
+					}
+				}
+			}
+
+			assertFalse(flatReader.hasNext());
+			assertEquals(reader.conformations(), flatReader.conformations());
+		}
+		finally {
+			flatReader.close();
+			reader.close();
+		}
+	}
+
+	@Test
+	public void testSeek() throws IOException
+	{
+		final XtcReader reader =
+			new XtcReader(SINGLE_PRECISION_TRAJECTORY_FILE);
+		final XtcReader seekingReader =
+			new XtcReader(SINGLE_PRECISION_TRAJECTORY_FILE);
+
+		try {
+			final int nAtoms = reader.atoms();
+			final float[] expected = new float[3 * nAtoms];
+			final float[] actual = new float[3 * nAtoms];
+
+			while(reader.hasNext()) {
+				final int frame = reader.conformations();
+				reader.next(expected);
+
+				if(frame % 7 == 3) {
+					seekingReader.seek(frame);
+					assertEquals(frame, seekingReader.conformations());
+					seekingReader.next(actual);
+					assertTrue(Arrays.equals(expected, actual));
+				}
+			}
+
+			seekingReader.seek(reader.conformations());
+			assertFalse(seekingReader.hasNext());
+		}
+		finally {
+			seekingReader.close();
+			reader.close();
+		}
+	}
+
 	private static void testHelper(File resultsFile, File trajectoryFile)
 	throws FileNotFoundException, IOException
 	{
@@ -89,6 +89,27 @@ public final class OpenBabel
 		return molecule;
 	}
 
+	/**
+	 * Sets the coordinates of the atoms of a molecule and returns a PDB
+	 * representation of the molecule.
+	 * 
+	 * @param molecule the molecule.
+	 * @param coordinates the coordinates of the atoms.
+	 * @return the PDB representation.
+	 */
+	public static String toPdb(OBMol molecule, double[][] coordinates)
+	{
+		final int nAtoms = coordinates.length;
+
+		for(int i = 0; i < nAtoms; i++) {
+			final OBAtom atom = molecule.GetAtom(i + 1);
+			final double[] xyz = coordinates[i];
+			atom.SetVector(xyz[0], xyz[1], xyz[2]);
+		}
+
+		return toPdb(molecule);
+	}
+
 	public static String toPdb(OBMol molecule)
 	{
 		final String pdb = _pdbConverter.WriteString(molecule);